@@ -0,0 +1,344 @@
+package io.github.totemo.doppelganger.bench;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Zombie;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.inventory.ItemStack;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.github.totemo.doppelganger.headless.HeadlessDoppelganger;
+import io.github.totemo.doppelganger.headless.HeadlessServer;
+import io.github.totemo.doppelganger.headless.HeadlessWorld;
+
+// ----------------------------------------------------------------------------
+/**
+ * Checks the bytes allocated by the plugin's event handlers on their hot
+ * paths against fixed budgets, so that a change that adds garbage to every
+ * block placement or death fails the build.
+ *
+ * Each handler is called directly, rather than through the plugin manager,
+ * so that only the plugin's own allocation is measured. Every scenario is
+ * warmed up until the JIT has compiled it, then measured over many calls;
+ * the cost of reading the allocation counter is subtracted. The budgets are
+ * upper bounds in bytes per call. Ordinary block placements and vanilla mob
+ * deaths, which are nearly all events, have a budget of zero.
+ *
+ * Run with:
+ *
+ * <pre>
+ * mvn -P bench test
+ * </pre>
+ *
+ * To re-record the budgets after a deliberate change, run:
+ *
+ * <pre>
+ * mvn -P bench test -Dtest=AllocationBudgetTest -Ddoppelganger.allocation.record=true
+ * </pre>
+ *
+ * In that mode every scenario fails with its measured bytes per call as the
+ * message, in the Surefire report. Set each non-zero budget to the measured
+ * value plus {@link #HEADROOM_PERCENT}, rounded up to a multiple of 64 bytes,
+ * and note the JVM it was measured on beside it.
+ */
+public class AllocationBudgetTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Enable the plugin with a small generated configuration in a new world.
+     *
+     * @throws IOException if the plugin can't be created.
+     */
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        _server = HeadlessServer.get();
+        _server.reset();
+        _world = _server.createWorld("alloc", -16, 0, -16, 32, 16, 32);
+        _player = _server.addPlayer("Alloc", _world, 0.5, 8, 8.5);
+
+        ConfigGenerator generator = new ConfigGenerator(SHAPES, 4);
+        _plugin = HeadlessDoppelganger.create(_server, generator.toYaml());
+        _plugin.enable();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Disable the plugin and remove the world.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        _server.reset();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Placing an unnamed block must not allocate.
+     *
+     * Named blocks that are not triggers are rare and may allocate, since
+     * their name is read to tell the player why nothing was summoned.
+     */
+    @Test
+    public void ordinaryPlacement() {
+        final BlockPlaceEvent event = _server.createBlockPlaceEvent(_player, new ItemStack(Material.STONE, 1), 8, 8, 0);
+        assertWithinBudget("ordinary placement", 0, new Scenario() {
+            @Override
+            public void run() {
+                _plugin.onBlockPlace(event);
+            }
+        });
+        assertFalse(event.isCancelled());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Placing a named trigger on a shape that is missing a block allocates
+     * little.
+     */
+    @Test
+    public void failedMatch() {
+        int shape = SHAPES - 1;
+        ConfigGenerator.buildShape(_world, shape, 0, 8, 0);
+        int[] missing = ConfigGenerator.OFFSETS[ConfigGenerator.OFFSETS.length - 1];
+        _world.setType(missing[0], 8 + missing[1], missing[2], Material.AIR);
+        final BlockPlaceEvent event = _server.createBlockPlaceEvent(_player,
+                                                                    HeadlessServer.namedItem(ConfigGenerator.getTrigger(shape), "Missed"),
+                                                                    0, 8, 0);
+        assertWithinBudget("failed match", FAILED_MATCH_BUDGET, new Scenario() {
+            @Override
+            public void run() {
+                _plugin.onBlockPlace(event);
+            }
+        });
+        assertFalse(event.isCancelled());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Summoning a creature allocates a bounded amount: the creature itself
+     * dominates.
+     */
+    @Test
+    public void successfulMatch() {
+        final int shape = SHAPES - 1;
+        final ItemStack trigger = HeadlessServer.namedItem(ConfigGenerator.getTrigger(shape), "Summoned");
+        Scenario scenario = new Scenario() {
+            @Override
+            public void setUp() {
+                ConfigGenerator.buildShape(_world, shape, 0, 8, 0);
+                _event = _server.createBlockPlaceEvent(_player, trigger, 0, 8, 0);
+            }
+
+            @Override
+            public void run() {
+                _plugin.onBlockPlace(_event);
+            }
+
+            @Override
+            public void cleanUp() {
+                assertTrue("shape was not matched", _event.isCancelled());
+                killSpawned();
+            }
+
+            /**
+             * The event of the current call.
+             */
+            protected BlockPlaceEvent _event;
+        };
+        assertWithinBudget("successful match", SUCCESSFUL_MATCH_BUDGET, scenario);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The death of an unnamed vanilla mob must not allocate in any of the
+     * plugin's death handlers.
+     */
+    @Test
+    public void vanillaDeath() {
+        Zombie zombie = _world.spawn(new Location(_world.getWorld(), 8.5, 8, 8.5), Zombie.class);
+        final EntityDeathEvent event = new EntityDeathEvent(zombie, new ArrayList<ItemStack>(), 0);
+        assertWithinBudget("vanilla death", 0, new Scenario() {
+            @Override
+            public void run() {
+                _plugin.onEntityDeath(event);
+                _plugin.getDoppelgangerIndex().onEntityDeath(event);
+                _plugin.getPopulationReconciler().onEntityDeath(event);
+            }
+        });
+        _world.remove(zombie);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * One call of an event handler whose allocation is measured.
+     *
+     * Only {@link #run()} is measured; {@link #setUp()} and
+     * {@link #cleanUp()} prepare the world for it and undo its effects.
+     */
+    protected static abstract class Scenario {
+        /**
+         * Prepare for a call.
+         */
+        public void setUp() {
+        }
+
+        /**
+         * Make the measured call.
+         */
+        public abstract void run();
+
+        /**
+         * Check and undo the effects of a call.
+         */
+        public void cleanUp() {
+        }
+    } // inner class Scenario
+
+    // ------------------------------------------------------------------------
+    /**
+     * Warm up a scenario, measure the mean bytes allocated per call and fail
+     * if it exceeds the budget.
+     *
+     * The test is skipped if the JVM can't measure allocation.
+     *
+     * @param name the name of the scenario, for the failure message.
+     * @param budget the maximum mean bytes allocated per call.
+     * @param scenario the scenario.
+     */
+    protected static void assertWithinBudget(String name, long budget, Scenario scenario) {
+        assumeTrue("allocation measurement is not supported", AllocationCounter.isSupported());
+        measure(scenario, WARMUP_CALLS);
+        long overhead = measure(EMPTY, MEASURED_CALLS);
+        long bytes = Math.max(0, measure(scenario, MEASURED_CALLS) - overhead);
+        double perCall = (double) bytes / MEASURED_CALLS;
+        if (Boolean.getBoolean(RECORD_PROPERTY)) {
+            fail(String.format(Locale.US, "%s measured %.1f bytes/call (budget %d)", name, perCall, budget));
+        }
+        assertTrue(String.format(Locale.US, "%s allocated %.1f bytes/call, over the budget of %d", name, perCall, budget),
+                   perCall <= budget);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total bytes allocated by the measured part of a number of
+     * calls of a scenario.
+     *
+     * @param scenario the scenario.
+     * @param calls the number of calls.
+     * @return the total bytes allocated by {@link Scenario#run()}.
+     */
+    protected static long measure(Scenario scenario, int calls) {
+        long total = 0;
+        for (int i = 0; i < calls; ++i) {
+            scenario.setUp();
+            long before = AllocationCounter.getAllocatedBytes();
+            scenario.run();
+            total += AllocationCounter.getAllocatedBytes() - before;
+            scenario.cleanUp();
+        }
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Kill every living entity other than players, through the plugin's
+     * death handlers, so that the plugin's indices stay small.
+     */
+    protected static void killSpawned() {
+        for (Entity entity : new ArrayList<Entity>(_world.getEntities())) {
+            if (entity instanceof LivingEntity && !(entity instanceof Player)) {
+                _server.killEntity((LivingEntity) entity, new ArrayList<ItemStack>());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of configured shapes.
+     */
+    protected static final int SHAPES = 16;
+
+    /**
+     * The number of calls made before measuring, enough for the JIT to
+     * compile the handlers and eliminate allocations that don't escape.
+     */
+    protected static final int WARMUP_CALLS = 20000;
+
+    /**
+     * The number of calls measured.
+     */
+    protected static final int MEASURED_CALLS = 10000;
+
+    /**
+     * If this system property is true, report the measured bytes per call of
+     * every scenario instead of checking budgets.
+     */
+    protected static final String RECORD_PROPERTY = "doppelganger.allocation.record";
+
+    /**
+     * The headroom added to a measured allocation to make its budget, as a
+     * percentage, so that JVM updates don't fail the build.
+     */
+    protected static final int HEADROOM_PERCENT = 10;
+
+    /**
+     * The budget in bytes per call of a placement that fails to match a
+     * shape, allowing for the block locations examined.
+     *
+     * Provisional: this is an estimate that has not been recorded on a
+     * headless server yet. Replace it as described in the class comment.
+     */
+    protected static final long FAILED_MATCH_BUDGET = 4096;
+
+    /**
+     * The budget in bytes per call of a placement that summons a creature,
+     * including the creature, its equipment and scheduled tasks.
+     *
+     * Provisional: this is an estimate that has not been recorded on a
+     * headless server yet. Replace it as described in the class comment.
+     */
+    protected static final long SUCCESSFUL_MATCH_BUDGET = 65536;
+
+    /**
+     * A scenario that does nothing, used to measure the cost of reading the
+     * allocation counter.
+     */
+    protected static final Scenario EMPTY = new Scenario() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * The server.
+     */
+    protected static HeadlessServer _server;
+
+    /**
+     * The world.
+     */
+    protected static HeadlessWorld _world;
+
+    /**
+     * The player who places blocks.
+     */
+    protected static Player _player;
+
+    /**
+     * The plugin.
+     */
+    protected static HeadlessDoppelganger _plugin;
+} // class AllocationBudgetTest
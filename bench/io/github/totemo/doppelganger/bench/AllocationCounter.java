@@ -0,0 +1,57 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// ----------------------------------------------------------------------------
+/**
+ * Reads the number of bytes allocated by the current thread, on JVMs that
+ * provide com.sun.management.ThreadMXBean (HotSpot and OpenJ9).
+ */
+public class AllocationCounter {
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if allocation can be measured.
+     *
+     * @return true if allocation can be measured.
+     */
+    public static boolean isSupported() {
+        return BEAN != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total number of bytes allocated by the current thread.
+     *
+     * @return the number of bytes allocated by the current thread, or -1 if
+     *         that is not supported.
+     */
+    public static long getAllocatedBytes() {
+        return (BEAN != null) ? BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the extended ThreadMXBean with allocation measurement enabled,
+     * or null if not supported.
+     *
+     * @return the bean or null.
+     */
+    protected static com.sun.management.ThreadMXBean findBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                return sunBean;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The extended ThreadMXBean, or null if not supported.
+     */
+    protected static final com.sun.management.ThreadMXBean BEAN = findBean();
+} // class AllocationCounter
@@ -0,0 +1,400 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+// ----------------------------------------------------------------------------
+/**
+ * A synthetic, in-memory World consisting only of block types, for
+ * benchmarking code that inspects blocks without a running server.
+ *
+ * The blocks are stored in an array covering a fixed box; everything outside
+ * the box is air. Boxes larger than {@link #MAX_DENSE_VOLUME} blocks, such as
+ * the build area of a whole server, are stored in 16x16x16 sections that are
+ * only allocated when a block in them is set. The World and the Blocks it returns are dynamic proxies that
+ * implement the methods used by shape matching, and throw
+ * UnsupportedOperationException from all others.
+ */
+public class BlockWorld implements InvocationHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * The box extends from (minX, minY, minZ) inclusive to (minX + sizeX, minY
+     * + sizeY, minZ + sizeZ) exclusive.
+     *
+     * @param name the world name.
+     * @param minX the minimum X coordinate of the box.
+     * @param minY the minimum Y coordinate of the box.
+     * @param minZ the minimum Z coordinate of the box.
+     * @param sizeX the size of the box in X.
+     * @param sizeY the size of the box in Y.
+     * @param sizeZ the size of the box in Z.
+     */
+    public BlockWorld(String name, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        _name = name;
+        _uid = UUID.nameUUIDFromBytes(name.getBytes());
+        _minX = minX;
+        _minY = minY;
+        _minZ = minZ;
+        _sizeX = sizeX;
+        _sizeY = sizeY;
+        _sizeZ = sizeZ;
+        long volume = (long) sizeX * sizeY * sizeZ;
+        _types = (volume <= MAX_DENSE_VOLUME) ? new Material[(int) volume] : null;
+        _world = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class }, this);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the World implemented by this instance.
+     *
+     * @return the World.
+     */
+    public World getWorld() {
+        return _world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of the block at the specified coordinates.
+     *
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @return the block type; AIR outside the box.
+     */
+    public Material getType(int x, int y, int z) {
+        Material type = null;
+        if (_types != null) {
+            int index = index(x, y, z);
+            if (index >= 0) {
+                type = _types[index];
+            }
+        } else {
+            Material[] section = _sections.get(sectionKey(x, y, z));
+            if (section != null) {
+                type = section[sectionIndex(x, y, z)];
+            }
+        }
+        return (type != null) ? type : Material.AIR;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the type of the block at the specified coordinates.
+     *
+     * Setting a block outside the box to anything other than air is an error.
+     *
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @param type the block type.
+     * @throws IllegalArgumentException if the block is outside the box.
+     */
+    public void setType(int x, int y, int z, Material type) {
+        int index = index(x, y, z);
+        if (index < 0) {
+            if (type != Material.AIR) {
+                throw new IllegalArgumentException("(" + x + "," + y + "," + z + ") is outside " + _name);
+            }
+        } else if (_types != null) {
+            _types[index] = type;
+        } else {
+            Long key = sectionKey(x, y, z);
+            Material[] section = _sections.get(key);
+            if (section == null) {
+                if (type == Material.AIR) {
+                    return;
+                }
+                section = new Material[SECTION_VOLUME];
+                _sections.put(key, section);
+            }
+            section[sectionIndex(x, y, z)] = type;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set every block to air.
+     */
+    public void clear() {
+        if (_types != null) {
+            Arrays.fill(_types, null);
+        } else {
+            _sections.clear();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Block at the specified coordinates.
+     *
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @return the Block.
+     */
+    public Block getBlockAt(int x, int y, int z) {
+        return (Block) Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[] { Block.class },
+                                              new BlockHandler(x, y, z));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement the methods of the World proxy.
+     *
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "getBlockAt":
+            if (args.length == 3) {
+                return getBlockAt((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+            } else {
+                Location loc = (Location) args[0];
+                return getBlockAt(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+            }
+        case "getName":
+            return _name;
+        case "getUID":
+            return _uid;
+        case "getMaxHeight":
+            return 256;
+        case "equals":
+            return proxy == args[0];
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "toString":
+            return "BlockWorld{name=" + _name + "}";
+        default:
+            return unsupported(method);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle a method that is not implemented by a proxy.
+     *
+     * Subclasses that implement more of the World can override this.
+     *
+     * @param method the method.
+     * @return never returns normally.
+     * @throws UnsupportedOperationException always.
+     */
+    protected Object unsupported(Method method) {
+        throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "." + method.getName());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the specified coordinates in _types, if the box is
+     * stored densely.
+     *
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @return the index, or -1 if outside the box; only meaningful as an
+     *         index if _types is not null.
+     */
+    protected int index(int x, int y, int z) {
+        int dx = x - _minX;
+        int dy = y - _minY;
+        int dz = z - _minZ;
+        if (dx < 0 || dx >= _sizeX || dy < 0 || dy >= _sizeY || dz < 0 || dz >= _sizeZ) {
+            return -1;
+        }
+        return (dy * _sizeZ + dz) * _sizeX + dx;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the key in _sections of the section containing the specified
+     * coordinates.
+     *
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @return the key.
+     */
+    protected static long sectionKey(int x, int y, int z) {
+        return ((long) (x >> 4) & 0x3FFFFF) << 42 | ((long) (y >> 4) & 0xFFFFF) << 22 | ((long) (z >> 4) & 0x3FFFFF);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the specified coordinates within their section.
+     *
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @return the index.
+     */
+    protected static int sectionIndex(int x, int y, int z) {
+        return ((y & 15) * 16 + (z & 15)) * 16 + (x & 15);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implements the methods of a Block proxy.
+     */
+    protected class BlockHandler implements InvocationHandler {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param x the X coordinate.
+         * @param y the Y coordinate.
+         * @param z the Z coordinate.
+         */
+        BlockHandler(int x, int y, int z) {
+            _x = x;
+            _y = y;
+            _z = z;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+         *      java.lang.reflect.Method, java.lang.Object[])
+         */
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getType":
+                return getType(_x, _y, _z);
+            case "setType":
+                setType(_x, _y, _z, (Material) args[0]);
+                return null;
+            case "isEmpty":
+                return getType(_x, _y, _z) == Material.AIR;
+            case "getX":
+                return _x;
+            case "getY":
+                return _y;
+            case "getZ":
+                return _z;
+            case "getWorld":
+                return _world;
+            case "getLocation":
+                if (args == null) {
+                    return new Location(_world, _x, _y, _z);
+                }
+                break;
+            case "getRelative":
+                if (args.length == 3) {
+                    return getBlockAt(_x + (Integer) args[0], _y + (Integer) args[1], _z + (Integer) args[2]);
+                }
+                break;
+            case "equals":
+                if (args[0] instanceof Block) {
+                    Block other = (Block) args[0];
+                    return other.getWorld() == _world && other.getX() == _x && other.getY() == _y && other.getZ() == _z;
+                }
+                return false;
+            case "hashCode":
+                return (_y * 31 + _z) * 31 + _x;
+            case "toString":
+                return "Block{" + _name + "," + _x + "," + _y + "," + _z + "," + getType(_x, _y, _z) + "}";
+            default:
+                break;
+            }
+            return unsupported(method);
+        } // invoke
+
+        /**
+         * The X coordinate.
+         */
+        final int _x;
+
+        /**
+         * The Y coordinate.
+         */
+        final int _y;
+
+        /**
+         * The Z coordinate.
+         */
+        final int _z;
+    } // inner class BlockHandler
+
+    // ------------------------------------------------------------------------
+    /**
+     * The largest box, in blocks, that is stored in a single array.
+     */
+    public static final long MAX_DENSE_VOLUME = 1L << 24;
+
+    /**
+     * The number of blocks in a section.
+     */
+    protected static final int SECTION_VOLUME = 16 * 16 * 16;
+
+    /**
+     * The world name.
+     */
+    protected final String _name;
+
+    /**
+     * The world UUID, derived from the name.
+     */
+    protected final UUID _uid;
+
+    /**
+     * The World proxy.
+     */
+    protected final World _world;
+
+    /**
+     * The minimum X coordinate of the box.
+     */
+    protected final int _minX;
+
+    /**
+     * The minimum Y coordinate of the box.
+     */
+    protected final int _minY;
+
+    /**
+     * The minimum Z coordinate of the box.
+     */
+    protected final int _minZ;
+
+    /**
+     * The size of the box in X.
+     */
+    protected final int _sizeX;
+
+    /**
+     * The size of the box in Y.
+     */
+    protected final int _sizeY;
+
+    /**
+     * The size of the box in Z.
+     */
+    protected final int _sizeZ;
+
+    /**
+     * The block types in the box, indexed by {@link #index(int, int, int)};
+     * null is air. Null if the box is stored in sections.
+     */
+    protected final Material[] _types;
+
+    /**
+     * Map from {@link #sectionKey(int, int, int)} to the block types of the
+     * section, indexed by {@link #sectionIndex(int, int, int)}; null is air.
+     * Only used if the box is too large to store in _types.
+     */
+    protected final HashMap<Long, Material[]> _sections = new HashMap<Long, Material[]>();
+} // class BlockWorld
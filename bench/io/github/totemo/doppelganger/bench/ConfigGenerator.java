@@ -0,0 +1,259 @@
+package io.github.totemo.doppelganger.bench;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+// ----------------------------------------------------------------------------
+/**
+ * Generates configurations with any number of distinct shapes and creature
+ * types, and builds the generated shapes in a {@link BlockWorld}.
+ *
+ * Shape i is named "shape" + i and consists of a trigger block on top of a T
+ * of four body blocks. The trigger material cycles through
+ * {@link #TRIGGERS}; the body materials are the base 8 digits of i / 4,
+ * selecting from {@link #BODY}, so that no two of the first 16384 shapes are
+ * alike. Creature type i is named "Type" + i and is a vanilla mob with
+ * health, a sound, lightning and optional escorts. Shape i summons creature
+ * type i modulo the number of creature types.
+ *
+ * Only settings that can be compiled without a running server are used.
+ */
+public class ConfigGenerator {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param shapeCount the number of shapes.
+     * @param creatureCount the number of creature types; must be at least 1.
+     */
+    public ConfigGenerator(int shapeCount, int creatureCount) {
+        _shapeCount = shapeCount;
+        _creatureCount = Math.max(1, creatureCount);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the maximum number of escorts of each creature type.
+     *
+     * @param escorts the maximum number of escorts; 0 for none.
+     */
+    public void setEscorts(int escorts) {
+        _escorts = escorts;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the maximum number of lightning strikes when each creature type
+     * spawns.
+     *
+     * @param strikes the maximum number of strikes; 0 for none.
+     */
+    public void setLightning(int strikes) {
+        _lightning = strikes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of shapes.
+     *
+     * @return the number of shapes.
+     */
+    public int getShapeCount() {
+        return _shapeCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of creature types.
+     *
+     * @return the number of creature types.
+     */
+    public int getCreatureCount() {
+        return _creatureCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the generated configuration as YAML text.
+     *
+     * @return the YAML text.
+     */
+    public String toYaml() {
+        StringBuilder yaml = new StringBuilder();
+        yaml.append("shapes:\n");
+        for (int i = 0; i < _shapeCount; ++i) {
+            yaml.append("  ").append(getShapeName(i)).append(":\n");
+            yaml.append("    head: ").append(getTrigger(i).name().toLowerCase()).append('\n');
+            yaml.append("    body:\n");
+            for (int j = 0; j < OFFSETS.length; ++j) {
+                int[] offset = OFFSETS[j];
+                yaml.append("    - material: ").append(getBodyMaterial(i, j).name().toLowerCase()).append('\n');
+                yaml.append("      offset: [").append(offset[0]).append(", ").append(offset[1]).append(", ")
+                    .append(offset[2]).append("]\n");
+            }
+            yaml.append("    summon:\n");
+            yaml.append("    - weight: 1.0\n");
+            yaml.append("      spawn: ").append(getCreatureName(i % _creatureCount)).append('\n');
+        }
+
+        yaml.append("creatures:\n");
+        for (int i = 0; i < _creatureCount; ++i) {
+            yaml.append("  ").append(getCreatureName(i)).append(":\n");
+            yaml.append("    spawn: ").append(MOBS[i % MOBS.length]).append('\n');
+            yaml.append("    health: ").append(20 + i % 80).append('\n');
+            yaml.append("    despawns: false\n");
+            yaml.append("    sound: entity_wither_spawn\n");
+            if (_lightning > 0) {
+                yaml.append("    lightning:\n");
+                yaml.append("      min: 1\n");
+                yaml.append("      max: ").append(_lightning).append('\n');
+            }
+            if (_escorts > 0) {
+                yaml.append("    escorts:\n");
+                yaml.append("      min: ").append(_escorts / 2).append('\n');
+                yaml.append("      max: ").append(_escorts).append('\n');
+                yaml.append("      summon:\n");
+                yaml.append("      - weight: 1.0\n");
+                yaml.append("        spawn: ").append(MOBS[(i + 1) % MOBS.length]).append('\n');
+            }
+        }
+        return yaml.toString();
+    } // toYaml
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the generated configuration.
+     *
+     * @return the parsed configuration.
+     */
+    public YamlConfiguration toConfiguration() {
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(toYaml());
+        } catch (InvalidConfigurationException ex) {
+            throw new IllegalStateException("generated configuration is invalid", ex);
+        }
+        return config;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Build the body of a shape in a world, leaving the trigger block to be
+     * placed.
+     *
+     * The one block border around the shape is cleared.
+     *
+     * @param world the world.
+     * @param shape the index of the shape.
+     * @param x the X coordinate of the trigger block.
+     * @param y the Y coordinate of the trigger block.
+     * @param z the Z coordinate of the trigger block.
+     */
+    public static void buildShape(BlockWorld world, int shape, int x, int y, int z) {
+        for (int dx = -2; dx <= 2; ++dx) {
+            for (int dy = -2; dy <= 0; ++dy) {
+                for (int dz = -2; dz <= 2; ++dz) {
+                    world.setType(x + dx, y + dy, z + dz, Material.AIR);
+                }
+            }
+        }
+        for (int j = 0; j < OFFSETS.length; ++j) {
+            int[] offset = OFFSETS[j];
+            world.setType(x + offset[0], y + offset[1], z + offset[2], getBodyMaterial(shape, j));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of a shape.
+     *
+     * @param shape the index of the shape.
+     * @return the name.
+     */
+    public static String getShapeName(int shape) {
+        return "shape" + shape;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of a creature type.
+     *
+     * @param creature the index of the creature type.
+     * @return the name.
+     */
+    public static String getCreatureName(int creature) {
+        return "Type" + creature;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the trigger material of a shape.
+     *
+     * @param shape the index of the shape.
+     * @return the trigger material.
+     */
+    public static Material getTrigger(int shape) {
+        return TRIGGERS[shape % TRIGGERS.length];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the material of a body block of a shape.
+     *
+     * @param shape the index of the shape.
+     * @param block the index of the body block.
+     * @return the material.
+     */
+    public static Material getBodyMaterial(int shape, int block) {
+        int digits = shape / TRIGGERS.length;
+        for (int j = 0; j < block; ++j) {
+            digits /= BODY.length;
+        }
+        return BODY[digits % BODY.length];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The trigger materials of shapes, in turn.
+     */
+    public static final Material[] TRIGGERS = { Material.CARVED_PUMPKIN, Material.JACK_O_LANTERN,
+                                                Material.PLAYER_HEAD, Material.ZOMBIE_HEAD };
+
+    /**
+     * The materials of body blocks.
+     */
+    public static final Material[] BODY = { Material.DIAMOND_BLOCK, Material.GOLD_BLOCK, Material.IRON_BLOCK,
+                                            Material.EMERALD_BLOCK, Material.LAPIS_BLOCK, Material.REDSTONE_BLOCK,
+                                            Material.COAL_BLOCK, Material.QUARTZ_BLOCK };
+
+    /**
+     * The offsets of the body blocks from the trigger block: a T.
+     */
+    public static final int[][] OFFSETS = { { 0, -1, 0 }, { 0, -2, 0 }, { 0, -1, -1 }, { 0, -1, 1 } };
+
+    /**
+     * The vanilla mobs that creature types are based on, in turn.
+     */
+    public static final String[] MOBS = { "zombie", "skeleton", "creeper", "spider", "witch" };
+
+    /**
+     * The number of shapes.
+     */
+    protected final int _shapeCount;
+
+    /**
+     * The number of creature types.
+     */
+    protected final int _creatureCount;
+
+    /**
+     * The maximum number of escorts of each creature type.
+     */
+    protected int _escorts;
+
+    /**
+     * The maximum number of lightning strikes of each creature type.
+     */
+    protected int _lightning;
+} // class ConfigGenerator
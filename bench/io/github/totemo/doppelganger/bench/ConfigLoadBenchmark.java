@@ -0,0 +1,142 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.totemo.doppelganger.CreatureFactory;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures {@link CreatureFactory#load(org.bukkit.configuration.ConfigurationSection, Logger)}
+ * on generated configurations with equal numbers of shapes and creature
+ * types.
+ *
+ * A cold load compiles everything into a new factory. A reload of an
+ * unchanged configuration into a loaded factory reuses every compiled shape
+ * and type, so it measures change detection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigLoadBenchmark {
+    /**
+     * The number of shapes and of creature types.
+     */
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    /**
+     * The maximum number of escorts of each creature type.
+     */
+    @Param({ "4" })
+    public int escorts;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Generate the configuration and load it once for reloading.
+     */
+    @Setup
+    public void setUp() {
+        _logger = Logger.getLogger("Doppelganger.bench");
+        _logger.setLevel(Level.WARNING);
+        ConfigGenerator generator = new ConfigGenerator(size, size);
+        generator.setEscorts(escorts);
+        generator.setLightning(2);
+        _yaml = generator.toYaml();
+        _config = generator.toConfiguration();
+        _loaded = new CreatureFactory();
+        _loaded.load(_config, _logger);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Shut down the compiler threads of the loaded factory.
+     */
+    @TearDown
+    public void tearDown() {
+        _loaded.shutdown();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the YAML text.
+     *
+     * @return the configuration.
+     * @throws InvalidConfigurationException never.
+     */
+    @Benchmark
+    public YamlConfiguration parse() throws InvalidConfigurationException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.loadFromString(_yaml);
+        return config;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the parsed configuration into a new factory.
+     *
+     * The factory's compiler threads are started and shut down each time, as
+     * when the plugin is enabled and disabled.
+     *
+     * @return the factory.
+     */
+    @Benchmark
+    public CreatureFactory coldLoad() {
+        CreatureFactory factory = new CreatureFactory();
+        factory.load(_config, _logger);
+        factory.shutdown();
+        return factory;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the unchanged configuration into the loaded factory.
+     *
+     * @return the factory.
+     */
+    @Benchmark
+    public CreatureFactory reload() {
+        _loaded.load(_config, _logger);
+        return _loaded;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The Logger passed to the factory.
+     */
+    protected Logger _logger;
+
+    /**
+     * The generated YAML text.
+     */
+    protected String _yaml;
+
+    /**
+     * The parsed configuration.
+     */
+    protected YamlConfiguration _config;
+
+    /**
+     * A factory that has loaded the configuration.
+     */
+    protected CreatureFactory _loaded;
+} // class ConfigLoadBenchmark
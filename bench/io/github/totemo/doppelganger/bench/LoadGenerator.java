@@ -0,0 +1,591 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.inventory.ItemStack;
+
+import io.github.totemo.doppelganger.LatencyHistogram;
+import io.github.totemo.doppelganger.headless.HeadlessDoppelganger;
+import io.github.totemo.doppelganger.headless.HeadlessServer;
+import io.github.totemo.doppelganger.headless.HeadlessWorld;
+
+// ----------------------------------------------------------------------------
+/**
+ * Simulates many players summoning doppelgangers, and command blocks
+ * maintaining them, in a {@link HeadlessServer}, to estimate the main thread
+ * time and garbage that a given workload costs a server.
+ *
+ * Each tick, each player places a block with probability "rate". A placement
+ * is a hit (a named trigger on a complete shape), a partial (a named trigger
+ * on a shape with one body block missing) or plain (an unnamed block), in the
+ * proportions "hit" : "partial" : 1 - hit - partial. Summoned creatures and
+ * their escorts are killed after "lifetime" ticks. Each of "commandBlocks"
+ * command blocks runs /doppel maintain every "commandPeriod" ticks, staggered,
+ * keeping one named creature in its own box.
+ *
+ * Only the work a server would do is timed: the events, commands and
+ * scheduled tasks. Building the players' shapes and choosing what to kill is
+ * not. The allocation rate includes the stand-in's events and proxies, which
+ * are a small part of the total.
+ *
+ * Options are given as name=value arguments, e.g.
+ *
+ * <pre>
+ * java ... LoadGenerator players=50 hit=0.1 escorts=4 commandBlocks=100
+ * </pre>
+ */
+public class LoadGenerator {
+    // ------------------------------------------------------------------------
+    /**
+     * Run the load generator with options from the command line and print
+     * the report.
+     *
+     * @param args name=value options, which may also be separated by spaces
+     *        within an argument.
+     * @throws IOException if the plugin can't be created.
+     */
+    public static void main(String[] args) throws IOException {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            // Maven passes all options as one argument.
+            for (String arg : args) {
+                for (String option : arg.trim().split("\\s+")) {
+                    if (!option.isEmpty()) {
+                        generator.setOption(option);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Options: " + OPTIONS);
+            System.exit(1);
+        }
+        generator.run().print(System.out);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set an option.
+     *
+     * @param option the option as name=value.
+     * @throws IllegalArgumentException if the option is not recognised or the
+     *         value is invalid.
+     */
+    public void setOption(String option) {
+        int equals = option.indexOf('=');
+        if (equals < 0) {
+            throw new IllegalArgumentException("expected name=value: " + option);
+        }
+        String name = option.substring(0, equals);
+        String value = option.substring(equals + 1);
+        try {
+            switch (name) {
+            case "players":
+                _players = Math.max(1, Integer.parseInt(value));
+                break;
+            case "ticks":
+                _ticks = Math.max(1, Integer.parseInt(value));
+                break;
+            case "warmup":
+                _warmupTicks = Math.max(0, Integer.parseInt(value));
+                break;
+            case "shapes":
+                _shapes = Math.max(1, Integer.parseInt(value));
+                break;
+            case "creatures":
+                _creatures = Math.max(1, Integer.parseInt(value));
+                break;
+            case "escorts":
+                _escorts = Math.max(0, Integer.parseInt(value));
+                break;
+            case "lightning":
+                _lightning = Math.max(0, Integer.parseInt(value));
+                break;
+            case "rate":
+                _rate = Double.parseDouble(value);
+                break;
+            case "hit":
+                _hit = Double.parseDouble(value);
+                break;
+            case "partial":
+                _partial = Double.parseDouble(value);
+                break;
+            case "commandBlocks":
+                _commandBlocks = Math.max(0, Integer.parseInt(value));
+                break;
+            case "commandPeriod":
+                _commandPeriod = Math.max(1, Integer.parseInt(value));
+                break;
+            case "lifetime":
+                _lifetime = Math.max(1, Integer.parseInt(value));
+                break;
+            case "seed":
+                _seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + name);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+        }
+        if (_hit + _partial > 1) {
+            throw new IllegalArgumentException("hit + partial must not exceed 1");
+        }
+    } // setOption
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the simulation.
+     *
+     * @return the report.
+     * @throws IOException if the plugin can't be created.
+     */
+    public Report run() throws IOException {
+        setUp();
+        try {
+            Report report = new Report();
+            for (int tick = 0; tick < _warmupTicks; ++tick) {
+                runTick(tick, null);
+            }
+            for (int tick = 0; tick < _ticks; ++tick) {
+                runTick(_warmupTicks + tick, report);
+            }
+            report._entities = _world.getEntities().size() - _playerList.size();
+            return report;
+        } finally {
+            _server.reset();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A summary of a run.
+     */
+    public class Report {
+        // --------------------------------------------------------------------
+        /**
+         * Print the report.
+         *
+         * @param out the stream to print to.
+         */
+        public void print(PrintStream out) {
+            double seconds = _histogram.getTotalNanos() / 1e9;
+            out.println(String.format(Locale.US,
+                                      "Players %d, placement rate %.3f per player per tick, hit %.2f, partial %.2f",
+                                      _players, _rate, _hit, _partial));
+            out.println(String.format(Locale.US,
+                                      "Shapes %d, creature types %d, escorts up to %d, lightning up to %d, lifetime %d ticks",
+                                      _shapes, _creatures, _escorts, _lightning, _lifetime));
+            out.println(String.format(Locale.US, "Command blocks %d, each every %d tick(s)", _commandBlocks, _commandPeriod));
+            out.println();
+            out.println(String.format(Locale.US, "Ticks:      %d in %.1f ms of main thread time", _ticks, seconds * 1e3));
+            out.println(String.format(Locale.US,
+                                      "Throughput: %.1f placements/s, %.1f summons/s, %.1f commands/s, %.1f deaths/s",
+                                      _placements / seconds, _summons / seconds, _commands / seconds, _deaths / seconds));
+            out.println(String.format(Locale.US,
+                                      "Totals:     %d placements (%d hit, %d partial, %d plain), %d summons, %d commands, %d deaths, %d entities left",
+                                      _placements, _hits, _partials, _placements - _hits - _partials,
+                                      _summons, _commands, _deaths, _entities));
+            out.println(String.format(Locale.US,
+                                      "Tick ms:    mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                                      _histogram.getTotalNanos() / 1e6 / _ticks,
+                                      _histogram.getPercentileNanos(50) / 1e6,
+                                      _histogram.getPercentileNanos(90) / 1e6,
+                                      _histogram.getPercentileNanos(99) / 1e6,
+                                      _histogram.getPercentileNanos(99.9) / 1e6,
+                                      _histogram.getMaxNanos() / 1e6));
+            out.println(String.format(Locale.US, "            %.1f%% of the 50 ms tick budget on average, %d tick(s) over budget",
+                                      100.0 * _histogram.getTotalNanos() / _ticks / TICK_BUDGET_NANOS, _overBudget));
+            if (AllocationCounter.isSupported()) {
+                out.println(String.format(Locale.US,
+                                          "Allocation: %.1f KiB/tick, %.1f MiB/s at 20 ticks/s, %.1f MiB/s of main thread time",
+                                          _allocatedBytes / 1024.0 / _ticks,
+                                          _allocatedBytes * 20.0 / _ticks / (1 << 20),
+                                          _allocatedBytes / seconds / (1 << 20)));
+            } else {
+                out.println("Allocation: not supported by this JVM");
+            }
+        } // print
+
+        /**
+         * Main thread time per tick.
+         */
+        protected final LatencyHistogram _histogram = new LatencyHistogram();
+
+        /**
+         * The number of ticks that exceeded the tick budget.
+         */
+        protected int _overBudget;
+
+        /**
+         * The number of blocks placed.
+         */
+        protected int _placements;
+
+        /**
+         * The number of hit placements.
+         */
+        protected int _hits;
+
+        /**
+         * The number of partial placements.
+         */
+        protected int _partials;
+
+        /**
+         * The number of hits that summoned a creature.
+         */
+        protected int _summons;
+
+        /**
+         * The number of commands run.
+         */
+        protected int _commands;
+
+        /**
+         * The number of creatures killed.
+         */
+        protected int _deaths;
+
+        /**
+         * The number of entities other than players at the end of the run.
+         */
+        protected int _entities;
+
+        /**
+         * The number of bytes allocated in timed work.
+         */
+        protected long _allocatedBytes;
+    } // inner class Report
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the world, players, command blocks and plugin.
+     *
+     * @throws IOException if the plugin can't be created.
+     */
+    protected void setUp() throws IOException {
+        _random = new Random(_seed);
+        _server = HeadlessServer.get();
+        _server.reset();
+
+        int playerRows = (_players + SITES_PER_ROW - 1) / SITES_PER_ROW;
+        int commandRows = (_commandBlocks + SITES_PER_ROW - 1) / SITES_PER_ROW;
+        int commandZ = playerRows * SITE_SPACING + SITE_SPACING;
+        _world = _server.createWorld("load", -SITE_SPACING, 0, -SITE_SPACING,
+                                     (SITES_PER_ROW + 2) * SITE_SPACING, 32,
+                                     (playerRows + commandRows + 3) * SITE_SPACING);
+
+        _playerList = new ArrayList<Player>();
+        for (int i = 0; i < _players; ++i) {
+            _playerList.add(_server.addPlayer("Player" + i, _world, getSiteX(i) + 0.5, SITE_Y, getSiteZ(i) + 4.5));
+        }
+        _kinds = new int[_players];
+        _shapeChoices = new int[_players];
+
+        _commandLines = new String[_commandBlocks];
+        for (int k = 0; k < _commandBlocks; ++k) {
+            int x = getSiteX(k);
+            int z = commandZ + (k / SITES_PER_ROW) * SITE_SPACING;
+            _commandLines[k] = String.format(Locale.US, "doppel maintain at load %d %d %d box load %d %d %d %d %d %d %s %s%d",
+                                             x, SITE_Y, z, x - 2, SITE_Y - 2, z - 2, x + 2, SITE_Y + 2, z + 2,
+                                             ConfigGenerator.getCreatureName(k % _creatures), GUARD_PREFIX, k);
+        }
+
+        _triggers = new ItemStack[ConfigGenerator.TRIGGERS.length];
+        for (int i = 0; i < _triggers.length; ++i) {
+            _triggers[i] = HeadlessServer.namedItem(ConfigGenerator.TRIGGERS[i], "Summoned");
+        }
+        _plain = new ItemStack(Material.STONE, 1);
+
+        ConfigGenerator generator = new ConfigGenerator(_shapes, _creatures);
+        generator.setEscorts(_escorts);
+        generator.setLightning(_lightning);
+        HeadlessDoppelganger plugin = HeadlessDoppelganger.create(_server, generator.toYaml());
+        plugin.enable();
+    } // setUp
+
+    // ------------------------------------------------------------------------
+    /**
+     * Simulate one tick.
+     *
+     * @param tick the index of the tick.
+     * @param report the report to update, or null during warm up.
+     */
+    protected void runTick(int tick, Report report) {
+        // Untimed: the players build, and creatures reach the end of their
+        // lives.
+        for (int i = 0; i < _players; ++i) {
+            _kinds[i] = NONE;
+            if (_random.nextDouble() < _rate) {
+                double kind = _random.nextDouble();
+                int shape = _random.nextInt(_shapes);
+                _shapeChoices[i] = shape;
+                if (kind < _hit) {
+                    _kinds[i] = HIT;
+                    ConfigGenerator.buildShape(_world, shape, getSiteX(i), SITE_Y, getSiteZ(i));
+                } else if (kind < _hit + _partial) {
+                    _kinds[i] = PARTIAL;
+                    ConfigGenerator.buildShape(_world, shape, getSiteX(i), SITE_Y, getSiteZ(i));
+                    int[] offset = ConfigGenerator.OFFSETS[_random.nextInt(ConfigGenerator.OFFSETS.length)];
+                    _world.setType(getSiteX(i) + offset[0], SITE_Y + offset[1], getSiteZ(i) + offset[2], Material.AIR);
+                } else {
+                    _kinds[i] = PLAIN;
+                    _world.setType(getSiteX(i), SITE_Y, getSiteZ(i), Material.AIR);
+                }
+            }
+        }
+        _expired.clear();
+        for (Entity entity : _world.getEntities()) {
+            if (entity instanceof LivingEntity && !(entity instanceof Player) && entity.getTicksLived() >= _lifetime) {
+                String name = entity.getCustomName();
+                if (name == null || !name.startsWith(GUARD_PREFIX)) {
+                    _expired.add((LivingEntity) entity);
+                }
+            }
+        }
+
+        // Timed: the work of the server's main thread.
+        long startBytes = AllocationCounter.getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < _players; ++i) {
+            int kind = _kinds[i];
+            if (kind != NONE) {
+                ItemStack item = (kind == PLAIN) ? _plain
+                                                 : _triggers[_shapeChoices[i] % _triggers.length];
+                BlockPlaceEvent event = _server.placeBlock(_playerList.get(i), item,
+                                                           getSiteX(i), SITE_Y, getSiteZ(i));
+                if (report != null) {
+                    ++report._placements;
+                    if (kind == HIT) {
+                        ++report._hits;
+                        if (event.isCancelled()) {
+                            ++report._summons;
+                        }
+                    } else if (kind == PARTIAL) {
+                        ++report._partials;
+                    }
+                }
+            }
+        }
+        for (int k = 0; k < _commandBlocks; ++k) {
+            if ((tick + k) % _commandPeriod == 0) {
+                _server.dispatchCommand(_server.getConsole(), _commandLines[k]);
+                if (report != null) {
+                    ++report._commands;
+                }
+            }
+        }
+        for (LivingEntity entity : _expired) {
+            _server.killEntity(entity, new ArrayList<ItemStack>());
+        }
+        _server.tick(1);
+        long nanos = System.nanoTime() - start;
+        long bytes = AllocationCounter.getAllocatedBytes() - startBytes;
+
+        if (report != null) {
+            report._deaths += _expired.size();
+            report._histogram.record(nanos);
+            report._allocatedBytes += bytes;
+            if (nanos > TICK_BUDGET_NANOS) {
+                ++report._overBudget;
+            }
+        }
+
+        // Untimed: discard chat so that it doesn't accumulate.
+        HeadlessServer.getMessages(_server.getConsole()).clear();
+        for (Player player : _playerList) {
+            HeadlessServer.getMessages(player).clear();
+        }
+    } // runTick
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the X coordinate of a player's building site or a command
+     * block's spawn location.
+     *
+     * @param index the index of the player or command block.
+     * @return the X coordinate.
+     */
+    protected static int getSiteX(int index) {
+        return (index % SITES_PER_ROW) * SITE_SPACING;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Z coordinate of a player's building site.
+     *
+     * @param index the index of the player.
+     * @return the Z coordinate.
+     */
+    protected static int getSiteZ(int index) {
+        return (index / SITES_PER_ROW) * SITE_SPACING;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The names of the options.
+     */
+    protected static final String OPTIONS = "players, ticks, warmup, shapes, creatures, escorts, lightning, "
+                                            + "rate, hit, partial, commandBlocks, commandPeriod, lifetime, seed";
+
+    /**
+     * The main thread time available to a tick at 20 ticks per second.
+     */
+    protected static final long TICK_BUDGET_NANOS = 50000000L;
+
+    /**
+     * The distance between building sites.
+     */
+    protected static final int SITE_SPACING = 8;
+
+    /**
+     * The number of building sites in each row.
+     */
+    protected static final int SITES_PER_ROW = 32;
+
+    /**
+     * The Y coordinate of trigger blocks and maintained creatures.
+     */
+    protected static final int SITE_Y = 8;
+
+    /**
+     * The prefix of the names of maintained creatures, which are not killed.
+     */
+    protected static final String GUARD_PREFIX = "Guard";
+
+    /**
+     * Kinds of placement by a player in a tick.
+     */
+    protected static final int NONE = 0, HIT = 1, PARTIAL = 2, PLAIN = 3;
+
+    /**
+     * The number of players.
+     */
+    protected int _players = 20;
+
+    /**
+     * The number of measured ticks.
+     */
+    protected int _ticks = 1200;
+
+    /**
+     * The number of ticks run before measurement begins.
+     */
+    protected int _warmupTicks = 400;
+
+    /**
+     * The number of configured shapes.
+     */
+    protected int _shapes = 100;
+
+    /**
+     * The number of configured creature types.
+     */
+    protected int _creatures = 10;
+
+    /**
+     * The maximum number of escorts of each creature type.
+     */
+    protected int _escorts = 2;
+
+    /**
+     * The maximum number of lightning strikes when a creature spawns.
+     */
+    protected int _lightning = 1;
+
+    /**
+     * The probability that a player places a block in a tick.
+     */
+    protected double _rate = 0.05;
+
+    /**
+     * The fraction of placements that complete a shape.
+     */
+    protected double _hit = 0.2;
+
+    /**
+     * The fraction of placements on a shape with a missing block.
+     */
+    protected double _partial = 0.3;
+
+    /**
+     * The number of command blocks running /doppel maintain.
+     */
+    protected int _commandBlocks = 10;
+
+    /**
+     * The number of ticks between runs of each command block.
+     */
+    protected int _commandPeriod = 1;
+
+    /**
+     * The number of ticks that summoned creatures live.
+     */
+    protected int _lifetime = 200;
+
+    /**
+     * The random number seed.
+     */
+    protected long _seed = 1;
+
+    /**
+     * Chooses what the players do.
+     */
+    protected Random _random;
+
+    /**
+     * The server.
+     */
+    protected HeadlessServer _server;
+
+    /**
+     * The world.
+     */
+    protected HeadlessWorld _world;
+
+    /**
+     * The players.
+     */
+    protected List<Player> _playerList;
+
+    /**
+     * The kind of placement by each player in the current tick.
+     */
+    protected int[] _kinds;
+
+    /**
+     * The index of the shape built by each player in the current tick.
+     */
+    protected int[] _shapeChoices;
+
+    /**
+     * The command run by each command block.
+     */
+    protected String[] _commandLines;
+
+    /**
+     * Named triggers, by index in {@link ConfigGenerator#TRIGGERS}.
+     */
+    protected ItemStack[] _triggers;
+
+    /**
+     * The item placed by plain placements.
+     */
+    protected ItemStack _plain;
+
+    /**
+     * The creatures to kill in the current tick.
+     */
+    protected final ArrayList<LivingEntity> _expired = new ArrayList<LivingEntity>();
+} // class LoadGenerator
@@ -0,0 +1,142 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.totemo.doppelganger.CreatureFactory;
+import io.github.totemo.doppelganger.CreatureShape;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures {@link CreatureFactory#getCreatureShape(Location, ItemStack)} with
+ * a configuration of generated shapes.
+ *
+ * Every fourth shape has the same trigger material. The hit case finds the
+ * last shape with its trigger, so every other candidate is tested first. The
+ * near miss case is an unconfigured shape that shares its trigger and some
+ * body blocks with configured ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeLookupBenchmark {
+    /**
+     * The number of configured shapes.
+     */
+    @Param({ "10", "100", "1000" })
+    public int shapes;
+
+    /**
+     * If true, enable adaptive shape ordering.
+     */
+    @Param({ "false" })
+    public boolean adaptive;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the configuration and build the shapes to look up.
+     */
+    @Setup
+    public void setUp() {
+        Logger logger = Logger.getLogger("Doppelganger.bench");
+        logger.setLevel(Level.WARNING);
+        _factory = new CreatureFactory();
+        _factory.setAdaptiveShapeOrder(adaptive);
+        _factory.load(new ConfigGenerator(shapes, 1).toConfiguration(), logger);
+
+        BlockWorld world = new BlockWorld("bench", -16, 0, -16, 32, 16, 32);
+        int last = shapes - 1;
+        ConfigGenerator.buildShape(world, last, 0, 8, 0);
+        _hit = new Location(world.getWorld(), 0, 8, 0);
+        _hitItem = new ItemStack(ConfigGenerator.getTrigger(last));
+
+        ConfigGenerator.buildShape(world, shapes, 8, 8, 0);
+        _nearMiss = new Location(world.getWorld(), 8, 8, 0);
+        _nearMissItem = new ItemStack(ConfigGenerator.getTrigger(shapes));
+
+        _wrongTriggerItem = new ItemStack(Material.STONE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a complete shape.
+     *
+     * @return the shape.
+     */
+    @Benchmark
+    public CreatureShape hit() {
+        return _factory.getCreatureShape(_hit, _hitItem);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a shape that is not configured.
+     *
+     * @return null.
+     */
+    @Benchmark
+    public CreatureShape nearMiss() {
+        return _factory.getCreatureShape(_nearMiss, _nearMissItem);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a placed block that is not the trigger of any shape.
+     *
+     * @return null.
+     */
+    @Benchmark
+    public CreatureShape wrongTrigger() {
+        return _factory.getCreatureShape(_hit, _wrongTriggerItem);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The factory.
+     */
+    protected CreatureFactory _factory;
+
+    /**
+     * The trigger location of the last configured shape.
+     */
+    protected Location _hit;
+
+    /**
+     * The trigger of the last configured shape.
+     */
+    protected ItemStack _hitItem;
+
+    /**
+     * The trigger location of an unconfigured shape.
+     */
+    protected Location _nearMiss;
+
+    /**
+     * The trigger of the unconfigured shape.
+     */
+    protected ItemStack _nearMissItem;
+
+    /**
+     * An item that triggers no shape.
+     */
+    protected ItemStack _wrongTriggerItem;
+} // class ShapeLookupBenchmark
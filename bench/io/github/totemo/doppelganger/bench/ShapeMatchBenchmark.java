@@ -0,0 +1,129 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.totemo.doppelganger.CreatureShape;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures {@link CreatureShape#isCreatureShape(Location)} and
+ * {@link CreatureShape#hasBorder(Location)} on a single shape in a
+ * {@link BlockWorld}.
+ *
+ * The times include the cost of the BlockWorld's proxies, which is of the
+ * same order as looking up a block in a real server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeMatchBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Build a complete shape, a shape with a blocked border and a site where
+     * the shape's first body block is missing.
+     */
+    @Setup
+    public void setUp() {
+        Logger logger = Logger.getLogger("Doppelganger.bench");
+        logger.setLevel(Level.WARNING);
+        YamlConfiguration config = new ConfigGenerator(1, 1).toConfiguration();
+        _shape = CreatureShape.loadFromSection(config.getConfigurationSection("shapes." + ConfigGenerator.getShapeName(0)),
+                                               logger);
+
+        BlockWorld world = new BlockWorld("bench", -16, 0, -16, 32, 16, 32);
+        ConfigGenerator.buildShape(world, 0, 0, 8, 0);
+        _complete = new Location(world.getWorld(), 0, 8, 0);
+
+        ConfigGenerator.buildShape(world, 0, 8, 8, 0);
+        world.setType(9, 7, 0, Material.STONE);
+        _blocked = new Location(world.getWorld(), 8, 8, 0);
+
+        ConfigGenerator.buildShape(world, 0, -8, 8, 0);
+        world.setType(-8, 7, 0, Material.AIR);
+        _incomplete = new Location(world.getWorld(), -8, 8, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check a complete shape, which probes every body block.
+     *
+     * @return true.
+     */
+    @Benchmark
+    public boolean isCreatureShapeComplete() {
+        return _shape.isCreatureShape(_complete);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check an incomplete shape, which stops at the first body block.
+     *
+     * @return false.
+     */
+    @Benchmark
+    public boolean isCreatureShapeIncomplete() {
+        return _shape.isCreatureShape(_incomplete);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check a clear border, which probes every border block.
+     *
+     * @return true.
+     */
+    @Benchmark
+    public boolean hasBorderClear() {
+        return _shape.hasBorder(_complete);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check a blocked border.
+     *
+     * @return false.
+     */
+    @Benchmark
+    public boolean hasBorderBlocked() {
+        return _shape.hasBorder(_blocked);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The shape.
+     */
+    protected CreatureShape _shape;
+
+    /**
+     * The trigger location of a complete shape with a clear border.
+     */
+    protected Location _complete;
+
+    /**
+     * The trigger location of a complete shape with a blocked border.
+     */
+    protected Location _blocked;
+
+    /**
+     * The trigger location of an incomplete shape.
+     */
+    protected Location _incomplete;
+} // class ShapeMatchBenchmark
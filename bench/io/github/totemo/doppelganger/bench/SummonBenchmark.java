@@ -0,0 +1,188 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.totemo.doppelganger.headless.HeadlessDoppelganger;
+import io.github.totemo.doppelganger.headless.HeadlessServer;
+import io.github.totemo.doppelganger.headless.HeadlessWorld;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the plugin end to end in a {@link HeadlessServer}: event dispatch,
+ * shape matching, spawning, escorts, lightning, deaths and the plugin's
+ * per-tick tasks, as a server would run them.
+ *
+ * The summon case builds the last configured shape, places its named
+ * trigger, runs enough ticks for every escort and lightning strike, and then
+ * kills everything that was spawned.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SummonBenchmark {
+    /**
+     * The number of configured shapes.
+     */
+    @Param({ "10", "1000" })
+    public int shapes;
+
+    /**
+     * The maximum number of escorts of each creature type.
+     */
+    @Param({ "0", "4" })
+    public int escorts;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Enable the plugin with a generated configuration in a new world.
+     *
+     * @throws IOException if the plugin can't be created.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        _server = HeadlessServer.get();
+        _server.reset();
+        _world = _server.createWorld("bench", -16, 0, -16, 32, 16, 32);
+        _player = _server.addPlayer("Bench", _world, 0.5, 8, 8.5);
+
+        ConfigGenerator generator = new ConfigGenerator(shapes, 10);
+        generator.setEscorts(escorts);
+        generator.setLightning(3);
+        _plugin = HeadlessDoppelganger.create(_server, generator.toYaml());
+        _plugin.enable();
+
+        _shape = shapes - 1;
+        _trigger = HeadlessServer.namedItem(ConfigGenerator.getTrigger(_shape), "Summoned");
+        _stone = new ItemStack(Material.STONE, 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Disable the plugin and remove the world.
+     */
+    @TearDown
+    public void tearDown() {
+        _server.reset();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Summon a creature and its escorts, and kill them.
+     *
+     * @param blackhole consumes the event.
+     * @return the number of creatures killed.
+     */
+    @Benchmark
+    public int summon(Blackhole blackhole) {
+        ConfigGenerator.buildShape(_world, _shape, 0, 8, 0);
+        blackhole.consume(_server.placeBlock(_player, _trigger, 0, 8, 0));
+        _server.tick(SETTLE_TICKS);
+        return killSpawned();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Place an unnamed block, which the plugin ignores.
+     *
+     * @return the event.
+     */
+    @Benchmark
+    public Object placeUnnamed() {
+        return _server.placeBlock(_player, _stone, 8, 8, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run one tick with nothing to do but the plugin's periodic tasks.
+     *
+     * @return the current tick.
+     */
+    @Benchmark
+    public long idleTick() {
+        _server.tick(1);
+        return _server.getCurrentTick();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Kill every living entity other than players.
+     *
+     * @return the number killed.
+     */
+    protected int killSpawned() {
+        int killed = 0;
+        for (Entity entity : new ArrayList<Entity>(_world.getEntities())) {
+            if (entity instanceof LivingEntity && !(entity instanceof Player)) {
+                _server.killEntity((LivingEntity) entity, new ArrayList<ItemStack>());
+                ++killed;
+            }
+        }
+        return killed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of ticks after a summons by which every escort and
+     * lightning strike has happened, given the default durations of 30 ticks.
+     */
+    protected static final int SETTLE_TICKS = 31;
+
+    /**
+     * The server.
+     */
+    protected HeadlessServer _server;
+
+    /**
+     * The world.
+     */
+    protected HeadlessWorld _world;
+
+    /**
+     * The player who places blocks.
+     */
+    protected Player _player;
+
+    /**
+     * The plugin.
+     */
+    protected HeadlessDoppelganger _plugin;
+
+    /**
+     * The index of the shape that is summoned.
+     */
+    protected int _shape;
+
+    /**
+     * The named trigger of the summoned shape.
+     */
+    protected ItemStack _trigger;
+
+    /**
+     * An unnamed block.
+     */
+    protected ItemStack _stone;
+} // class SummonBenchmark
@@ -0,0 +1,596 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import io.github.totemo.doppelganger.LatencyHistogram;
+import io.github.totemo.doppelganger.TraceFile;
+import io.github.totemo.doppelganger.TraceRecord;
+import io.github.totemo.doppelganger.headless.HeadlessDoppelganger;
+import io.github.totemo.doppelganger.headless.HeadlessServer;
+import io.github.totemo.doppelganger.headless.HeadlessWorld;
+
+// ----------------------------------------------------------------------------
+/**
+ * Replays a trace recorded by /doppel trace against the plugin in a
+ * {@link HeadlessServer}, and reports the main thread time and garbage it
+ * costs, so that a lag incident or a server's real workload can be reproduced
+ * and compared across versions of the plugin.
+ *
+ * Each world in the trace is created large enough to hold every recorded
+ * location. Every tick of the trace is run in order: before each placement,
+ * the recorded neighbourhood is restored and the player is moved to it;
+ * deaths kill the nearest creature with the recorded type and custom name;
+ * commands are issued by the same kind of sender at the same location. Only
+ * the events, commands and ticks are timed.
+ *
+ * Options are given as name=value arguments, e.g.
+ *
+ * <pre>
+ * java ... TraceReplay trace=plugins/Doppelganger/traces/lag.dtr config=config.yml warmup=2
+ * </pre>
+ *
+ * The configuration is a single config.yml; shapes and creatures in
+ * subdirectories of a server's data folder must be merged into it.
+ */
+public class TraceReplay {
+    // ------------------------------------------------------------------------
+    /**
+     * Replay a trace with options from the command line and print the
+     * report.
+     *
+     * @param args name=value options, which may also be separated by spaces
+     *        within an argument.
+     * @throws IOException if the trace or configuration can't be read.
+     */
+    public static void main(String[] args) throws IOException {
+        TraceReplay replay = new TraceReplay();
+        try {
+            // Maven passes all options as one argument.
+            for (String arg : args) {
+                for (String option : arg.trim().split("\\s+")) {
+                    if (!option.isEmpty()) {
+                        replay.setOption(option);
+                    }
+                }
+            }
+            if (replay._tracePath == null) {
+                throw new IllegalArgumentException("the trace option is required");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Options: " + OPTIONS);
+            System.exit(1);
+        }
+        replay.run().print(System.out);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set an option.
+     *
+     * @param option the option as name=value.
+     * @throws IllegalArgumentException if the option is not recognised or the
+     *         value is invalid.
+     */
+    public void setOption(String option) {
+        int equals = option.indexOf('=');
+        if (equals < 0) {
+            throw new IllegalArgumentException("expected name=value: " + option);
+        }
+        String name = option.substring(0, equals);
+        String value = option.substring(equals + 1);
+        try {
+            switch (name) {
+            case "trace":
+                _tracePath = value;
+                break;
+            case "config":
+                _configPath = value;
+                break;
+            case "warmup":
+                _warmupPasses = Math.max(0, Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + name);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+        }
+    } // setOption
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the trace and configuration and replay the trace, first for the
+     * warm up passes and then for the reported pass.
+     *
+     * Each pass starts from a newly enabled plugin in new worlds.
+     *
+     * @return the report of the last pass.
+     * @throws IOException if the trace or configuration can't be read.
+     */
+    public Report run() throws IOException {
+        readTrace();
+        _configYaml = new String(Files.readAllBytes(Paths.get(_configPath)), StandardCharsets.UTF_8);
+        for (int pass = 0; pass < _warmupPasses; ++pass) {
+            replay(null);
+        }
+        Report report = new Report();
+        replay(report);
+        return report;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A summary of a replay.
+     */
+    public class Report {
+        // --------------------------------------------------------------------
+        /**
+         * Print the report.
+         *
+         * @param out the stream to print to.
+         */
+        public void print(PrintStream out) {
+            double seconds = _histogram.getTotalNanos() / 1e9;
+            out.println(String.format(Locale.US, "Trace %s: %d records over %d ticks in %d world(s), %d warm up pass(es)",
+                                      _tracePath, _records.size(), _ticks, _bounds.size(), _warmupPasses));
+            out.println();
+            out.println(String.format(Locale.US, "Ticks:      %d in %.1f ms of main thread time", _ticks, seconds * 1e3));
+            out.println(String.format(Locale.US,
+                                      "Totals:     %d placements, %d summons, %d commands, %d deaths (%d without a matching creature), %d skipped",
+                                      _placements, _summons, _commands, _deaths, _unmatched, _skipped));
+            out.println(String.format(Locale.US,
+                                      "Tick ms:    mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                                      _histogram.getTotalNanos() / 1e6 / _ticks,
+                                      _histogram.getPercentileNanos(50) / 1e6,
+                                      _histogram.getPercentileNanos(90) / 1e6,
+                                      _histogram.getPercentileNanos(99) / 1e6,
+                                      _histogram.getPercentileNanos(99.9) / 1e6,
+                                      _histogram.getMaxNanos() / 1e6));
+            out.println(String.format(Locale.US, "            %d tick(s) over the 50 ms budget, the slowest at tick %d",
+                                      _overBudget, _slowestTick));
+            if (AllocationCounter.isSupported()) {
+                out.println(String.format(Locale.US, "Allocation: %.1f KiB/tick, %.1f MiB in total",
+                                          _allocatedBytes / 1024.0 / _ticks, _allocatedBytes / (double) (1 << 20)));
+            } else {
+                out.println("Allocation: not supported by this JVM");
+            }
+        } // print
+
+        /**
+         * Main thread time per tick.
+         */
+        protected final LatencyHistogram _histogram = new LatencyHistogram();
+
+        /**
+         * The number of ticks replayed.
+         */
+        protected long _ticks;
+
+        /**
+         * The number of ticks that exceeded the tick budget.
+         */
+        protected int _overBudget;
+
+        /**
+         * The tick that took the most main thread time.
+         */
+        protected long _slowestTick;
+
+        /**
+         * The main thread time of the slowest tick.
+         */
+        protected long _slowestNanos;
+
+        /**
+         * The number of blocks placed.
+         */
+        protected int _placements;
+
+        /**
+         * The number of placements that summoned a creature.
+         */
+        protected int _summons;
+
+        /**
+         * The number of commands run.
+         */
+        protected int _commands;
+
+        /**
+         * The number of creatures killed.
+         */
+        protected int _deaths;
+
+        /**
+         * The number of deaths for which no matching creature was found.
+         */
+        protected int _unmatched;
+
+        /**
+         * The number of records that could not be replayed, because of
+         * materials unknown to this server version.
+         */
+        protected int _skipped;
+
+        /**
+         * The number of bytes allocated in timed work.
+         */
+        protected long _allocatedBytes;
+    } // inner class Report
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read every record of the trace and find the extent of each world that
+     * it uses.
+     *
+     * @throws IOException if the trace can't be read.
+     */
+    protected void readTrace() throws IOException {
+        _records = new ArrayList<TraceRecord>();
+        _bounds = new LinkedHashMap<String, int[]>();
+        try (TraceFile.Reader reader = new TraceFile.Reader(new BufferedInputStream(new FileInputStream(_tracePath)))) {
+            TraceRecord record;
+            while ((record = reader.read()) != null) {
+                _records.add(record);
+                if (record.getWorld() != null) {
+                    int[] bounds = _bounds.get(record.getWorld());
+                    if (bounds == null) {
+                        bounds = new int[] { record.getX(), record.getZ(), record.getX(), record.getZ() };
+                        _bounds.put(record.getWorld(), bounds);
+                    }
+                    bounds[0] = Math.min(bounds[0], record.getX() - record.getReach());
+                    bounds[1] = Math.min(bounds[1], record.getZ() - record.getReach());
+                    bounds[2] = Math.max(bounds[2], record.getX() + record.getReach());
+                    bounds[3] = Math.max(bounds[3], record.getZ() + record.getReach());
+                }
+            }
+        }
+    } // readTrace
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the worlds and enable the plugin.
+     *
+     * @throws IOException if the plugin can't be created.
+     */
+    protected void setUp() throws IOException {
+        _server = HeadlessServer.get();
+        _server.reset();
+        _worlds = new HashMap<String, HeadlessWorld>();
+        for (Map.Entry<String, int[]> entry : _bounds.entrySet()) {
+            int[] bounds = entry.getValue();
+            _worlds.put(entry.getKey(), _server.createWorld(entry.getKey(), bounds[0] - MARGIN, 0, bounds[1] - MARGIN,
+                                                            bounds[2] - bounds[0] + 1 + 2 * MARGIN, WORLD_HEIGHT,
+                                                            bounds[3] - bounds[1] + 1 + 2 * MARGIN));
+        }
+        if (_worlds.isEmpty()) {
+            // The plugin expects at least one world.
+            _worlds.put("world", _server.createWorld("world", -16, 0, -16, 32, WORLD_HEIGHT, 32));
+        }
+        _players = new HashMap<String, Player>();
+
+        HeadlessDoppelganger plugin = HeadlessDoppelganger.create(_server, _configYaml);
+        plugin.enable();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replay the whole trace once.
+     *
+     * @param report the report to update, or null during warm up.
+     * @throws IOException if the plugin can't be created.
+     */
+    protected void replay(Report report) throws IOException {
+        setUp();
+        try {
+            long lastTick = _records.isEmpty() ? 0 : _records.get(_records.size() - 1).getTick();
+            int next = 0;
+            for (long tick = 0; tick <= lastTick; ++tick) {
+                _tickNanos = 0;
+                _tickBytes = 0;
+                while (next < _records.size() && _records.get(next).getTick() == tick) {
+                    replayRecord(_records.get(next++), report);
+                }
+                startTiming();
+                _server.tick(1);
+                stopTiming();
+
+                if (report != null) {
+                    ++report._ticks;
+                    report._histogram.record(_tickNanos);
+                    report._allocatedBytes += _tickBytes;
+                    if (_tickNanos > LoadGenerator.TICK_BUDGET_NANOS) {
+                        ++report._overBudget;
+                    }
+                    if (_tickNanos > report._slowestNanos) {
+                        report._slowestNanos = _tickNanos;
+                        report._slowestTick = tick;
+                    }
+                }
+
+                // Untimed: discard chat so that it doesn't accumulate.
+                HeadlessServer.getMessages(_server.getConsole()).clear();
+                for (Player player : _players.values()) {
+                    HeadlessServer.getMessages(player).clear();
+                }
+            }
+        } finally {
+            _server.reset();
+        }
+    } // replay
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replay one record, timing only the work of the server's main thread.
+     *
+     * @param record the record.
+     * @param report the report to update, or null during warm up.
+     */
+    protected void replayRecord(TraceRecord record, Report report) {
+        switch (record.getType()) {
+        case PLACE: {
+            if (record.getMaterial() == null) {
+                if (report != null) {
+                    ++report._skipped;
+                }
+                return;
+            }
+            HeadlessWorld world = _worlds.get(record.getWorld());
+            restoreNeighbourhood(world, record);
+            Player player = getPlayer(record.getName(), world, record.getX(), record.getY(), record.getZ());
+            ItemStack item = HeadlessServer.namedItem(record.getMaterial(), record.getText());
+
+            startTiming();
+            boolean summoned = _server.placeBlock(player, item, record.getX(), record.getY(), record.getZ()).isCancelled();
+            stopTiming();
+            if (report != null) {
+                ++report._placements;
+                if (summoned) {
+                    ++report._summons;
+                }
+            }
+            break;
+        }
+        case DEATH: {
+            LivingEntity victim = findVictim(record);
+            if (victim != null) {
+                ArrayList<ItemStack> drops = new ArrayList<ItemStack>();
+                startTiming();
+                _server.killEntity(victim, drops);
+                stopTiming();
+            }
+            if (report != null) {
+                ++report._deaths;
+                if (victim == null) {
+                    ++report._unmatched;
+                }
+            }
+            break;
+        }
+        case COMMAND: {
+            HeadlessWorld world = (record.getWorld() != null) ? _worlds.get(record.getWorld()) : null;
+            CommandSender sender;
+            if (world != null && record.getSource() == TraceRecord.Source.PLAYER) {
+                sender = getPlayer(record.getName(), world, record.getX(), record.getY(), record.getZ());
+            } else if (world != null && record.getSource() == TraceRecord.Source.BLOCK) {
+                sender = _server.createCommandBlock(world, record.getX(), record.getY(), record.getZ());
+            } else {
+                sender = _server.getConsole();
+            }
+
+            startTiming();
+            _server.dispatchCommand(sender, record.getText());
+            stopTiming();
+            if (report != null) {
+                ++report._commands;
+            }
+            break;
+        }
+        }
+    } // replayRecord
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the blocks around a placement to what they were when it was
+     * recorded.
+     *
+     * @param world the world.
+     * @param record the placement record.
+     */
+    protected void restoreNeighbourhood(HeadlessWorld world, TraceRecord record) {
+        int reach = record.getReach();
+        for (int dy = -reach; dy <= reach; ++dy) {
+            int y = record.getY() + dy;
+            if (y < 0 || y >= WORLD_HEIGHT) {
+                continue;
+            }
+            for (int dx = -reach; dx <= reach; ++dx) {
+                for (int dz = -reach; dz <= reach; ++dz) {
+                    Material material = record.getNeighbour(dx, dy, dz);
+                    world.setType(record.getX() + dx, y, record.getZ() + dz, (material != null) ? material : Material.AIR);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the player with the specified name in a world, adding them if
+     * necessary, after moving them to the specified block.
+     *
+     * @param name the player name.
+     * @param world the world.
+     * @param x the X coordinate of the block.
+     * @param y the Y coordinate of the block.
+     * @param z the Z coordinate of the block.
+     * @return the player.
+     */
+    protected Player getPlayer(String name, HeadlessWorld world, int x, int y, int z) {
+        String key = name + '@' + world.getWorld().getName();
+        Player player = _players.get(key);
+        if (player == null) {
+            player = _server.addPlayer(name, world, x + 0.5, y, z + 0.5);
+            _players.put(key, player);
+        } else {
+            player.teleport(new Location(world.getWorld(), x + 0.5, y, z + 0.5));
+        }
+        return player;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the living creature nearest to the location of a death record,
+     * with the recorded type and custom name, within {@link #MATCH_DISTANCE}.
+     *
+     * @param record the death record.
+     * @return the creature, or null if there is none.
+     */
+    protected LivingEntity findVictim(TraceRecord record) {
+        HeadlessWorld world = _worlds.get(record.getWorld());
+        Location loc = new Location(world.getWorld(), record.getX() + 0.5, record.getY(), record.getZ() + 0.5);
+        LivingEntity nearest = null;
+        double nearestSquared = MATCH_DISTANCE * MATCH_DISTANCE;
+        for (Entity entity : world.getEntities()) {
+            if (entity instanceof LivingEntity && !(entity instanceof Player) && !entity.isDead() &&
+                entity.getType().name().equals(record.getText()) &&
+                Objects.equals(entity.getCustomName(), record.getName())) {
+                double distanceSquared = entity.getLocation().distanceSquared(loc);
+                if (distanceSquared <= nearestSquared) {
+                    nearest = (LivingEntity) entity;
+                    nearestSquared = distanceSquared;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start timing main thread work.
+     */
+    protected void startTiming() {
+        _startBytes = AllocationCounter.getAllocatedBytes();
+        _startNanos = System.nanoTime();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop timing main thread work, adding the time and allocation since
+     * {@link #startTiming()} to the current tick.
+     */
+    protected void stopTiming() {
+        _tickNanos += System.nanoTime() - _startNanos;
+        _tickBytes += AllocationCounter.getAllocatedBytes() - _startBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The names of the options.
+     */
+    protected static final String OPTIONS = "trace, config, warmup";
+
+    /**
+     * The height of each world.
+     */
+    protected static final int WORLD_HEIGHT = 256;
+
+    /**
+     * The horizontal distance by which worlds extend beyond the recorded
+     * locations, leaving room for creatures to spawn and move.
+     */
+    protected static final int MARGIN = 64;
+
+    /**
+     * The maximum distance from the recorded location of a death to the
+     * creature that is killed.
+     */
+    protected static final double MATCH_DISTANCE = 16;
+
+    /**
+     * The path of the trace file.
+     */
+    protected String _tracePath;
+
+    /**
+     * The path of the configuration file.
+     */
+    protected String _configPath = "config.yml";
+
+    /**
+     * The number of unreported passes before the reported one.
+     */
+    protected int _warmupPasses;
+
+    /**
+     * The records of the trace, in order.
+     */
+    protected List<TraceRecord> _records;
+
+    /**
+     * Map from world name to the extent of the recorded locations in it:
+     * minimum X, minimum Z, maximum X and maximum Z.
+     */
+    protected Map<String, int[]> _bounds;
+
+    /**
+     * The text of the configuration.
+     */
+    protected String _configYaml;
+
+    /**
+     * The server.
+     */
+    protected HeadlessServer _server;
+
+    /**
+     * Map from world name to world.
+     */
+    protected HashMap<String, HeadlessWorld> _worlds;
+
+    /**
+     * Map from player name and world name to player.
+     */
+    protected HashMap<String, Player> _players;
+
+    /**
+     * The main thread time of the current tick.
+     */
+    protected long _tickNanos;
+
+    /**
+     * The bytes allocated by the main thread in the current tick.
+     */
+    protected long _tickBytes;
+
+    /**
+     * The value of System.nanoTime() when timing started.
+     */
+    protected long _startNanos;
+
+    /**
+     * The bytes allocated by the current thread when timing started.
+     */
+    protected long _startBytes;
+} // class TraceReplay
@@ -0,0 +1,66 @@
+package io.github.totemo.doppelganger.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.totemo.doppelganger.WeightedSelection;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures {@link WeightedSelection#choose()}, which picks the creature type
+ * summoned by a shape and the type of each escort.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeightedSelectionBenchmark {
+    /**
+     * The number of choices.
+     */
+    @Param({ "1", "10", "100" })
+    public int choices;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a selection with unequal weights.
+     */
+    @Setup
+    public void setUp() {
+        _selection = new WeightedSelection<String>(new Random(1));
+        for (int i = 0; i < choices; ++i) {
+            _selection.addChoice("choice" + i, 1.0 + i % 3);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Choose one.
+     *
+     * @return the choice.
+     */
+    @Benchmark
+    public String choose() {
+        return _selection.choose();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The selection.
+     */
+    protected WeightedSelection<String> _selection;
+} // class WeightedSelectionBenchmark
@@ -0,0 +1,302 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.inventory.EntityEquipment;
+import org.bukkit.persistence.PersistentDataContainer;
+
+// ----------------------------------------------------------------------------
+/**
+ * Implements an Entity proxy in a {@link HeadlessWorld}.
+ *
+ * Identity, location, life and death, equipment, attributes and persistent
+ * data behave as in a server; everything else is a property. If the entity is
+ * a Player or other CommandSender, messages sent to it are recorded.
+ */
+public class EntityHandler extends PropertyHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param world the world containing the entity.
+     * @param type the entity type.
+     * @param id the entity ID.
+     * @param location the initial location.
+     */
+    public EntityHandler(HeadlessWorld world, EntityType type, int id, Location location) {
+        _world = world;
+        _type = type;
+        _id = id;
+        _uuid = new UUID(0x5EED, id);
+        _location = location.clone();
+        _spawnTick = world.getServer().getCurrentTick();
+        setProperty("Health", 20.0);
+        setProperty("MaxHealth", 20.0);
+        _equipment = PropertyHandler.create(EntityEquipment.class, new PropertyHandler());
+        _data = PropertyHandler.create(PersistentDataContainer.class, new PropertyHandler() {
+            @Override
+            protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                case "set":
+                    _dataValues.put(args[0], args[2]);
+                    return null;
+                case "get":
+                case "getOrDefault":
+                    Object value = _dataValues.get(args[0]);
+                    return (value == null && args.length > 2) ? args[2] : value;
+                case "has":
+                    return _dataValues.containsKey(args[0]);
+                case "remove":
+                    _dataValues.remove(args[0]);
+                    return null;
+                case "isEmpty":
+                    return _dataValues.isEmpty();
+                default:
+                    return UNHANDLED;
+                }
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Make this entity a CommandSender with the specified name and
+     * permissions.
+     *
+     * @param name the sender name.
+     * @param op if true, the sender has every permission.
+     */
+    public void setSender(String name, boolean op) {
+        _name = name;
+        _op = op;
+        _messages = new ArrayList<String>();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the messages sent to this entity.
+     *
+     * @return the messages, or null if it is not a CommandSender.
+     */
+    public List<String> getMessages() {
+        return _messages;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the entity has been removed or killed.
+     *
+     * @return true if the entity has been removed or killed.
+     */
+    public boolean isDead() {
+        return _dead;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mark the entity as dead; called by its world when it is removed.
+     */
+    void setDead() {
+        _dead = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the current location, which is not a copy.
+     *
+     * @return the location.
+     */
+    Location location() {
+        return _location;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.headless.PropertyHandler#invokeSpecial(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+        int argCount = (args == null) ? 0 : args.length;
+        switch (method.getName()) {
+        case "getType":
+            return _type;
+        case "getEntityId":
+            return _id;
+        case "getUniqueId":
+            return _uuid;
+        case "getWorld":
+            return _world.getWorld();
+        case "getServer":
+            return _world.getServer().getServer();
+        case "getLocation":
+            if (argCount == 0) {
+                return _location.clone();
+            } else {
+                Location loc = (Location) args[0];
+                if (loc != null) {
+                    loc.setWorld(_location.getWorld());
+                    loc.setX(_location.getX());
+                    loc.setY(_location.getY());
+                    loc.setZ(_location.getZ());
+                    loc.setYaw(_location.getYaw());
+                    loc.setPitch(_location.getPitch());
+                }
+                return loc;
+            }
+        case "getEyeLocation":
+            return _location.clone().add(0, 1.6, 0);
+        case "teleport":
+            if (args[0] instanceof Location) {
+                _location = ((Location) args[0]).clone();
+            } else {
+                _location = ((Entity) args[0]).getLocation();
+            }
+            return true;
+        case "getTicksLived":
+            return (int) (_world.getServer().getCurrentTick() - _spawnTick);
+        case "isValid":
+            return !_dead;
+        case "isDead":
+            return _dead;
+        case "remove":
+            _world.remove((Entity) proxy);
+            return null;
+        case "getEquipment":
+            return _equipment;
+        case "getPersistentDataContainer":
+            return _data;
+        case "getAttribute":
+            return getAttribute((Attribute) args[0]);
+        case "getNearbyEntities":
+            return _world.getNearbyEntities(_location, (Double) args[0], (Double) args[1], (Double) args[2]);
+        case "getName":
+            return (_name != null) ? _name : _type.name();
+        case "getDisplayName":
+        case "getPlayerListName":
+            return (_name != null) ? _name : _type.name();
+        default:
+            break;
+        }
+
+        if (_messages != null) {
+            if (method.getName().equals("isOnline")) {
+                return !_dead;
+            }
+            return SenderHandler.invokeSender(method, args, _messages, _op);
+        }
+        return UNHANDLED;
+    } // invokeSpecial
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the instance of an attribute, creating it on first use with a
+     * base value of 20 for maximum health and 0 otherwise.
+     *
+     * @param attribute the attribute.
+     * @return the instance.
+     */
+    protected AttributeInstance getAttribute(Attribute attribute) {
+        AttributeInstance instance = _attributes.get(attribute);
+        if (instance == null) {
+            PropertyHandler handler = new PropertyHandler() {
+                @Override
+                protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                    case "getValue":
+                    case "getDefaultValue":
+                        return getProperty("BaseValue");
+                    default:
+                        return UNHANDLED;
+                    }
+                }
+            };
+            handler.setProperty("Attribute", attribute);
+            handler.setProperty("BaseValue", (attribute == Attribute.GENERIC_MAX_HEALTH) ? 20.0 : 0.0);
+            instance = PropertyHandler.create(AttributeInstance.class, handler);
+            _attributes.put(attribute, instance);
+        }
+        return instance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The world containing the entity.
+     */
+    protected final HeadlessWorld _world;
+
+    /**
+     * The entity type.
+     */
+    protected final EntityType _type;
+
+    /**
+     * The entity ID.
+     */
+    protected final int _id;
+
+    /**
+     * The UUID, derived from the entity ID.
+     */
+    protected final UUID _uuid;
+
+    /**
+     * The tick when the entity was spawned.
+     */
+    protected final long _spawnTick;
+
+    /**
+     * The location.
+     */
+    protected Location _location;
+
+    /**
+     * True once removed or killed.
+     */
+    protected boolean _dead;
+
+    /**
+     * The equipment proxy.
+     */
+    protected final EntityEquipment _equipment;
+
+    /**
+     * The persistent data container proxy.
+     */
+    protected final PersistentDataContainer _data;
+
+    /**
+     * The values in the persistent data container, by NamespacedKey.
+     */
+    protected final HashMap<Object, Object> _dataValues = new HashMap<Object, Object>();
+
+    /**
+     * The attribute instances.
+     */
+    protected final EnumMap<Attribute, AttributeInstance> _attributes = new EnumMap<Attribute, AttributeInstance>(Attribute.class);
+
+    /**
+     * The sender name, or null if not a CommandSender.
+     */
+    protected String _name;
+
+    /**
+     * True if the sender has every permission.
+     */
+    protected boolean _op;
+
+    /**
+     * Messages sent to the entity, or null if it is not a CommandSender.
+     */
+    protected List<String> _messages;
+} // class EntityHandler
@@ -0,0 +1,164 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.InvalidDescriptionException;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import io.github.totemo.doppelganger.Doppelganger;
+
+// ----------------------------------------------------------------------------
+/**
+ * The plugin, loaded into a {@link HeadlessServer} with a configuration
+ * supplied as text.
+ *
+ * Each instance has its own temporary data folder, which is deleted when the
+ * plugin is disabled. Settings that would start threads or write files
+ * during a run are off unless the configuration sets them: auto_reload, jmx,
+ * metrics_file_interval_seconds and compiled_cache.
+ */
+public class HeadlessDoppelganger extends Doppelganger {
+    // ------------------------------------------------------------------------
+    /**
+     * Create the plugin, add it to the server and write its configuration
+     * file. The plugin is not yet enabled.
+     *
+     * @param server the server.
+     * @param configYaml the contents of config.yml.
+     * @return the plugin.
+     * @throws IOException if the data folder can't be created or the plugin
+     *         description can't be read.
+     * @throws IllegalArgumentException if the configuration is not valid
+     *         YAML.
+     */
+    public static HeadlessDoppelganger create(HeadlessServer server, String configYaml) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(configYaml);
+        } catch (InvalidConfigurationException ex) {
+            throw new IllegalArgumentException("invalid configuration: " + ex.getMessage(), ex);
+        }
+        setIfAbsent(config, "auto_reload", false);
+        setIfAbsent(config, "jmx", false);
+        setIfAbsent(config, "metrics_file_interval_seconds", 0);
+        setIfAbsent(config, "compiled_cache", false);
+
+        File dataFolder = Files.createTempDirectory("doppelganger").toFile();
+        Files.write(new File(dataFolder, "config.yml").toPath(), config.saveToString().getBytes(StandardCharsets.UTF_8));
+
+        PluginDescriptionFile description;
+        try (InputStream in = Doppelganger.class.getResourceAsStream("/plugin.yml")) {
+            if (in == null) {
+                throw new IOException("plugin.yml is not on the class path");
+            }
+            description = new PluginDescriptionFile(in);
+        } catch (InvalidDescriptionException ex) {
+            throw new IOException("invalid plugin.yml: " + ex.getMessage(), ex);
+        }
+
+        HeadlessDoppelganger plugin = new HeadlessDoppelganger(server, new JavaPluginLoader(server.getServer()),
+                                                               description, dataFolder,
+                                                               new File(dataFolder, "Doppelganger.jar"));
+        server.addPlugin(plugin);
+        return plugin;
+    } // create
+
+    // ------------------------------------------------------------------------
+    /**
+     * Enable the plugin, as the server does after loading it.
+     */
+    public void enable() {
+        setEnabled(true);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Disable the plugin if enabled, remove it from the server, and delete its
+     * data folder.
+     */
+    public void disable() {
+        if (isEnabled()) {
+            setEnabled(false);
+        }
+        _headlessServer.removePlugin(this);
+        deleteDataFolder();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param server the server.
+     * @param loader the plugin loader.
+     * @param description the plugin description.
+     * @param dataFolder the data folder.
+     * @param file the plugin jar file, which need not exist.
+     */
+    protected HeadlessDoppelganger(HeadlessServer server, JavaPluginLoader loader, PluginDescriptionFile description,
+                                   File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+        _headlessServer = server;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the data folder and its contents.
+     */
+    protected void deleteDataFolder() {
+        Path root = getDataFolder().toPath();
+        if (!Files.exists(root)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                    if (ex != null) {
+                        throw ex;
+                    }
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            getLogger().warning("Could not delete " + root + ": " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set a configuration value if the configuration does not already set it.
+     *
+     * @param config the configuration.
+     * @param path the path of the setting.
+     * @param value the value.
+     */
+    protected static void setIfAbsent(YamlConfiguration config, String path, Object value) {
+        if (!config.contains(path)) {
+            config.set(path, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The server.
+     */
+    protected final HeadlessServer _headlessServer;
+} // class HeadlessDoppelganger
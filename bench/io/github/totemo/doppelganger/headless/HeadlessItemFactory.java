@@ -0,0 +1,135 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.Method;
+
+import org.bukkit.Color;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.meta.BookMeta;
+import org.bukkit.inventory.meta.Damageable;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.inventory.meta.LeatherArmorMeta;
+import org.bukkit.inventory.meta.SkullMeta;
+
+// ----------------------------------------------------------------------------
+/**
+ * Implements the ItemFactory that ItemStack uses to create and compare item
+ * meta.
+ *
+ * Item meta are {@link PropertyHandler} proxies of a single meta interface
+ * chosen by material: SkullMeta for player heads, LeatherArmorMeta for
+ * leather armour, BookMeta for books, and Damageable for everything else.
+ * Since the clone() methods of the meta interfaces have incompatible return
+ * types, a proxy can't implement more than one of them; in particular,
+ * leather armour can't be damaged.
+ */
+public class HeadlessItemFactory extends PropertyHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public HeadlessItemFactory() {
+        _itemFactory = PropertyHandler.create(ItemFactory.class, this);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ItemFactory implemented by this instance.
+     *
+     * @return the ItemFactory.
+     */
+    public ItemFactory getItemFactory() {
+        return _itemFactory;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return new, empty item meta for the specified material.
+     *
+     * @param material the material.
+     * @return the meta, or null for air.
+     */
+    public ItemMeta getItemMeta(Material material) {
+        switch (material) {
+        case AIR:
+        case CAVE_AIR:
+        case VOID_AIR:
+            return null;
+        case PLAYER_HEAD:
+        case PLAYER_WALL_HEAD:
+            return PropertyHandler.create(SkullMeta.class, new PropertyHandler());
+        case LEATHER_HELMET:
+        case LEATHER_CHESTPLATE:
+        case LEATHER_LEGGINGS:
+        case LEATHER_BOOTS:
+        case LEATHER_HORSE_ARMOR: {
+            PropertyHandler handler = new PropertyHandler();
+            handler.setDefault("Color", DEFAULT_LEATHER_COLOR);
+            return PropertyHandler.create(LeatherArmorMeta.class, handler);
+        }
+        case WRITTEN_BOOK:
+        case WRITABLE_BOOK:
+            return PropertyHandler.create(BookMeta.class, new PropertyHandler());
+        default:
+            return PropertyHandler.create(Damageable.class, new PropertyHandler());
+        }
+    } // getItemMeta
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if two item meta are equal, treating null as empty meta.
+     *
+     * @param meta1 the first meta, or null.
+     * @param meta2 the second meta, or null.
+     * @return true if they have the same properties.
+     */
+    public boolean equals(ItemMeta meta1, ItemMeta meta2) {
+        PropertyHandler handler1 = (meta1 != null) ? PropertyHandler.of(meta1) : EMPTY;
+        PropertyHandler handler2 = (meta2 != null) ? PropertyHandler.of(meta2) : EMPTY;
+        return handler1.hasSameProperties(handler2);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.headless.PropertyHandler#invokeSpecial(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "getItemMeta":
+            return getItemMeta((Material) args[0]);
+        case "isApplicable":
+            return true;
+        case "equals":
+            if (args.length == 2) {
+                return equals((ItemMeta) args[0], (ItemMeta) args[1]);
+            }
+            return UNHANDLED;
+        case "asMetaFor":
+            return args[0];
+        case "updateMaterial":
+            return args[1];
+        case "getDefaultLeatherColor":
+            return DEFAULT_LEATHER_COLOR;
+        default:
+            return UNHANDLED;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The colour of undyed leather armour.
+     */
+    public static final Color DEFAULT_LEATHER_COLOR = Color.fromRGB(0xA06540);
+
+    /**
+     * The handler of empty item meta.
+     */
+    protected static final PropertyHandler EMPTY = new PropertyHandler();
+
+    /**
+     * The ItemFactory proxy.
+     */
+    protected final ItemFactory _itemFactory;
+} // class HeadlessItemFactory
@@ -0,0 +1,239 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+// ----------------------------------------------------------------------------
+/**
+ * Implements the PluginManager of a {@link HeadlessServer}: the plugin
+ * registry and event dispatch.
+ *
+ * Event handlers are called in priority order, and then in the order they
+ * were registered, skipping handlers of disabled plugins and, if they ignore
+ * cancelled events, handlers of cancelled events. Unlike a server, an
+ * exception thrown by a handler is propagated to the caller of
+ * {@link #callEvent(Event)}, so that a benchmark does not silently measure a
+ * failure.
+ */
+public class HeadlessPluginManager extends PropertyHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public HeadlessPluginManager() {
+        _pluginManager = PropertyHandler.create(PluginManager.class, this);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the PluginManager implemented by this instance.
+     *
+     * @return the PluginManager.
+     */
+    public PluginManager getPluginManager() {
+        return _pluginManager;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a plugin to the registry.
+     *
+     * @param plugin the plugin.
+     */
+    public void addPlugin(Plugin plugin) {
+        _plugins.put(plugin.getName(), plugin);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a plugin from the registry and unregister its event handlers.
+     *
+     * @param plugin the plugin.
+     */
+    public void removePlugin(Plugin plugin) {
+        _plugins.remove(plugin.getName());
+        for (Iterator<Handler> it = _handlers.iterator(); it.hasNext();) {
+            if (it.next()._plugin == plugin) {
+                it.remove();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the registered plugins.
+     *
+     * @return a copy of the list of plugins.
+     */
+    public ArrayList<Plugin> getPlugins() {
+        return new ArrayList<Plugin>(_plugins.values());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register the event handler methods of a listener.
+     *
+     * @param listener the listener.
+     * @param plugin the plugin that owns the listener.
+     */
+    public void registerEvents(Listener listener, Plugin plugin) {
+        for (Method method : listener.getClass().getMethods()) {
+            EventHandler annotation = method.getAnnotation(EventHandler.class);
+            Class<?>[] params = method.getParameterTypes();
+            if (annotation != null && params.length == 1 && Event.class.isAssignableFrom(params[0])) {
+                method.setAccessible(true);
+                Handler handler = new Handler(plugin, listener, method, params[0], annotation);
+                int index = _handlers.size();
+                while (index > 0 && _handlers.get(index - 1)._annotation.priority().ordinal() > annotation.priority().ordinal()) {
+                    --index;
+                }
+                _handlers.add(index, handler);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Call the handlers of an event.
+     *
+     * @param event the event.
+     * @throws RuntimeException if a handler throws.
+     */
+    public void callEvent(Event event) {
+        // Index rather than iterate, so that dispatch allocates nothing.
+        for (int i = 0; i < _handlers.size(); ++i) {
+            Handler handler = _handlers.get(i);
+            if (!handler._eventType.isInstance(event) || !handler._plugin.isEnabled()) {
+                continue;
+            }
+            if (handler._annotation.ignoreCancelled() &&
+                event instanceof Cancellable && ((Cancellable) event).isCancelled()) {
+                continue;
+            }
+            try {
+                handler._method.invoke(handler._listener, event);
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    } // callEvent
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove every plugin and handler.
+     */
+    public void clear() {
+        _plugins.clear();
+        _handlers.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.headless.PropertyHandler#invokeSpecial(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "registerEvents":
+            registerEvents((Listener) args[0], (Plugin) args[1]);
+            return null;
+        case "callEvent":
+            callEvent((Event) args[0]);
+            return null;
+        case "getPlugin":
+            return _plugins.get(args[0]);
+        case "getPlugins":
+            return _plugins.values().toArray(new Plugin[_plugins.size()]);
+        case "isPluginEnabled": {
+            Plugin plugin = (args[0] instanceof Plugin) ? (Plugin) args[0] : _plugins.get(args[0]);
+            return plugin != null && _plugins.containsValue(plugin) && plugin.isEnabled();
+        }
+        default:
+            return UNHANDLED;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A registered event handler method.
+     */
+    protected static final class Handler {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param plugin the plugin that owns the listener.
+         * @param listener the listener.
+         * @param method the handler method.
+         * @param eventType the type of event handled.
+         * @param annotation the EventHandler annotation of the method.
+         */
+        Handler(Plugin plugin, Listener listener, Method method, Class<?> eventType, EventHandler annotation) {
+            _plugin = plugin;
+            _listener = listener;
+            _method = method;
+            _eventType = eventType;
+            _annotation = annotation;
+        }
+
+        /**
+         * The plugin that owns the listener.
+         */
+        final Plugin _plugin;
+
+        /**
+         * The listener.
+         */
+        final Listener _listener;
+
+        /**
+         * The handler method.
+         */
+        final Method _method;
+
+        /**
+         * The type of event handled.
+         */
+        final Class<?> _eventType;
+
+        /**
+         * The EventHandler annotation of the method.
+         */
+        final EventHandler _annotation;
+    } // inner class Handler
+
+    // ------------------------------------------------------------------------
+    /**
+     * The PluginManager proxy.
+     */
+    protected final PluginManager _pluginManager;
+
+    /**
+     * Map from name to registered plugin.
+     */
+    protected final LinkedHashMap<String, Plugin> _plugins = new LinkedHashMap<String, Plugin>();
+
+    /**
+     * Registered event handlers in the order they are called.
+     */
+    protected final ArrayList<Handler> _handlers = new ArrayList<Handler>();
+} // class HeadlessPluginManager
@@ -0,0 +1,625 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.command.BlockCommandSender;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.inventory.EquipmentSlot;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
+
+// ----------------------------------------------------------------------------
+/**
+ * An in-memory stand-in for a Bukkit server, sufficient to enable the plugin
+ * and drive it end to end with block placements, deaths, commands and ticks,
+ * without a Minecraft server.
+ *
+ * The Server and everything it returns are dynamic proxies. Time advances
+ * only when {@link #tick(int)} is called, so runs are deterministic. Worlds
+ * are {@link HeadlessWorld}s of a fixed size; players are always online and
+ * are operators. Server methods that are not implemented return defaults.
+ *
+ * Bukkit allows only one Server per JVM, so the instance is a singleton;
+ * {@link #reset()} returns it to its initial state between runs.
+ */
+public class HeadlessServer extends PropertyHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the server, installing it as the Bukkit server on first use.
+     *
+     * @return the server.
+     */
+    public static synchronized HeadlessServer get() {
+        if (_instance == null) {
+            _instance = new HeadlessServer();
+            Bukkit.setServer(_instance.getServer());
+        }
+        return _instance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a single item with a display name, such as a named pumpkin.
+     *
+     * @param material the item material.
+     * @param name the display name.
+     * @return the item.
+     */
+    public static ItemStack namedItem(Material material, String name) {
+        ItemStack item = new ItemStack(material, 1);
+        ItemMeta meta = item.getItemMeta();
+        meta.setDisplayName(name);
+        item.setItemMeta(meta);
+        return item;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the messages sent to a player or the console.
+     *
+     * @param sender the player or the console.
+     * @return the messages, which can be cleared, or null if the sender was
+     *         not created by this server.
+     */
+    public static List<String> getMessages(CommandSender sender) {
+        PropertyHandler handler = PropertyHandler.of(sender);
+        if (handler instanceof EntityHandler) {
+            return ((EntityHandler) handler).getMessages();
+        } else if (handler instanceof SenderHandler) {
+            return ((SenderHandler) handler).getMessages();
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    protected HeadlessServer() {
+        _server = PropertyHandler.create(Server.class, this);
+        _logger = Logger.getLogger("Headless");
+        _logger.setUseParentHandlers(false);
+        _logHandler = new ConsoleHandler();
+        _logHandler.setLevel(Level.WARNING);
+        _logger.addHandler(_logHandler);
+        _console = new SenderHandler(this, "CONSOLE", true);
+        _consoleSender = PropertyHandler.create(ConsoleCommandSender.class, _console);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Server implemented by this instance.
+     *
+     * @return the Server.
+     */
+    public Server getServer() {
+        return _server;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the logger that is the parent of plugin loggers.
+     *
+     * Only warnings and more severe messages are shown by default.
+     *
+     * @return the logger.
+     */
+    public Logger getLogger() {
+        return _logger;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the minimum level of log messages that are shown.
+     *
+     * @param level the level.
+     */
+    public void setLogLevel(Level level) {
+        _logHandler.setLevel(level);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the scheduler.
+     *
+     * @return the scheduler.
+     */
+    public TickScheduler getScheduler() {
+        return _scheduler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the plugin manager.
+     *
+     * @return the plugin manager.
+     */
+    public HeadlessPluginManager getPluginManager() {
+        return _pluginManager;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of ticks run so far.
+     *
+     * @return the current tick.
+     */
+    public long getCurrentTick() {
+        return _scheduler.getCurrentTick();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the specified number of ticks.
+     *
+     * @param ticks the number of ticks.
+     */
+    public void tick(int ticks) {
+        _scheduler.tick(ticks);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Disable and remove every plugin, cancel every task, and remove every
+     * world and player.
+     */
+    public void reset() {
+        for (Plugin plugin : _pluginManager.getPlugins()) {
+            if (plugin instanceof HeadlessDoppelganger) {
+                ((HeadlessDoppelganger) plugin).disable();
+            }
+            removePlugin(plugin);
+        }
+        _pluginManager.clear();
+        _scheduler.cancelAll();
+        for (HeadlessWorld world : _worlds) {
+            world.removeAll();
+        }
+        _worlds.clear();
+        _players.clear();
+        _commands.clear();
+        _console.getMessages().clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a world.
+     *
+     * @param name the world name.
+     * @param minX the minimum X coordinate of the box of blocks.
+     * @param minY the minimum Y coordinate of the box of blocks.
+     * @param minZ the minimum Z coordinate of the box of blocks.
+     * @param sizeX the size of the box in X.
+     * @param sizeY the size of the box in Y.
+     * @param sizeZ the size of the box in Z.
+     * @return the world.
+     */
+    public HeadlessWorld createWorld(String name, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        HeadlessWorld world = new HeadlessWorld(this, name, minX, minY, minZ, sizeX, sizeY, sizeZ);
+        _worlds.add(world);
+        return world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the HeadlessWorld that implements a World.
+     *
+     * @param world the World.
+     * @return the HeadlessWorld, or null if not found.
+     */
+    public HeadlessWorld getHeadlessWorld(World world) {
+        for (HeadlessWorld headless : _worlds) {
+            if (headless.getWorld() == world) {
+                return headless;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an online player who is an operator.
+     *
+     * @param name the player name.
+     * @param world the world.
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     * @return the player.
+     */
+    public Player addPlayer(String name, HeadlessWorld world, double x, double y, double z) {
+        Location loc = new Location(world.getWorld(), x, y, z);
+        EntityHandler handler = new EntityHandler(world, EntityType.PLAYER, nextEntityId(), loc);
+        handler.setSender(name, true);
+        Player player = (Player) world.addEntity(loc, EntityType.PLAYER, handler);
+        _players.add(player);
+        return player;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a plugin and create its commands, as listed in its description.
+     *
+     * @param plugin the plugin.
+     */
+    public void addPlugin(Plugin plugin) {
+        _pluginManager.addPlugin(plugin);
+        Map<String, Map<String, Object>> commands = plugin.getDescription().getCommands();
+        if (commands != null) {
+            for (Map.Entry<String, Map<String, Object>> entry : commands.entrySet()) {
+                _commands.put(entry.getKey().toLowerCase(), createCommand(entry.getKey(), entry.getValue(), plugin));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a plugin, its commands, event handlers and tasks.
+     *
+     * @param plugin the plugin.
+     */
+    public void removePlugin(Plugin plugin) {
+        _pluginManager.removePlugin(plugin);
+        _scheduler.getScheduler().cancelTasks(plugin);
+        for (Iterator<PluginCommand> it = _commands.values().iterator(); it.hasNext();) {
+            if (it.next().getPlugin() == plugin) {
+                it.remove();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the console.
+     *
+     * @return the console.
+     */
+    public ConsoleCommandSender getConsole() {
+        return _consoleSender;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new command block, as a sender of commands.
+     *
+     * @param world the world containing the command block.
+     * @param x the X coordinate of the command block.
+     * @param y the Y coordinate of the command block.
+     * @param z the Z coordinate of the command block.
+     * @return the command block.
+     */
+    public BlockCommandSender createCommandBlock(HeadlessWorld world, int x, int y, int z) {
+        final Block block = world.getBlockAt(x, y, z);
+        SenderHandler handler = new SenderHandler(this, "@", true) {
+            @Override
+            protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getBlock")) {
+                    return block;
+                }
+                return super.invokeSpecial(proxy, method, args);
+            }
+        };
+        return PropertyHandler.create(BlockCommandSender.class, handler);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run a command as if typed by a player or the console.
+     *
+     * @param sender the sender.
+     * @param commandLine the command, without a leading '/'.
+     * @return true if the command exists and succeeded.
+     */
+    public boolean dispatchCommand(CommandSender sender, String commandLine) {
+        String[] words = commandLine.trim().split(" +");
+        PluginCommand command = _commands.get(words[0].toLowerCase());
+        if (command == null) {
+            return false;
+        }
+        return command.execute(sender, words[0], Arrays.copyOfRange(words, 1, words.length));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Have a player place a block from their main hand.
+     *
+     * If the event is cancelled, the block is reverted to its previous type,
+     * as in a server.
+     *
+     * @param player the player.
+     * @param item the item placed.
+     * @param x the X coordinate of the block.
+     * @param y the Y coordinate of the block.
+     * @param z the Z coordinate of the block.
+     * @return the event, after it has been handled.
+     */
+    public BlockPlaceEvent placeBlock(Player player, ItemStack item, int x, int y, int z) {
+        BlockPlaceEvent event = createBlockPlaceEvent(player, item, x, y, z);
+        _pluginManager.callEvent(event);
+        if (event.isCancelled() || !event.canBuild()) {
+            HeadlessWorld world = getHeadlessWorld(player.getWorld());
+            world.setType(x, y, z, event.getBlockReplacedState().getType());
+        }
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set up the placement of a block from a player's main hand, returning
+     * the BlockPlaceEvent without calling it.
+     *
+     * The player's main hand item is set to the item, and the block is set,
+     * as they are when a server calls the event.
+     *
+     * @param player the player.
+     * @param item the item placed.
+     * @param x the X coordinate of the block.
+     * @param y the Y coordinate of the block.
+     * @param z the Z coordinate of the block.
+     * @return the event.
+     */
+    public BlockPlaceEvent createBlockPlaceEvent(Player player, ItemStack item, int x, int y, int z) {
+        HeadlessWorld world = getHeadlessWorld(player.getWorld());
+        PropertyHandler stateHandler = new PropertyHandler();
+        stateHandler.setProperty("Type", world.getType(x, y, z));
+        stateHandler.setProperty("World", world.getWorld());
+        stateHandler.setProperty("X", x);
+        stateHandler.setProperty("Y", y);
+        stateHandler.setProperty("Z", z);
+        BlockState replaced = PropertyHandler.create(BlockState.class, stateHandler);
+
+        player.getEquipment().setItemInMainHand(item);
+        world.setType(x, y, z, item.getType());
+        Block placed = world.getBlockAt(x, y, z);
+        return new BlockPlaceEvent(placed, replaced, placed.getRelative(0, -1, 0), item, player,
+                                   true, EquipmentSlot.HAND);
+    } // createBlockPlaceEvent
+
+    // ------------------------------------------------------------------------
+    /**
+     * Kill an entity, calling an EntityDeathEvent and then removing it from
+     * its world.
+     *
+     * @param entity the entity.
+     * @param drops the items that it drops, which handlers can modify.
+     * @return the event, after it has been handled.
+     */
+    public EntityDeathEvent killEntity(LivingEntity entity, List<ItemStack> drops) {
+        entity.setHealth(0);
+        EntityDeathEvent event = new EntityDeathEvent(entity, drops, 0);
+        _pluginManager.callEvent(event);
+        getHeadlessWorld(entity.getWorld()).remove(entity);
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new entity ID.
+     *
+     * @return the ID.
+     */
+    int nextEntityId() {
+        return _nextEntityId++;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement the Server methods.
+     *
+     * @see io.github.totemo.doppelganger.headless.PropertyHandler#invokeSpecial(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "getName":
+            return "Headless";
+        case "getVersion":
+            return "headless";
+        case "getBukkitVersion":
+            return BUKKIT_VERSION;
+        case "getLogger":
+            return _logger;
+        case "getScheduler":
+            return _scheduler.getScheduler();
+        case "getPluginManager":
+            return _pluginManager.getPluginManager();
+        case "getItemFactory":
+            return _itemFactory.getItemFactory();
+        case "isPrimaryThread":
+            return true;
+        case "getWorlds": {
+            ArrayList<World> worlds = new ArrayList<World>();
+            for (HeadlessWorld world : _worlds) {
+                worlds.add(world.getWorld());
+            }
+            return worlds;
+        }
+        case "getWorld":
+            for (HeadlessWorld world : _worlds) {
+                if (args[0].equals(world.getWorld().getName()) || args[0].equals(world.getWorld().getUID())) {
+                    return world.getWorld();
+                }
+            }
+            return null;
+        case "getOnlinePlayers":
+            return new ArrayList<Player>(_players);
+        case "getPlayer":
+        case "getPlayerExact":
+            for (Player player : _players) {
+                if (args[0].equals(player.getUniqueId()) || player.getName().equalsIgnoreCase(args[0].toString())) {
+                    return player;
+                }
+            }
+            return null;
+        case "getOfflinePlayer":
+            return getOfflinePlayer(args[0]);
+        case "getConsoleSender":
+            return _consoleSender;
+        case "getPluginCommand":
+            return _commands.get(((String) args[0]).toLowerCase());
+        case "dispatchCommand":
+            return dispatchCommand((CommandSender) args[0], (String) args[1]);
+        default:
+            return UNHANDLED;
+        }
+    } // invokeSpecial
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an OfflinePlayer for a name or UUID.
+     *
+     * Online players are returned as themselves; others are created with a
+     * UUID derived from the name, as in an offline mode server.
+     *
+     * @param nameOrId the player name or UUID.
+     * @return the player.
+     */
+    protected OfflinePlayer getOfflinePlayer(Object nameOrId) {
+        for (Player player : _players) {
+            if (nameOrId.equals(player.getUniqueId()) || nameOrId.equals(player.getName())) {
+                return player;
+            }
+        }
+        PropertyHandler handler = new PropertyHandler();
+        if (nameOrId instanceof UUID) {
+            handler.setProperty("UniqueId", nameOrId);
+        } else {
+            handler.setProperty("Name", nameOrId);
+            handler.setProperty("UniqueId", UUID.nameUUIDFromBytes(("OfflinePlayer:" + nameOrId).getBytes()));
+        }
+        return PropertyHandler.create(OfflinePlayer.class, handler);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a PluginCommand from its entry in a plugin description.
+     *
+     * @param name the command name.
+     * @param properties the command properties.
+     * @param plugin the owning plugin.
+     * @return the command.
+     */
+    protected PluginCommand createCommand(String name, Map<String, Object> properties, Plugin plugin) {
+        PluginCommand command;
+        try {
+            // The constructor is protected; a server creates commands with
+            // PluginCommandYamlParser.
+            Constructor<PluginCommand> constructor = PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+            constructor.setAccessible(true);
+            command = constructor.newInstance(name, plugin);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("can't create command " + name, ex);
+        }
+        if (properties != null) {
+            if (properties.get("description") != null) {
+                command.setDescription(properties.get("description").toString());
+            }
+            if (properties.get("usage") != null) {
+                command.setUsage(properties.get("usage").toString());
+            }
+            if (properties.get("permission") != null) {
+                command.setPermission(properties.get("permission").toString());
+            }
+        }
+        return command;
+    } // createCommand
+
+    // ------------------------------------------------------------------------
+    /**
+     * The Bukkit API version reported by the server.
+     */
+    public static final String BUKKIT_VERSION = "1.14.4-R0.1-SNAPSHOT";
+
+    /**
+     * The singleton instance.
+     */
+    protected static HeadlessServer _instance;
+
+    /**
+     * The Server proxy.
+     */
+    protected final Server _server;
+
+    /**
+     * The parent of plugin loggers.
+     */
+    protected final Logger _logger;
+
+    /**
+     * Shows log messages at or above a configurable level.
+     */
+    protected final ConsoleHandler _logHandler;
+
+    /**
+     * The scheduler.
+     */
+    protected final TickScheduler _scheduler = new TickScheduler();
+
+    /**
+     * The plugin manager.
+     */
+    protected final HeadlessPluginManager _pluginManager = new HeadlessPluginManager();
+
+    /**
+     * The item factory.
+     */
+    protected final HeadlessItemFactory _itemFactory = new HeadlessItemFactory();
+
+    /**
+     * Handles the console.
+     */
+    protected final SenderHandler _console;
+
+    /**
+     * The console proxy.
+     */
+    protected final ConsoleCommandSender _consoleSender;
+
+    /**
+     * The worlds.
+     */
+    protected final ArrayList<HeadlessWorld> _worlds = new ArrayList<HeadlessWorld>();
+
+    /**
+     * The online players.
+     */
+    protected final ArrayList<Player> _players = new ArrayList<Player>();
+
+    /**
+     * Map from lower case name to plugin command.
+     */
+    protected final HashMap<String, PluginCommand> _commands = new HashMap<String, PluginCommand>();
+
+    /**
+     * The ID of the next entity.
+     */
+    protected int _nextEntityId = 1;
+} // class HeadlessServer
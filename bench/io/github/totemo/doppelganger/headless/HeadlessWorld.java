@@ -0,0 +1,352 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import io.github.totemo.doppelganger.bench.BlockWorld;
+
+// ----------------------------------------------------------------------------
+/**
+ * A {@link BlockWorld} that also holds entities, for running the plugin end
+ * to end in a {@link HeadlessServer}.
+ *
+ * Entities are dynamic proxies of the interface of their EntityType, handled
+ * by an {@link EntityHandler}. Every chunk is loaded. Lightning and sounds
+ * have no effect, but lightning strikes are counted. Unimplemented World
+ * methods that return nothing are ignored; the others throw
+ * UnsupportedOperationException.
+ */
+public class HeadlessWorld extends BlockWorld {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param server the server.
+     * @param name the world name.
+     * @param minX the minimum X coordinate of the box of blocks.
+     * @param minY the minimum Y coordinate of the box of blocks.
+     * @param minZ the minimum Z coordinate of the box of blocks.
+     * @param sizeX the size of the box in X.
+     * @param sizeY the size of the box in Y.
+     * @param sizeZ the size of the box in Z.
+     */
+    public HeadlessWorld(HeadlessServer server, String name, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        super(name, minX, minY, minZ, sizeX, sizeY, sizeZ);
+        _server = server;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the server.
+     *
+     * @return the server.
+     */
+    public HeadlessServer getServer() {
+        return _server;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn an entity of the specified interface.
+     *
+     * @param loc the location.
+     * @param type the entity interface, e.g. Zombie.class.
+     * @return the entity.
+     * @throws IllegalArgumentException if the interface is not that of an
+     *         EntityType.
+     */
+    public <T extends Entity> T spawn(Location loc, Class<T> type) {
+        for (EntityType entityType : EntityType.values()) {
+            if (entityType.getEntityClass() == type) {
+                return type.cast(spawnEntity(loc, entityType));
+            }
+        }
+        throw new IllegalArgumentException("no EntityType for " + type.getName());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn an entity of the specified type.
+     *
+     * @param loc the location.
+     * @param type the entity type.
+     * @return the entity.
+     */
+    public Entity spawnEntity(Location loc, EntityType type) {
+        return addEntity(loc, type, new EntityHandler(this, type, _server.nextEntityId(), loc));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an entity with the specified handler.
+     *
+     * @param loc the location, whose world is set to this world.
+     * @param type the entity type.
+     * @param handler the handler.
+     * @return the entity.
+     */
+    public Entity addEntity(Location loc, EntityType type, EntityHandler handler) {
+        loc.setWorld(_world);
+        handler.location().setWorld(_world);
+        Entity entity = (Entity) PropertyHandler.create(type.getEntityClass(), handler);
+        _entities.add(entity);
+        return entity;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove an entity from the world and mark it dead.
+     *
+     * @param entity the entity.
+     */
+    public void remove(Entity entity) {
+        if (_entities.remove(entity)) {
+            ((EntityHandler) PropertyHandler.of(entity)).setDead();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove every entity.
+     */
+    public void removeAll() {
+        for (Entity entity : _entities) {
+            ((EntityHandler) PropertyHandler.of(entity)).setDead();
+        }
+        _entities.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities in the world.
+     *
+     * @return the live list of entities.
+     */
+    public List<Entity> getEntities() {
+        return _entities;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities within a box centred on a location.
+     *
+     * @param loc the centre.
+     * @param dx the half size of the box in X.
+     * @param dy the half size of the box in Y.
+     * @param dz the half size of the box in Z.
+     * @return the entities in the box.
+     */
+    public List<Entity> getNearbyEntities(Location loc, double dx, double dy, double dz) {
+        ArrayList<Entity> nearby = new ArrayList<Entity>();
+        for (Entity entity : _entities) {
+            Location entityLoc = ((EntityHandler) PropertyHandler.of(entity)).location();
+            if (Math.abs(entityLoc.getX() - loc.getX()) <= dx &&
+                Math.abs(entityLoc.getY() - loc.getY()) <= dy &&
+                Math.abs(entityLoc.getZ() - loc.getZ()) <= dz) {
+                nearby.add(entity);
+            }
+        }
+        return nearby;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of lightning strikes so far.
+     *
+     * @return the number of lightning strikes.
+     */
+    public int getLightningCount() {
+        return _lightningCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement the entity and chunk methods of the World proxy.
+     *
+     * @see io.github.totemo.doppelganger.bench.BlockWorld#invoke(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "spawn":
+            return spawn((Location) args[0], (Class<Entity>) args[1]);
+        case "spawnEntity":
+            return spawnEntity((Location) args[0], (EntityType) args[1]);
+        case "dropItem":
+        case "dropItemNaturally": {
+            Item item = (Item) spawnEntity((Location) args[0], EntityType.DROPPED_ITEM);
+            item.setItemStack((ItemStack) args[1]);
+            return item;
+        }
+        case "getEntities":
+            return new ArrayList<Entity>(_entities);
+        case "getLivingEntities":
+            return getEntitiesByClass(LivingEntity.class);
+        case "getEntitiesByClass":
+            if (args[0] instanceof Class) {
+                return getEntitiesByClass((Class<Entity>) args[0]);
+            }
+            return getEntitiesByClasses((Class<?>[]) args[0]);
+        case "getEntitiesByClasses":
+            return getEntitiesByClasses((Class<?>[]) args[0]);
+        case "getNearbyEntities":
+            if (args.length == 4) {
+                return getNearbyEntities((Location) args[0], (Double) args[1], (Double) args[2], (Double) args[3]);
+            }
+            break;
+        case "getPlayers":
+            return getEntitiesByClass(Player.class);
+        case "isChunkLoaded":
+        case "loadChunk":
+            return (method.getReturnType() == boolean.class) ? Boolean.TRUE : null;
+        case "getChunkAt":
+            if (args.length == 1) {
+                if (args[0] instanceof Location) {
+                    Location loc = (Location) args[0];
+                    return getChunkAt(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+                }
+                return ((Block) args[0]).getChunk();
+            }
+            return getChunkAt((Integer) args[0], (Integer) args[1]);
+        case "strikeLightning":
+        case "strikeLightningEffect":
+            ++_lightningCount;
+            return null;
+        case "getTime":
+        case "getFullTime":
+            return _server.getCurrentTick();
+        default:
+            break;
+        }
+        return super.invoke(proxy, method, args);
+    } // invoke
+
+    // ------------------------------------------------------------------------
+    /**
+     * Ignore unimplemented methods that return nothing, and reject others.
+     *
+     * @see io.github.totemo.doppelganger.bench.BlockWorld#unsupported(java.lang.reflect.Method)
+     */
+    @Override
+    protected Object unsupported(Method method) {
+        if (method.getReturnType() == void.class) {
+            return null;
+        }
+        return super.unsupported(method);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities that implement an interface.
+     *
+     * @param type the interface.
+     * @return the matching entities.
+     */
+    protected <T extends Entity> Collection<T> getEntitiesByClass(Class<T> type) {
+        ArrayList<T> matching = new ArrayList<T>();
+        for (Entity entity : _entities) {
+            if (type.isInstance(entity)) {
+                matching.add(type.cast(entity));
+            }
+        }
+        return matching;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities that implement any of several interfaces.
+     *
+     * @param types the interfaces.
+     * @return the matching entities.
+     */
+    protected Collection<Entity> getEntitiesByClasses(Class<?>... types) {
+        ArrayList<Entity> matching = new ArrayList<Entity>();
+        for (Entity entity : _entities) {
+            for (Class<?> type : types) {
+                if (type.isInstance(entity)) {
+                    matching.add(entity);
+                    break;
+                }
+            }
+        }
+        return matching;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a Chunk proxy for the specified chunk coordinates.
+     *
+     * @param x the chunk X coordinate.
+     * @param z the chunk Z coordinate.
+     * @return the Chunk.
+     */
+    protected Chunk getChunkAt(final int x, final int z) {
+        PropertyHandler handler = new PropertyHandler() {
+            @Override
+            protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                case "getX":
+                    return x;
+                case "getZ":
+                    return z;
+                case "getWorld":
+                    return _world;
+                case "isLoaded":
+                case "load":
+                    return true;
+                case "getEntities": {
+                    ArrayList<Entity> inChunk = new ArrayList<Entity>();
+                    for (Entity entity : _entities) {
+                        Location loc = ((EntityHandler) PropertyHandler.of(entity)).location();
+                        if ((loc.getBlockX() >> 4) == x && (loc.getBlockZ() >> 4) == z) {
+                            inChunk.add(entity);
+                        }
+                    }
+                    return inChunk.toArray(new Entity[inChunk.size()]);
+                }
+                case "equals":
+                    if (args[0] instanceof Chunk) {
+                        Chunk other = (Chunk) args[0];
+                        return other.getWorld() == _world && other.getX() == x && other.getZ() == z;
+                    }
+                    return false;
+                case "hashCode":
+                    return x * 31 + z;
+                default:
+                    return UNHANDLED;
+                }
+            }
+        };
+        return PropertyHandler.create(Chunk.class, handler);
+    } // getChunkAt
+
+    // ------------------------------------------------------------------------
+    /**
+     * The server.
+     */
+    protected final HeadlessServer _server;
+
+    /**
+     * The entities in the world.
+     */
+    protected final ArrayList<Entity> _entities = new ArrayList<Entity>();
+
+    /**
+     * The number of lightning strikes so far.
+     */
+    protected int _lightningCount;
+} // class HeadlessWorld
@@ -0,0 +1,299 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ----------------------------------------------------------------------------
+/**
+ * A lenient InvocationHandler that implements a Bukkit interface as a bag of
+ * properties.
+ *
+ * A one argument setX() stores property X, and getX(), isX() and hasX()
+ * return it, or a default for the return type if it is not set. Every other
+ * method does nothing and returns a default: false, zero, null, or an empty
+ * collection or array. Subclasses implement the methods that need behaviour
+ * by overriding {@link #invokeSpecial(Object, Method, Object[])}.
+ *
+ * This is enough of an implementation for item meta, equipment and the many
+ * entity properties that the plugin only sets, without tracking every
+ * method of the large Bukkit interfaces.
+ */
+public class PropertyHandler implements InvocationHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new proxy implementing the specified interface with the
+     * specified handler.
+     *
+     * @param type the interface.
+     * @param handler the handler.
+     * @return the proxy.
+     */
+    public static <T> T create(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the PropertyHandler of a proxy, or null if it has none.
+     *
+     * @param proxy the proxy, or null.
+     * @return the handler, or null.
+     */
+    public static PropertyHandler of(Object proxy) {
+        if (proxy != null && Proxy.isProxyClass(proxy.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+            if (handler instanceof PropertyHandler) {
+                return (PropertyHandler) handler;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value returned by an unimplemented method with the specified
+     * return type.
+     *
+     * @param type the return type.
+     * @return false, zero, null, or an empty collection, Optional or array.
+     */
+    public static Object defaultValue(Class<?> type) {
+        if (type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return ZERO_DOUBLE;
+        } else if (type == float.class) {
+            return ZERO_FLOAT;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == List.class || type == Collection.class) {
+            return new ArrayList<Object>();
+        } else if (type == Set.class) {
+            return new HashSet<Object>();
+        } else if (type == Map.class) {
+            return new HashMap<Object, Object>();
+        } else if (type == Optional.class) {
+            return Optional.empty();
+        } else if (type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        } else {
+            return null;
+        }
+    } // defaultValue
+
+    // ------------------------------------------------------------------------
+    /**
+     * Default constructor.
+     */
+    public PropertyHandler() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a property.
+     *
+     * @param name the property name, e.g. "CustomName".
+     * @return the value, or null if not set.
+     */
+    public Object getProperty(String name) {
+        return _properties.get(name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value of a property.
+     *
+     * @param name the property name, e.g. "CustomName".
+     * @param value the value; null removes the property.
+     */
+    public void setProperty(String name, Object value) {
+        if (value == null) {
+            _properties.remove(name);
+        } else {
+            _properties.put(name, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value returned by the getter of a property that is not set.
+     *
+     * Defaults are not properties; they don't affect
+     * {@link #hasSameProperties(PropertyHandler)}.
+     *
+     * @param name the property name, e.g. "Color".
+     * @param value the default value.
+     */
+    public void setDefault(String name, Object value) {
+        _defaults.put(name, value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this handler has the same properties as another.
+     *
+     * @param other the other handler.
+     * @return true if the properties are equal.
+     */
+    public boolean hasSameProperties(PropertyHandler other) {
+        return _properties.equals(other._properties);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this handler, used to implement clone().
+     *
+     * @return a handler with a copy of the properties.
+     */
+    public PropertyHandler copy() {
+        PropertyHandler copy = new PropertyHandler();
+        copy._properties.putAll(_properties);
+        copy._defaults.putAll(_defaults);
+        return copy;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        Object result = invokeSpecial(proxy, method, args);
+        if (result != UNHANDLED) {
+            return result;
+        }
+
+        String name = method.getName();
+        int argCount = (args == null) ? 0 : args.length;
+        Class<?> returnType = method.getReturnType();
+        if (argCount == 0) {
+            switch (name) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + _properties;
+            case "clone":
+                return Proxy.newProxyInstance(proxy.getClass().getClassLoader(), proxy.getClass().getInterfaces(), copy());
+            default:
+                break;
+            }
+
+            String property = getPropertyName(method);
+            if (property != null) {
+                if (name.startsWith("has")) {
+                    if (returnType == boolean.class) {
+                        return _properties.get(property) != null;
+                    }
+                } else if (!name.startsWith("set")) {
+                    Object value = _properties.get(property);
+                    if (value == null) {
+                        value = _defaults.get(property);
+                    }
+                    return (value != null) ? value : defaultValue(returnType);
+                }
+            }
+        } else if (argCount == 1) {
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.startsWith("set") && name.length() > 3) {
+                setProperty(getPropertyName(method), args[0]);
+                return (returnType == boolean.class) ? Boolean.TRUE : defaultValue(returnType);
+            }
+        }
+        return defaultValue(returnType);
+    } // invoke
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the property accessed by a getter or setter.
+     *
+     * Names are cached, so that accessing a property allocates nothing.
+     *
+     * @param method a method named getX, isX, hasX or setX.
+     * @return the property name, X, or null if the method is not an
+     *         accessor.
+     */
+    protected static String getPropertyName(Method method) {
+        String property = PROPERTY_NAMES.get(method);
+        if (property == null) {
+            String name = method.getName();
+            if ((name.startsWith("get") || name.startsWith("has") || name.startsWith("set")) && name.length() > 3) {
+                property = name.substring(3);
+            } else if (name.startsWith("is") && name.length() > 2) {
+                property = name.substring(2);
+            } else {
+                property = "";
+            }
+            PROPERTY_NAMES.put(method, property);
+        }
+        return property.isEmpty() ? null : property;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement methods that need more than property semantics.
+     *
+     * @param proxy the proxy.
+     * @param method the method.
+     * @param args the arguments, or null.
+     * @return the result, or {@link #UNHANDLED} to use property semantics.
+     */
+    protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+        return UNHANDLED;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returned by {@link #invokeSpecial(Object, Method, Object[])} for
+     * methods that it does not implement.
+     */
+    protected static final Object UNHANDLED = new Object();
+
+    /**
+     * The default double, which is not cached by Double.valueOf().
+     */
+    protected static final Double ZERO_DOUBLE = 0.0;
+
+    /**
+     * The default float, which is not cached by Float.valueOf().
+     */
+    protected static final Float ZERO_FLOAT = 0.0f;
+
+    /**
+     * Map from accessor method to property name, or the empty string for
+     * other methods.
+     */
+    protected static final ConcurrentHashMap<Method, String> PROPERTY_NAMES = new ConcurrentHashMap<Method, String>();
+
+    /**
+     * Map from property name to value.
+     */
+    protected final HashMap<String, Object> _properties = new HashMap<String, Object>();
+
+    /**
+     * Map from property name to the value returned when it is not set.
+     */
+    protected final HashMap<String, Object> _defaults = new HashMap<String, Object>();
+} // class PropertyHandler
@@ -0,0 +1,106 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+// ----------------------------------------------------------------------------
+/**
+ * Implements a CommandSender proxy, such as the console, that records the
+ * messages sent to it.
+ */
+public class SenderHandler extends PropertyHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Implement the messaging and permission methods of a CommandSender.
+     *
+     * @param method the method.
+     * @param args the arguments, or null.
+     * @param messages records the messages sent.
+     * @param op if true, the sender has every permission.
+     * @return the result, or {@link PropertyHandler#UNHANDLED} if the method
+     *         is not one of those.
+     */
+    static Object invokeSender(Method method, Object[] args, List<String> messages, boolean op) {
+        switch (method.getName()) {
+        case "sendMessage":
+        case "sendRawMessage":
+            if (args[0] instanceof String[]) {
+                for (String message : (String[]) args[0]) {
+                    messages.add(message);
+                }
+            } else {
+                messages.add((String) args[0]);
+            }
+            return null;
+        case "hasPermission":
+        case "isPermissionSet":
+        case "isOp":
+            return op;
+        default:
+            return UNHANDLED;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param server the server.
+     * @param name the sender name.
+     * @param op if true, the sender has every permission.
+     */
+    public SenderHandler(HeadlessServer server, String name, boolean op) {
+        _server = server;
+        _name = name;
+        _op = op;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the messages sent to this sender.
+     *
+     * @return the messages.
+     */
+    public List<String> getMessages() {
+        return _messages;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.headless.PropertyHandler#invokeSpecial(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    protected Object invokeSpecial(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "getName":
+            return _name;
+        case "getServer":
+            return _server.getServer();
+        default:
+            return invokeSender(method, args, _messages, _op);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The server.
+     */
+    protected final HeadlessServer _server;
+
+    /**
+     * The sender name.
+     */
+    protected final String _name;
+
+    /**
+     * True if the sender has every permission.
+     */
+    protected final boolean _op;
+
+    /**
+     * Messages sent to the sender.
+     */
+    protected final List<String> _messages = new ArrayList<String>();
+} // class SenderHandler
@@ -0,0 +1,354 @@
+package io.github.totemo.doppelganger.headless;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * A BukkitScheduler driven by an explicit tick clock.
+ *
+ * Tasks run when {@link #tick()} reaches the tick they are due, in the order
+ * they were scheduled. Asynchronous tasks are run the same way, on the
+ * thread that calls tick(), so that a run is deterministic; code that blocks
+ * in an asynchronous task waiting for the main thread would deadlock, but the
+ * plugin never does that.
+ */
+public class TickScheduler implements InvocationHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public TickScheduler() {
+        _scheduler = PropertyHandler.create(BukkitScheduler.class, this);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the BukkitScheduler implemented by this instance.
+     *
+     * @return the BukkitScheduler.
+     */
+    public BukkitScheduler getScheduler() {
+        return _scheduler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of ticks run so far.
+     *
+     * @return the current tick.
+     */
+    public long getCurrentTick() {
+        return _currentTick;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of tasks waiting to run.
+     *
+     * @return the number of queued tasks, including cancelled ones that have
+     *         not yet been discarded.
+     */
+    public int getQueuedCount() {
+        return _queue.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Advance the clock by one tick and run every task that is due.
+     *
+     * Tasks scheduled by those tasks to run immediately are run in the next
+     * tick, as in a real server.
+     */
+    public void tick() {
+        ++_currentTick;
+        while (!_queue.isEmpty() && _queue.peek()._due <= _currentTick) {
+            Task task = _queue.poll();
+            if (task._cancelled) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+            if (task._period > 0 && !task._cancelled) {
+                task._due = _currentTick + task._period;
+                task._sequence = _nextSequence++;
+                _queue.add(task);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the specified number of ticks.
+     *
+     * @param ticks the number of ticks.
+     */
+    public void tick(int ticks) {
+        for (int i = 0; i < ticks; ++i) {
+            tick();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cancel every task.
+     */
+    public void cancelAll() {
+        for (Task task : _queue) {
+            task._cancelled = true;
+        }
+        _queue.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement the BukkitScheduler methods.
+     *
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     *      java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+        String name = method.getName();
+        boolean async = name.contains("Async");
+        switch (name) {
+        case "runTask":
+        case "runTaskAsynchronously":
+            return schedule((Plugin) args[0], args[1], 0, 0, async);
+        case "runTaskLater":
+        case "runTaskLaterAsynchronously":
+            return schedule((Plugin) args[0], args[1], (Long) args[2], 0, async);
+        case "runTaskTimer":
+        case "runTaskTimerAsynchronously":
+            return schedule((Plugin) args[0], args[1], (Long) args[2], (Long) args[3], async);
+        case "scheduleSyncDelayedTask":
+        case "scheduleAsyncDelayedTask":
+            return schedule((Plugin) args[0], args[1], (args.length > 2) ? (Long) args[2] : 0, 0, async).getTaskId();
+        case "scheduleSyncRepeatingTask":
+        case "scheduleAsyncRepeatingTask":
+            return schedule((Plugin) args[0], args[1], (Long) args[2], (Long) args[3], async).getTaskId();
+        case "callSyncMethod":
+            return CompletableFuture.completedFuture(((Callable<?>) args[1]).call());
+        case "cancelTask":
+            for (Task task : _queue) {
+                if (task._id == (Integer) args[0]) {
+                    task._cancelled = true;
+                }
+            }
+            return null;
+        case "cancelTasks":
+            for (Task task : _queue) {
+                if (task._owner == args[0]) {
+                    task._cancelled = true;
+                }
+            }
+            return null;
+        case "isQueued":
+            for (Task task : _queue) {
+                if (task._id == (Integer) args[0] && !task._cancelled) {
+                    return true;
+                }
+            }
+            return false;
+        case "isCurrentlyRunning":
+            return false;
+        case "equals":
+            return proxy == args[0];
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "toString":
+            return "TickScheduler{tick=" + _currentTick + "}";
+        default:
+            return PropertyHandler.defaultValue(method.getReturnType());
+        }
+    } // invoke
+
+    // ------------------------------------------------------------------------
+    /**
+     * Schedule a task.
+     *
+     * @param owner the plugin that owns the task.
+     * @param action a Runnable or a Consumer&lt;BukkitTask&gt;.
+     * @param delay the delay in ticks; values less than 1 mean the next tick.
+     * @param period the period in ticks of a repeating task, or 0.
+     * @param async true for an asynchronous task.
+     * @return the task.
+     */
+    protected Task schedule(Plugin owner, Object action, long delay, long period, boolean async) {
+        Task task = new Task(_nextId++, owner, action, !async);
+        task._due = _currentTick + Math.max(1, delay);
+        task._period = (period > 0) ? period : 0;
+        task._sequence = _nextSequence++;
+        _queue.add(task);
+        return task;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A scheduled task.
+     */
+    protected static final class Task implements BukkitTask, Comparable<Task> {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param id the task ID.
+         * @param owner the owning plugin.
+         * @param action a Runnable or a Consumer&lt;BukkitTask&gt;.
+         * @param sync true for a synchronous task.
+         */
+        Task(int id, Plugin owner, Object action, boolean sync) {
+            _id = id;
+            _owner = owner;
+            _action = action;
+            _sync = sync;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Run the action.
+         */
+        @SuppressWarnings("unchecked")
+        void run() {
+            if (_action instanceof Runnable) {
+                ((Runnable) _action).run();
+            } else {
+                ((Consumer<BukkitTask>) _action).accept(this);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see org.bukkit.scheduler.BukkitTask#getTaskId()
+         */
+        @Override
+        public int getTaskId() {
+            return _id;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see org.bukkit.scheduler.BukkitTask#getOwner()
+         */
+        @Override
+        public Plugin getOwner() {
+            return _owner;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see org.bukkit.scheduler.BukkitTask#isSync()
+         */
+        @Override
+        public boolean isSync() {
+            return _sync;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see org.bukkit.scheduler.BukkitTask#isCancelled()
+         */
+        @Override
+        public boolean isCancelled() {
+            return _cancelled;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see org.bukkit.scheduler.BukkitTask#cancel()
+         */
+        @Override
+        public void cancel() {
+            _cancelled = true;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Order by due tick, then by the order of scheduling.
+         *
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(Task other) {
+            int byDue = Long.compare(_due, other._due);
+            return (byDue != 0) ? byDue : Long.compare(_sequence, other._sequence);
+        }
+
+        /**
+         * The task ID.
+         */
+        final int _id;
+
+        /**
+         * The owning plugin.
+         */
+        final Plugin _owner;
+
+        /**
+         * A Runnable or a Consumer&lt;BukkitTask&gt;.
+         */
+        final Object _action;
+
+        /**
+         * True for a synchronous task.
+         */
+        final boolean _sync;
+
+        /**
+         * The tick when the task is next due.
+         */
+        long _due;
+
+        /**
+         * The period of a repeating task, or 0.
+         */
+        long _period;
+
+        /**
+         * Orders tasks due in the same tick.
+         */
+        long _sequence;
+
+        /**
+         * True if cancelled.
+         */
+        boolean _cancelled;
+    } // inner class Task
+
+    // ------------------------------------------------------------------------
+    /**
+     * The BukkitScheduler proxy.
+     */
+    protected final BukkitScheduler _scheduler;
+
+    /**
+     * Tasks in the order they will run.
+     */
+    protected final PriorityQueue<Task> _queue = new PriorityQueue<Task>();
+
+    /**
+     * The number of ticks run so far.
+     */
+    protected long _currentTick;
+
+    /**
+     * The ID of the next task.
+     */
+    protected int _nextId = 1;
+
+    /**
+     * The sequence number of the next scheduled task.
+     */
+    protected long _nextSequence;
+} // class TickScheduler
@@ -0,0 +1,278 @@
+package io.github.totemo.doppelganger.jfr;
+
+import io.github.totemo.doppelganger.FlightEvents;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// ----------------------------------------------------------------------------
+/**
+ * Emits the Doppelganger events to Java Flight Recorder.
+ *
+ * This class is only compiled by the "jfr" Maven profile and is only loaded
+ * by {@link FlightEvents} when the JVM provides jdk.jfr.
+ */
+public class JfrFlightEvents extends FlightEvents {
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#isAvailable()
+     */
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#beginShapeMatch()
+     */
+    @Override
+    public Object beginShapeMatch() {
+        ShapeMatchEvent event = new ShapeMatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#commitShapeMatch(Object,
+     *      String, String, String, boolean)
+     */
+    @Override
+    public void commitShapeMatch(Object event, String name, String trigger, String shape, boolean borderClear) {
+        if (event != null) {
+            ShapeMatchEvent match = (ShapeMatchEvent) event;
+            match.end();
+            if (match.shouldCommit()) {
+                match.name = name;
+                match.trigger = trigger;
+                match.shape = shape;
+                match.borderClear = borderClear;
+                match.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#beginSpawn()
+     */
+    @Override
+    public Object beginSpawn() {
+        SpawnEvent event = new SpawnEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#commitSpawn(Object,
+     *      String, int, boolean)
+     */
+    @Override
+    public void commitSpawn(Object event, String creatureType, int escorts, boolean spawned) {
+        if (event != null) {
+            SpawnEvent spawn = (SpawnEvent) event;
+            spawn.end();
+            if (spawn.shouldCommit()) {
+                spawn.creatureType = creatureType;
+                spawn.escorts = escorts;
+                spawn.spawned = spawned;
+                spawn.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#beginEntityDeath()
+     */
+    @Override
+    public Object beginEntityDeath() {
+        EntityDeathEvent event = new EntityDeathEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#commitEntityDeath(Object,
+     *      String, String, int)
+     */
+    @Override
+    public void commitEntityDeath(Object event, String entityType, String name, int drops) {
+        if (event != null) {
+            EntityDeathEvent death = (EntityDeathEvent) event;
+            death.end();
+            if (death.shouldCommit()) {
+                death.entityType = entityType;
+                death.name = name;
+                death.drops = drops;
+                death.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#beginConfigLoad()
+     */
+    @Override
+    public Object beginConfigLoad() {
+        ConfigLoadEvent event = new ConfigLoadEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.FlightEvents#commitConfigLoad(Object,
+     *      boolean, int, int)
+     */
+    @Override
+    public void commitConfigLoad(Object event, boolean reload, int shapes, int creatureTypes) {
+        if (event != null) {
+            ConfigLoadEvent load = (ConfigLoadEvent) event;
+            load.end();
+            if (load.shouldCommit()) {
+                load.reload = reload;
+                load.shapes = shapes;
+                load.creatureTypes = creatureTypes;
+                load.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The evaluation of the shapes that could be completed by a placed,
+     * named block.
+     */
+    @Name("io.github.totemo.doppelganger.ShapeMatch")
+    @Label("Shape Match")
+    @Category("Doppelganger")
+    @Description("Evaluation of the shapes that could be completed by a placed, named block")
+    static final class ShapeMatchEvent extends Event {
+        /**
+         * The name of the placed item.
+         */
+        @Label("Name")
+        String name;
+
+        /**
+         * The material of the placed item.
+         */
+        @Label("Trigger")
+        String trigger;
+
+        /**
+         * The name of the complete shape, or null if none.
+         */
+        @Label("Shape")
+        String shape;
+
+        /**
+         * True if the border around a complete shape was clear.
+         */
+        @Label("Border Clear")
+        boolean borderClear;
+    } // inner class ShapeMatchEvent
+
+    // ------------------------------------------------------------------------
+    /**
+     * A call to CreatureFactory.spawnCreature(), including the mount.
+     */
+    @Name("io.github.totemo.doppelganger.Spawn")
+    @Label("Spawn")
+    @Category("Doppelganger")
+    @Description("Spawning of a creature, its mount and the scheduling of its escorts")
+    static final class SpawnEvent extends Event {
+        /**
+         * The creature type.
+         */
+        @Label("Creature Type")
+        String creatureType;
+
+        /**
+         * The number of escorts scheduled.
+         */
+        @Label("Escorts")
+        int escorts;
+
+        /**
+         * True if a creature was spawned.
+         */
+        @Label("Spawned")
+        boolean spawned;
+    } // inner class SpawnEvent
+
+    // ------------------------------------------------------------------------
+    /**
+     * The handling of an entity death by Doppelganger.onEntityDeath().
+     */
+    @Name("io.github.totemo.doppelganger.EntityDeath")
+    @Label("Entity Death")
+    @Category("Doppelganger")
+    @Description("Handling of an entity death, including forced equipment drops")
+    static final class EntityDeathEvent extends Event {
+        /**
+         * The type of the entity.
+         */
+        @Label("Entity Type")
+        String entityType;
+
+        /**
+         * The custom name of the entity, or null.
+         */
+        @Label("Name")
+        String name;
+
+        /**
+         * The number of dropped items.
+         */
+        @Label("Drops")
+        int drops;
+    } // inner class EntityDeathEvent
+
+    // ------------------------------------------------------------------------
+    /**
+     * The reading, parsing and compiling of the configuration.
+     */
+    @Name("io.github.totemo.doppelganger.ConfigLoad")
+    @Label("Configuration Load")
+    @Category("Doppelganger")
+    @Description("Reading, parsing and compiling of the configuration files")
+    static final class ConfigLoadEvent extends Event {
+        /**
+         * True for a reload, false for the initial load.
+         */
+        @Label("Reload")
+        boolean reload;
+
+        /**
+         * The number of shapes.
+         */
+        @Label("Shapes")
+        int shapes;
+
+        /**
+         * The number of creature types.
+         */
+        @Label("Creature Types")
+        int creatureTypes;
+    } // inner class ConfigLoadEvent
+} // class JfrFlightEvents
@@ -2,26 +2,33 @@ package com.amoebaman.kitmaster.utilities;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import com.google.common.collect.Lists;
 
-public class CommandController implements CommandExecutor {
+public class CommandController implements CommandExecutor, TabCompleter {
 
-    private final static HashMap<Command, Object> handlers = new HashMap<Command, Object>();
-    private final static HashMap<Command, Method> methods = new HashMap<Command, Method>();
-    private final static HashMap<String, SubCommand> subCommands = new HashMap<String, SubCommand>();
-    private final static HashMap<String, Object> subHandlers = new HashMap<String, Object>();
-    private final static HashMap<String, Method> subMethods = new HashMap<String, Method>();
+    private final static HashMap<Command, Dispatcher> commands = new HashMap<Command, Dispatcher>();
+    private final static HashMap<Command, HashMap<String, Dispatcher>> subCommands = new HashMap<Command, HashMap<String, Dispatcher>>();
+    private final static HashMap<Command, TabCompleter> completers = new HashMap<Command, TabCompleter>();
 
     /**
      * Registers all command handlers and subcommand handlers in a class,
@@ -31,9 +38,12 @@ public class CommandController implements CommandExecutor {
      * @param plugin The plugin whose commands will be considered for
      *        registration
      * @param handler An instance of the class whose methods will be considered
-     *        for registration
+     *        for registration. If it is also a TabCompleter, it completes the
+     *        arguments of its commands after the subcommand name. If it is a
+     *        SubCommandTimer, it is told how long each subcommand took.
      */
     public static void registerCommands(JavaPlugin plugin, Object handler) {
+        CommandController executor = new CommandController();
 
         for (Method method : handler.getClass().getMethods()) {
             Class<?>[] params = method.getParameterTypes();
@@ -42,7 +52,7 @@ public class CommandController implements CommandExecutor {
                 if (isCommandHandler(method)) {
                     CommandHandler annotation = method.getAnnotation(CommandHandler.class);
                     if (plugin.getCommand(annotation.name()) != null) {
-                        plugin.getCommand(annotation.name()).setExecutor(new CommandController());
+                        register(plugin.getCommand(annotation.name()), executor, handler);
                         if (!(annotation.aliases().equals(new String[] { "" })))
                             plugin.getCommand(annotation.name()).setAliases(Lists.newArrayList(annotation.aliases()));
                         if (!annotation.description().equals(""))
@@ -53,27 +63,44 @@ public class CommandController implements CommandExecutor {
                             plugin.getCommand(annotation.name()).setPermission(annotation.permission());
                         if (!annotation.permissionMessage().equals(""))
                             plugin.getCommand(annotation.name()).setPermissionMessage(ChatColor.RED + annotation.permissionMessage());
-                        handlers.put(plugin.getCommand(annotation.name()), handler);
-                        methods.put(plugin.getCommand(annotation.name()), method);
+                        commands.put(plugin.getCommand(annotation.name()), new Dispatcher(handler, method, "", ""));
                     }
                 }
 
                 if (isSubCommandHandler(method)) {
                     SubCommandHandler annotation = method.getAnnotation(SubCommandHandler.class);
-                    if (plugin.getCommand(annotation.parent()) != null) {
-                        plugin.getCommand(annotation.parent()).setExecutor(new CommandController());
-                        SubCommand subCommand = new SubCommand(plugin.getCommand(annotation.parent()), annotation.name());
-                        subCommand.permission = annotation.permission();
-                        subCommand.permissionMessage = annotation.permissionMessage();
-                        subCommands.put(subCommand.toString(), subCommand);
-                        subHandlers.put(subCommand.toString(), handler);
-                        subMethods.put(subCommand.toString(), method);
+                    PluginCommand parent = plugin.getCommand(annotation.parent());
+                    if (parent != null) {
+                        register(parent, executor, handler);
+                        HashMap<String, Dispatcher> table = subCommands.get(parent);
+                        if (table == null) {
+                            table = new HashMap<String, Dispatcher>();
+                            subCommands.put(parent, table);
+                        }
+                        Dispatcher dispatcher = new Dispatcher(handler, method, annotation.permission(), annotation.permissionMessage());
+                        if (handler instanceof SubCommandTimer) {
+                            dispatcher.timer = (SubCommandTimer) handler;
+                            dispatcher.name = annotation.name().toLowerCase();
+                        }
+                        table.put(annotation.name().toLowerCase(), dispatcher);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Make the executor handle execution and tab completion of a command,
+     * delegating completion to the handler if it is a TabCompleter.
+     */
+    private static void register(PluginCommand command, CommandController executor, Object handler) {
+        command.setExecutor(executor);
+        command.setTabCompleter(executor);
+        if (handler instanceof TabCompleter) {
+            completers.put(command, (TabCompleter) handler);
+        }
+    }
+
     /**
      * An annotation interface that may be attached to a method to designate it
      * as a command handler. When registering a handler with this class, only
@@ -131,32 +158,107 @@ public class CommandController implements CommandExecutor {
     }
 
     /**
-     * A class for representing subcommands
+     * An interface that may be implemented by a handler to be told how long
+     * each of its subcommand handlers took to run, including any that failed
+     * with an exception.
      */
-    private static class SubCommand {
-        public final Command superCommand;
-        public final String subCommand;
-        public String permission;
-        public String permissionMessage;
-
-        public SubCommand(Command superCommand, String subCommand) {
-            this.superCommand = superCommand;
-            this.subCommand = subCommand.toLowerCase();
-        }
+    public static interface SubCommandTimer {
+        /**
+         * Called before a subcommand handler is invoked.
+         * 
+         * @param name the lower case subcommand name.
+         */
+        void subCommandStarted(String name);
 
-        @Override
-        public boolean equals(Object x) {
-            return toString().equals(x.toString());
-        }
+        /**
+         * Called after a subcommand handler returns.
+         * 
+         * @param name the lower case subcommand name.
+         * @param nanos the time taken by the handler in nanoseconds.
+         */
+        void subCommandTimed(String name, long nanos);
+    }
 
-        @Override
-        public String toString() {
-            return (superCommand.getName() + " " + subCommand).trim();
+    /**
+     * A compiled command or subcommand handler: the handler method bound to
+     * its handler object, with the sender type and permission it requires.
+     * 
+     * The method is resolved to a MethodHandle once, at registration, so that
+     * dispatching a command involves no reflection.
+     */
+    private static class Dispatcher {
+        public final MethodHandle handle;
+        public final Class<?> senderType;
+        public final String permission;
+        public final String permissionMessage;
+        public SubCommandTimer timer;
+        public String name;
+
+        public Dispatcher(Object handler, Method method, String permission, String permissionMessage) {
+            try {
+                this.handle = MethodHandles.publicLookup().unreflect(method).bindTo(handler)
+                    .asType(MethodType.methodType(void.class, CommandSender.class, String[].class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Command handler " + method + " is not accessible", e);
+            }
+            this.senderType = method.getParameterTypes()[0];
+            this.permission = permission;
+            this.permissionMessage = permissionMessage;
         }
 
-        @Override
-        public int hashCode() {
-            return super.hashCode();
+        /**
+         * Check the sender type and permission and invoke the handler.
+         * 
+         * @return false if the handler threw an exception, otherwise true.
+         */
+        public boolean dispatch(CommandSender sender, String[] args) {
+            /*
+             * If the method requires a player or console and the command
+             * wasn't sent by one, don't continue
+             */
+            if (!senderType.isInstance(sender)) {
+                if (senderType == Player.class) {
+                    sender.sendMessage(ChatColor.RED + "This command requires a player sender");
+                } else if (senderType == ConsoleCommandSender.class) {
+                    sender.sendMessage(ChatColor.RED + "This command requires a console sender");
+                } else {
+                    sender.sendMessage(ChatColor.RED + "This command cannot be sent by " + sender.getName());
+                }
+                return true;
+            }
+            /*
+             * If a permission is attached to this subcommand and the sender
+             * doesn't have it, don't continue
+             */
+            if (!permission.isEmpty() && !sender.hasPermission(permission)) {
+                sender.sendMessage(ChatColor.RED + permissionMessage);
+                return true;
+            }
+            /*
+             * Try to process the command
+             */
+            long start = 0;
+            if (timer != null) {
+                timer.subCommandStarted(name);
+                start = System.nanoTime();
+            }
+            try {
+                handle.invokeExact(sender, args);
+                return true;
+            } catch (Throwable e) {
+                /*
+                 * As when handlers were called by Method.invoke(), which
+                 * wrapped Errors in InvocationTargetException, Errors are
+                 * reported to the sender and the log like Exceptions
+                 */
+                sender.sendMessage(ChatColor.RED + "An error occurred while trying to process the command");
+                e.printStackTrace();
+                return false;
+            } finally {
+                if (timer != null) {
+                    timer.subCommandTimed(name, System.nanoTime() - start);
+                }
+            }
         }
     }
 
@@ -170,104 +272,30 @@ public class CommandController implements CommandExecutor {
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
         /*
-         * If a subcommand may be present...
+         * If a subcommand may be present, look it up in the command's table.
+         * The subcommand handler is passed the full argument list.
          */
         if (args.length > 0) {
-            /*
-             * Get the subcommand given and the handler and method attached to
-             * it
-             */
-            SubCommand subCommand = new SubCommand(command, args[0]);
-            subCommand = subCommands.get(subCommand.toString());
-            /*
-             * If and only if the subcommand actually exists...
-             */
-            if (subCommand != null) {
-                Object subHandler = subHandlers.get(subCommand.toString());
-                Method subMethod = subMethods.get(subCommand.toString());
-                /*
-                 * If and only if both handler and method exist...
-                 */
-                if (subHandler != null && subMethod != null) {
-                    /*
-                     * Reorder the arguments so we don't resend the subcommand
-                     */
-                    String[] subArgs = new String[args.length - 1];
-                    for (int i = 1; i < args.length; i++)
-                        subArgs[i - 1] = args[i];
+            HashMap<String, Dispatcher> table = subCommands.get(command);
+            if (table != null) {
+                Dispatcher subDispatcher = table.get(args[0].toLowerCase());
+                if (subDispatcher != null) {
                     /*
-                     * If the method requires a player and the subcommand wasn't
-                     * sent by one, don't continue
+                     * As before, a failed subcommand has already reported its
+                     * error, so it doesn't fall through to the usage message
                      */
-                    if (subMethod.getParameterTypes()[0].equals(Player.class) && !(sender instanceof Player)) {
-                        sender.sendMessage(ChatColor.RED + "This command requires a player sender");
-                        return true;
-                    }
-                    /*
-                     * If the method requires a console and the subcommand
-                     * wasn't sent by one, don't continue
-                     */
-                    if (subMethod.getParameterTypes()[0].equals(ConsoleCommandSender.class) && !(sender instanceof ConsoleCommandSender)) {
-                        sender.sendMessage(ChatColor.RED + "This command requires a console sender");
-                        return true;
-                    }
-                    /*
-                     * If a permission is attached to this subcommand and the
-                     * sender doens't have it, don't continue
-                     */
-                    if (!subCommand.permission.isEmpty() && !sender.hasPermission(subCommand.permission)) {
-                        sender.sendMessage(ChatColor.RED + subCommand.permissionMessage);
-                        return true;
-                    }
-                    /*
-                     * Try to process the command
-                     */
-                    try {
-                        subMethod.invoke(subHandler, sender, args);
-                    } catch (Exception e) {
-                        sender.sendMessage(ChatColor.RED + "An error occurred while trying to process the command");
-                        e.printStackTrace();
-                    }
+                    subDispatcher.dispatch(sender, args);
                     return true;
                 }
             }
         }
         /*
          * If a subcommand was successfully executed, the command will not reach
-         * this point Get the handler and method attached to this command
-         */
-        Object handler = handlers.get(command);
-        Method method = methods.get(command);
-        /*
-         * If and only if both handler and method exist...
+         * this point
          */
-        if (handler != null && method != null) {
-            /*
-             * If the method requires a player and the command wasn't sent by
-             * one, don't continue
-             */
-            if (method.getParameterTypes()[0].equals(Player.class) && !(sender instanceof Player)) {
-                sender.sendMessage(ChatColor.RED + "This command requires a player sender");
-                return true;
-            }
-            /*
-             * If the method requires a console and the command wasn't sent by
-             * one, don't continue
-             */
-            if (method.getParameterTypes()[0].equals(ConsoleCommandSender.class) && !(sender instanceof ConsoleCommandSender)) {
-                sender.sendMessage(ChatColor.RED + "This command requires a console sender");
-                return true;
-            }
-            /*
-             * Try to process the command
-             */
-            try {
-                method.invoke(handler, sender, args);
-                return true;
-            } catch (Exception e) {
-                sender.sendMessage(ChatColor.RED + "An error occurred while trying to process the command");
-                e.printStackTrace();
-            }
+        Dispatcher dispatcher = commands.get(command);
+        if (dispatcher != null && dispatcher.dispatch(sender, args)) {
+            return true;
         }
 
         // /*
@@ -279,4 +307,32 @@ public class CommandController implements CommandExecutor {
         return false;
     }
 
+    /**
+     * Complete the subcommand name from the subcommands that the sender has
+     * permission to use, or delegate completion of later arguments to the
+     * handler's TabCompleter, if any.
+     */
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 1) {
+            HashMap<String, Dispatcher> table = subCommands.get(command);
+            if (table == null) {
+                return Collections.emptyList();
+            }
+            String prefix = args[0].toLowerCase();
+            ArrayList<String> names = new ArrayList<String>();
+            for (Map.Entry<String, Dispatcher> entry : table.entrySet()) {
+                String permission = entry.getValue().permission;
+                if (entry.getKey().startsWith(prefix) && (permission.isEmpty() || sender.hasPermission(permission))) {
+                    names.add(entry.getKey());
+                }
+            }
+            Collections.sort(names);
+            return names;
+        }
+
+        TabCompleter completer = completers.get(command);
+        return (completer != null) ? completer.onTabComplete(sender, command, alias, args) : Collections.<String> emptyList();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+package io.github.totemo.doppelganger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.LivingEntity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Spawns doppelgangers without blocking the current tick on chunk loading or
+ * player profile lookups.
+ *
+ * The target chunk is loaded (or generated) and the player whose head the
+ * doppelganger will wear is looked up at the same time. When both have
+ * finished, the doppelganger is spawned on the main thread.
+ *
+ * On servers that provide World.getChunkAtAsync(int, int, boolean) (e.g.
+ * Paper), the chunk is loaded asynchronously. Otherwise, the chunk is loaded
+ * synchronously by a task scheduled on the next tick, so that at least the
+ * tick that requested the spawn is not delayed; the next tick is, by the whole
+ * load or generation.
+ */
+public class AsyncSpawner {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     */
+    public AsyncSpawner(Doppelganger plugin) {
+        _plugin = plugin;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of spawns waiting for their chunk to load or their
+     * head owner to be looked up.
+     *
+     * This may be called from any thread.
+     *
+     * @return the number of pending spawns.
+     */
+    public int getPendingCount() {
+        return _pending.get();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn a doppelganger of the specified type and name once its chunk is
+     * loaded and its head owner is known.
+     *
+     * @param creatureType the type of creature to spawn.
+     * @param name the name of the creature, as for
+     *        {@link Doppelganger#spawnDoppelganger(String, String, Location)}.
+     * @param loc the Location on the ground where the creature will spawn.
+     * @return a future that is completed on the main thread with the spawned
+     *         creature, or null if it could not be spawned.
+     */
+    public CompletableFuture<LivingEntity> spawn(final String creatureType, final String name, Location loc) {
+        final Location spawnLoc = loc.clone();
+        final CompletableFuture<LivingEntity> result = new CompletableFuture<LivingEntity>();
+        if (!_plugin.getCreatureFactory().isValidCreatureType(creatureType)) {
+            result.complete(null);
+            return result;
+        }
+
+        _pending.incrementAndGet();
+        CompletableFuture<Void> chunkLoaded = loadChunk(spawnLoc.getWorld(), spawnLoc.getBlockX() >> 4, spawnLoc.getBlockZ() >> 4);
+        CompletableFuture<Void> headResolved = resolveHead(_plugin.getCreatureFactory().getHeadOwnerName(creatureType, name));
+        CompletableFuture.allOf(chunkLoaded, headResolved).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, final Throwable error) {
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        _pending.decrementAndGet();
+                        TickWatchdog watchdog = _plugin.getWatchdog();
+                        watchdog.begin();
+                        try {
+                            if (error != null) {
+                                result.completeExceptionally(error);
+                            } else {
+                                try {
+                                    result.complete(_plugin.spawnDoppelganger(creatureType, name, spawnLoc));
+                                } catch (RuntimeException ex) {
+                                    result.completeExceptionally(ex);
+                                }
+                            }
+                        } finally {
+                            watchdog.end("async spawn");
+                        }
+                    }
+                });
+            }
+        });
+        return result;
+    } // spawn
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the specified chunk without blocking the current tick.
+     *
+     * @param world the World.
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @return a future that completes when the chunk is loaded.
+     */
+    protected CompletableFuture<Void> loadChunk(final World world, final int chunkX, final int chunkZ) {
+        if (world.isChunkLoaded(chunkX, chunkZ)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (GET_CHUNK_AT_ASYNC != null) {
+            try {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<Chunk> chunk = (CompletableFuture<Chunk>) GET_CHUNK_AT_ASYNC.invoke(world, chunkX, chunkZ, true);
+                return chunk.thenAccept(new Consumer<Chunk>() {
+                    @Override
+                    public void accept(Chunk ignored) {
+                    }
+                });
+            } catch (Exception ex) {
+                _plugin.getLogger().warning("Asynchronous chunk loading failed; loading synchronously: " + ex);
+            }
+        }
+
+        final CompletableFuture<Void> loaded = new CompletableFuture<Void>();
+        _plugin.getServer().getScheduler().runTask(_plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    world.loadChunk(chunkX, chunkZ, true);
+                    loaded.complete(null);
+                } catch (RuntimeException ex) {
+                    loaded.completeExceptionally(ex);
+                }
+            }
+        });
+        return loaded;
+    } // loadChunk
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up the owner of the specified player head in an asynchronous task.
+     *
+     * @param headOwnerName the player name, or null if no head will be worn.
+     * @return a future that completes when the lookup has finished.
+     */
+    protected CompletableFuture<Void> resolveHead(final String headOwnerName) {
+        if (headOwnerName == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final CompletableFuture<Void> resolved = new CompletableFuture<Void>();
+        _plugin.getServer().getScheduler().runTaskAsynchronously(_plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _plugin.getCreatureFactory().resolveHeadOwner(headOwnerName);
+                } catch (RuntimeException ex) {
+                    // The head is still set by name when spawned.
+                    _plugin.getLogger().warning("Could not look up player " + headOwnerName + ": " + ex);
+                }
+                resolved.complete(null);
+            }
+        });
+        return resolved;
+    } // resolveHead
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the task immediately if called on the main thread, or schedule it to
+     * run on the main thread otherwise.
+     *
+     * @param task the task.
+     */
+    protected void runOnMainThread(Runnable task) {
+        if (_plugin.getServer().isPrimaryThread()) {
+            task.run();
+        } else {
+            _plugin.getServer().getScheduler().runTask(_plugin, task);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find World.getChunkAtAsync(int, int, boolean), if the server provides it.
+     *
+     * @return the Method, or null if not available.
+     */
+    protected static Method findGetChunkAtAsync() {
+        try {
+            return World.class.getMethod("getChunkAtAsync", int.class, int.class, boolean.class);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * World.getChunkAtAsync(int, int, boolean), or null if not available.
+     */
+    protected static final Method GET_CHUNK_AT_ASYNC = findGetChunkAtAsync();
+
+    /**
+     * Reference to the plugin.
+     */
+    protected Doppelganger _plugin;
+
+    /**
+     * Number of spawns that have been requested but not attempted yet.
+     */
+    protected final AtomicInteger _pending = new AtomicInteger();
+} // class AsyncSpawner
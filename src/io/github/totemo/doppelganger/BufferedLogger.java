@@ -0,0 +1,79 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+// ----------------------------------------------------------------------------
+/**
+ * A Logger that holds the records logged to it, so that they can be published
+ * to another Logger later.
+ *
+ * This is used to report the warnings of sections compiled in parallel in
+ * declaration order, rather than in the order the tasks happened to run, and
+ * to keep the warnings of a compiled configuration with its cached form.
+ */
+public class BufferedLogger extends Logger {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * All levels are recorded; the Logger they are published to decides which
+     * are logged.
+     */
+    public BufferedLogger() {
+        super(null, null);
+        setLevel(Level.ALL);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a log message.
+     *
+     * @param record the message.
+     */
+    @Override
+    public void log(LogRecord record) {
+        synchronized (_records) {
+            _records.add(record);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the recorded messages.
+     *
+     * @return a copy of the recorded messages, in order.
+     */
+    public List<LogRecord> getRecords() {
+        synchronized (_records) {
+            return new ArrayList<LogRecord>(_records);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log all recorded messages to the specified Logger, in the order they
+     * were recorded, and forget them.
+     *
+     * @param logger the Logger.
+     */
+    public void publish(Logger logger) {
+        ArrayList<LogRecord> records;
+        synchronized (_records) {
+            records = new ArrayList<LogRecord>(_records);
+            _records.clear();
+        }
+        for (LogRecord record : records) {
+            logger.log(record);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The recorded messages, in order.
+     */
+    protected final ArrayList<LogRecord> _records = new ArrayList<LogRecord>();
+} // class BufferedLogger
@@ -0,0 +1,181 @@
+package io.github.totemo.doppelganger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Removes all indexed doppelgangers matching a filter, spreading the removals
+ * over as many ticks as necessary to stay within a per-tick time budget.
+ *
+ * The command sender is sent periodic progress reports and a single summary
+ * line is logged when the task completes.
+ */
+public class BulkKillTask implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * Matching doppelgangers are selected from the index immediately, so
+     * doppelgangers spawned after the task is created are not killed.
+     *
+     * @param plugin the Doppelganger plugin.
+     * @param sender the issuer of the command, who receives progress reports.
+     * @param world the world to search, or null for all worlds.
+     * @param type the case-insensitive creature type name, or null for any
+     *        type.
+     * @param namePattern the pattern that custom names must match, or null
+     *        for any name, including none.
+     * @param description a description of the filter, for messages.
+     */
+    public BulkKillTask(Doppelganger plugin, CommandSender sender, World world, String type, Pattern namePattern,
+                        String description) {
+        _plugin = plugin;
+        _sender = sender;
+        _description = description;
+        _budgetNanos = 1000L * plugin.getConfiguration().getBulkKillBudgetMicros();
+        _victims = plugin.getDoppelgangerIndex().getEntries();
+
+        // Filter in place.
+        String lowerType = (type != null) ? type.toLowerCase() : null;
+        int kept = 0;
+        for (DoppelgangerIndex.Entry entry : _victims) {
+            if ((world == null || entry.world.equals(world.getUID())) &&
+                (lowerType == null || entry.type.equals(lowerType)) &&
+                (namePattern == null || (entry.entity.getCustomName() != null &&
+                                         namePattern.matcher(entry.entity.getCustomName()).matches()))) {
+                _victims.set(kept++, entry);
+            }
+        }
+        _victims.subList(kept, _victims.size()).clear();
+    } // constructor
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start removing doppelgangers on the next tick.
+     */
+    public void start() {
+        _sender.sendMessage(String.format("%sKilling %d doppelgangers matching %s.",
+                                          (_victims.isEmpty() ? ChatColor.DARK_RED : ChatColor.GOLD), _victims.size(), _description));
+        _task = _plugin.getServer().getScheduler().runTaskTimer(_plugin, this, 1, 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove doppelgangers until the time budget for this tick is used up.
+     */
+    @Override
+    public void run() {
+        _plugin.getWatchdog().begin();
+        try {
+            ++_ticks;
+            long start = System.nanoTime();
+            while (_next < _victims.size()) {
+                DoppelgangerIndex.Entry entry = _victims.get(_next++);
+                // Skip doppelgangers that died or unloaded since the task started.
+                if (entry.entity.isValid()) {
+                    _plugin.removeDoppelganger(entry.entity);
+                    Integer count = _killedByType.get(entry.type);
+                    _killedByType.put(entry.type, (count == null) ? 1 : count + 1);
+                    ++_killed;
+                }
+                if (System.nanoTime() - start >= _budgetNanos) {
+                    break;
+                }
+            }
+
+            if (_next >= _victims.size()) {
+                _task.cancel();
+                finish();
+            } else if (_ticks % PROGRESS_PERIOD_TICKS == 0) {
+                _sender.sendMessage(String.format("%sKilled %d of %d doppelgangers matching %s.",
+                                                  ChatColor.GOLD, _killed, _victims.size(), _description));
+            }
+        } finally {
+            _plugin.getWatchdog().end("bulk kill");
+        }
+    } // run
+
+    // ------------------------------------------------------------------------
+    /**
+     * Report completion to the sender and log a summary.
+     */
+    protected void finish() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(_sender.getName()).append(" killed ").append(_killed);
+        summary.append(" doppelgangers matching ").append(_description);
+        summary.append(" over ").append(_ticks).append(" tick(s)");
+        if (!_killedByType.isEmpty()) {
+            summary.append(':');
+            for (Map.Entry<String, Integer> entry : _killedByType.entrySet()) {
+                summary.append(' ').append(entry.getValue()).append(' ').append(entry.getKey());
+            }
+        }
+        summary.append('.');
+        _plugin.getLogger().info(summary.toString());
+        _sender.sendMessage(ChatColor.GOLD + "Finished: " + summary);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of ticks between progress reports to the sender.
+     */
+    protected static final int PROGRESS_PERIOD_TICKS = 20;
+
+    /**
+     * Reference to the plugin.
+     */
+    protected Doppelganger _plugin;
+
+    /**
+     * The issuer of the command.
+     */
+    protected CommandSender _sender;
+
+    /**
+     * A description of the filter, for messages.
+     */
+    protected String _description;
+
+    /**
+     * Maximum time in nanoseconds spent removing doppelgangers per tick.
+     */
+    protected long _budgetNanos;
+
+    /**
+     * The doppelgangers to remove.
+     */
+    protected List<DoppelgangerIndex.Entry> _victims;
+
+    /**
+     * Index into _victims of the next doppelganger to remove.
+     */
+    protected int _next;
+
+    /**
+     * Number of doppelgangers actually removed.
+     */
+    protected int _killed;
+
+    /**
+     * Number of ticks that the task has run.
+     */
+    protected int _ticks;
+
+    /**
+     * Map from lower case creature type to number removed, sorted by type.
+     */
+    protected TreeMap<String, Integer> _killedByType = new TreeMap<String, Integer>();
+
+    /**
+     * The scheduled task, cancelled on completion.
+     */
+    protected BukkitTask _task;
+} // class BulkKillTask
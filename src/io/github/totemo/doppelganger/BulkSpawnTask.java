@@ -0,0 +1,186 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Spawns a batch of doppelgangers, a limited number per tick, and notifies the
+ * caller once when the whole batch has been processed.
+ *
+ * Creature types are validated once per distinct type in the batch, when the
+ * task is created. Requests with an invalid type, or that are refused by a
+ * population cap, are counted as failures.
+ */
+public class BulkSpawnTask implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     * @param requests the doppelgangers to spawn, in order.
+     * @param onComplete called on the main thread when all requests have been
+     *        processed; can be null.
+     */
+    public BulkSpawnTask(Doppelganger plugin, Collection<SpawnRequest> requests, Consumer<BulkSpawnTask> onComplete) {
+        _plugin = plugin;
+        _onComplete = onComplete;
+        _perTick = plugin.getConfiguration().getBulkSpawnPerTick();
+
+        HashMap<String, Boolean> validTypes = new HashMap<String, Boolean>();
+        for (SpawnRequest request : requests) {
+            String type = request.getCreatureType();
+            Boolean valid = validTypes.get(type);
+            if (valid == null) {
+                valid = (type != null && plugin.getCreatureFactory().isValidCreatureType(type));
+                validTypes.put(type, valid);
+            }
+            if (valid) {
+                _requests.add(request);
+            } else {
+                ++_failed;
+            }
+        }
+        _requested = requests.size();
+    } // constructor
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start spawning on the next tick.
+     *
+     * @return this task.
+     */
+    public BulkSpawnTask start() {
+        _task = _plugin.getServer().getScheduler().runTaskTimer(_plugin, this, 1, 1);
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn the next few doppelgangers.
+     */
+    @Override
+    public void run() {
+        _plugin.getWatchdog().begin();
+        try {
+            ++_ticks;
+            for (int i = 0; i < _perTick && _next < _requests.size(); ++i) {
+                SpawnRequest request = _requests.get(_next++);
+                LivingEntity doppelganger = _plugin.spawnDoppelganger(request.getCreatureType(), request.getName(),
+                    request.getLocation());
+                if (doppelganger == null) {
+                    ++_failed;
+                } else {
+                    _spawned.add(doppelganger);
+                }
+            }
+
+            if (_next >= _requests.size()) {
+                _task.cancel();
+                if (_onComplete != null) {
+                    _onComplete.accept(this);
+                }
+            }
+        } finally {
+            _plugin.getWatchdog().end("bulk spawn");
+        }
+    } // run
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of doppelgangers requested.
+     *
+     * @return the number of doppelgangers requested.
+     */
+    public int getRequested() {
+        return _requested;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the doppelgangers spawned so far.
+     *
+     * @return the doppelgangers spawned so far.
+     */
+    public List<LivingEntity> getSpawned() {
+        return Collections.unmodifiableList(_spawned);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of requests that could not be satisfied so far.
+     *
+     * @return the number of requests that could not be satisfied so far.
+     */
+    public int getFailed() {
+        return _failed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of ticks that the task has run.
+     *
+     * @return the number of ticks that the task has run.
+     */
+    public int getTicks() {
+        return _ticks;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reference to the plugin.
+     */
+    protected Doppelganger _plugin;
+
+    /**
+     * Called when all requests have been processed; can be null.
+     */
+    protected Consumer<BulkSpawnTask> _onComplete;
+
+    /**
+     * Maximum number of doppelgangers spawned per tick.
+     */
+    protected int _perTick;
+
+    /**
+     * The requests with valid creature types.
+     */
+    protected ArrayList<SpawnRequest> _requests = new ArrayList<SpawnRequest>();
+
+    /**
+     * Index into _requests of the next request to spawn.
+     */
+    protected int _next;
+
+    /**
+     * Total number of requests, including those with invalid types.
+     */
+    protected int _requested;
+
+    /**
+     * The spawned doppelgangers.
+     */
+    protected ArrayList<LivingEntity> _spawned = new ArrayList<LivingEntity>();
+
+    /**
+     * Number of requests that could not be satisfied.
+     */
+    protected int _failed;
+
+    /**
+     * Number of ticks that the task has run.
+     */
+    protected int _ticks;
+
+    /**
+     * The scheduled task, cancelled on completion.
+     */
+    protected BukkitTask _task;
+} // class BulkSpawnTask
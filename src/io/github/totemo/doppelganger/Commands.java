@@ -1,25 +1,42 @@
 package io.github.totemo.doppelganger;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.Server;
 import org.bukkit.World;
 import org.bukkit.command.BlockCommandSender;
+import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 
 import com.amoebaman.kitmaster.utilities.CommandController.CommandHandler;
 import com.amoebaman.kitmaster.utilities.CommandController.SubCommandHandler;
+import com.amoebaman.kitmaster.utilities.CommandController.SubCommandTimer;
 
 // ----------------------------------------------------------------------------
 /**
  * Handles the command line.
  */
-public class Commands {
+public class Commands implements TabCompleter, SubCommandTimer {
     // ------------------------------------------------------------------------
     /**
      * Constructor.
@@ -83,8 +100,7 @@ public class Commands {
     @SubCommandHandler(parent = "doppel", name = "reload", permission = "doppelganger.reload")
     public void onCommandDoppeReload(CommandSender sender, String[] args) {
         if (args.length == 1) {
-            _plugin.getConfiguration().load();
-            sender.sendMessage(_successColour + "Doppelganger configuration reloaded.");
+            _plugin.getConfiguration().reload(sender, false);
             return;
         }
 
@@ -179,7 +195,7 @@ public class Commands {
             showUsage(sender, "coords");
         } else {
             // Arguments are valid. Do the work.
-            ArrayList<LivingEntity> doppelgangers = findDoppelgangers(name, volume);
+            List<LivingEntity> doppelgangers = _plugin.findDoppelgangers(name, volume);
             String message = formatVolumeMessage(volume, "There are", doppelgangers.size());
 
             // Command blocks output a redstone signal if result message is not
@@ -215,13 +231,18 @@ public class Commands {
     @SubCommandHandler(parent = "doppel", name = "kill", permission = "doppelganger.kill")
     public void onCommandDoppelKill(CommandSender sender, String[] args) {
         ArrayList<String> tail = tail(args, 1);
+        if (tail.size() > 0 && tail.get(0).equals("bulk")) {
+            onCommandDoppelKillBulk(sender, tail);
+            return;
+        }
+
         Volume volume = parseVolume(tail, sender);
 
         // Need a valid volume and a final argument for the name.
         if (volume == null || tail.size() != 1) {
             showUsage(sender, "kill");
         } else {
-            ArrayList<LivingEntity> doppelgangers = findDoppelgangers(tail.get(0), volume);
+            List<LivingEntity> doppelgangers = _plugin.findDoppelgangers(tail.get(0), volume);
             String message = formatVolumeMessage(volume, "Killing", doppelgangers.size());
             ChatColor colour = (doppelgangers.size() == 0) ? _failureColour : _successColour;
             sender.sendMessage(colour + message);
@@ -234,18 +255,92 @@ public class Commands {
                                                    loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
                 sender.sendMessage(description);
                 _plugin.getLogger().info("Killing " + description);
-                living.remove();
+                _plugin.removeDoppelganger(living);
             }
         }
     } // onCommandDoppelKill
 
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /doppel kill bulk:
+     *
+     * <pre>
+     * /doppel kill bulk all
+     * /doppel kill bulk [world name] [type type] [name pattern]
+     * </pre>
+     *
+     * At least one filter, or "all", is required. The name pattern can contain
+     * '*' to match any sequence of characters and '?' to match any single
+     * character.
+     *
+     * Only doppelgangers in the {@link DoppelgangerIndex} are considered, so
+     * the worlds are not scanned, and the removals are spread over several
+     * ticks if necessary.
+     *
+     * @param sender the issuer of the command.
+     * @param tail command arguments after /doppel kill, starting with "bulk".
+     */
+    protected void onCommandDoppelKillBulk(CommandSender sender, ArrayList<String> tail) {
+        tail.remove(0);
+        World world = null;
+        String type = null;
+        String namePattern = null;
+        boolean all = false;
+        while (tail.size() > 0) {
+            String keyword = tail.remove(0);
+            if (keyword.equals("all")) {
+                all = true;
+            } else if (tail.size() == 0) {
+                showUsage(sender, "kill");
+                return;
+            } else if (keyword.equals("world")) {
+                world = sender.getServer().getWorld(tail.get(0));
+                if (world == null) {
+                    sender.sendMessage(_failureColour + "There is no world named " + tail.get(0) + ".");
+                    return;
+                }
+                tail.remove(0);
+            } else if (keyword.equals("type")) {
+                type = tail.remove(0);
+            } else if (keyword.equals("name")) {
+                namePattern = tail.remove(0);
+            } else {
+                showUsage(sender, "kill");
+                return;
+            }
+        }
+
+        if (all == (world != null || type != null || namePattern != null)) {
+            showUsage(sender, "kill");
+            return;
+        }
+
+        StringBuilder description = new StringBuilder();
+        if (all) {
+            description.append("all");
+        } else {
+            if (world != null) {
+                description.append("world ").append(world.getName());
+            }
+            if (type != null) {
+                description.append((description.length() != 0) ? ", " : "").append("type ").append(type);
+            }
+            if (namePattern != null) {
+                description.append((description.length() != 0) ? ", " : "").append("name ").append(namePattern);
+            }
+        }
+
+        Pattern pattern = (namePattern != null) ? globToPattern(namePattern) : null;
+        new BulkKillTask(_plugin, sender, world, type, pattern, description.toString()).start();
+    } // onCommandDoppelKillBulk
+
     // ------------------------------------------------------------------------
     /**
      * Handle /doppel spawn:
      * 
      * <ul>
-     * <li>/doppel spawn here type [name]</li>
-     * <li>/doppel spawn at [world] x y z type [name]</li>
+     * <li>/doppel spawn here type [name] [count n [spread r]]</li>
+     * <li>/doppel spawn at [world] x y z type [name] [count n [spread r]]</li>
      * </ul>
      * 
      * @param sender the issuer of the command.
@@ -256,16 +351,85 @@ public class Commands {
         ArrayList<String> tail = tail(args, 1);
         Location loc = parseLocation(tail, sender);
         String type = (tail.size() > 0) ? tail.remove(0) : null;
-        String name = (tail.size() > 0) ? tail.remove(0) : null;
+        // "count" is only the keyword if a number follows; otherwise it's the
+        // name of the doppelganger.
+        boolean countFollows = tail.size() > 0 && tail.get(0).equalsIgnoreCase("count") && parseInteger(tail, 1) != null;
+        String name = (tail.size() > 0 && !countFollows) ? tail.remove(0) : null;
+
+        // A count or spread that is missing or not a number is null, which
+        // shows the usage rather than spawning just one doppelganger.
+        boolean bulk = false;
+        Integer count = null;
+        Double spread = 0.0;
+        if (tail.size() > 0 && tail.get(0).equalsIgnoreCase("count")) {
+            bulk = true;
+            count = parseInteger(tail, 1);
+            tail.subList(0, Math.min(2, tail.size())).clear();
+            if (tail.size() > 0 && tail.get(0).equalsIgnoreCase("spread")) {
+                spread = parseDouble(tail, 1);
+                tail.subList(0, Math.min(2, tail.size())).clear();
+            }
+        }
 
         // name is allowed to be null.
         if (loc == null || type == null || tail.size() > 0) {
             showUsage(sender, "spawn");
-        } else {
+        } else if (!bulk) {
             spawnAndLog(sender, type, name, loc);
+        } else if (count == null || count < 1 || spread == null || spread < 0) {
+            showUsage(sender, "spawn");
+        } else if (count > _plugin.getConfiguration().getBulkSpawnMaxCount()) {
+            sender.sendMessage(String.format("%sAt most %d doppelgangers can be spawned by one command (bulk_spawn_max_count).",
+                                             _failureColour, _plugin.getConfiguration().getBulkSpawnMaxCount()));
+        } else {
+            bulkSpawnAndLog(sender, type, name, loc, count, spread);
         }
     } // onCommandDoppelSpawn
 
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn count doppelgangers with the specified type and optional name at
+     * random within spread blocks of the Location, over several ticks.
+     * 
+     * Give feedback to the command sender and log a single summary line when
+     * the batch completes.
+     * 
+     * @param sender the command sender.
+     * @param type the creature type name.
+     * @param name the name of the creatures; if null, they are anonymous.
+     * @param loc the Location at the centre of the spawn area.
+     * @param count the number of creatures to spawn.
+     * @param spread the maximum distance from loc in the X-Z plane.
+     */
+    protected void bulkSpawnAndLog(final CommandSender sender, final String type, String name, final Location loc,
+                                   int count, double spread) {
+        if (!_plugin.getCreatureFactory().isValidCreatureType(type)) {
+            sender.sendMessage(String.format("%s\"%s\" is not a valid creature type.", _failureColour, type));
+            return;
+        }
+
+        ArrayList<SpawnRequest> requests = new ArrayList<SpawnRequest>(count);
+        for (int i = 0; i < count; ++i) {
+            requests.add(new SpawnRequest(type, name, CreatureType.randomLocation(loc, 0, spread)));
+        }
+
+        final String nameClause = (name == null) ? "" : " named " + name;
+        final String where = String.format("within %s blocks of (%d,%d,%d) in %s",
+                                           Double.toString(spread), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                                           loc.getWorld().getName());
+        sender.sendMessage(String.format("%sSpawning %d %s%s %s.", _successColour, count, type, nameClause, where));
+        _plugin.spawnDoppelgangers(requests, new Consumer<BulkSpawnTask>() {
+            @Override
+            public void accept(BulkSpawnTask task) {
+                String summary = String.format("spawned %d of %d %s%s %s over %d tick(s).",
+                                               task.getSpawned().size(), task.getRequested(), type, nameClause, where,
+                                               task.getTicks());
+                sender.sendMessage((task.getFailed() == 0 ? _successColour : _failureColour) + "Finished: " + summary);
+                _plugin.getLogger().info(sender.getName() + " " + summary);
+            }
+        });
+    } // bulkSpawnAndLog
+
     // ------------------------------------------------------------------------
     /**
      * Handle /doppel maintain:
@@ -284,12 +448,30 @@ public class Commands {
      * The name parameter is required so that we can find the doppelganger (by
      * name) in the specified volume.
      * 
+     * If the spawn location is not loaded, the doppelganger is spawned after
+     * its chunk loads. Until then, the pending spawn counts as a doppelganger
+     * in the volume, so that a command block that runs every tick doesn't
+     * queue a spawn every tick.
+     * 
      * @param sender the issuer of the command.
      * @param args command arguments after the initial /doppel.
      */
     @SubCommandHandler(parent = "doppel", name = "maintain", permission = "doppelganger.maintain")
     public void onCommandDoppelMaintain(CommandSender sender, String[] args) {
         ArrayList<String> tail = tail(args, 1);
+        if (tail.size() > 0) {
+            if (tail.get(0).equals("add")) {
+                onCommandDoppelMaintainAdd(sender, tail);
+                return;
+            } else if (tail.get(0).equals("remove")) {
+                onCommandDoppelMaintainRemove(sender, tail);
+                return;
+            } else if (tail.get(0).equals("list")) {
+                onCommandDoppelMaintainList(sender, tail);
+                return;
+            }
+        }
+
         Location loc = parseLocation(tail, sender);
         Volume volume = parseVolume(tail, sender);
         String type = (tail.size() > 0) ? tail.remove(0) : null;
@@ -302,12 +484,17 @@ public class Commands {
                 return;
             }
 
-            ArrayList<LivingEntity> doppelgangers = findDoppelgangers(name, volume);
-            String message = formatVolumeMessage(volume, "There are", doppelgangers.size());
+            List<LivingEntity> doppelgangers = _plugin.findDoppelgangers(name, volume);
+            HashSet<Volume> pendingVolumes = _pendingMaintainSpawns.get(name);
+            boolean pending = pendingVolumes != null && pendingVolumes.contains(volume);
+            String message = formatVolumeMessage(volume, "There are", doppelgangers.size() + (pending ? 1 : 0));
             sender.sendMessage(_successColour + message);
 
-            if (doppelgangers.size() < 1) {
-                spawnAndLog(sender, type, name, loc);
+            if (doppelgangers.size() < 1 && !pending) {
+                CompletableFuture<LivingEntity> spawn = spawnAndLog(sender, type, name, loc);
+                if (spawn != null && !spawn.isDone()) {
+                    addPendingMaintainSpawn(name, volume, spawn);
+                }
             } else if (doppelgangers.size() > 1) {
                 // Find the oldest creature.
                 LivingEntity oldest = null;
@@ -324,7 +511,7 @@ public class Commands {
                                                  _successColour, (doppelgangers.size() - 1)));
                 for (LivingEntity living : doppelgangers) {
                     if (living != oldest) {
-                        living.remove();
+                        _plugin.removeDoppelganger(living);
                     }
                 }
             }
@@ -333,30 +520,421 @@ public class Commands {
 
     // ------------------------------------------------------------------------
     /**
-     * Return a list of all LivingEntity instances with the specified visible
-     * custom name within the specified volume.
+     * Record that /doppel maintain is waiting for an asynchronous spawn of a
+     * doppelganger with the specified name in the specified volume, until the
+     * spawn completes.
+     * 
+     * @param name the name of the doppelganger.
+     * @param volume the maintained volume.
+     * @param spawn the pending spawn.
+     */
+    protected void addPendingMaintainSpawn(final String name, final Volume volume, CompletableFuture<LivingEntity> spawn) {
+        HashSet<Volume> volumes = _pendingMaintainSpawns.get(name);
+        if (volumes == null) {
+            volumes = new HashSet<Volume>();
+            _pendingMaintainSpawns.put(name, volumes);
+        }
+        volumes.add(volume);
+        spawn.whenComplete(new BiConsumer<LivingEntity, Throwable>() {
+            @Override
+            public void accept(LivingEntity doppelganger, Throwable error) {
+                HashSet<Volume> volumes = _pendingMaintainSpawns.get(name);
+                if (volumes != null && volumes.remove(volume) && volumes.isEmpty()) {
+                    _pendingMaintainSpawns.remove(name);
+                }
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /doppel maintain add:
+     *
+     * <ul>
+     * <li>/doppel maintain add id at [world] x y z box [world] x1 y1 z1 x2 y2
+     * z2 type name [count]</li>
+     * <li>/doppel maintain add id at [world] x y z sphere [world] xc yc zc
+     * radius type name [count]</li>
+     * </ul>
+     *
+     * The population is saved in the configuration and thereafter maintained
+     * by the {@link PopulationReconciler}, without the need for a command
+     * block.
+     *
+     * @param sender the issuer of the command.
+     * @param tail command arguments after /doppel maintain, starting with
+     *        "add".
+     */
+    protected void onCommandDoppelMaintainAdd(CommandSender sender, ArrayList<String> tail) {
+        tail.remove(0);
+        String id = (tail.size() > 0) ? tail.remove(0) : null;
+        Location loc = parseLocation(tail, sender);
+        Volume volume = parseVolume(tail, sender);
+        String type = (tail.size() > 0) ? tail.remove(0) : null;
+        String name = (tail.size() > 0) ? tail.remove(0) : null;
+        Integer count = 1;
+        if (tail.size() > 0) {
+            count = parseInteger(tail, 0);
+            tail.remove(0);
+        }
+
+        if (id == null || loc == null || volume == null || type == null || name == null ||
+            count == null || count < 0 || tail.size() > 0) {
+            showUsage(sender, "maintain");
+        } else if (!volume.contains(loc)) {
+            sender.sendMessage(_failureColour + "The checked volume must contain the spawn location.");
+        } else if (!_plugin.getCreatureFactory().isValidCreatureType(type)) {
+            sender.sendMessage(String.format("%s\"%s\" is not a valid creature type.", _failureColour, type));
+        } else {
+            PopulationReconciler reconciler = _plugin.getPopulationReconciler();
+            boolean replaced = (reconciler.getPopulation(id) != null);
+            MaintainedPopulation population = new MaintainedPopulation(id, type, name, loc, volume, count);
+            reconciler.add(population);
+            _plugin.getConfiguration().saveMaintainedPopulations();
+            sender.sendMessage(_successColour + (replaced ? "Replaced" : "Added") + " maintained population:");
+            population.describe(sender);
+            _plugin.getLogger().info(sender.getName() + (replaced ? " replaced" : " added") + " maintained population " + id + ".");
+        }
+    } // onCommandDoppelMaintainAdd
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /doppel maintain remove id.
+     *
+     * @param sender the issuer of the command.
+     * @param tail command arguments after /doppel maintain, starting with
+     *        "remove".
+     */
+    protected void onCommandDoppelMaintainRemove(CommandSender sender, ArrayList<String> tail) {
+        if (tail.size() != 2) {
+            showUsage(sender, "maintain");
+        } else {
+            PopulationReconciler reconciler = _plugin.getPopulationReconciler();
+            MaintainedPopulation population = reconciler.remove(tail.get(1));
+            if (population == null) {
+                if (reconciler.removeUnloaded(tail.get(1))) {
+                    _plugin.getConfiguration().saveMaintainedPopulations();
+                    sender.sendMessage(_successColour + "Removed maintained population " + tail.get(1) + ".");
+                    _plugin.getLogger().info(sender.getName() + " removed maintained population " + tail.get(1) + ".");
+                } else {
+                    sender.sendMessage(_failureColour + "There is no maintained population by that name.");
+                }
+            } else {
+                _plugin.getConfiguration().saveMaintainedPopulations();
+                sender.sendMessage(_successColour + "Removed maintained population " + population.getId() + ".");
+                _plugin.getLogger().info(sender.getName() + " removed maintained population " + population.getId() + ".");
+            }
+        }
+    } // onCommandDoppelMaintainRemove
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /doppel maintain list.
+     *
+     * @param sender the issuer of the command.
+     * @param tail command arguments after /doppel maintain, starting with
+     *        "list".
+     */
+    protected void onCommandDoppelMaintainList(CommandSender sender, ArrayList<String> tail) {
+        if (tail.size() != 1) {
+            showUsage(sender, "maintain");
+        } else {
+            PopulationReconciler reconciler = _plugin.getPopulationReconciler();
+            List<String> unloaded = reconciler.getUnloadedIds();
+            if (reconciler.getPopulations().isEmpty() && unloaded.isEmpty()) {
+                sender.sendMessage(_failureColour + "There are no maintained populations.");
+            } else {
+                sender.sendMessage(_successColour + "Maintained populations:");
+                for (MaintainedPopulation population : reconciler.getPopulations()) {
+                    population.describe(sender);
+                }
+                if (!unloaded.isEmpty()) {
+                    sender.sendMessage(_failureColour + "Not loaded, due to errors or unloaded worlds: " +
+                                       String.join(", ", unloaded));
+                }
+            }
+        }
+    } // onCommandDoppelMaintainList
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /doppel stats [reset].
+     *
+     * Show performance statistics, such as the hit rate of the per-tick volume
+     * query cache and the latencies of hot paths and commands, or reset the
+     * latencies.
+     *
+     * @param sender the issuer of the command.
+     * @param args command arguments after the initial /doppel.
+     */
+    @SubCommandHandler(parent = "doppel", name = "stats", permission = "doppelganger.stats")
+    public void onCommandDoppelStats(CommandSender sender, String[] args) {
+        ArrayList<String> tail = tail(args, 1);
+        if (tail.size() == 1 && tail.get(0).equals("reset")) {
+            _plugin.getStatistics().reset();
+            sender.sendMessage(_successColour + "Performance statistics reset.");
+            return;
+        } else if (tail.size() != 0) {
+            showUsage(sender, "stats");
+            return;
+        }
+
+        QueryCache cache = _plugin.getQueryCache();
+        long queries = cache.getHits() + cache.getMisses();
+        double hitRate = (queries == 0) ? 0.0 : 100.0 * cache.getHits() / queries;
+        sender.sendMessage(String.format("%sVolume queries: %s%d hits, %d misses (%.1f%% hit rate)",
+                                         _successColour, ChatColor.YELLOW, cache.getHits(), cache.getMisses(), hitRate));
+        sender.sendMessage(String.format("%sLoaded doppelgangers: %s%d",
+                                         _successColour, ChatColor.YELLOW, _plugin.getDoppelgangerIndex().size()));
+
+        sender.sendMessage(_successColour + "Latencies (calls, p50, p99, max):");
+        for (Map.Entry<String, LatencyHistogram> entry : _plugin.getStatistics().getHistograms()) {
+            LatencyHistogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            sender.sendMessage(String.format("%s%s: %s%d, %s, %s, %s",
+                                             _successColour, entry.getKey(), ChatColor.YELLOW, count,
+                                             formatNanos(histogram.getPercentileNanos(50)),
+                                             formatNanos(histogram.getPercentileNanos(99)),
+                                             formatNanos(histogram.getMaxNanos())));
+        }
+    } // onCommandDoppelStats
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /doppel trace [start [file [replace]] | stop].
+     *
+     * Start or stop recording events to a trace file for replay, or show the
+     * state of the current or most recent trace.
+     *
+     * @param sender the issuer of the command.
+     * @param args command arguments after the initial /doppel.
+     */
+    @SubCommandHandler(parent = "doppel", name = "trace", permission = "doppelganger.trace")
+    public void onCommandDoppelTrace(CommandSender sender, String[] args) {
+        TraceRecorder recorder = _plugin.getTraceRecorder();
+        ArrayList<String> tail = tail(args, 1);
+        if (tail.size() == 0) {
+            if (recorder.isRecording()) {
+                sender.sendMessage(String.format("%sTracing to %s%s%s for %d ticks: %d records written, %d dropped.",
+                                                 _successColour, ChatColor.YELLOW, recorder.getFile().getName(), _successColour,
+                                                 recorder.getTicks(), recorder.getWrittenCount(), recorder.getDroppedCount()));
+            } else if (recorder.getFile() != null) {
+                sender.sendMessage(String.format("%sNot tracing. The last trace, %s%s%s, has %d records written%s.",
+                                                 _successColour, ChatColor.YELLOW, recorder.getFile().getName(), _successColour,
+                                                 recorder.getWrittenCount(), recorder.isWriting() ? " so far" : ""));
+            } else {
+                sender.sendMessage(_successColour + "Not tracing.");
+            }
+        } else if (tail.get(0).equals("start") && (tail.size() <= 2 || (tail.size() == 3 && tail.get(2).equals("replace")))) {
+            if (recorder.isRecording()) {
+                sender.sendMessage(_failureColour + "Already tracing to " + recorder.getFile().getName() + ".");
+                return;
+            }
+            File file = recorder.getTraceFile((tail.size() == 2) ? tail.get(1) : null);
+            if (file == null) {
+                sender.sendMessage(_failureColour + "Trace file names can only contain letters, digits, '.', '_' and '-'.");
+                return;
+            }
+            try {
+                recorder.start(file, tail.size() == 3);
+                sender.sendMessage(_successColour + "Tracing to " + ChatColor.YELLOW + file.getPath() + _successColour + ".");
+            } catch (FileAlreadyExistsException ex) {
+                sender.sendMessage(_failureColour + file.getName() + " already exists. Add \"replace\" to overwrite it.");
+            } catch (IOException ex) {
+                sender.sendMessage(_failureColour + "Can't trace to " + file.getPath() + ": " + ex.getMessage());
+            }
+        } else if (tail.get(0).equals("stop") && tail.size() == 1) {
+            if (!recorder.isRecording()) {
+                sender.sendMessage(_failureColour + "Not tracing.");
+                return;
+            }
+            recorder.stop();
+            sender.sendMessage(String.format("%sStopped tracing to %s%s%s after %d ticks, with %d records dropped. " +
+                                             "Queued records are being written; /doppel trace shows the final count.",
+                                             _successColour, ChatColor.YELLOW, recorder.getFile().getPath(), _successColour,
+                                             recorder.getTicks(), recorder.getDroppedCount()));
+            if (recorder.getFailure() != null) {
+                sender.sendMessage(_failureColour + "The trace is incomplete: " + recorder.getFailure());
+            }
+        } else {
+            showUsage(sender, "trace");
+        }
+    } // onCommandDoppelTrace
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start timing a /doppel subcommand for the {@link TickWatchdog}.
+     *
+     * @see com.amoebaman.kitmaster.utilities.CommandController.SubCommandTimer#subCommandStarted(String)
+     */
+    @Override
+    public void subCommandStarted(String name) {
+        _plugin.getWatchdog().begin();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the time taken by a /doppel subcommand.
+     *
+     * @see com.amoebaman.kitmaster.utilities.CommandController.SubCommandTimer#subCommandTimed(String,
+     *      long)
+     */
+    @Override
+    public void subCommandTimed(String name, long nanos) {
+        _plugin.getStatistics().getCommand(name).record(nanos);
+        _plugin.getWatchdog().end("/doppel " + name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a duration for /doppel stats, in microseconds below one
+     * millisecond and in milliseconds above.
+     *
+     * @param nanos the duration in nanoseconds.
+     * @return the formatted duration.
+     */
+    protected static String formatNanos(long nanos) {
+        return (nanos < 1000000) ? String.format("%.1f\u00b5s", nanos / 1e3) : String.format("%.2fms", nanos / 1e6);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Complete the arguments of /doppel subcommands after the subcommand name.
+     * 
+     * Creature types, shapes and player names are looked up in the prefix
+     * tries built by {@link CreatureFactory#load(org.bukkit.configuration.ConfigurationSection, Logger)}.
+     * At most {@link #MAX_COMPLETIONS} results are returned.
+     * 
+     * @see org.bukkit.command.TabCompleter#onTabComplete(CommandSender,
+     *      Command, String, String[])
+     */
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        String subcommand = args[0].toLowerCase();
+        if (!sender.hasPermission("doppelganger." + subcommand)) {
+            return Collections.emptyList();
+        }
+
+        CreatureFactory factory = _plugin.getCreatureFactory();
+        String prefix = args[args.length - 1];
+        int index = args.length - 1;
+        if (subcommand.equals("help")) {
+            if (index == 1) {
+                return completeFrom(prefix, _help.getTopics());
+            }
+        } else if (subcommand.equals("info")) {
+            if (index == 1) {
+                return completeFrom(prefix, INFO_KEYWORDS);
+            } else if (index == 2) {
+                if (args[1].equals("shape")) {
+                    return factory.completeShapeName(prefix, MAX_COMPLETIONS);
+                } else if (args[1].equals("creature")) {
+                    return factory.completeCreatureType(prefix, MAX_COMPLETIONS);
+                } else if (args[1].equals("player")) {
+                    return factory.completePlayerName(prefix, MAX_COMPLETIONS);
+                }
+            }
+        } else if (subcommand.equals("spawn")) {
+            if (index == 1) {
+                return completeFrom(prefix, SPAWN_KEYWORDS);
+            }
+
+            // The creature type follows "here" or "at [world] x y z".
+            int typeIndex = 2;
+            if (args[1].equals("at")) {
+                if (index == 2) {
+                    return completeWorldName(sender, prefix);
+                }
+                typeIndex = (sender.getServer().getWorld(args[2]) != null) ? 6 : 5;
+            }
+            if (index == typeIndex) {
+                return factory.completeCreatureType(prefix, MAX_COMPLETIONS);
+            } else if (index == typeIndex + 1) {
+                List<String> completions = factory.completePlayerName(prefix, MAX_COMPLETIONS);
+                if ("count".startsWith(prefix.toLowerCase()) && completions.size() < MAX_COMPLETIONS) {
+                    completions.add("count");
+                }
+                return completions;
+            }
+        } else if (subcommand.equals("kill")) {
+            if (index == 1) {
+                return completeFrom(prefix, KILL_KEYWORDS);
+            } else if (args[1].equals("bulk")) {
+                String previous = args[index - 1];
+                if (previous.equals("world")) {
+                    return completeWorldName(sender, prefix);
+                } else if (previous.equals("type")) {
+                    return factory.completeCreatureType(prefix, MAX_COMPLETIONS);
+                } else if (!previous.equals("name")) {
+                    return completeFrom(prefix, KILL_BULK_KEYWORDS);
+                }
+            }
+        } else if (subcommand.equals("stats")) {
+            if (index == 1) {
+                return completeFrom(prefix, STATS_KEYWORDS);
+            }
+        } else if (subcommand.equals("trace")) {
+            if (index == 1) {
+                return completeFrom(prefix, TRACE_KEYWORDS);
+            } else if (index == 3 && args[1].equals("start")) {
+                return completeFrom(prefix, TRACE_START_KEYWORDS);
+            }
+        } else if (subcommand.equals("maintain")) {
+            if (index == 1) {
+                return completeFrom(prefix, MAINTAIN_KEYWORDS);
+            } else if (index == 2 && args[1].equals("remove")) {
+                ArrayList<String> ids = new ArrayList<String>();
+                for (MaintainedPopulation population : _plugin.getPopulationReconciler().getPopulations()) {
+                    ids.add(population.getId());
+                }
+                return completeFrom(prefix, ids);
+            }
+        }
+        return Collections.emptyList();
+    } // onTabComplete
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to {@link #MAX_COMPLETIONS} of the specified options that
+     * start with the case-insensitive prefix, in alphabetical order.
      * 
-     * I tried setting the name "<anonymous>" when spawning escorts, but not
-     * showing the name. The client still shows it when at very short range and
-     * for certain view angles only. The name "." is less noticeable, but still
-     * noticeable enough that using a hidden custom name is not a viable way of
-     * marking Doppelganger-spawned mobs.
+     * This is used for short lists of options; large sets of names are
+     * completed by a {@link PrefixTrie}.
      * 
-     * @param name the custom name, which must be visible; if this is null, any
-     *        name will do.
-     * @param volume the volume to be searched for doppelgangers.
-     * @return a list of the matching LivingEntity instances.
+     * @param prefix the prefix.
+     * @param options the options.
+     * @return the matching options.
      */
-    protected ArrayList<LivingEntity> findDoppelgangers(String name, Volume volume) {
-        ArrayList<LivingEntity> doppelgangers = new ArrayList<LivingEntity>();
-        for (LivingEntity living : volume.getWorld().getLivingEntities()) {
-            if (living.isCustomNameVisible() &&
-                (name == null || name.equals(living.getCustomName())) &&
-                volume.contains(living.getLocation())) {
-                doppelgangers.add(living);
+    protected static List<String> completeFrom(String prefix, Collection<String> options) {
+        String lowerPrefix = prefix.toLowerCase();
+        ArrayList<String> completions = new ArrayList<String>();
+        for (String option : options) {
+            if (option.toLowerCase().startsWith(lowerPrefix)) {
+                completions.add(option);
             }
         }
-        return doppelgangers;
+        Collections.sort(completions, String.CASE_INSENSITIVE_ORDER);
+        return (completions.size() > MAX_COMPLETIONS) ? completions.subList(0, MAX_COMPLETIONS) : completions;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the names of loaded worlds that start with the case-insensitive
+     * prefix.
+     * 
+     * @param sender the command sender.
+     * @param prefix the prefix.
+     * @return the matching world names.
+     */
+    protected static List<String> completeWorldName(CommandSender sender, String prefix) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (World world : sender.getServer().getWorlds()) {
+            names.add(world.getName());
+        }
+        return completeFrom(prefix, names);
     }
 
     // ------------------------------------------------------------------------
@@ -364,6 +942,9 @@ public class Commands {
      * Spawn a doppelganger with the specified type and optional name at the
      * Location.
      * 
+     * If the chunk at the Location is not loaded, the chunk is loaded without
+     * blocking the current tick and the doppelganger is spawned afterwards.
+     * 
      * Give feedback to the command sender and log successful spawns and
      * unexpected failures.
      * 
@@ -371,35 +952,74 @@ public class Commands {
      * @param type the creature type name.
      * @param name the name of the creature; if null, the creature is anonymous.
      * @param loc the Location where the creature will spawn.
+     * @return a future completed on the main thread with the spawned creature,
+     *         or null if it could not be spawned; null if no spawn was
+     *         attempted.
      */
-    protected void spawnAndLog(CommandSender sender, String type, String name, Location loc) {
-        String nameClause = (name == null) ? "" : " named " + name;
+    protected CompletableFuture<LivingEntity> spawnAndLog(final CommandSender sender, final String type, String name,
+                                                          final Location loc) {
+        final String nameClause = (name == null) ? "" : " named " + name;
         if (_plugin.getCreatureFactory().isValidCreatureType(type)) {
-            LivingEntity doppelganger = _plugin.spawnDoppelganger(type, name, loc);
-            if (doppelganger == null) {
-                sender.sendMessage(String.format(
-                                                 "%sSpawning a %s%s at (%d,%d,%d) in %s failed unexpectedly.",
+            if (!_plugin.getDoppelgangerIndex().canSpawn(type, loc)) {
+                sender.sendMessage(String.format("%sCan't spawn a %s%s at (%d,%d,%d) in %s because a population cap has been reached.",
                                                  _failureColour, type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
                                                  loc.getWorld().getName()));
-                _plugin.getLogger().info(String.format(
-                                                       "%s tried to spawn a %s named %s at (%d,%d,%d) in %s but it failed unexpectedly.",
-                                                       sender.getName(), type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
-                                                       loc.getWorld().getName()));
+                return null;
+            }
+
+            if (loc.getWorld().isChunkLoaded(loc.getBlockX() >> 4, loc.getBlockZ() >> 4)) {
+                LivingEntity doppelganger = _plugin.spawnDoppelganger(type, name, loc);
+                reportSpawn(sender, type, nameClause, loc, doppelganger);
+                return CompletableFuture.completedFuture(doppelganger);
             } else {
-                sender.sendMessage(String.format(
-                                                 "%sSpawned a %s%s at (%d,%d,%d) in %s.",
-                                                 _successColour, type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
-                                                 loc.getWorld().getName()));
-                _plugin.getLogger().info(String.format(
-                                                       "%s spawned a %s%s at (%d,%d,%d) in %s.",
-                                                       sender.getName(), type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
-                                                       loc.getWorld().getName()));
+                return _plugin.spawnDoppelgangerAsync(type, name, loc).whenComplete(new BiConsumer<LivingEntity, Throwable>() {
+                    @Override
+                    public void accept(LivingEntity doppelganger, Throwable error) {
+                        if (error != null) {
+                            _plugin.getLogger().warning("Asynchronous spawn failed: " + error);
+                        }
+                        reportSpawn(sender, type, nameClause, loc, doppelganger);
+                    }
+                });
             }
         } else {
             sender.sendMessage(String.format("%s\"%s\" is not a valid creature type.", _failureColour, type));
+            return null;
         }
     } // spawnAndLog
 
+    // ------------------------------------------------------------------------
+    /**
+     * Give feedback to the command sender and log the outcome of a spawn.
+     * 
+     * @param sender the command sender.
+     * @param type the creature type name.
+     * @param nameClause " named " followed by the name, or the empty string.
+     * @param loc the Location where the creature was to spawn.
+     * @param doppelganger the spawned creature, or null if it failed.
+     */
+    protected void reportSpawn(CommandSender sender, String type, String nameClause, Location loc, LivingEntity doppelganger) {
+        if (doppelganger == null) {
+            sender.sendMessage(String.format(
+                                             "%sSpawning a %s%s at (%d,%d,%d) in %s failed unexpectedly.",
+                                             _failureColour, type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                                             loc.getWorld().getName()));
+            _plugin.getLogger().info(String.format(
+                                                   "%s tried to spawn a %s named %s at (%d,%d,%d) in %s but it failed unexpectedly.",
+                                                   sender.getName(), type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                                                   loc.getWorld().getName()));
+        } else {
+            sender.sendMessage(String.format(
+                                             "%sSpawned a %s%s at (%d,%d,%d) in %s.",
+                                             _successColour, type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                                             loc.getWorld().getName()));
+            _plugin.getLogger().info(String.format(
+                                                   "%s spawned a %s%s at (%d,%d,%d) in %s.",
+                                                   sender.getName(), type, nameClause, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                                                   loc.getWorld().getName()));
+        }
+    } // reportSpawn
+
     // ------------------------------------------------------------------------
     /**
      * Show the correct usage syntax of the subcommand corresponding to topic.
@@ -601,6 +1221,52 @@ public class Commands {
         return null;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Convert a pattern where '*' matches any sequence of characters and '?'
+     * matches any single character into an equivalent regular expression.
+     * 
+     * @param glob the pattern.
+     * @return the compiled regular expression.
+     */
+    protected static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append((c == '*') ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Attempt to parse an integer value from args.get(index).
+     * 
+     * @param args the command line arguments in a List<>.
+     * @param index the index into args.
+     * @return the parsed integer value, or null on error.
+     */
+    protected static Integer parseInteger(ArrayList<String> args, int index) {
+        if (index >= 0 && index < args.size()) {
+            try {
+                return Integer.parseInt(args.get(index));
+            } catch (Exception ex) {
+                // Silent.
+            }
+        }
+        return null;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Parse a volume from the command line arguments and return a Volume
@@ -736,6 +1402,51 @@ public class Commands {
      */
     protected static final ChatColor _successColour = ChatColor.GOLD;
 
+    /**
+     * The maximum number of tab completions offered.
+     */
+    protected static final int MAX_COMPLETIONS = 50;
+
+    /**
+     * Keywords following /doppel info.
+     */
+    protected static final List<String> INFO_KEYWORDS = Arrays.asList("list", "shape", "creature", "player");
+
+    /**
+     * Keywords following /doppel spawn.
+     */
+    protected static final List<String> SPAWN_KEYWORDS = Arrays.asList("here", "at");
+
+    /**
+     * Keywords following /doppel kill.
+     */
+    protected static final List<String> KILL_KEYWORDS = Arrays.asList("sphere", "box", "bulk");
+
+    /**
+     * Keywords of /doppel kill bulk.
+     */
+    protected static final List<String> KILL_BULK_KEYWORDS = Arrays.asList("all", "world", "type", "name");
+
+    /**
+     * Keywords following /doppel maintain.
+     */
+    protected static final List<String> MAINTAIN_KEYWORDS = Arrays.asList("at", "add", "remove", "list");
+
+    /**
+     * Keywords completed after /doppel stats.
+     */
+    protected static final List<String> STATS_KEYWORDS = Arrays.asList("reset");
+
+    /**
+     * Keywords completed after /doppel trace.
+     */
+    protected static final List<String> TRACE_KEYWORDS = Arrays.asList("start", "stop");
+
+    /**
+     * Keywords completed after /doppel trace start file.
+     */
+    protected static final List<String> TRACE_START_KEYWORDS = Arrays.asList("replace");
+
     /**
      * Default colour of messages on failure.
      */
@@ -750,4 +1461,11 @@ public class Commands {
      * Handles help messages.
      */
     protected Help _help;
+
+    /**
+     * Map from doppelganger name to the volumes in which /doppel maintain is
+     * waiting for an asynchronous spawn of that doppelganger; only accessed
+     * from the main thread.
+     */
+    protected HashMap<String, HashSet<Volume>> _pendingMaintainSpawns = new HashMap<String, HashSet<Volume>>();
 } // class Commands
\ No newline at end of file
@@ -0,0 +1,407 @@
+package io.github.totemo.doppelganger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+// ----------------------------------------------------------------------------
+/**
+ * Stores the compiled shapes and creature types in a binary file in the
+ * plugin's data folder, so that an unchanged configuration can be loaded
+ * without compiling it again.
+ *
+ * The file begins with a header containing the {@link #FORMAT} of the file
+ * and a key computed from the text of the configuration files, the plugin
+ * version and the server version. The cached {@link CreatureFactory.Snapshot}
+ * is only used if both match; otherwise, or if the file can't be decoded, the
+ * caller compiles the configuration and writes a new cache. The warnings
+ * logged by that compilation are stored with the snapshot and logged again
+ * whenever it is loaded.
+ *
+ * The snapshot is written field by field, by
+ * {@link CreatureFactory.Snapshot#encode(DataOutputStream)} and the encode()
+ * methods of the classes it contains, and decoded directly from the memory
+ * mapped file by the corresponding decode() methods. This class provides the
+ * encoding of the values they have in common. Strings are written as their
+ * length in bytes followed by their UTF-8 encoding, a length of -1 denoting
+ * null. Enum constants are written as their names. Nullable numbers and
+ * booleans are preceded by a boolean that is true if they are present.
+ */
+public class ConfigCache {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param path the path of the cache file.
+     * @param version the versions of the plugin and server, which form part of
+     *        every key.
+     * @param logger the Logger.
+     */
+    public ConfigCache(Path path, String version, Logger logger) {
+        _path = path;
+        _version = version;
+        _logger = logger;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the key identifying the compiled form of the specified
+     * configuration text.
+     *
+     * @param parts the text of the configuration files, and anything else
+     *        that the compiled form depends on, such as file names.
+     * @return the hexadecimal SHA-256 hash of the parts and the versions.
+     */
+    public String getKey(List<String> parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(_version.getBytes(StandardCharsets.UTF_8));
+            for (String part : parts) {
+                // Prefix each part with its length so that the boundaries
+                // between parts are part of the key.
+                byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+                digest.update(bytes);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b & 0xFF));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the cached snapshot with the specified key, or null if there is
+     * no cache, it has a different key, or it can't be decoded.
+     *
+     * The warnings logged when the configuration was compiled are logged
+     * again, so that errors in the configuration are reported on every load.
+     *
+     * The header is read with ordinary reads; only if the key matches is the
+     * rest of the file memory mapped and decoded. That way an out of date
+     * cache is never mapped when {@link #write(String,
+     * CreatureFactory.Snapshot, List)} replaces it, which fails on platforms
+     * that don't allow a mapped file to be replaced.
+     *
+     * @param key the key returned by {@link #getKey(List)}.
+     * @return the cached snapshot, or null.
+     */
+    public CreatureFactory.Snapshot read(String key) {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+            if (header.readInt() != MAGIC || header.readInt() != FORMAT || !key.equals(header.readUTF())) {
+                _logger.info("The compiled configuration cache is out of date.");
+                return null;
+            }
+
+            long position = channel.position();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+            int warningCount = readCount(in);
+            ArrayList<LogRecord> warnings = new ArrayList<LogRecord>();
+            for (int i = 0; i < warningCount; ++i) {
+                Level level = Level.parse(readString(in));
+                warnings.add(new LogRecord(level, readString(in)));
+            }
+            CreatureFactory.Snapshot snapshot = CreatureFactory.Snapshot.decode(in);
+            if (in.hasRemaining()) {
+                throw new IOException(in.remaining() + " unexpected bytes at the end");
+            }
+            for (LogRecord warning : warnings) {
+                _logger.log(warning);
+            }
+            _logger.info(String.format("Loaded compiled configuration from cache in %.1f ms.",
+                                       (System.nanoTime() - start) / 1e6));
+            return snapshot;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            _logger.warning("Could not decode the compiled configuration cache; compiling instead: " + ex);
+            return null;
+        }
+    } // read
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the specified snapshot to the cache, with the warnings logged
+     * when it was compiled.
+     *
+     * The file is written under a unique temporary name and then renamed, so
+     * that a concurrent read never sees a partially written cache. Failures are
+     * logged but otherwise ignored, since the cache is only an optimisation.
+     *
+     * @param key the key returned by {@link #getKey(List)}.
+     * @param snapshot the compiled configuration.
+     * @param warnings the warnings logged when the configuration was
+     *        compiled.
+     */
+    public void write(String key, CreatureFactory.Snapshot snapshot, List<LogRecord> warnings) {
+        long start = System.nanoTime();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(_path.getParent(), "compiled", ".tmp");
+            try (OutputStream file = Files.newOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeUTF(key);
+                out.writeInt(warnings.size());
+                for (LogRecord warning : warnings) {
+                    writeString(out, warning.getLevel().getName());
+                    writeString(out, warning.getMessage());
+                }
+                snapshot.encode(out);
+                out.flush();
+            }
+            Files.move(temp, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            _logger.info(String.format("Wrote compiled configuration cache in %.1f ms.", (System.nanoTime() - start) / 1e6));
+        } catch (IOException | RuntimeException ex) {
+            _logger.warning("Could not write the compiled configuration cache: " + ex);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex2) {
+                    // Ignored.
+                }
+            }
+        }
+    } // write
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the cache file, if it exists.
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(_path);
+        } catch (IOException ex) {
+            _logger.warning("Could not delete the compiled configuration cache: " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a string, which can be null.
+     *
+     * @param out the stream.
+     * @param value the string, or null.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in the buffer.
+     * @return the string, or null.
+     * @throws IOException if the length is invalid.
+     */
+    public static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the number of elements that follow.
+     *
+     * Every element occupies at least one byte, so a count greater than the
+     * number of remaining bytes shows that the file is corrupt.
+     *
+     * @param in the buffer.
+     * @return the count.
+     * @throws IOException if the count is invalid.
+     */
+    public static int readCount(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("invalid count " + count);
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an enum constant, which can be null, as its name.
+     *
+     * @param out the stream.
+     * @param value the constant, or null.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException {
+        writeString(out, (value != null) ? value.name() : null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an enum constant written by
+     * {@link #writeEnum(DataOutputStream, Enum)}.
+     *
+     * @param in the buffer.
+     * @param type the enum class.
+     * @return the constant, or null.
+     * @throws IOException if there is no constant with the written name.
+     */
+    public static <E extends Enum<E>> E readEnum(ByteBuffer in, Class<E> type) throws IOException {
+        String name = readString(in);
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("unknown " + type.getSimpleName() + " " + name);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a Boolean that can be null.
+     *
+     * @param out the stream.
+     * @param value the value, or null.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void writeNullable(DataOutputStream out, Boolean value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeBoolean(value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an Integer that can be null.
+     *
+     * @param out the stream.
+     * @param value the value, or null.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void writeNullable(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a Double that can be null.
+     *
+     * @param out the stream.
+     * @param value the value, or null.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void writeNullable(DataOutputStream out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a Boolean written by
+     * {@link #writeNullable(DataOutputStream, Boolean)}.
+     *
+     * @param in the buffer.
+     * @return the value, or null.
+     */
+    public static Boolean readNullableBoolean(ByteBuffer in) {
+        return (in.get() != 0) ? (in.get() != 0) : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an Integer written by
+     * {@link #writeNullable(DataOutputStream, Integer)}.
+     *
+     * @param in the buffer.
+     * @return the value, or null.
+     */
+    public static Integer readNullableInteger(ByteBuffer in) {
+        return (in.get() != 0) ? in.getInt() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a Double written by
+     * {@link #writeNullable(DataOutputStream, Double)}.
+     *
+     * @param in the buffer.
+     * @return the value, or null.
+     */
+    public static Double readNullableDouble(ByteBuffer in) {
+        return (in.get() != 0) ? in.getDouble() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies a Doppelganger cache file: "DPGC".
+     */
+    protected static final int MAGIC = 0x44504743;
+
+    /**
+     * Version of the file format, including the encoding of the snapshot by
+     * the encode() methods of {@link CreatureFactory.Snapshot},
+     * {@link CreatureShape}, {@link CreatureType} and
+     * {@link WeightedSelection}. It must be incremented whenever any of them
+     * changes, so that a cache written by another build is not decoded.
+     */
+    public static final int FORMAT = 3;
+
+    /**
+     * The path of the cache file.
+     */
+    protected Path _path;
+
+    /**
+     * The versions of the plugin and server.
+     */
+    protected String _version;
+
+    /**
+     * The Logger.
+     */
+    protected Logger _logger;
+} // class ConfigCache
@@ -0,0 +1,597 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+// ----------------------------------------------------------------------------
+/**
+ * Declares the settings allowed in one kind of configuration section or list
+ * entry, and their types.
+ *
+ * A schema is built once, as a set of static {@link Key}s, and then binds any
+ * number of sections. Binding reads each entry of a section exactly once,
+ * converts it to the declared type and stores it in a slot of a
+ * {@link Values} instance, from which it is retrieved by Key without any
+ * further lookup or conversion. Unknown settings and values of the wrong type
+ * are logged with their full path; a value of the wrong type is then treated
+ * as if it were not set, so that the caller's default applies.
+ *
+ * Sections are read with ConfigurationSection.getValues(false), so values are
+ * never inherited from the defaults of the configuration root, and list
+ * entries, which are plain maps, are bound in exactly the same way.
+ */
+public class ConfigSchema {
+    // ------------------------------------------------------------------------
+    /**
+     * The type of a setting.
+     */
+    public enum Type {
+        /**
+         * Any scalar value, converted to a String.
+         */
+        STRING("a string"),
+
+        /**
+         * true or false.
+         */
+        BOOLEAN("true or false"),
+
+        /**
+         * A number, converted to an Integer.
+         */
+        INTEGER("an integer"),
+
+        /**
+         * A number, converted to a Double.
+         */
+        DOUBLE("a number"),
+
+        /**
+         * A list of scalars, each converted to a String.
+         */
+        STRING_LIST("a list of strings"),
+
+        /**
+         * A list of numbers, each converted to an Integer.
+         */
+        INTEGER_LIST("a list of integers"),
+
+        /**
+         * A list of numbers.
+         */
+        NUMBER_LIST("a list of numbers"),
+
+        /**
+         * A nested section, bound by a child schema.
+         */
+        SECTION("a section"),
+
+        /**
+         * A list of entries, each bound by a child schema.
+         */
+        SECTION_LIST("a list of entries");
+
+        /**
+         * Constructor.
+         *
+         * @param description describes the type in messages.
+         */
+        Type(String description) {
+            _description = description;
+        }
+
+        /**
+         * Describes the type in messages.
+         */
+        final String _description;
+    } // enum Type
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies a setting of a schema and the slot where its value is stored.
+     */
+    public static final class Key {
+        /**
+         * Constructor.
+         *
+         * @param name the name of the setting.
+         * @param type the type of the setting.
+         * @param slot the index of the value in {@link Values}.
+         * @param child the schema of a nested section or list entry, or null.
+         */
+        Key(String name, Type type, int slot, ConfigSchema child) {
+            this.name = name;
+            this.type = type;
+            this.slot = slot;
+            this.child = child;
+        }
+
+        /**
+         * The name of the setting.
+         */
+        final String name;
+
+        /**
+         * The type of the setting.
+         */
+        final Type type;
+
+        /**
+         * The index of the value in {@link Values}.
+         */
+        final int slot;
+
+        /**
+         * The schema of a nested section or list entry, or null.
+         */
+        final ConfigSchema child;
+    } // inner class Key
+
+    // ------------------------------------------------------------------------
+    /**
+     * The values of one section, bound by a schema.
+     */
+    public static final class Values {
+        /**
+         * Constructor.
+         *
+         * @param schema the schema.
+         * @param name the name of the section.
+         * @param path the full path of the section, for messages.
+         */
+        Values(ConfigSchema schema, String name, String path) {
+            _schema = schema;
+            _name = name;
+            _path = path;
+            _values = new Object[schema._keys.size()];
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the name of the section.
+         *
+         * @return the name of the section.
+         */
+        public String getName() {
+            return _name;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the full path of the section, for messages.
+         *
+         * @return the full path of the section.
+         */
+        public String getPath() {
+            return _path;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if the setting has a value of the correct type.
+         *
+         * @param key the setting.
+         * @return true if the setting has a value of the correct type.
+         */
+        public boolean isSet(Key key) {
+            return slot(key) != null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of a {@link Type#STRING} setting.
+         *
+         * @param key the setting.
+         * @param def the default value.
+         * @return the value, or the default if not set.
+         */
+        public String getString(Key key, String def) {
+            Object value = slot(key);
+            return (value != null) ? (String) value : def;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of a {@link Type#BOOLEAN} setting.
+         *
+         * @param key the setting.
+         * @param def the default value.
+         * @return the value, or the default if not set.
+         */
+        public Boolean getBoolean(Key key, Boolean def) {
+            Object value = slot(key);
+            return (value != null) ? (Boolean) value : def;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of an {@link Type#INTEGER} setting.
+         *
+         * @param key the setting.
+         * @param def the default value.
+         * @return the value, or the default if not set.
+         */
+        public Integer getInteger(Key key, Integer def) {
+            Object value = slot(key);
+            return (value != null) ? (Integer) value : def;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of a {@link Type#DOUBLE} setting.
+         *
+         * @param key the setting.
+         * @param def the default value.
+         * @return the value, or the default if not set.
+         */
+        public Double getDouble(Key key, Double def) {
+            Object value = slot(key);
+            return (value != null) ? (Double) value : def;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of a {@link Type#STRING_LIST},
+         * {@link Type#INTEGER_LIST} or {@link Type#NUMBER_LIST} setting.
+         *
+         * @param key the setting.
+         * @return the value, or null if not set.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> List<T> getList(Key key) {
+            return (List<T>) slot(key);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of a {@link Type#SECTION} setting.
+         *
+         * @param key the setting.
+         * @return the bound section, or null if not set.
+         */
+        public Values getSection(Key key) {
+            return (Values) slot(key);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value of a {@link Type#SECTION_LIST} setting.
+         *
+         * @param key the setting.
+         * @return the bound entries; empty if not set.
+         */
+        @SuppressWarnings("unchecked")
+        public List<Values> getSections(Key key) {
+            Object value = slot(key);
+            return (value != null) ? (List<Values>) value : Collections.<Values> emptyList();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the value in the slot of the specified key, after checking
+         * that the key belongs to this schema.
+         *
+         * @param key the setting.
+         * @return the value, or null if not set.
+         */
+        protected Object slot(Key key) {
+            if (_schema._keys.get(key.slot) != key) {
+                throw new IllegalArgumentException(key.name + " is not a setting of " + _schema._description);
+            }
+            return _values[key.slot];
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The schema.
+         */
+        final ConfigSchema _schema;
+
+        /**
+         * The name of the section.
+         */
+        final String _name;
+
+        /**
+         * The full path of the section, for messages.
+         */
+        final String _path;
+
+        /**
+         * The converted values, indexed by {@link Key#slot}.
+         */
+        final Object[] _values;
+    } // inner class Values
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param description describes the kind of section in messages.
+     */
+    public ConfigSchema(String description) {
+        _description = description;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Declare a scalar or list setting.
+     *
+     * @param name the name of the setting.
+     * @param type the type of the setting; not SECTION or SECTION_LIST.
+     * @return the Key used to retrieve the value.
+     */
+    public Key add(String name, Type type) {
+        if (type == Type.SECTION || type == Type.SECTION_LIST) {
+            throw new IllegalArgumentException(name + " needs a child schema");
+        }
+        return add(name, type, null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Declare a nested section or list of entries.
+     *
+     * @param name the name of the setting.
+     * @param type SECTION or SECTION_LIST.
+     * @param child the schema of the section or of each entry.
+     * @return the Key used to retrieve the value.
+     */
+    public Key add(String name, Type type, ConfigSchema child) {
+        if (_keysByName.containsKey(name)) {
+            throw new IllegalArgumentException(name + " is already a setting of " + _description);
+        }
+        Key key = new Key(name, type, _keys.size(), child);
+        _keys.add(key);
+        _keysByName.put(name, key);
+        return key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Bind the values of a configuration section.
+     *
+     * @param section the section.
+     * @param logger logs unknown settings and values of the wrong type.
+     * @return the values.
+     */
+    public Values bind(ConfigurationSection section, Logger logger) {
+        return bind(section.getValues(false), section.getName(), section.getCurrentPath(), logger);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Bind the values of a map, such as an entry of a list.
+     *
+     * @param map the map.
+     * @param name the name of the map.
+     * @param path the full path of the map, for messages.
+     * @param logger logs unknown settings and values of the wrong type.
+     * @return the values.
+     */
+    public Values bind(Map<?, ?> map, String name, String path, Logger logger) {
+        Values values = new Values(this, name, path);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            String entryName = String.valueOf(entry.getKey());
+            Key key = _keysByName.get(entryName);
+            if (key == null) {
+                String suggestion = suggest(entryName);
+                logger.warning(path + "." + entryName + " is not a setting of " + _description +
+                               ((suggestion != null) ? "; did you mean " + suggestion + "?" : "."));
+            } else if (entry.getValue() != null) {
+                values._values[key.slot] = convert(key, entry.getValue(), path + "." + entryName, logger);
+            }
+        }
+        return values;
+    } // bind
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert a raw configuration value to the type of a setting.
+     *
+     * @param key the setting.
+     * @param value the raw value; not null.
+     * @param path the full path of the value, for messages.
+     * @param logger logs values of the wrong type.
+     * @return the converted value, or null if it is of the wrong type.
+     */
+    protected static Object convert(Key key, Object value, String path, Logger logger) {
+        Object result = null;
+        switch (key.type) {
+        case STRING:
+            if (isScalar(value)) {
+                result = value.toString();
+            }
+            break;
+
+        case BOOLEAN:
+            if (value instanceof Boolean) {
+                result = value;
+            }
+            break;
+
+        case INTEGER:
+            if (value instanceof Number) {
+                result = ((Number) value).intValue();
+            }
+            break;
+
+        case DOUBLE:
+            if (value instanceof Number) {
+                result = ((Number) value).doubleValue();
+            }
+            break;
+
+        case STRING_LIST:
+        case INTEGER_LIST:
+        case NUMBER_LIST:
+            if (value instanceof List<?>) {
+                ArrayList<Object> list = new ArrayList<Object>();
+                for (Object element : (List<?>) value) {
+                    Object converted = convertElement(key.type, element);
+                    if (converted == null) {
+                        list = null;
+                        break;
+                    }
+                    list.add(converted);
+                }
+                result = list;
+            }
+            break;
+
+        case SECTION:
+            if (value instanceof ConfigurationSection) {
+                result = key.child.bind((ConfigurationSection) value, logger);
+            } else if (value instanceof Map<?, ?>) {
+                result = key.child.bind((Map<?, ?>) value, key.name, path, logger);
+            }
+            break;
+
+        case SECTION_LIST:
+            if (value instanceof List<?>) {
+                List<?> elements = (List<?>) value;
+                ArrayList<Values> list = new ArrayList<Values>(elements.size());
+                for (int i = 0; i < elements.size(); ++i) {
+                    Object element = elements.get(i);
+                    String elementPath = path + "[" + i + "]";
+                    if (element instanceof Map<?, ?>) {
+                        list.add(key.child.bind((Map<?, ?>) element, key.name, elementPath, logger));
+                    } else {
+                        logger.warning(elementPath + " should be " + key.child._description + " but is " + describe(element) + ".");
+                    }
+                }
+                result = list;
+            }
+            break;
+        }
+
+        if (result == null) {
+            logger.warning(path + " should be " + key.type._description + " but is " + describe(value) + "; ignoring it.");
+        }
+        return result;
+    } // convert
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert an element of a list setting.
+     *
+     * @param type the type of the list.
+     * @param element the raw element.
+     * @return the converted element, or null if it is of the wrong type.
+     */
+    protected static Object convertElement(Type type, Object element) {
+        if (type == Type.STRING_LIST) {
+            return isScalar(element) ? element.toString() : null;
+        } else if (element instanceof Number) {
+            return (type == Type.INTEGER_LIST) ? (Object) ((Number) element).intValue() : element;
+        } else {
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the value is a string, number, boolean or character.
+     *
+     * @param value the value; can be null.
+     * @return true if the value is a scalar.
+     */
+    protected static boolean isScalar(Object value) {
+        return value instanceof String || value instanceof Number ||
+               value instanceof Boolean || value instanceof Character;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Describe a raw value in a message.
+     *
+     * @param value the value.
+     * @return a description of the value.
+     */
+    protected static String describe(Object value) {
+        if (value instanceof ConfigurationSection || value instanceof Map<?, ?>) {
+            return "a section";
+        } else if (value instanceof List<?>) {
+            return "a list";
+        } else {
+            return "\"" + value + "\"";
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the setting closest to the specified unknown name, or
+     * null if none is close enough to be a likely typo.
+     *
+     * @param name the unknown name.
+     * @return the suggested setting name, or null.
+     */
+    protected String suggest(String name) {
+        String lowerName = name.toLowerCase();
+        String best = null;
+        int bestDistance = MAX_SUGGESTION_DISTANCE + 1;
+        for (Key key : _keys) {
+            int distance = editDistance(lowerName, key.name);
+            if (distance < bestDistance) {
+                best = key.name;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Levenshtein distance between two strings.
+     *
+     * @param a the first string.
+     * @param b the second string.
+     * @return the minimum number of single character edits that turn a into b.
+     */
+    protected static int editDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); ++j) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); ++i) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); ++j) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The largest edit distance between an unknown name and a setting for the
+     * setting to be suggested.
+     */
+    protected static final int MAX_SUGGESTION_DISTANCE = 2;
+
+    /**
+     * Describes the kind of section in messages.
+     */
+    protected String _description;
+
+    /**
+     * The settings, indexed by slot.
+     */
+    protected ArrayList<Key> _keys = new ArrayList<Key>();
+
+    /**
+     * Map from setting name to Key.
+     */
+    protected HashMap<String, Key> _keysByName = new HashMap<String, Key>();
+} // class ConfigSchema
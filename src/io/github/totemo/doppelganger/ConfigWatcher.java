@@ -0,0 +1,215 @@
+package io.github.totemo.doppelganger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// ----------------------------------------------------------------------------
+/**
+ * Watches the plugin's data folder, and selected subdirectories of it, for
+ * changes to configuration files and runs a callback once the changes have
+ * settled.
+ *
+ * Editors and file transfer tools often write a file in several steps, so the
+ * callback runs only after no further changes have been seen for the debounce
+ * period. The watcher runs on its own daemon thread and the callback is run on
+ * that thread.
+ */
+public class ConfigWatcher implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param folder the directory containing the configuration files.
+     * @param subdirectories the names of subdirectories of the folder that
+     *        also contain configuration files; they are watched as soon as
+     *        they are created.
+     * @param debounceMillis the time in milliseconds without changes to wait
+     *        before running the callback.
+     * @param onChange the callback.
+     * @param logger the Logger.
+     */
+    public ConfigWatcher(Path folder, List<String> subdirectories, long debounceMillis, Runnable onChange, Logger logger) {
+        _folder = folder;
+        _subdirectories = subdirectories;
+        _debounceMillis = debounceMillis;
+        _onChange = onChange;
+        _logger = logger;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start watching.
+     *
+     * @throws IOException if the folder cannot be watched.
+     */
+    public void start() throws IOException {
+        _watchService = FileSystems.getDefault().newWatchService();
+        register(_folder);
+        for (String subdirectory : _subdirectories) {
+            Path path = _folder.resolve(subdirectory);
+            if (Files.isDirectory(path)) {
+                register(path);
+            }
+        }
+        _thread = new Thread(this, "Doppelganger config watcher");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop watching.
+     */
+    public void stop() {
+        if (_watchService != null) {
+            try {
+                _watchService.close();
+            } catch (IOException ex) {
+                // Nothing useful to do.
+            }
+            _watchService = null;
+        }
+        if (_thread != null) {
+            _thread.interrupt();
+            _thread = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait for changes to configuration files and run the callback when they
+     * have settled.
+     */
+    @Override
+    public void run() {
+        WatchService watchService = _watchService;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean changed = poll(watchService.take());
+
+                // Keep waiting until no changes are seen for the debounce
+                // period.
+                while (true) {
+                    WatchKey key = watchService.poll(_debounceMillis, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    changed |= poll(key);
+                }
+
+                if (changed) {
+                    try {
+                        _onChange.run();
+                    } catch (RuntimeException ex) {
+                        _logger.severe("Error reloading changed configuration: " + ex);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Stopped.
+        }
+    } // run
+
+    // ------------------------------------------------------------------------
+    /**
+     * Watch the specified directory for changes to its entries.
+     *
+     * @param directory the directory.
+     * @throws IOException if the directory cannot be watched.
+     */
+    protected void register(Path directory) throws IOException {
+        directory.register(_watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Consume the events of a WatchKey and re-arm it.
+     *
+     * Newly created subdirectories of interest are watched from then on.
+     *
+     * @param key the WatchKey.
+     * @return true if any event concerned a configuration file or directory.
+     */
+    protected boolean poll(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (isConfigFile((Path) event.context())) {
+                changed = true;
+            } else if (key.watchable().equals(_folder) && _subdirectories.contains(event.context().toString())) {
+                changed = true;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    try {
+                        register(_folder.resolve((Path) event.context()));
+                    } catch (IOException ex) {
+                        _logger.severe("Can't watch " + event.context() + " for changes: " + ex.getMessage());
+                    }
+                }
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the path, relative to the watched folder, is a
+     * configuration file.
+     *
+     * @param path the relative path.
+     * @return true if the path is a configuration file.
+     */
+    protected boolean isConfigFile(Path path) {
+        String name = path.toString();
+        return name.endsWith(".yml") || name.endsWith(".csv");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The directory containing the configuration files.
+     */
+    protected Path _folder;
+
+    /**
+     * The names of watched subdirectories of the folder.
+     */
+    protected List<String> _subdirectories;
+
+    /**
+     * The time in milliseconds without changes to wait before running the
+     * callback.
+     */
+    protected long _debounceMillis;
+
+    /**
+     * The callback.
+     */
+    protected Runnable _onChange;
+
+    /**
+     * The Logger.
+     */
+    protected Logger _logger;
+
+    /**
+     * The WatchService, or null if not started.
+     */
+    protected volatile WatchService _watchService;
+
+    /**
+     * The watcher thread, or null if not started.
+     */
+    protected Thread _thread;
+} // class ConfigWatcher
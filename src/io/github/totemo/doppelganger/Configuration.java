@@ -1,8 +1,39 @@
 package io.github.totemo.doppelganger;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
 // ----------------------------------------------------------------------------
 /**
  * Holds configuration settings.
+ *
+ * Besides config.yml, shapes, creature types and players can be defined in
+ * any number of YAML files in the shapes/, creatures/ and players/
+ * subdirectories of the data folder. Each such file has the same format as
+ * the corresponding section of config.yml, and is only parsed again when its
+ * modification time or size changes. Very large numbers of players can be
+ * listed in players.csv, which is compiled into a {@link PlayerIndex}.
  */
 public class Configuration {
     // ------------------------------------------------------------------------
@@ -16,24 +47,546 @@ public class Configuration {
         _creatureFactory = creatureFactory;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the root of the currently loaded configuration.
+     *
+     * If the compiled configuration was loaded from the {@link ConfigCache},
+     * only the root settings were parsed; the whole configuration file is
+     * parsed now.
+     *
+     * @return the root of the currently loaded configuration.
+     */
+    public YamlConfiguration getConfig() {
+        if (!_configComplete) {
+            try {
+                _config = parse(_content);
+                _configComplete = true;
+            } catch (InvalidConfigurationException ex) {
+                _plugin.getLogger().severe("Could not parse " + CONFIG_FILE + ": " + ex.getMessage());
+            }
+        }
+        return _config;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Save the configuration file.
+     *
+     * The saved content is remembered, so that the file watcher does not
+     * reload the configuration just because it was saved. If the whole
+     * configuration file can't be parsed, it is not saved, since that would
+     * discard the sections that were not parsed.
      */
     public void save() {
-        _plugin.saveConfig();
+        YamlConfiguration config = getConfig();
+        if (!_configComplete) {
+            _plugin.getLogger().severe("Not saving " + CONFIG_FILE + " because it could not be parsed.");
+            return;
+        }
+        String content = config.saveToString();
+        _content = content;
+        try {
+            Files.write(getConfigPath(), content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            _plugin.getLogger().severe("Could not save " + CONFIG_FILE + ": " + ex.getMessage());
+        }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Load the configuration file.
+     * Load the configuration files synchronously.
+     *
+     * This is used when the plugin is enabled. If the files can't be parsed,
+     * the running configuration is left unchanged, or if there is none yet,
+     * the defaults are used.
      */
     public void load() {
-        _plugin.reloadConfig();
-        _creatureFactory.load(_plugin.getConfig(), _plugin.getLogger());
-        _arbitraryNameAllowed = _plugin.getConfig().getBoolean("allow_arbitrary_names", false);
-        _warnOnInvalidName = _plugin.getConfig().getBoolean("warn_on_invalid_name", false);
-        _fixDropChanceBug = _plugin.getConfig().getBoolean("fix_drop_chance_bug", false);
+        if (_cache == null) {
+            _cache = new ConfigCache(new File(_plugin.getDataFolder(), CACHE_FILE).toPath(),
+                                     _plugin.getDescription().getVersion() + "/" + Bukkit.getBukkitVersion(),
+                                     _plugin.getLogger());
+        }
+        try {
+            long start = System.nanoTime();
+            Object flightEvent = FlightEvents.get().beginConfigLoad();
+            String content = readConfigFile();
+            List<SourceFile> files = readSourceFiles();
+            PlayerIndex playerIndex = readPlayerIndex();
+            Loaded loaded = compile(content, files, playerIndex);
+            _loadNanos = System.nanoTime() - start;
+            commitConfigLoad(flightEvent, false, loaded.snapshot);
+            apply(loaded, files, playerIndex, content);
+        } catch (IOException | InvalidConfigurationException ex) {
+            _plugin.getLogger().severe("Could not load " + CONFIG_FILE + ": " + ex.getMessage());
+            if (_content == null) {
+                try {
+                    apply(new Loaded(parse(""), true, _creatureFactory.compile(new YamlConfiguration(), _plugin.getLogger())),
+                          Collections.<SourceFile> emptyList(), null, "");
+                } catch (InvalidConfigurationException ex2) {
+                    // Not possible.
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reload the configuration files without blocking the main thread.
+     *
+     * The files are read, parsed and compiled in an asynchronous task. Only
+     * the installation of the result happens on the main thread. If there are
+     * errors, they are reported and the running configuration is left
+     * unchanged. If another reload that found changes starts compiling before
+     * this one is installed, only the later one is installed. A reload that
+     * finds nothing changed doesn't supersede one in progress. The sender is
+     * always told the outcome.
+     *
+     * @param sender the command sender to notify of the outcome, or null.
+     * @param onlyIfChanged if true, do nothing if no file has changed since
+     *        the configuration was last loaded or saved.
+     */
+    public void reload(final CommandSender sender, final boolean onlyIfChanged) {
+        _plugin.getServer().getScheduler().runTaskAsynchronously(_plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    Object flightEvent = FlightEvents.get().beginConfigLoad();
+                    final String content = readConfigFile();
+                    final List<SourceFile> files = readSourceFiles();
+                    final PlayerIndex playerIndex = readPlayerIndex();
+                    if (onlyIfChanged && content.equals(_content) && files.equals(_sourceFiles) && playerIndex == _playerIndex) {
+                        if (sender != null) {
+                            _plugin.getServer().getScheduler().runTask(_plugin, new Runnable() {
+                                @Override
+                                public void run() {
+                                    sender.sendMessage(ChatColor.GOLD + "Doppelganger configuration is unchanged.");
+                                }
+                            });
+                        }
+                        return;
+                    }
+
+                    final int generation = _reloadGeneration.incrementAndGet();
+                    final Loaded loaded = compile(content, files, playerIndex);
+                    _loadNanos = System.nanoTime() - start;
+                    commitConfigLoad(flightEvent, true, loaded.snapshot);
+                    _plugin.getServer().getScheduler().runTask(_plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == _reloadGeneration.get()) {
+                                apply(loaded, files, playerIndex, content);
+                                _plugin.getLogger().info("Configuration reloaded.");
+                                if (sender != null) {
+                                    sender.sendMessage(ChatColor.GOLD + "Doppelganger configuration reloaded.");
+                                }
+                            } else if (sender != null) {
+                                sender.sendMessage(ChatColor.GOLD + "Doppelganger configuration changed during the reload; " +
+                                                   "the newer configuration will be installed instead.");
+                            }
+                        }
+                    });
+                } catch (IOException | InvalidConfigurationException | RuntimeException ex) {
+                    final String message = "Could not reload " + CONFIG_FILE + "; the running configuration is unchanged: " +
+                                           ex.getMessage();
+                    _plugin.getLogger().severe(message);
+                    if (sender != null) {
+                        _plugin.getServer().getScheduler().runTask(_plugin, new Runnable() {
+                            @Override
+                            public void run() {
+                                sender.sendMessage(ChatColor.DARK_RED + message);
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    } // reload
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish and record a Flight Recorder event for a load or reload.
+     *
+     * @param flightEvent the result of {@link FlightEvents#beginConfigLoad()}.
+     * @param reload true for a reload, false for the initial load.
+     * @param snapshot the compiled configuration.
+     */
+    protected static void commitConfigLoad(Object flightEvent, boolean reload, CreatureFactory.Snapshot snapshot) {
+        FlightEvents.get().commitConfigLoad(flightEvent, reload, snapshot.shapes.size(),
+                                            snapshot.types.size() + snapshot.uncompiledTypes.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop watching the configuration file for changes.
+     */
+    public void stopWatcher() {
+        if (_watcher != null) {
+            _watcher.stop();
+            _watcher = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Install a parsed and compiled configuration.
+     *
+     * This must be called on the main thread.
+     *
+     * @param loaded the parsed settings and compiled shapes and creature
+     *        types.
+     * @param files the files in the section directories.
+     * @param playerIndex the player index, or null if there is none.
+     * @param content the text of the configuration file.
+     */
+    protected void apply(Loaded loaded, List<SourceFile> files, PlayerIndex playerIndex, String content) {
+        long start = System.nanoTime();
+        YamlConfiguration config = loaded.config;
+        CreatureFactory.Snapshot snapshot = loaded.snapshot;
+        _config = config;
+        _configComplete = loaded.complete;
+        _content = content;
+        _sourceFiles = files;
+        _playerIndex = playerIndex;
+        _creatureFactory.setAdaptiveShapeOrder(config.getBoolean("adaptive_shape_order", false));
+        _creatureFactory.install(snapshot);
+        _plugin.getPopulationReconciler().load(config, _plugin.getLogger());
+        _plugin.getDoppelgangerIndex().loadCaps(config, _plugin.getLogger());
+        _arbitraryNameAllowed = config.getBoolean("allow_arbitrary_names", false);
+        _warnOnInvalidName = config.getBoolean("warn_on_invalid_name", false);
+        _fixDropChanceBug = config.getBoolean("fix_drop_chance_bug", false);
+        _bulkKillBudgetMicros = Math.max(1, config.getInt("bulk_kill_budget_micros", 2000));
+        _bulkSpawnPerTick = Math.max(1, config.getInt("bulk_spawn_per_tick", 10));
+        _bulkSpawnMaxCount = Math.max(1, config.getInt("bulk_spawn_max_count", 500));
+        _plugin.getMetricsExporter().configure(config.getBoolean("jmx", true),
+                                               config.getInt("metrics_file_interval_seconds", 60));
+        _plugin.getWatchdog().configure(config.getInt("watchdog_budget_millis", 10),
+                                        config.getBoolean("watchdog_stack_samples", false),
+                                        config.getInt("watchdog_rate_limit_seconds", 60));
+        _plugin.getLogger().info(String.format("Installed configuration in %.1f ms.", (System.nanoTime() - start) / 1e6));
+
+        boolean autoReload = config.getBoolean("auto_reload", false);
+        long debounceMillis = Math.max(100, config.getLong("auto_reload_debounce_millis", 1000));
+        if (!autoReload || debounceMillis != _watcherDebounceMillis) {
+            stopWatcher();
+        }
+        if (autoReload && _watcher == null) {
+            _watcherDebounceMillis = debounceMillis;
+            _watcher = new ConfigWatcher(_plugin.getDataFolder().toPath(), SECTION_DIRECTORIES, debounceMillis, new Runnable() {
+                @Override
+                public void run() {
+                    reload(null, true);
+                }
+            }, _plugin.getLogger());
+            try {
+                _watcher.start();
+            } catch (IOException ex) {
+                _plugin.getLogger().severe("Can't watch the configuration files for changes: " + ex.getMessage());
+                _watcher = null;
+            }
+        }
+    } // apply
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the configuration and return it with its compiled shapes and
+     * creature types.
+     *
+     * The {@link ConfigCache} key is computed from the text of the files
+     * before anything is parsed. If the cache holds the compiled form of the
+     * same text, only the root settings of config.yml are parsed; the shapes,
+     * creatures and players sections, and the section files, are not. That is
+     * only possible because the cache is only written when compiled_cache is
+     * true and lazy_creatures is false, and those settings are part of the
+     * hashed text. The warnings logged by the compilation are cached with it
+     * and logged again on a cache hit.
+     *
+     * Otherwise the whole configuration is parsed and compiled, and if
+     * compiled_cache is true and lazy_creatures is false, the cache is
+     * rewritten. If lazy_creatures is true, creature types are compiled on
+     * first use and the cache is not used, since it can only hold compiled
+     * types.
+     *
+     * The player index is not cached, since it is already a compiled file; it
+     * is attached to the snapshot either way.
+     *
+     * This may be called from an asynchronous task.
+     *
+     * @param content the text of the configuration file.
+     * @param files the files in the section directories.
+     * @param playerIndex the player index, or null if there is none.
+     * @return the parsed settings and compiled configuration.
+     * @throws InvalidConfigurationException if a file is not valid YAML.
+     */
+    protected Loaded compile(String content, List<SourceFile> files, PlayerIndex playerIndex)
+        throws InvalidConfigurationException {
+        ArrayList<String> parts = new ArrayList<String>();
+        parts.add(content);
+        for (SourceFile file : files) {
+            parts.add(file.getName());
+            parts.add(file.content);
+        }
+        String key = _cache.getKey(parts);
+        CreatureFactory.Snapshot cachedSnapshot = _cache.read(key);
+        if (cachedSnapshot != null) {
+            cachedSnapshot.attachPlayerIndex(playerIndex, _plugin.getLogger());
+            try {
+                return new Loaded(parse(stripSections(content), "the settings in " + CONFIG_FILE), false, cachedSnapshot);
+            } catch (InvalidConfigurationException ex) {
+                // The sections could not be separated from the settings.
+                return new Loaded(parse(content), true, cachedSnapshot);
+            }
+        }
+
+        YamlConfiguration config = parse(content);
+        boolean lazy = config.getBoolean("lazy_creatures", false);
+        boolean cached = config.getBoolean("compiled_cache", true) && !lazy;
+        if (!cached) {
+            _cache.delete();
+        }
+
+        parseSourceFiles(files);
+        HashMap<String, List<ConfigurationSection>> sections = new HashMap<String, List<ConfigurationSection>>();
+        for (String directory : SECTION_DIRECTORIES) {
+            sections.put(directory, new ArrayList<ConfigurationSection>(CreatureFactory.childSections(config, directory)));
+        }
+        for (SourceFile file : files) {
+            sections.get(file.directory).add(file.getConfig());
+        }
+        if (!cached) {
+            CreatureFactory.Snapshot snapshot = _creatureFactory.compile(sections.get("shapes"), sections.get("creatures"),
+                                                                         sections.get("players"), lazy, _plugin.getLogger());
+            snapshot.attachPlayerIndex(playerIndex, _plugin.getLogger());
+            return new Loaded(config, true, snapshot);
+        }
+
+        // Hold the messages of the compilation so that its warnings can be
+        // cached with it. The snapshot keeps this Logger, but only lazily
+        // compiled types, which are never cached, log to it later.
+        BufferedLogger log = new BufferedLogger();
+        CreatureFactory.Snapshot snapshot = _creatureFactory.compile(sections.get("shapes"), sections.get("creatures"),
+                                                                     sections.get("players"), lazy, log);
+        ArrayList<LogRecord> warnings = new ArrayList<LogRecord>();
+        for (LogRecord record : log.getRecords()) {
+            if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                warnings.add(new LogRecord(record.getLevel(), record.getMessage()));
+            }
+        }
+        log.publish(_plugin.getLogger());
+        if (snapshot.isFullyCompiled()) {
+            _cache.write(key, snapshot, warnings);
+        }
+        snapshot.attachPlayerIndex(playerIndex, _plugin.getLogger());
+        return new Loaded(config, true, snapshot);
+    } // compile
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the text of the configuration file without its top level
+     * shapes, creatures and players sections.
+     *
+     * A section extends from its key to the next line that starts with
+     * anything other than white space, a comment or a sequence entry. If the
+     * result is not valid YAML, for instance because a setting refers to an
+     * anchor in a removed section, the caller parses the whole file instead.
+     *
+     * @param content the text of the configuration file.
+     * @return the text of the root settings.
+     */
+    protected static String stripSections(String content) {
+        StringBuilder settings = new StringBuilder(content.length());
+        boolean inSection = false;
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            end = (end < 0) ? content.length() : end + 1;
+            char first = content.charAt(start);
+            if (first != ' ' && first != '\t' && first != '\r' && first != '\n' && first != '#' && first != '-') {
+                inSection = false;
+                for (String directory : SECTION_DIRECTORIES) {
+                    if (content.startsWith(directory + ":", start) ||
+                        content.startsWith("\"" + directory + "\":", start) ||
+                        content.startsWith("'" + directory + "':", start)) {
+                        inSection = true;
+                        break;
+                    }
+                }
+            }
+            if (!inSection) {
+                settings.append(content, start, end);
+            }
+            start = end;
+        }
+        return settings.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the section files that have not been parsed since they were read.
+     *
+     * @param files the files in the section directories.
+     * @throws InvalidConfigurationException if a file is not valid YAML.
+     */
+    protected void parseSourceFiles(List<SourceFile> files) throws InvalidConfigurationException {
+        long start = System.nanoTime();
+        int parsed = 0;
+        for (SourceFile file : files) {
+            if (file.parse()) {
+                ++parsed;
+            }
+        }
+        if (!files.isEmpty()) {
+            _plugin.getLogger().info(String.format("Parsed %d of %d section files in %.1f ms.",
+                                                   parsed, files.size(), (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the text of the configuration file, with the defaults from the
+     * plugin JAR.
+     *
+     * @param content the text of the configuration file.
+     * @return the parsed configuration.
+     * @throws InvalidConfigurationException if the text is not valid YAML.
+     */
+    protected YamlConfiguration parse(String content) throws InvalidConfigurationException {
+        return parse(content, CONFIG_FILE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse configuration text, with the defaults from the plugin JAR.
+     *
+     * @param content the text to parse.
+     * @param description describes the text in the log.
+     * @return the parsed configuration.
+     * @throws InvalidConfigurationException if the text is not valid YAML.
+     */
+    protected YamlConfiguration parse(String content, String description) throws InvalidConfigurationException {
+        long start = System.nanoTime();
+        YamlConfiguration config = new YamlConfiguration();
+        config.loadFromString(content);
+        InputStream defaults = _plugin.getResource(CONFIG_FILE);
+        if (defaults != null) {
+            config.setDefaults(YamlConfiguration.loadConfiguration(new InputStreamReader(defaults, StandardCharsets.UTF_8)));
+        }
+        _plugin.getLogger().info(String.format("Parsed %s in %.1f ms.", description, (System.nanoTime() - start) / 1e6));
+        return config;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the text of the configuration file, or the empty string if it
+     * does not exist.
+     *
+     * @return the text of the configuration file.
+     * @throws IOException if the file can't be read.
+     */
+    protected String readConfigFile() throws IOException {
+        Path path = getConfigPath();
+        return Files.exists(path) ? new String(Files.readAllBytes(path), StandardCharsets.UTF_8) : "";
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the YAML files in the section directories, in the order that
+     * they are compiled: by directory, then by file name.
+     *
+     * Files whose modification time and size are the same as when they were
+     * last loaded are not read again; the previously loaded instance is
+     * returned. Files are only parsed when the configuration is compiled; see
+     * {@link #parseSourceFiles(List)}.
+     *
+     * @return the files in the section directories.
+     * @throws IOException if a file can't be read.
+     */
+    protected List<SourceFile> readSourceFiles() throws IOException {
+        HashMap<Path, SourceFile> previous = new HashMap<Path, SourceFile>();
+        for (SourceFile file : _sourceFiles) {
+            previous.put(file.path, file);
+        }
+
+        ArrayList<SourceFile> files = new ArrayList<SourceFile>();
+        for (String directory : SECTION_DIRECTORIES) {
+            Path directoryPath = new File(_plugin.getDataFolder(), directory).toPath();
+            if (!Files.isDirectory(directoryPath)) {
+                continue;
+            }
+
+            ArrayList<Path> paths = new ArrayList<Path>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directoryPath, "*.yml")) {
+                for (Path path : stream) {
+                    paths.add(path);
+                }
+            }
+            Collections.sort(paths);
+
+            for (Path path : paths) {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                long size = Files.size(path);
+                SourceFile file = previous.get(path);
+                if (file == null || file.modified != modified || file.size != size) {
+                    String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                    file = new SourceFile(path, directory, modified, size, content);
+                }
+                files.add(file);
+            }
+        }
+        return files;
+    } // readSourceFiles
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of players.csv, or null if that file does not exist.
+     *
+     * If the file is unchanged since it was last loaded, the previously loaded
+     * index is returned. If the index can't be built or read, a warning is
+     * logged and the previously loaded index, if any, is kept, so that a
+     * problem with the roster doesn't prevent the rest of the configuration
+     * from loading.
+     *
+     * @return the player index, or null.
+     */
+    protected PlayerIndex readPlayerIndex() {
+        Path source = new File(_plugin.getDataFolder(), PLAYERS_FILE).toPath();
+        PlayerIndex previous = _playerIndex;
+        try {
+            if (!Files.exists(source)) {
+                return null;
+            }
+            if (previous != null && previous.getSourceModified() == Files.getLastModifiedTime(source).toMillis() &&
+                previous.getSourceSize() == Files.size(source)) {
+                return previous;
+            }
+            return PlayerIndex.open(source, new File(_plugin.getDataFolder(), PLAYER_INDEX_FILE).toPath(), _plugin.getLogger());
+        } catch (IOException | RuntimeException ex) {
+            _plugin.getLogger().warning("Could not index " + PLAYERS_FILE + "; " +
+                                        (previous != null ? "keeping the previous index" : "continuing without it") +
+                                        ": " + ex.getMessage());
+            return previous;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the path of the configuration file.
+     *
+     * @return the path of the configuration file.
+     */
+    protected Path getConfigPath() {
+        return new File(_plugin.getDataFolder(), CONFIG_FILE).toPath();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the current set of maintained populations into the configuration
+     * and save the configuration file.
+     */
+    public void saveMaintainedPopulations() {
+        _plugin.getPopulationReconciler().save(getConfig());
+        save();
     }
 
     // ------------------------------------------------------------------------
@@ -86,6 +639,218 @@ public class Configuration {
     }
 
     // ------------------------------------------------------------------------
+    /**
+     * Return the maximum time in microseconds that a bulk kill may spend
+     * removing doppelgangers in one tick.
+     *
+     * @return the per-tick time budget of bulk kills in microseconds.
+     */
+    public int getBulkKillBudgetMicros() {
+        return _bulkKillBudgetMicros;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time taken to read, parse and compile the configuration
+     * files the last time that they changed.
+     *
+     * This may be called from any thread.
+     *
+     * @return the load time in nanoseconds.
+     */
+    public long getLoadNanos() {
+        return _loadNanos;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum number of doppelgangers that a bulk spawn may spawn
+     * in one tick.
+     *
+     * @return the maximum number of doppelgangers spawned per tick.
+     */
+    public int getBulkSpawnPerTick() {
+        return _bulkSpawnPerTick;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum number of doppelgangers that one bulk spawn command
+     * may request.
+     *
+     * @return the maximum count of a bulk spawn.
+     */
+    public int getBulkSpawnMaxCount() {
+        return _bulkSpawnMaxCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A YAML file from one of the section directories.
+     *
+     * Instances are reused by reloads for as long as the file is unchanged,
+     * so identity comparison detects changes. The text is only parsed when
+     * the configuration is compiled rather than loaded from the
+     * {@link ConfigCache}, and then only once.
+     */
+    protected static final class SourceFile {
+        /**
+         * Constructor.
+         *
+         * @param path the path of the file.
+         * @param directory the name of the section directory containing it.
+         * @param modified the modification time in milliseconds.
+         * @param size the size in bytes.
+         * @param content the text of the file.
+         */
+        SourceFile(Path path, String directory, long modified, long size, String content) {
+            this.path = path;
+            this.directory = directory;
+            this.modified = modified;
+            this.size = size;
+            this.content = content;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Parse the file if it has not been parsed yet.
+         *
+         * @return true if the file was parsed now.
+         * @throws InvalidConfigurationException if the file is not valid YAML.
+         */
+        synchronized boolean parse() throws InvalidConfigurationException {
+            if (config != null) {
+                return false;
+            }
+            YamlConfiguration parsed = new YamlConfiguration();
+            try {
+                parsed.loadFromString(content);
+            } catch (InvalidConfigurationException ex) {
+                throw new InvalidConfigurationException(getName() + ": " + ex.getMessage());
+            }
+            config = parsed;
+            return true;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the parsed file.
+         *
+         * @return the parsed file, or null if {@link #parse()} has not been
+         *         called.
+         */
+        synchronized YamlConfiguration getConfig() {
+            return config;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the path of the file relative to the data folder, for
+         * messages.
+         *
+         * @return the path of the file relative to the data folder.
+         */
+        String getName() {
+            return directory + "/" + path.getFileName();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The path of the file.
+         */
+        final Path path;
+
+        /**
+         * The name of the section directory containing the file.
+         */
+        final String directory;
+
+        /**
+         * The modification time in milliseconds.
+         */
+        final long modified;
+
+        /**
+         * The size in bytes.
+         */
+        final long size;
+
+        /**
+         * The text of the file.
+         */
+        final String content;
+
+        /**
+         * The parsed file, or null if it has not been parsed; guarded by this
+         * instance.
+         */
+        YamlConfiguration config;
+    } // inner class SourceFile
+
+    // ------------------------------------------------------------------------
+    /**
+     * The result of {@link Configuration#compile(String, List, PlayerIndex)}.
+     */
+    protected static final class Loaded {
+        /**
+         * Constructor.
+         *
+         * @param config the parsed configuration.
+         * @param complete false if only the root settings were parsed.
+         * @param snapshot the compiled shapes and creature types.
+         */
+        Loaded(YamlConfiguration config, boolean complete, CreatureFactory.Snapshot snapshot) {
+            this.config = config;
+            this.complete = complete;
+            this.snapshot = snapshot;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The parsed configuration.
+         */
+        final YamlConfiguration config;
+
+        /**
+         * False if only the root settings were parsed.
+         */
+        final boolean complete;
+
+        /**
+         * The compiled shapes and creature types.
+         */
+        final CreatureFactory.Snapshot snapshot;
+    } // inner class Loaded
+
+    // ------------------------------------------------------------------------
+    /**
+     * Name of the configuration file in the plugin's data folder.
+     */
+    protected static final String CONFIG_FILE = "config.yml";
+
+    /**
+     * Names of the subdirectories of the data folder holding additional
+     * shapes, creature types and players, in the order they are compiled.
+     */
+    protected static final List<String> SECTION_DIRECTORIES = Collections.unmodifiableList(Arrays.asList("shapes", "creatures", "players"));
+
+    /**
+     * Name of the file listing players with specific creature types, in the
+     * plugin's data folder.
+     */
+    protected static final String PLAYERS_FILE = "players.csv";
+
+    /**
+     * Name of the index compiled from PLAYERS_FILE, in the plugin's data
+     * folder.
+     */
+    protected static final String PLAYER_INDEX_FILE = "players.idx";
+
+    /**
+     * Name of the compiled configuration cache in the plugin's data folder.
+     */
+    protected static final String CACHE_FILE = "compiled.cache";
+
     /**
      * Reference to the plugin instance.
      */
@@ -96,6 +861,64 @@ public class Configuration {
      */
     protected CreatureFactory _creatureFactory;
 
+    /**
+     * Caches the compiled form of the configuration.
+     */
+    protected ConfigCache _cache;
+
+    /**
+     * The root of the currently loaded configuration.
+     */
+    protected YamlConfiguration _config = new YamlConfiguration();
+
+    /**
+     * False if only the root settings of the configuration file have been
+     * parsed into _config, because the compiled configuration was loaded from
+     * the {@link ConfigCache}.
+     */
+    protected boolean _configComplete = true;
+
+    /**
+     * The text of the configuration file when it was last loaded or saved, or
+     * null if it has not been loaded.
+     */
+    protected volatile String _content;
+
+    /**
+     * The files in the section directories when the configuration was last
+     * loaded.
+     */
+    protected volatile List<SourceFile> _sourceFiles = Collections.emptyList();
+
+    /**
+     * The index of players.csv when the configuration was last loaded, or null
+     * if there is none.
+     */
+    protected volatile PlayerIndex _playerIndex;
+
+    /**
+     * Incremented by each reload that compiles a configuration; only the
+     * result of the latest is installed.
+     */
+    protected AtomicInteger _reloadGeneration = new AtomicInteger();
+
+    /**
+     * Time in nanoseconds taken by the last load or reload to read, parse and
+     * compile the configuration files.
+     */
+    protected volatile long _loadNanos;
+
+    /**
+     * Watches the configuration file for changes, or null if auto reload is
+     * disabled.
+     */
+    protected ConfigWatcher _watcher;
+
+    /**
+     * The debounce period of the current watcher in milliseconds.
+     */
+    protected long _watcherDebounceMillis;
+
     /**
      * True if the player can name the creature anything at all, including names
      * with spaces and punctuation in them, for example. If false, the name must
@@ -115,4 +938,22 @@ public class Configuration {
      * Spigot getting it right.
      */
     protected boolean _fixDropChanceBug;
+
+    /**
+     * The maximum time in microseconds that a bulk kill may spend removing
+     * doppelgangers in one tick.
+     */
+    protected int _bulkKillBudgetMicros;
+
+    /**
+     * The maximum number of doppelgangers that a bulk spawn may spawn in one
+     * tick.
+     */
+    protected int _bulkSpawnPerTick;
+
+    /**
+     * The maximum number of doppelgangers that one bulk spawn command may
+     * request.
+     */
+    protected int _bulkSpawnMaxCount;
 } // class Configuration
\ No newline at end of file
@@ -1,14 +1,27 @@
 package io.github.totemo.doppelganger;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Logger;
 
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Entity;
@@ -37,98 +50,443 @@ public class CreatureFactory {
     /**
      * Load the creature shapes and types from the configuration file.
      *
+     * The configuration is compiled into a new {@link Snapshot}, which then
+     * replaces the current one in a single step, so that summoning never sees
+     * a partially loaded configuration.
+     *
      * @param root the root of the configuration hierarchy.
      * @param logger the Logger.
      */
     public void load(ConfigurationSection root, Logger logger) {
-        // Wipe out the old configuration if previously loaded.
-        _shapes.clear();
-        _types.clear();
-        _playerCreatures.clear();
-        _playerShapes.clear();
-
-        ConfigurationSection shapesSection = root.getConfigurationSection("shapes");
-        if (shapesSection != null) {
-            for (String shapeName : shapesSection.getKeys(false)) {
-                if (getCreatureShape(shapeName) != null) {
-                    logger.warning("A shape called " + shapeName + " already exists and can't be redefined.");
-                } else {
-                    CreatureShape shape = CreatureShape.loadFromSection(shapesSection.getConfigurationSection(shapeName), logger);
-                    if (shape == null) {
-                        logger.warning("Shape " + shapeName + " was not defined, due to errors in the configuration.");
-                    } else {
-                        _shapes.put(shapeName.toLowerCase(), shape);
+        install(compile(root, logger));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Make the specified snapshot the current configuration.
+     *
+     * This must be called on the main thread.
+     *
+     * @param snapshot the snapshot returned by
+     *        {@link #compile(ConfigurationSection, Logger)}.
+     */
+    public void install(Snapshot snapshot) {
+        snapshot.orderShapes(_adaptiveShapeOrder);
+        _snapshot = snapshot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Shut down the threads that compile configurations.
+     *
+     * This is called when the plugin is disabled, so that the threads don't
+     * outlive it and keep its class loader reachable. A later compilation
+     * starts new threads.
+     */
+    public synchronized void shutdown() {
+        if (_compilePool != null) {
+            _compilePool.shutdown();
+            _compilePool = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Enable or disable adaptive ordering of shapes.
+     *
+     * When enabled, the candidate shapes for each trigger material are tested
+     * in descending order of match rate, and the blocks of each shape are
+     * checked from the most to the least selective, according to the
+     * {@link ShapeTelemetry} of each shape. The order is recomputed every
+     * {@link #SHAPE_ORDER_PERIOD} lookups. Shapes that could both be complete
+     * at the same time are always tested in declaration order, so the order
+     * never changes which shape is summoned.
+     *
+     * This must be called on the main thread.
+     *
+     * @param adaptive if true, order shapes adaptively; otherwise use the
+     *        declaration order.
+     */
+    public void setAdaptiveShapeOrder(boolean adaptive) {
+        if (adaptive != _adaptiveShapeOrder) {
+            _adaptiveShapeOrder = adaptive;
+            _snapshot.orderShapes(adaptive);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile the creature shapes and types from the configuration file into a
+     * new {@link Snapshot}, without changing the current configuration.
+     *
+     * This compiles the shapes, creatures and players sections of root, as
+     * described by {@link #compile(List, List, List, boolean, Logger)}.
+     *
+     * @param root the root of the configuration hierarchy.
+     * @param logger the Logger.
+     * @return the compiled configuration.
+     */
+    public Snapshot compile(ConfigurationSection root, Logger logger) {
+        return compile(childSections(root, "shapes"), childSections(root, "creatures"), childSections(root, "players"),
+                       false, logger);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile creature shapes, types and players from any number of
+     * configuration sections into a new {@link Snapshot}, without changing the
+     * current configuration.
+     *
+     * Each section in a list has the same format as the corresponding section
+     * of the configuration file; sections are processed in list order, so that
+     * names defined by earlier sections take precedence. Shapes and creature
+     * types whose configuration sections are unchanged since the current
+     * snapshot was compiled are reused rather than recompiled.
+     *
+     * If lazy is true, creature types that can't be reused are not compiled
+     * until first requested by {@link #getCreatureType(String)}, and errors in
+     * their definitions are only reported then.
+     *
+     * This does not modify the factory and may be called from an asynchronous
+     * task, provided that the sections are not modified concurrently.
+     *
+     * @param shapesSections sections mapping shape name to definition.
+     * @param creaturesSections sections mapping creature type name to
+     *        definition.
+     * @param playersSections sections mapping player name to definition.
+     * @param lazy if true, defer the compilation of creature types.
+     * @param logger the Logger.
+     * @return the compiled configuration.
+     */
+    public Snapshot compile(List<ConfigurationSection> shapesSections, List<ConfigurationSection> creaturesSections,
+                            List<ConfigurationSection> playersSections, final boolean lazy, final Logger logger) {
+        final Snapshot previous = _snapshot;
+        Snapshot next = new Snapshot();
+        next.logger = logger;
+        int reusedShapes = 0;
+        int reusedTypes = 0;
+
+        // Compile phase: shape and creature sections are independent of each
+        // other, so compile them in parallel. Creature types that would be
+        // rejected as redefinitions of vanilla or predefined types are not
+        // compiled. Each task buffers its warnings, to be logged in
+        // declaration order by the merge phase.
+        long compileStart = System.nanoTime();
+        ForkJoinPool pool = getCompilePool();
+        ArrayList<ForkJoinTask<Compiled<CreatureShape>>> shapeTasks = new ArrayList<ForkJoinTask<Compiled<CreatureShape>>>();
+        for (final ConfigurationSection shapesSection : shapesSections) {
+            for (final String shapeName : shapesSection.getKeys(false)) {
+                shapeTasks.add(pool.submit(new Callable<Compiled<CreatureShape>>() {
+                    @Override
+                    public Compiled<CreatureShape> call() {
+                        String lowerName = shapeName.toLowerCase();
+                        ConfigurationSection shapeSection = shapesSection.getConfigurationSection(shapeName);
+                        String fingerprint = fingerprint(shapeSection);
+                        CreatureShape previousShape = previous.shapes.get(lowerName);
+                        BufferedLogger log = new BufferedLogger();
+                        if (previousShape != null && fingerprint.equals(previous.shapeFingerprints.get(lowerName))) {
+                            return new Compiled<CreatureShape>(shapeName, shapeSection, previousShape, fingerprint, true, log);
+                        } else {
+                            return new Compiled<CreatureShape>(shapeName, shapeSection,
+                                CreatureShape.loadFromSection(shapeSection, log), fingerprint, false, log);
+                        }
                     }
-                }
+                }));
             }
         }
 
-        ConfigurationSection creaturesSection = root.getConfigurationSection("creatures");
-        if (creaturesSection != null) {
-            for (String creatureName : creaturesSection.getKeys(false)) {
-                if (isValidCreatureType(creatureName)) {
-                    // Prevent (inadvertent) redefinition of types.
-                    logger.warning("A creature called " + creatureName + " already exists and can't be redefined.");
-                } else {
-                    CreatureType type = CreatureType.loadFromSection(creaturesSection.getConfigurationSection(creatureName), logger);
-                    if (type == null) {
-                        logger.warning("Creature " + creatureName + " was not defined, due to errors in the configuration.");
-                    } else {
-                        if (creatureName.equals(type.getCreatureType())) {
-                            // Prevent infinite recursion in spawnCreature().
-                            logger.warning("Creature " + creatureName + " cannot be defined in terms of itself.");
-                        } else if (isValidCreatureType(type.getCreatureType())) {
-                            _types.put(creatureName.toLowerCase(), type);
+        ArrayList<ForkJoinTask<Compiled<CreatureType>>> typeTasks = new ArrayList<ForkJoinTask<Compiled<CreatureType>>>();
+        ArrayList<String> typeNames = new ArrayList<String>();
+        for (final ConfigurationSection creaturesSection : creaturesSections) {
+            for (final String creatureName : creaturesSection.getKeys(false)) {
+                typeNames.add(creatureName);
+                if (next.isValidCreatureType(creatureName)) {
+                    // Vanilla or predefined; rejected in the merge phase.
+                    typeTasks.add(null);
+                    continue;
+                }
+                typeTasks.add(pool.submit(new Callable<Compiled<CreatureType>>() {
+                    @Override
+                    public Compiled<CreatureType> call() {
+                        String lowerName = creatureName.toLowerCase();
+                        ConfigurationSection creatureSection = creaturesSection.getConfigurationSection(creatureName);
+                        String fingerprint = fingerprint(creatureSection);
+                        CreatureType previousType = previous.types.get(lowerName);
+                        BufferedLogger log = new BufferedLogger();
+                        if (previousType != null && fingerprint.equals(previous.typeFingerprints.get(lowerName))) {
+                            return new Compiled<CreatureType>(creatureName, creatureSection, previousType, fingerprint, true, log);
+                        } else if (lazy) {
+                            return new Compiled<CreatureType>(creatureName, creatureSection, null, fingerprint, false, log);
                         } else {
-                            logger.warning("Can't define creature " + type.getName() +
-                                           " because we can't spawn a " + type.getCreatureType());
+                            return new Compiled<CreatureType>(creatureName, creatureSection,
+                                CreatureType.loadFromSection(creatureSection, log), fingerprint, false, log);
                         }
                     }
+                }));
+            }
+        }
+
+        // Wait for all compilation to finish before timing the merge.
+        for (ForkJoinTask<Compiled<CreatureShape>> task : shapeTasks) {
+            task.join();
+        }
+        for (ForkJoinTask<Compiled<CreatureType>> task : typeTasks) {
+            if (task != null) {
+                task.join();
+            }
+        }
+        long mergeStart = System.nanoTime();
+
+        // Merge phase: in declaration order, so that duplicates and references
+        // between types are resolved exactly as if compiled sequentially.
+        for (ForkJoinTask<Compiled<CreatureShape>> task : shapeTasks) {
+            Compiled<CreatureShape> compiled = task.join();
+            compiled.log.publish(logger);
+            String shapeName = compiled.name;
+            String lowerName = shapeName.toLowerCase();
+            if (next.shapes.containsKey(lowerName)) {
+                logger.warning("A shape called " + shapeName + " already exists and can't be redefined.");
+            } else if (compiled.value == null) {
+                logger.warning("Shape " + shapeName + " was not defined, due to errors in the configuration.");
+            } else {
+                next.shapes.put(lowerName, compiled.value);
+                next.shapeFingerprints.put(lowerName, compiled.fingerprint);
+                next.shapeNames.add(shapeName);
+                if (compiled.reused) {
+                    ++reusedShapes;
                 }
-            } // for
+            }
         }
 
-        ConfigurationSection playersSection = root.getConfigurationSection("players");
-        if (playersSection != null) {
+        for (int i = 0; i < typeTasks.size(); ++i) {
+            String creatureName = typeNames.get(i);
+            String lowerName = creatureName.toLowerCase();
+            if (typeTasks.get(i) == null || next.isValidCreatureType(creatureName)) {
+                // Prevent (inadvertent) redefinition of types.
+                logger.warning("A creature called " + creatureName + " already exists and can't be redefined.");
+                continue;
+            }
+
+            Compiled<CreatureType> compiled = typeTasks.get(i).join();
+            compiled.log.publish(logger);
+            CreatureType type = compiled.value;
+            if (type == null && lazy) {
+                // The base type is checked now, since later types may depend
+                // on this one being valid; the rest of the definition is
+                // checked when it is compiled.
+                String spawn = compiled.section.getString("spawn");
+                if (spawn == null || spawn.length() == 0) {
+                    logger.warning("Creature " + creatureName + " can't be defined because it is missing a 'spawn' value.");
+                } else if (creatureName.equals(spawn)) {
+                    logger.warning("Creature " + creatureName + " cannot be defined in terms of itself.");
+                } else if (next.isValidCreatureType(spawn)) {
+                    next.uncompiledTypes.put(lowerName, compiled.section);
+                    next.typeFingerprints.put(lowerName, compiled.fingerprint);
+                    next.creatureNames.add(creatureName);
+                } else {
+                    logger.warning("Can't define creature " + creatureName + " because we can't spawn a " + spawn);
+                }
+            } else if (type == null) {
+                logger.warning("Creature " + creatureName + " was not defined, due to errors in the configuration.");
+            } else if (creatureName.equals(type.getCreatureType())) {
+                // Prevent infinite recursion in spawnCreature().
+                logger.warning("Creature " + creatureName + " cannot be defined in terms of itself.");
+            } else if (next.isValidCreatureType(type.getCreatureType())) {
+                // Even an unchanged type is only valid if the type it is based
+                // on is still defined.
+                next.types.put(lowerName, type);
+                next.typeFingerprints.put(lowerName, compiled.fingerprint);
+                next.creatureNames.add(creatureName);
+                if (compiled.reused) {
+                    ++reusedTypes;
+                }
+            } else {
+                logger.warning("Can't define creature " + type.getName() +
+                               " because we can't spawn a " + type.getCreatureType());
+            }
+        } // for
+
+        // Players with the same shapes share one list.
+        HashMap<List<CreatureShape>, ArrayList<CreatureShape>> sharedShapeLists = new HashMap<List<CreatureShape>, ArrayList<CreatureShape>>();
+        for (ConfigurationSection playersSection : playersSections) {
             for (String playerName : playersSection.getKeys(false)) {
-                if (getPlayerCreature(playerName) != null) {
+                if (next.playerCreatures.containsKey(playerName.toLowerCase())) {
                     logger.warning("A player creature called " + playerName + " already exists and can't be redefined.");
                 } else {
-                    ConfigurationSection player = playersSection.getConfigurationSection(playerName);
+                    ConfigSchema.Values player = PLAYER_SCHEMA.bind(playersSection.getConfigurationSection(playerName), logger);
 
                     // If a specific creature type to spawn is not specified, it
                     // defaults to a type with the same name as the player (if
                     // that exists).
-                    String spawn = player.getString("spawn", playerName);
-                    if (!isValidCreatureType(spawn)) {
+                    String spawn = player.getString(PLAYER_SPAWN, playerName);
+                    if (!next.isValidCreatureType(spawn)) {
                         logger.warning("Can't define player " + playerName +
                                        " because there is no creature type named " + spawn);
                     } else {
-                        List<String> shapeNameList = player.getStringList("shapes");
+                        // A missing shapes list is empty, as from getStringList().
+                        List<String> shapeNameList = player.getList(PLAYER_SHAPES);
+                        if (shapeNameList == null) {
+                            shapeNameList = Collections.<String> emptyList();
+                        }
                         ArrayList<CreatureShape> shapes = new ArrayList<CreatureShape>();
-                        if (shapeNameList != null) {
-                            for (String shapeName : shapeNameList) {
-                                CreatureShape shape = getCreatureShape(shapeName);
-                                if (shape == null) {
-                                    logger.warning("Player " + playerName +
-                                                   " references undefined shape " + shapeName);
-                                } else {
-                                    shapes.add(shape);
-                                }
-                            } // for
-
-                            if (shapes.size() == 0) {
+                        for (String shapeName : shapeNameList) {
+                            CreatureShape shape = next.shapes.get(shapeName.toLowerCase());
+                            if (shape == null) {
                                 logger.warning("Player " + playerName +
-                                               " can only be spawned by command because no shapes have been listed.");
+                                               " references undefined shape " + shapeName);
+                            } else {
+                                shapes.add(shape);
                             }
-                            _playerShapes.put(playerName.toLowerCase(), shapes);
-                            _playerCreatures.put(playerName.toLowerCase(), spawn);
+                        } // for
+
+                        if (shapes.size() == 0) {
+                            logger.warning("Player " + playerName +
+                                           " can only be spawned by command because no shapes have been listed.");
                         }
+                        ArrayList<CreatureShape> shared = sharedShapeLists.get(shapes);
+                        if (shared == null) {
+                            sharedShapeLists.put(shapes, shapes);
+                            shared = shapes;
+                        }
+                        next.playerShapes.put(playerName.toLowerCase(), shared);
+                        next.playerCreatures.put(playerName.toLowerCase(), spawn);
+                        next.playerNames.add(playerName);
                     }
                 } // if defining
             } // for
         }
-    } // load
+
+        long mergeEnd = System.nanoTime();
+        logger.info(String.format("Loaded %d shapes (%d unchanged) and %d creature types (%d unchanged, %d deferred).",
+                                  next.shapes.size(), reusedShapes, next.types.size() + next.uncompiledTypes.size(),
+                                  reusedTypes, next.uncompiledTypes.size()));
+        logger.info(String.format("Compiled in %.1f ms on %d threads; merged in %.1f ms.",
+                                  (mergeStart - compileStart) / 1e6, pool.getParallelism(),
+                                  (mergeEnd - mergeStart) / 1e6));
+        return next;
+    } // compile
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the pool that compiles configuration sections in parallel,
+     * creating it if necessary.
+     *
+     * @return the pool.
+     */
+    protected synchronized ForkJoinPool getCompilePool() {
+        if (_compilePool == null) {
+            _compilePool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        }
+        return _compilePool;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a list containing the specified child section of a configuration
+     * section, or an empty list if there is no such child.
+     *
+     * @param parent the parent section.
+     * @param key the key of the child section.
+     * @return a list of zero or one sections.
+     */
+    public static List<ConfigurationSection> childSections(ConfigurationSection parent, String key) {
+        ConfigurationSection child = parent.getConfigurationSection(key);
+        return (child != null) ? Collections.singletonList(child) : Collections.<ConfigurationSection> emptyList();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a string that is equal for two configuration sections if and only
+     * if they have the same keys, in the same order, with the same values.
+     *
+     * @param section the configuration section; can be null.
+     * @return the fingerprint.
+     */
+    protected static String fingerprint(ConfigurationSection section) {
+        StringBuilder fingerprint = new StringBuilder();
+        appendFingerprint(fingerprint, section);
+        return fingerprint.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the fingerprint of a configuration section to a StringBuilder.
+     *
+     * Nested sections are expanded recursively, since their toString() does
+     * not describe their contents.
+     *
+     * @param fingerprint the StringBuilder.
+     * @param section the configuration section; can be null.
+     */
+    protected static void appendFingerprint(StringBuilder fingerprint, ConfigurationSection section) {
+        if (section == null) {
+            fingerprint.append("null");
+            return;
+        }
+        fingerprint.append('{');
+        for (String key : section.getKeys(false)) {
+            fingerprint.append(key).append('=');
+            if (section.isConfigurationSection(key)) {
+                appendFingerprint(fingerprint, section.getConfigurationSection(key));
+            } else {
+                fingerprint.append(section.get(key));
+            }
+            fingerprint.append(';');
+        }
+        fingerprint.append('}');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit shape names starting with the specified
+     * case-insensitive prefix, for tab completion.
+     *
+     * @param prefix the prefix.
+     * @param limit the maximum number of names to return.
+     * @return the matching shape names, in alphabetical order.
+     */
+    public List<String> completeShapeName(String prefix, int limit) {
+        return _snapshot.shapeNames.complete(prefix, limit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit creature type names, including predefined and
+     * vanilla types, starting with the specified case-insensitive prefix, for
+     * tab completion.
+     *
+     * @param prefix the prefix.
+     * @param limit the maximum number of names to return.
+     * @return the matching creature type names, in alphabetical order.
+     */
+    public List<String> completeCreatureType(String prefix, int limit) {
+        return _snapshot.creatureNames.complete(prefix, limit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit player names with specific creature types starting
+     * with the specified case-insensitive prefix, for tab completion.
+     *
+     * @param prefix the prefix.
+     * @param limit the maximum number of names to return.
+     * @return the matching player names, in alphabetical order.
+     */
+    public List<String> completePlayerName(String prefix, int limit) {
+        Snapshot snapshot = _snapshot;
+        List<String> names = snapshot.playerNames.complete(prefix, limit);
+        if (snapshot.playerIndex != null && names.size() < limit) {
+            for (String name : snapshot.playerIndex.complete(prefix, limit)) {
+                if (names.size() >= limit) {
+                    break;
+                }
+                if (!snapshot.playerCreatures.containsKey(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
 
     // ------------------------------------------------------------------------
     /**
@@ -138,11 +496,12 @@ public class CreatureFactory {
      * @param sender the agent requesting the listing.
      */
     public void listConfiguration(CommandSender sender) {
+        Snapshot snapshot = _snapshot;
         StringBuilder message = new StringBuilder();
         message.append(ChatColor.GOLD);
         message.append("Shapes:");
         message.append(ChatColor.YELLOW);
-        for (CreatureShape shape : _shapes.values()) {
+        for (CreatureShape shape : snapshot.shapes.values()) {
             message.append(' ');
             message.append(shape.getName());
         }
@@ -152,23 +511,108 @@ public class CreatureFactory {
         message.append(ChatColor.GOLD);
         message.append("Creatures:");
         message.append(ChatColor.YELLOW);
-        for (CreatureType creature : _types.values()) {
+        for (CreatureType creature : snapshot.types.values()) {
             message.append(' ');
             message.append(creature.getName());
         }
+        for (ConfigurationSection section : snapshot.uncompiledTypes.values()) {
+            message.append(' ');
+            message.append(section.getName());
+        }
         sender.sendMessage(message.toString());
 
         message.setLength(0);
         message.append(ChatColor.GOLD);
         message.append("Players:");
         message.append(ChatColor.YELLOW);
-        for (String player : _playerCreatures.keySet()) {
+        for (String player : snapshot.playerCreatures.keySet()) {
             message.append(' ');
             message.append(player);
         }
+        if (snapshot.playerIndex != null) {
+            message.append(ChatColor.GOLD);
+            message.append(" and ").append(snapshot.playerIndex.size()).append(" in the player index.");
+        }
         sender.sendMessage(message.toString());
     } // listConfiguration
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of configured shapes.
+     *
+     * This may be called from any thread.
+     *
+     * @return the number of shapes.
+     */
+    public int getShapeCount() {
+        return _snapshot.shapes.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the greatest {@link CreatureShape#getReach()} of all shapes: the
+     * size of the neighbourhood of a trigger block that can affect whether
+     * any shape matches.
+     *
+     * @return the greatest reach of all shapes, in blocks.
+     */
+    public int getShapeReach() {
+        return _snapshot.reach;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of configured creature types, including those that
+     * have not been compiled yet.
+     *
+     * This may be called from any thread.
+     *
+     * @return the number of creature types.
+     */
+    public int getCreatureTypeCount() {
+        Snapshot snapshot = _snapshot;
+        return snapshot.types.size() + snapshot.uncompiledTypes.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players defined in the configuration files.
+     *
+     * This may be called from any thread.
+     *
+     * @return the number of configured players, excluding the player index.
+     */
+    public int getPlayerCount() {
+        return _snapshot.playerCreatures.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players in the player index.
+     *
+     * This may be called from any thread.
+     *
+     * @return the number of indexed players, or 0 if there is no index.
+     */
+    public int getIndexedPlayerCount() {
+        PlayerIndex index = _snapshot.playerIndex;
+        return (index != null) ? index.size() : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of player head owners that have been looked up.
+     *
+     * This may be called from any thread.
+     *
+     * @return the number of cached head owners.
+     */
+    public int getHeadOwnerCount() {
+        synchronized (_headOwners) {
+            return _headOwners.size();
+        }
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the {@link CreatureShape} with the specified name in the
@@ -179,7 +623,7 @@ public class CreatureFactory {
      *         configuration, or null if not found.
      */
     public CreatureShape getCreatureShape(String name) {
-        return _shapes.get(name.toLowerCase());
+        return _snapshot.shapes.get(name.toLowerCase());
     }
 
     // ------------------------------------------------------------------------
@@ -197,16 +641,39 @@ public class CreatureFactory {
      *         or null if no creature would be created.
      */
     public CreatureShape getCreatureShape(Location loc, ItemStack placedItem) {
-        // Linear search probably doesn't matter. How often do you place
-        // explicitly named blocks?
-        for (CreatureShape shape : _shapes.values()) {
-            if (shape.isComplete(loc, placedItem.getType())) {
-                return shape;
+        Snapshot snapshot = _snapshot;
+        if (_adaptiveShapeOrder && ++_shapeLookups % SHAPE_ORDER_PERIOD == 0) {
+            snapshot.orderShapes(true);
+        }
+
+        // Only the enabled shapes with the placed item as their trigger are
+        // candidates.
+        CreatureShape[] candidates = snapshot.triggerShapes.get(placedItem.getType());
+        if (candidates != null) {
+            for (CreatureShape shape : candidates) {
+                if (shape.isComplete(loc, placedItem.getType())) {
+                    return shape;
+                }
             }
         }
         return null;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the specified material is the trigger of any shape,
+     * enabled or not.
+     *
+     * This is a cheap test that lets block placements that can't summon
+     * anything be ignored without allocating.
+     *
+     * @param material the material of the placed block.
+     * @return true if the material is the trigger of a shape.
+     */
+    public boolean isTrigger(Material material) {
+        return _snapshot.triggers.contains(material);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the CreatureType identified by the specified name, or null if not
@@ -222,9 +689,40 @@ public class CreatureFactory {
      *         found.
      */
     public CreatureType getCreatureType(String name) {
-        return _types.get(name.toLowerCase());
+        Snapshot snapshot = _snapshot;
+        String lowerName = name.toLowerCase();
+        CreatureType type = snapshot.types.get(lowerName);
+        return (type != null || snapshot.uncompiledTypes.isEmpty()) ? type : compileLazily(snapshot, lowerName);
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Compile a lazily loaded creature type on first use.
+     *
+     * If the definition has errors, they are logged and the type ceases to be
+     * valid.
+     *
+     * @param snapshot the snapshot containing the type.
+     * @param lowerName the lower case creature type name.
+     * @return the compiled type, or null if not found or on error.
+     */
+    protected CreatureType compileLazily(Snapshot snapshot, String lowerName) {
+        synchronized (snapshot) {
+            CreatureType type = snapshot.types.get(lowerName);
+            ConfigurationSection section = snapshot.uncompiledTypes.get(lowerName);
+            if (type == null && section != null) {
+                type = CreatureType.loadFromSection(section, snapshot.logger);
+                if (type == null) {
+                    snapshot.logger.warning("Creature " + section.getName() + " was not defined, due to errors in the configuration.");
+                } else {
+                    snapshot.types.put(lowerName, type);
+                }
+                snapshot.uncompiledTypes.remove(lowerName);
+            }
+            return type;
+        }
+    } // compileLazily
+
     // ------------------------------------------------------------------------
     /**
      * Return the specific creature type that will be spawned when the named
@@ -236,7 +734,16 @@ public class CreatureFactory {
      *         player is summoned; guaranteed non-null.
      */
     public String getPlayerCreature(String playerName) {
-        return _playerCreatures.get(playerName.toLowerCase());
+        Snapshot snapshot = _snapshot;
+        String lowerName = playerName.toLowerCase();
+        String creature = snapshot.playerCreatures.get(lowerName);
+        if (creature == null && snapshot.playerIndex != null) {
+            int record = snapshot.playerIndex.find(lowerName);
+            if (record >= 0) {
+                creature = snapshot.getIndexedCreature(record, playerName);
+            }
+        }
+        return creature;
     }
 
     // ------------------------------------------------------------------------
@@ -249,7 +756,16 @@ public class CreatureFactory {
      *         if not set.
      */
     public ArrayList<CreatureShape> getPlayerShapes(String playerName) {
-        return _playerShapes.get(playerName.toLowerCase());
+        Snapshot snapshot = _snapshot;
+        String lowerName = playerName.toLowerCase();
+        ArrayList<CreatureShape> shapes = snapshot.playerShapes.get(lowerName);
+        if (shapes == null && snapshot.playerIndex != null && !snapshot.playerCreatures.containsKey(lowerName)) {
+            int record = snapshot.playerIndex.find(lowerName);
+            if (record >= 0 && snapshot.getIndexedCreature(record, playerName) != null) {
+                shapes = snapshot.indexShapeLists.get(snapshot.playerIndex.getShapeListId(record));
+            }
+        }
+        return shapes;
     }
 
     // ------------------------------------------------------------------------
@@ -277,13 +793,7 @@ public class CreatureFactory {
      *         or a supported custom creature name.
      */
     public boolean isValidCreatureType(String creatureType) {
-        if (getCreatureType(creatureType) != null ||
-            PredefinedCreature.fromName(creatureType) != null) {
-            return true;
-        } else {
-            EntityType entityType = EntityType.fromName(creatureType);
-            return entityType != null && LivingEntity.class.isAssignableFrom(entityType.getEntityClass());
-        }
+        return _snapshot.isValidCreatureType(creatureType);
     }
 
     // ------------------------------------------------------------------------
@@ -307,27 +817,83 @@ public class CreatureFactory {
      *        default name from the creature type is used.
      * @param plugin the Plugin, used to schedule future events for special
      *        effects.
-     * @return the spawned LivingEntity, or null if nothing was spawned.
+     * @return the spawned LivingEntity, or null if nothing was spawned,
+     *         including when a population cap has been reached.
      */
     protected LivingEntity spawnCreature(String creatureType, Location loc, String name, Doppelganger plugin) {
+        DoppelgangerIndex index = plugin.getDoppelgangerIndex();
+        if (creatureType == null || !index.canSpawn(creatureType, loc)) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Object flightEvent = FlightEvents.get().beginSpawn();
+        int escortsBefore = _escortsScheduled;
+        LivingEntity livingEntity;
+        ++_spawnDepth;
+        try {
+            livingEntity = spawnUncappedCreature(creatureType, loc, name, plugin);
+        } finally {
+            --_spawnDepth;
+        }
+        if (livingEntity != null) {
+            index.add(livingEntity, creatureType);
+            plugin.getStatistics().recordSpawn(creatureType);
+            plugin.getWatchdog().countSpawn(creatureType);
+        }
+
+        // A mount is spawned by a nested call, whose time is already included
+        // in that of the outermost call.
+        if (_spawnDepth == 0) {
+            plugin.getStatistics().get(Statistics.Path.SPAWN_CREATURE).recordSince(start);
+        }
+        FlightEvents.get().commitSpawn(flightEvent, creatureType, _escortsScheduled - escortsBefore, livingEntity != null);
+        return livingEntity;
+    } // spawnCreature
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn a living entity of the specified type without checking or counting
+     * it against population caps.
+     *
+     * This implements {@link #spawnCreature(String, Location, String, Doppelganger)}.
+     * A custom creature type is spawned by recursively spawning the type it is
+     * based on; that inner creature is the same entity and must not be counted
+     * again. Escorts and mounts are separate creatures, spawned by
+     * spawnCreature() so that they are subject to the caps.
+     *
+     * @param creatureType the creature type name.
+     * @param loc the spawn location (block above ground level).
+     * @param name the custom name to assign and display; if null/empty, the
+     *        default name from the creature type is used.
+     * @param plugin the Plugin, used to schedule future events for special
+     *        effects.
+     * @return the spawned LivingEntity, or null if nothing was spawned.
+     */
+    protected LivingEntity spawnUncappedCreature(String creatureType, Location loc, String name, Doppelganger plugin) {
         // Spawn the entity.
         LivingEntity livingEntity = null;
 
         CreatureType type = getCreatureType(creatureType);
         if (type != null) {
             type.doSpawnEffects(plugin, loc);
-            type.spawnEscorts(plugin, loc);
+            _escortsScheduled += type.spawnEscorts(plugin, loc);
 
             // The creature is recursively defined in terms of spawning another
             // creature and customising that.
-            livingEntity = spawnCreature(type.getCreatureType(), loc, null, plugin);
+            livingEntity = spawnUncappedCreature(type.getCreatureType(), loc, null, plugin);
             if (livingEntity != null) {
+                long start = System.nanoTime();
                 type.customise(livingEntity);
+                plugin.getStatistics().get(Statistics.Path.CUSTOMISE).recordSince(start);
 
-                // Spawn the mount if possible.
+                // Spawn the mount if possible. The mount may be refused by a
+                // population cap.
                 if (type.getMount() != null && isValidCreatureType(type.getMount())) {
                     LivingEntity mount = spawnCreature(type.getMount(), loc, null, plugin);
-                    mount.setPassenger(livingEntity);
+                    if (mount != null) {
+                        mount.setPassenger(livingEntity);
+                    }
                 }
             }
         } else {
@@ -368,16 +934,69 @@ public class CreatureFactory {
                 String playerNameOfHead = (type != null && type.getMask() != null)
                                                                                    ? type.getMask() : usedName;
                 if (playerNameOfHead != null && playerNameOfHead.length() != 0) {
+                    long start = System.nanoTime();
                     setPlayerHead(livingEntity, playerNameOfHead);
+                    plugin.getStatistics().get(Statistics.Path.SET_PLAYER_HEAD).recordSince(start);
                 }
             }
-        }
 
-        // Players should not be able to get a doppelganger's head (or other
-        // gear) just by dropping items near it.
-        livingEntity.setCanPickupItems(false);
+            // Players should not be able to get a doppelganger's head (or
+            // other gear) just by dropping items near it.
+            livingEntity.setCanPickupItems(false);
+        }
         return livingEntity;
-    } // spawnCreature
+    } // spawnUncappedCreature
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the player whose head a creature of the specified
+     * type and name will wear, or null if it will not wear a player head.
+     *
+     * @param creatureType the creature type name.
+     * @param name the custom name of the creature; if null/empty, the default
+     *        name from the creature type is used.
+     * @return the name of the player whose head will be worn, or null.
+     */
+    public String getHeadOwnerName(String creatureType, String name) {
+        CreatureType type = getCreatureType(creatureType);
+        if (type != null && type.getKeepHelmet()) {
+            return null;
+        }
+        String usedName = ((name == null || name.length() == 0) && type != null) ? type.getDefaultName() : name;
+        String playerNameOfHead = (type != null && type.getMask() != null) ? type.getMask() : usedName;
+        return (playerNameOfHead != null && playerNameOfHead.length() != 0) ? playerNameOfHead : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up the player whose head is worn by doppelgangers of the specified
+     * name and remember the result, so that subsequent spawns can set the
+     * skull owner without a lookup.
+     *
+     * The lookup may contact the Mojang servers and block, so this should be
+     * called from an asynchronous task. It is safe to call from any thread.
+     *
+     * At most {@link #MAX_HEAD_OWNERS} results are remembered; the least
+     * recently used is forgotten first.
+     *
+     * @param name the player name.
+     * @return the corresponding OfflinePlayer.
+     */
+    public OfflinePlayer resolveHeadOwner(String name) {
+        String lowerName = name.toLowerCase();
+        OfflinePlayer owner;
+        synchronized (_headOwners) {
+            owner = _headOwners.get(lowerName);
+        }
+        if (owner == null) {
+            // Don't hold the lock during a lookup that may block.
+            owner = Bukkit.getOfflinePlayer(name);
+            synchronized (_headOwners) {
+                _headOwners.put(lowerName, owner);
+            }
+        }
+        return owner;
+    }
 
     // ------------------------------------------------------------------------
     /**
@@ -387,17 +1006,29 @@ public class CreatureFactory {
      * customise that skull item so that settings from the configuration are
      * retained.
      *
+     * If the player has previously been looked up by
+     * {@link #resolveHeadOwner(String)}, the resolved player is used as the
+     * owner of the skull.
+     *
      * @param doppelganger the creature.
      * @param name the name of the player whose head will be worn.
      */
-    protected static void setPlayerHead(LivingEntity doppelganger, String name) {
+    protected void setPlayerHead(LivingEntity doppelganger, String name) {
         ItemStack helmet = doppelganger.getEquipment().getHelmet();
         if (helmet == null || helmet.getType() != Material.PLAYER_HEAD) {
             helmet = new ItemStack(Material.PLAYER_HEAD, 1);
         }
 
         SkullMeta meta = (SkullMeta) helmet.getItemMeta();
-        meta.setOwner(name);
+        OfflinePlayer owner;
+        synchronized (_headOwners) {
+            owner = _headOwners.get(name.toLowerCase());
+        }
+        if (owner != null) {
+            meta.setOwningPlayer(owner);
+        } else {
+            meta.setOwner(name);
+        }
         helmet.setItemMeta(meta);
         // Player heads are damage value 3.
         helmet.setDurability((short) 3);
@@ -406,27 +1037,540 @@ public class CreatureFactory {
 
     // ------------------------------------------------------------------------
     /**
-     * Map from lower case shape name to {@link CreatureShape} instance.
+     * The result of compiling one configuration section.
+     */
+    protected static final class Compiled<T> {
+        /**
+         * Constructor.
+         *
+         * @param name the name of the shape or type, in its original case.
+         * @param section the section that was compiled.
+         * @param value the compiled object, or null on error or if
+         *        compilation was deferred.
+         * @param fingerprint the fingerprint of the section.
+         * @param reused true if the value was reused from the previous
+         *        snapshot.
+         * @param log the warnings logged by compilation.
+         */
+        Compiled(String name, ConfigurationSection section, T value, String fingerprint, boolean reused, BufferedLogger log) {
+            this.name = name;
+            this.section = section;
+            this.value = value;
+            this.fingerprint = fingerprint;
+            this.reused = reused;
+            this.log = log;
+        }
+
+        /**
+         * The name of the shape or type, in its original case.
+         */
+        final String name;
+
+        /**
+         * The section that was compiled.
+         */
+        final ConfigurationSection section;
+
+        /**
+         * The compiled object, or null on error or if compilation was
+         * deferred.
+         */
+        final T value;
+
+        /**
+         * The fingerprint of the section.
+         */
+        final String fingerprint;
+
+        /**
+         * True if the value was reused from the previous snapshot.
+         */
+        final boolean reused;
+
+        /**
+         * The warnings logged by compilation, to be published in declaration
+         * order.
+         */
+        final BufferedLogger log;
+    } // inner class Compiled
+
+    // ------------------------------------------------------------------------
+    /**
+     * An immutable, compiled configuration.
      *
-     * Use a LinkedHashMap to preserve the ordering defined in the configuration
-     * file. That way earlier entries have precedence over later ones.
+     * A Snapshot is only modified while
+     * {@link CreatureFactory#compile(ConfigurationSection, Logger)} builds it;
+     * once published by {@link CreatureFactory#install(Snapshot)} it is only
+     * modified to move lazily compiled creature types from uncompiledTypes to
+     * types. Fully compiled snapshots are written to the {@link ConfigCache}, so
+     * that an unchanged configuration need not be compiled again.
      */
-    protected LinkedHashMap<String, CreatureShape> _shapes = new LinkedHashMap<String, CreatureShape>();
+    public static final class Snapshot {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * The creature type names are seeded with the predefined and vanilla
+         * living creature types.
+         */
+        Snapshot() {
+            for (PredefinedCreature predefined : PredefinedCreature.values()) {
+                creatureNames.add(predefined.name());
+            }
+            for (EntityType entityType : EntityType.values()) {
+                if (entityType.isAlive() && entityType.getName() != null) {
+                    creatureNames.add(entityType.getName());
+                }
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if the specified creature is a valid EntityType value or
+         * a supported custom creature name in this snapshot.
+         *
+         * @param creatureType the case-insensitive custom or vanilla creature
+         *        type.
+         * @return true if the specified living entity is a valid EntityType
+         *         value or a supported custom creature name.
+         */
+        boolean isValidCreatureType(String creatureType) {
+            String lowerName = creatureType.toLowerCase();
+            if (types.containsKey(lowerName) || uncompiledTypes.containsKey(lowerName) ||
+                PredefinedCreature.fromName(creatureType) != null) {
+                return true;
+            } else {
+                EntityType entityType = EntityType.fromName(creatureType);
+                return entityType != null && LivingEntity.class.isAssignableFrom(entityType.getEntityClass());
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Look up players not defined in the configuration in the specified
+         * index.
+         *
+         * Each distinct shape list in the index is resolved against the shapes
+         * of this snapshot once, here, and each distinct creature type is
+         * checked once, so that problems are logged once rather than per
+         * player. This must be called before the snapshot is installed.
+         *
+         * @param index the player index, or null for none.
+         * @param logger logs problems with the index.
+         */
+        void attachPlayerIndex(PlayerIndex index, Logger logger) {
+            playerIndex = index;
+            indexShapeLists = new ArrayList<ArrayList<CreatureShape>>();
+            if (index == null) {
+                return;
+            }
+
+            for (String creature : index.getCreatures()) {
+                if (!isValidCreatureType(creature)) {
+                    logger.warning("Players in the player index that spawn " + creature +
+                                   " are not defined because there is no creature type by that name.");
+                }
+            }
+            for (int id = 0; id < index.getShapeListCount(); ++id) {
+                ArrayList<CreatureShape> list = new ArrayList<CreatureShape>();
+                for (String shapeName : index.getShapeList(id)) {
+                    CreatureShape shape = shapes.get(shapeName.toLowerCase());
+                    if (shape == null) {
+                        logger.warning("The player index references undefined shape " + shapeName);
+                    } else {
+                        list.add(shape);
+                    }
+                }
+                indexShapeLists.add(list);
+            }
+        } // attachPlayerIndex
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the creature type of a player in the player index, or null if
+         * it is not a valid type.
+         *
+         * @param record the record number in the index.
+         * @param playerName the player name, which is the creature type if the
+         *        record does not specify one.
+         * @return the creature type, or null.
+         */
+        String getIndexedCreature(int record, String playerName) {
+            String creature = playerIndex.getCreature(record);
+            if (creature == null) {
+                creature = playerName;
+            }
+            return isValidCreatureType(creature) ? creature : null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if every creature type has been compiled, meaning that
+         * this snapshot can be encoded.
+         *
+         * @return true if every creature type has been compiled.
+         */
+        boolean isFullyCompiled() {
+            return uncompiledTypes.isEmpty();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write this snapshot to the {@link ConfigCache}.
+         *
+         * Only the shapes, creature types, players and fingerprints are
+         * written; the player index and shape order are rebuilt after
+         * decoding. The snapshot must be fully compiled. Changes to the
+         * encoding must increment {@link ConfigCache#FORMAT}.
+         *
+         * @param out the stream.
+         * @throws IOException if the stream can't be written.
+         */
+        void encode(DataOutputStream out) throws IOException {
+            out.writeInt(shapes.size());
+            for (Map.Entry<String, CreatureShape> entry : shapes.entrySet()) {
+                ConfigCache.writeString(out, entry.getKey());
+                entry.getValue().encode(out);
+                ConfigCache.writeString(out, shapeFingerprints.get(entry.getKey()));
+            }
+
+            out.writeInt(types.size());
+            for (Map.Entry<String, CreatureType> entry : types.entrySet()) {
+                ConfigCache.writeString(out, entry.getKey());
+                entry.getValue().encode(out);
+                ConfigCache.writeString(out, typeFingerprints.get(entry.getKey()));
+            }
+
+            // Players are written with the case of their names, for completion.
+            List<String> players = playerNames.complete("", Integer.MAX_VALUE);
+            out.writeInt(players.size());
+            for (String playerName : players) {
+                String lowerName = playerName.toLowerCase();
+                ConfigCache.writeString(out, playerName);
+                ConfigCache.writeString(out, playerCreatures.get(lowerName));
+                List<CreatureShape> playerShapeList = playerShapes.get(lowerName);
+                out.writeInt(playerShapeList.size());
+                for (CreatureShape shape : playerShapeList) {
+                    ConfigCache.writeString(out, shape.getName().toLowerCase());
+                }
+            }
+        } // encode
+
+        // --------------------------------------------------------------------
+        /**
+         * Read a snapshot written by {@link #encode(DataOutputStream)}.
+         *
+         * @param in the buffer.
+         * @return the snapshot, without a player index.
+         * @throws IOException if the encoding is invalid.
+         */
+        static Snapshot decode(ByteBuffer in) throws IOException {
+            Snapshot snapshot = new Snapshot();
+            int shapeCount = ConfigCache.readCount(in);
+            for (int i = 0; i < shapeCount; ++i) {
+                String lowerName = ConfigCache.readString(in);
+                if (lowerName == null) {
+                    throw new IOException("shape without a name");
+                }
+                CreatureShape shape = CreatureShape.decode(in);
+                snapshot.shapes.put(lowerName, shape);
+                snapshot.shapeFingerprints.put(lowerName, ConfigCache.readString(in));
+                snapshot.shapeNames.add(shape.getName());
+            }
+
+            int typeCount = ConfigCache.readCount(in);
+            for (int i = 0; i < typeCount; ++i) {
+                String lowerName = ConfigCache.readString(in);
+                if (lowerName == null) {
+                    throw new IOException("type without a name");
+                }
+                CreatureType type = CreatureType.decode(in);
+                snapshot.types.put(lowerName, type);
+                snapshot.typeFingerprints.put(lowerName, ConfigCache.readString(in));
+                snapshot.creatureNames.add(type.getName());
+            }
+
+            // Players with the same shapes share one list, as when compiled.
+            HashMap<List<CreatureShape>, ArrayList<CreatureShape>> sharedShapeLists = new HashMap<List<CreatureShape>, ArrayList<CreatureShape>>();
+            int playerCount = ConfigCache.readCount(in);
+            for (int i = 0; i < playerCount; ++i) {
+                String playerName = ConfigCache.readString(in);
+                String creature = ConfigCache.readString(in);
+                if (playerName == null || creature == null) {
+                    throw new IOException("player without a name or creature type");
+                }
+                int listSize = ConfigCache.readCount(in);
+                ArrayList<CreatureShape> playerShapeList = new ArrayList<CreatureShape>(listSize);
+                for (int j = 0; j < listSize; ++j) {
+                    String shapeName = ConfigCache.readString(in);
+                    CreatureShape shape = snapshot.shapes.get(shapeName);
+                    if (shape == null) {
+                        throw new IOException("player " + playerName + " references undefined shape " + shapeName);
+                    }
+                    playerShapeList.add(shape);
+                }
+                ArrayList<CreatureShape> shared = sharedShapeLists.get(playerShapeList);
+                if (shared == null) {
+                    sharedShapeLists.put(playerShapeList, playerShapeList);
+                    shared = playerShapeList;
+                }
+                snapshot.playerShapes.put(playerName.toLowerCase(), shared);
+                snapshot.playerCreatures.put(playerName.toLowerCase(), creature);
+                snapshot.playerNames.add(playerName);
+            }
+            return snapshot;
+        } // decode
+
+        // --------------------------------------------------------------------
+        /**
+         * Rebuild the candidate shapes of each trigger material and the order
+         * in which the blocks of each shape are checked.
+         *
+         * Non-adaptively, candidates are in declaration order. Adaptively,
+         * the next candidate is repeatedly chosen as the one with the highest
+         * match rate among those that don't overlap an earlier declared,
+         * unchosen shape; see {@link CreatureShape#canOverlap(CreatureShape)}.
+         *
+         * This must be called on the main thread.
+         *
+         * @param adaptive if true, order by {@link ShapeTelemetry}.
+         */
+        void orderShapes(boolean adaptive) {
+            EnumMap<Material, ArrayList<CreatureShape>> declared = new EnumMap<Material, ArrayList<CreatureShape>>(Material.class);
+            for (CreatureShape shape : shapes.values()) {
+                shape.setProbeOrder(adaptive);
+                triggers.add(shape.getTriggerMaterial());
+                reach = Math.max(reach, shape.getReach());
+                if (shape.isEnabled()) {
+                    ArrayList<CreatureShape> candidates = declared.get(shape.getTriggerMaterial());
+                    if (candidates == null) {
+                        candidates = new ArrayList<CreatureShape>();
+                        declared.put(shape.getTriggerMaterial(), candidates);
+                    }
+                    candidates.add(shape);
+                }
+            }
+
+            for (Map.Entry<Material, ArrayList<CreatureShape>> entry : declared.entrySet()) {
+                ArrayList<CreatureShape> remaining = entry.getValue();
+                CreatureShape[] ordered = new CreatureShape[remaining.size()];
+                for (int next = 0; next < ordered.length; ++next) {
+                    int best = 0;
+                    if (adaptive) {
+                        for (int i = 1; i < remaining.size(); ++i) {
+                            CreatureShape shape = remaining.get(i);
+                            if (shape.getTelemetry().getMatchRate() > remaining.get(best).getTelemetry().getMatchRate() &&
+                                !overlapsEarlier(remaining, i)) {
+                                best = i;
+                            }
+                        }
+                    }
+                    ordered[next] = remaining.remove(best);
+                }
+                triggerShapes.put(entry.getKey(), ordered);
+            }
+        } // orderShapes
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if the shape at the specified index in a list of shapes
+         * in declaration order could be complete at the same time as one
+         * declared before it.
+         *
+         * @param shapes the shapes, in declaration order.
+         * @param index the index of the shape to test.
+         * @return true if an earlier shape overlaps the shape.
+         */
+        static boolean overlapsEarlier(List<CreatureShape> shapes, int index) {
+            CreatureShape shape = shapes.get(index);
+            for (int i = 0; i < index; ++i) {
+                if (shapes.get(i).canOverlap(shape)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Map from lower case shape name to {@link CreatureShape} instance.
+         *
+         * Use a LinkedHashMap to preserve the ordering defined in the
+         * configuration file. That way earlier entries have precedence over
+         * later ones.
+         */
+        final LinkedHashMap<String, CreatureShape> shapes = new LinkedHashMap<String, CreatureShape>();
+
+        /**
+         * Map from lower case creature type name to {@link CreatureType}
+         * instance.
+         */
+        final ConcurrentHashMap<String, CreatureType> types = new ConcurrentHashMap<String, CreatureType>();
+
+        /**
+         * Map from lower case creature type name to the configuration section
+         * of a lazily loaded type that has not been compiled yet.
+         *
+         * Configuration sections can't be encoded, so snapshots with
+         * uncompiled types are not cached.
+         */
+        ConcurrentHashMap<String, ConfigurationSection> uncompiledTypes = new ConcurrentHashMap<String, ConfigurationSection>();
+
+        /**
+         * Logs errors in lazily compiled types.
+         */
+        Logger logger;
+
+        /**
+         * Map from lower case player name to {@link CreatureType} name.
+         */
+        final HashMap<String, String> playerCreatures = new HashMap<String, String>();
+
+        /**
+         * Map from lower case player name to list of {@link CreatureShape}s
+         * that can summon that player.
+         */
+        final HashMap<String, ArrayList<CreatureShape>> playerShapes = new HashMap<String, ArrayList<CreatureShape>>();
+
+        /**
+         * Map from lower case shape name to the fingerprint of the
+         * configuration section it was compiled from.
+         */
+        final HashMap<String, String> shapeFingerprints = new HashMap<String, String>();
+
+        /**
+         * Map from lower case creature type name to the fingerprint of the
+         * configuration section it was compiled from.
+         */
+        final HashMap<String, String> typeFingerprints = new HashMap<String, String>();
+
+        /**
+         * Shape names, for tab completion.
+         */
+        final PrefixTrie shapeNames = new PrefixTrie();
+
+        /**
+         * Creature type names, including predefined and vanilla types, for tab
+         * completion.
+         */
+        final PrefixTrie creatureNames = new PrefixTrie();
+
+        /**
+         * Names of players with specific creature types, for tab completion.
+         */
+        final PrefixTrie playerNames = new PrefixTrie();
+
+        /**
+         * The index of players not defined in the configuration, or null if
+         * there is none. Player definitions in the configuration take
+         * precedence.
+         */
+        PlayerIndex playerIndex;
+
+        /**
+         * The shape lists of playerIndex, resolved to shapes, indexed by shape
+         * list ID.
+         */
+        ArrayList<ArrayList<CreatureShape>> indexShapeLists = new ArrayList<ArrayList<CreatureShape>>();
+
+        /**
+         * Map from trigger material to the enabled shapes with that trigger,
+         * in the order they are tested; built by
+         * {@link #orderShapes(boolean)}.
+         */
+        EnumMap<Material, CreatureShape[]> triggerShapes = new EnumMap<Material, CreatureShape[]>(Material.class);
+
+        /**
+         * The trigger materials of all shapes, including disabled shapes that
+         * only summon specific players; built by {@link #orderShapes(boolean)}.
+         */
+        EnumSet<Material> triggers = EnumSet.noneOf(Material.class);
+
+        /**
+         * The greatest reach of all shapes; computed by
+         * {@link #orderShapes(boolean)}.
+         */
+        int reach;
+    } // inner class Snapshot
+
+    // ------------------------------------------------------------------------
+    /**
+     * The settings of a player in the players section.
+     */
+    protected static final ConfigSchema PLAYER_SCHEMA = new ConfigSchema("a player");
+
+    /**
+     * The creature type spawned for the player; defaults to the player's name.
+     */
+    protected static final ConfigSchema.Key PLAYER_SPAWN = PLAYER_SCHEMA.add("spawn", ConfigSchema.Type.STRING);
+
+    /**
+     * The names of the shapes that spawn the player.
+     */
+    protected static final ConfigSchema.Key PLAYER_SHAPES = PLAYER_SCHEMA.add("shapes", ConfigSchema.Type.STRING_LIST);
+
+    /**
+     * Number of shape lookups between recomputations of the adaptive shape
+     * order.
+     */
+    protected static final int SHAPE_ORDER_PERIOD = 1024;
+
+    /**
+     * Maximum number of resolved player head owners remembered by
+     * {@link #resolveHeadOwner(String)}.
+     */
+    protected static final int MAX_HEAD_OWNERS = 256;
+
+    /**
+     * Compiles configuration sections in parallel; created on first use and
+     * shut down by {@link #shutdown()}.
+     */
+    protected ForkJoinPool _compilePool;
+
+    /**
+     * The current configuration, replaced as a whole on each load.
+     */
+    protected volatile Snapshot _snapshot = new Snapshot();
+
+    /**
+     * True if shapes are tested in an order adapted to their telemetry.
+     */
+    protected boolean _adaptiveShapeOrder;
 
     /**
-     * Map from lower case creature type name to {@link CreatureType} instance.
+     * Number of shape lookups by {@link #getCreatureShape(Location, ItemStack)};
+     * accessed only on the main thread.
      */
-    protected HashMap<String, CreatureType> _types = new HashMap<String, CreatureType>();
+    protected int _shapeLookups;
 
     /**
-     * Map from lower case player name to {@link CreatureType} name.
+     * Total number of escorts scheduled by spawned creatures; only accessed
+     * from the main thread.
      */
-    protected HashMap<String, String> _playerCreatures = new HashMap<String, String>();
+    protected int _escortsScheduled;
 
     /**
-     * Map from lower case player name to list of {@link CreatureShape}s
-     * describing the shapes that can be built to summon that specific player.
+     * Number of calls to
+     * {@link #spawnCreature(String, Location, String, Doppelganger)} in
+     * progress, which is greater than one while a mount is being spawned; only
+     * accessed from the main thread.
      */
-    protected HashMap<String, ArrayList<CreatureShape>> _playerShapes = new HashMap<String, ArrayList<CreatureShape>>();
+    protected int _spawnDepth;
+
+    /**
+     * Map from lower case player name to the player resolved by
+     * {@link #resolveHeadOwner(String)}, in least recently used order and
+     * limited to {@link #MAX_HEAD_OWNERS} entries.
+     *
+     * Accessed from asynchronous tasks; synchronize on the map.
+     */
+    protected LinkedHashMap<String, OfflinePlayer> _headOwners = new LinkedHashMap<String, OfflinePlayer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OfflinePlayer> eldest) {
+            return size() > MAX_HEAD_OWNERS;
+        }
+    };
 
 } // class CreatureFactory
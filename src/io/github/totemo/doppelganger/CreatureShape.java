@@ -1,8 +1,12 @@
 package io.github.totemo.doppelganger;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
@@ -51,58 +55,42 @@ public class CreatureShape {
     public static CreatureShape loadFromSection(ConfigurationSection section, Logger logger) {
         CreatureShape shape = null;
         try {
-            Material headMaterial = Material.matchMaterial(section.getString("head", ""));
+            ConfigSchema.Values values = SCHEMA.bind(section, logger);
+            Material headMaterial = Material.matchMaterial(values.getString(HEAD, ""));
             if (headMaterial == null) {
                 logger.warning("Shape " + section.getName() + "'s head material is invalid.");
                 return null;
             } else {
-                boolean enabled = section.getBoolean("enabled", true);
+                boolean enabled = values.getBoolean(ENABLED, true);
                 if (!enabled) {
                     logger.warning("Summoning doppelgangers by building shape " + section.getName() + " is disabled.");
                 }
                 shape = new CreatureShape(section.getName(), headMaterial, enabled);
-                if (section.isList("body")) {
-                    try {
-                        List<Map<?, ?>> blocks = section.getMapList("body");
-                        for (int i = 0; i < blocks.size(); ++i) {
-                            ConfigMap map = new ConfigMap(blocks.get(i), logger, shape.getName() + " block " + i);
-                            String materialName = map.getString("material", "");
-                            Material mat = Material.matchMaterial(materialName);
-                            List<Number> offset = map.getNumberList("offset", null);
-                            if (mat != null && offset != null && offset.size() == 3) {
-                                int x = offset.get(0).intValue();
-                                int y = offset.get(1).intValue();
-                                int z = offset.get(2).intValue();
-                                if (x == 0 && y == 0 && z == 0) {
-                                    logger.warning("block index " + i + " can't have offset (0,0,0) because that is where the head goes");
-                                    return null;
-                                } else {
-                                    Vector vector = new Vector(x, y, z);
-                                    shape.addCreatureBlock(mat, vector);
-                                }
-                            } else {
-                                logger.warning("block index " + i + " is incorrectly specified");
-                                return null;
-                            }
-                        } // for each block in the body
-                    } catch (Exception ex) {
-                        logger.warning(ex.getClass().getName() + " loading body in " + section.getCurrentPath());
-                    }
-                } // body
-
-                if (section.isList("summon")) {
-                    try {
-                        List<Map<?, ?>> summons = section.getMapList("summon");
-                        for (int i = 0; i < summons.size(); ++i) {
-                            ConfigMap map = new ConfigMap(summons.get(i), logger, shape.getName() + " summon " + i);
-                            double weight = map.getDouble("weight", 1.0);
-                            String spawn = map.getString("spawn", "");
-                            shape.addCreatureType(spawn, weight);
+                List<ConfigSchema.Values> blocks = values.getSections(BODY);
+                for (int i = 0; i < blocks.size(); ++i) {
+                    ConfigSchema.Values block = blocks.get(i);
+                    Material mat = Material.matchMaterial(block.getString(BLOCK_MATERIAL, ""));
+                    List<Number> offset = block.getList(BLOCK_OFFSET);
+                    if (mat != null && offset != null && offset.size() == 3) {
+                        int x = offset.get(0).intValue();
+                        int y = offset.get(1).intValue();
+                        int z = offset.get(2).intValue();
+                        if (x == 0 && y == 0 && z == 0) {
+                            logger.warning("block index " + i + " can't have offset (0,0,0) because that is where the head goes");
+                            return null;
+                        } else {
+                            Vector vector = new Vector(x, y, z);
+                            shape.addCreatureBlock(mat, vector);
                         }
-                    } catch (Exception ex) {
-                        logger.warning(ex.getClass().getName() + " loading summon in " + section.getCurrentPath());
+                    } else {
+                        logger.warning("block index " + i + " is incorrectly specified");
+                        return null;
                     }
-                } // summon
+                } // for each block in the body
+
+                for (ConfigSchema.Values summon : values.getSections(SUMMON)) {
+                    shape.addCreatureType(summon.getString(SUMMON_SPAWN, ""), summon.getDouble(SUMMON_WEIGHT, 1.0));
+                }
             } // head material is valid.
 
             // Compute the mandatory one-block horizontal border of air.
@@ -128,6 +116,7 @@ public class CreatureShape {
         _name = name;
         _triggerMaterial = triggerMaterial;
         _enabled = enabled;
+        _telemetry = new ShapeTelemetry(0);
     }
 
     // ------------------------------------------------------------------------
@@ -203,6 +192,62 @@ public class CreatureShape {
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counts of attempts to match this shape.
+     *
+     * @return the {@link ShapeTelemetry}.
+     */
+    public ShapeTelemetry getTelemetry() {
+        return _telemetry;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check the body blocks most likely to be wrong first, according to the
+     * {@link ShapeTelemetry}, or restore the declaration order.
+     *
+     * The order doesn't affect whether the shape matches, only how soon a
+     * mismatch is found.
+     *
+     * @param adaptive if true, order by the selectivity of each block;
+     *        otherwise, use the declaration order.
+     */
+    public void setProbeOrder(boolean adaptive) {
+        _probeOrder = adaptive ? _telemetry.getProbeOrder() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if some arrangement of blocks could complete both this shape
+     * and the other shape.
+     *
+     * That is the case when both shapes have the same trigger material and
+     * there is no offset where they require different materials. The order
+     * in which two such shapes are tested decides which of them is summoned.
+     *
+     * @param other the other shape.
+     * @return true if the shapes can be complete at the same time.
+     */
+    public boolean canOverlap(CreatureShape other) {
+        if (_triggerMaterial != other._triggerMaterial) {
+            return false;
+        }
+        HashMap<Long, Material> body = new HashMap<Long, Material>();
+        for (int i = 0; i < _offsets.size(); ++i) {
+            Vector o = _offsets.get(i);
+            body.put(offsetKey(o.getBlockX(), o.getBlockY(), o.getBlockZ()), _materials.get(i));
+        }
+        for (int i = 0; i < other._offsets.size(); ++i) {
+            Vector o = other._offsets.get(i);
+            Material material = body.get(offsetKey(o.getBlockX(), o.getBlockY(), o.getBlockZ()));
+            if (material != null && material != other._materials.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return true if this shape is enabled and placing an item of the specified
@@ -214,7 +259,19 @@ public class CreatureShape {
      *         would result in a complete creature shape.
      */
     public boolean isComplete(Location loc, Material placedMaterial) {
-        return isEnabled() && _triggerMaterial == placedMaterial && isCreatureShape(loc);
+        if (!isEnabled()) {
+            return false;
+        }
+        _telemetry.recordAttempt();
+        if (_triggerMaterial != placedMaterial) {
+            _telemetry.recordWrongTrigger();
+            return false;
+        }
+        if (!isCreatureShape(loc)) {
+            return false;
+        }
+        _telemetry.recordMatch();
+        return true;
     }
 
     // ------------------------------------------------------------------------
@@ -227,8 +284,12 @@ public class CreatureShape {
      *         result in a complete creature shape.
      */
     public boolean isCreatureShape(Location loc) {
+        int[] order = _probeOrder;
         for (int i = 0; i < _materials.size(); ++i) {
-            if (getCreatureBlock(loc, i).getType() != _materials.get(i)) {
+            int index = (order != null) ? order[i] : i;
+            boolean mismatch = (getCreatureBlock(loc, index).getType() != _materials.get(index));
+            _telemetry.recordProbe(index, mismatch);
+            if (mismatch) {
                 return false;
             }
         }
@@ -258,6 +319,24 @@ public class CreatureShape {
         return _groundOffset;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the greatest distance along any axis from the trigger block to a
+     * block of the shape or of the gap that must surround it.
+     *
+     * @return the reach, in blocks.
+     */
+    public int getReach() {
+        int reach = 1;
+        for (int i = 0; i < _offsets.size(); ++i) {
+            Vector offset = _offsets.get(i);
+            reach = Math.max(reach, Math.abs(offset.getBlockX()) + 1);
+            reach = Math.max(reach, Math.abs(offset.getBlockY()));
+            reach = Math.max(reach, Math.abs(offset.getBlockZ()) + 1);
+        }
+        return reach;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Print a description of this shape to the command sender.
@@ -269,12 +348,19 @@ public class CreatureShape {
         sender.sendMessage(ChatColor.GOLD + "    Enabled: " + ChatColor.YELLOW + isEnabled());
         sender.sendMessage(ChatColor.GOLD + "    Head material: " + ChatColor.YELLOW + getTriggerMaterial());
         sender.sendMessage(ChatColor.GOLD + "    Y offset to ground: " + ChatColor.YELLOW + getGroundOffset());
+        ShapeTelemetry telemetry = _telemetry;
+        sender.sendMessage(String.format("%s    Attempts: %s%d%s, matches: %s%d%s, wrong trigger: %s%d%s, border blocked: %s%d",
+                                         ChatColor.GOLD, ChatColor.YELLOW, telemetry.getAttempts(),
+                                         ChatColor.GOLD, ChatColor.YELLOW, telemetry.getMatches(),
+                                         ChatColor.GOLD, ChatColor.YELLOW, telemetry.getWrongTrigger(),
+                                         ChatColor.GOLD, ChatColor.YELLOW, telemetry.getBorderBlocked()));
         if (_materials.size() != 0) {
-            sender.sendMessage(ChatColor.GOLD + "    Body: ");
+            sender.sendMessage(ChatColor.GOLD + "    Body (mismatches/checks): ");
             for (int i = 0; i < _materials.size(); ++i) {
-                sender.sendMessage(String.format("%s        (%d) %s at (%d, %d, %d)",
+                sender.sendMessage(String.format("%s        (%d) %s at (%d, %d, %d): %d/%d",
                                                  ChatColor.YELLOW, i + 1, _materials.get(i).toString(),
-                                                 _offsets.get(i).getBlockX(), _offsets.get(i).getBlockY(), _offsets.get(i).getBlockZ()));
+                                                 _offsets.get(i).getBlockX(), _offsets.get(i).getBlockY(), _offsets.get(i).getBlockZ(),
+                                                 telemetry.getMismatches(i), telemetry.getProbes(i)));
             }
         }
         if (_border.size() != 0) {
@@ -326,6 +412,7 @@ public class CreatureShape {
             int z = loc.getBlockZ() + offset.getBlockZ();
             Material blockType = loc.getWorld().getBlockAt(x, y, z).getType();
             if (blockType != Material.AIR && blockType != Material.CAVE_AIR) {
+                _telemetry.recordBorderBlocked();
                 return false;
             }
         }
@@ -356,6 +443,9 @@ public class CreatureShape {
      * Compute the offsets of the blocks in the border around the shape
      * (including the head) which must be air in order for the creature to
      * spawn.
+     *
+     * This is called once all body blocks have been added, so it also creates
+     * the {@link ShapeTelemetry}, which has a counter per body block.
      */
     protected void computeBorder() {
         _border.clear();
@@ -383,6 +473,13 @@ public class CreatureShape {
         --minZ;
         ++maxZ;
 
+        // Index the body offsets so that each membership test is O(1).
+        HashSet<Long> body = new HashSet<Long>();
+        for (int i = 0; i < _offsets.size(); ++i) {
+            Vector o = _offsets.get(i);
+            body.add(offsetKey(o.getBlockX(), o.getBlockY(), o.getBlockZ()));
+        }
+
         // Iterate over all offset coordinates in the bounded volume adding an
         // entry to _border if the corresponding offset is not in _offsets.
         // Iteration proceeds from the ground up on the basis that ground
@@ -390,12 +487,13 @@ public class CreatureShape {
         for (int y = minY; y <= maxY; ++y) {
             for (int x = minX; x <= maxX; ++x) {
                 for (int z = minZ; z <= maxZ; ++z) {
-                    if (!hasBodyOffset(x, y, z)) {
+                    if (!hasBodyOffset(body, x, y, z)) {
                         _border.add(new Vector(x, y, z));
                     }
                 }
             }
         }
+        _telemetry = new ShapeTelemetry(_offsets.size());
     } // computeBorder
 
     // ------------------------------------------------------------------------
@@ -406,24 +504,120 @@ public class CreatureShape {
      * This method is only called from computeBorder(), which happens only while
      * the shape is being loaded.
      *
+     * @param body the set of {@link #offsetKey(int, int, int)} values of the
+     *        body offsets.
      * @return true if the specified (x,y,z) offset from the head location is a
      *         body block.
      */
-    protected boolean hasBodyOffset(int x, int y, int z) {
+    protected static boolean hasBodyOffset(HashSet<Long> body, int x, int y, int z) {
         if (x == 0 && y == 0 && z == 0) {
             // Offset (0,0,0) is the head, explicitly precluded by
             // loadFromSection().
             return true;
         }
+        return body.contains(offsetKey(x, y, z));
+    } // hasBodyOffset
 
-        for (int i = 0; i < _offsets.size(); ++i) {
-            Vector o = _offsets.get(i);
-            if (x == o.getBlockX() && y == o.getBlockY() && z == o.getBlockZ()) {
-                return true;
+    // ------------------------------------------------------------------------
+    /**
+     * Pack a block offset into a single long.
+     *
+     * Each coordinate is stored in 21 bits, which is far more than any shape
+     * requires.
+     *
+     * @return the packed offset.
+     */
+    protected static long offsetKey(int x, int y, int z) {
+        return ((x & 0x1FFFFFL) << 42) | ((y & 0x1FFFFFL) << 21) | (z & 0x1FFFFFL);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write this shape to the {@link ConfigCache}.
+     *
+     * The computed border is written too, so that it need not be computed
+     * again. Changes to the encoding must increment
+     * {@link ConfigCache#FORMAT}.
+     *
+     * @param out the stream.
+     * @throws IOException if the stream can't be written.
+     */
+    public void encode(DataOutputStream out) throws IOException {
+        ConfigCache.writeString(out, _name);
+        ConfigCache.writeEnum(out, _triggerMaterial);
+        out.writeBoolean(_enabled);
+        out.writeInt(_materials.size());
+        for (int i = 0; i < _materials.size(); ++i) {
+            ConfigCache.writeEnum(out, _materials.get(i));
+            encodeOffset(out, _offsets.get(i));
+        }
+        out.writeInt(_border.size());
+        for (Vector offset : _border) {
+            encodeOffset(out, offset);
+        }
+        WeightedSelection.encode(out, _types);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a shape written by {@link #encode(DataOutputStream)}.
+     *
+     * @param in the buffer.
+     * @return the shape.
+     * @throws IOException if the encoding is invalid.
+     */
+    public static CreatureShape decode(ByteBuffer in) throws IOException {
+        String name = ConfigCache.readString(in);
+        Material triggerMaterial = ConfigCache.readEnum(in, Material.class);
+        if (name == null || triggerMaterial == null) {
+            throw new IOException("shape without a name or trigger");
+        }
+        CreatureShape shape = new CreatureShape(name, triggerMaterial, in.get() != 0);
+        int blockCount = ConfigCache.readCount(in);
+        for (int i = 0; i < blockCount; ++i) {
+            Material material = ConfigCache.readEnum(in, Material.class);
+            if (material == null) {
+                throw new IOException("shape " + name + " has a body block without a material");
             }
+            shape.addCreatureBlock(material, decodeOffset(in));
         }
-        return false;
-    } // hasBodyOffset
+        int borderCount = ConfigCache.readCount(in);
+        for (int i = 0; i < borderCount; ++i) {
+            shape._border.add(decodeOffset(in));
+        }
+        shape._types = WeightedSelection.decode(in);
+        shape._telemetry = new ShapeTelemetry(shape._offsets.size());
+        return shape;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a block offset.
+     *
+     * @param out the stream.
+     * @param offset the offset.
+     * @throws IOException if the stream can't be written.
+     */
+    protected static void encodeOffset(DataOutputStream out, Vector offset) throws IOException {
+        out.writeInt(offset.getBlockX());
+        out.writeInt(offset.getBlockY());
+        out.writeInt(offset.getBlockZ());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a block offset written by
+     * {@link #encodeOffset(DataOutputStream, Vector)}.
+     *
+     * @param in the buffer.
+     * @return the offset.
+     */
+    protected static Vector decodeOffset(ByteBuffer in) {
+        int x = in.getInt();
+        int y = in.getInt();
+        int z = in.getInt();
+        return new Vector(x, y, z);
+    }
 
     // ------------------------------------------------------------------------
     /**
@@ -446,6 +640,61 @@ public class CreatureShape {
     } // dump
 
     // ------------------------------------------------------------------------
+    /**
+     * The settings of one block of the body.
+     */
+    protected static final ConfigSchema BLOCK_SCHEMA = new ConfigSchema("a body block");
+
+    /**
+     * The material of a body block.
+     */
+    protected static final ConfigSchema.Key BLOCK_MATERIAL = BLOCK_SCHEMA.add("material", ConfigSchema.Type.STRING);
+
+    /**
+     * The offset of a body block from the head, as [x, y, z].
+     */
+    protected static final ConfigSchema.Key BLOCK_OFFSET = BLOCK_SCHEMA.add("offset", ConfigSchema.Type.NUMBER_LIST);
+
+    /**
+     * The settings of one weighted creature type to summon.
+     */
+    protected static final ConfigSchema SUMMON_SCHEMA = new ConfigSchema("a summon entry");
+
+    /**
+     * The creature type to summon.
+     */
+    protected static final ConfigSchema.Key SUMMON_SPAWN = SUMMON_SCHEMA.add("spawn", ConfigSchema.Type.STRING);
+
+    /**
+     * The selection weight of a creature type.
+     */
+    protected static final ConfigSchema.Key SUMMON_WEIGHT = SUMMON_SCHEMA.add("weight", ConfigSchema.Type.DOUBLE);
+
+    /**
+     * The settings of a shape.
+     */
+    protected static final ConfigSchema SCHEMA = new ConfigSchema("a shape");
+
+    /**
+     * The material of the triggering block.
+     */
+    protected static final ConfigSchema.Key HEAD = SCHEMA.add("head", ConfigSchema.Type.STRING);
+
+    /**
+     * Whether building the shape summons a creature.
+     */
+    protected static final ConfigSchema.Key ENABLED = SCHEMA.add("enabled", ConfigSchema.Type.BOOLEAN);
+
+    /**
+     * The blocks of the body.
+     */
+    protected static final ConfigSchema.Key BODY = SCHEMA.add("body", ConfigSchema.Type.SECTION_LIST, BLOCK_SCHEMA);
+
+    /**
+     * The creature types summoned by the shape.
+     */
+    protected static final ConfigSchema.Key SUMMON = SCHEMA.add("summon", ConfigSchema.Type.SECTION_LIST, SUMMON_SCHEMA);
+
     /**
      * The name of this shape in the configuration.
      */
@@ -489,4 +738,15 @@ public class CreatureShape {
      * Manages weighted random selection of creature type name to spawn.
      */
     protected WeightedSelection<String> _types = new WeightedSelection<String>();
+
+    /**
+     * Counts of attempts to match this shape; not cached.
+     */
+    protected ShapeTelemetry _telemetry;
+
+    /**
+     * The order in which body blocks are checked, as indices into _materials
+     * and _offsets, or null for declaration order.
+     */
+    protected volatile int[] _probeOrder;
 } // class CreatureShape
@@ -1,6 +1,10 @@
 package io.github.totemo.doppelganger;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -11,6 +15,7 @@ import org.bukkit.ChatColor;
 import org.bukkit.Color;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.Sound;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
@@ -19,9 +24,9 @@ import org.bukkit.entity.Ageable;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.BookMeta;
+import org.bukkit.inventory.meta.Damageable;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.inventory.meta.LeatherArmorMeta;
-import org.bukkit.plugin.Plugin;
 import org.bukkit.potion.PotionEffect;
 import org.bukkit.potion.PotionEffectType;
 
@@ -59,38 +64,31 @@ public class CreatureType {
         // The creature type to spawn is the only mandatory attribute. The
         // caller (CreatureFactory) does additional sanity checks to verify that
         // that the spawned creature type is valid.
-        String spawn = section.getString("spawn");
+        ConfigSchema.Values values = SCHEMA.bind(section, logger);
+        String spawn = values.getString(SPAWN, null);
         if (spawn == null || spawn.length() == 0) {
             logger.warning("Creature " + section.getName() + " can't be defined because it is missing a 'spawn' value.");
             return null;
         } else {
             CreatureType type = new CreatureType(section.getName(), spawn);
-            type._mount = section.getString("mount", null);
-            type._mask = section.getString("mask", null);
-            type._defaultName = section.getString("defaultname", null);
-            if (section.isSet("keephelmet")) {
-                type._keepHelmet = section.getBoolean("keephelmet", false);
+            type._mount = values.getString(MOUNT, null);
+            type._mask = values.getString(MASK, null);
+            type._defaultName = values.getString(DEFAULT_NAME, null);
+            type._keepHelmet = values.getBoolean(KEEP_HELMET, null);
+            type._baby = values.getBoolean(BABY, null);
+            type._ageLocked = values.getBoolean(AGE_LOCKED, null);
+            type._despawns = values.getBoolean(DESPAWNS, null);
+            if (values.isSet(HEALTH)) {
+                type._health = (double) Math.max(1, values.getInteger(HEALTH, 20));
             }
-            if (section.isSet("baby")) {
-                type._baby = section.getBoolean("baby", false);
+            if (values.isSet(AIR)) {
+                type._air = Math.max(0, values.getInteger(AIR, 0));
             }
-            if (section.isSet("agelocked")) {
-                type._ageLocked = section.getBoolean("agelocked", false);
-            }
-            if (section.isSet("despawns")) {
-                type._despawns = section.getBoolean("despawns", false);
-            }
-            if (section.isSet("health")) {
-                type._health = (double) Math.max(1, section.getInt("health", 20));
-            }
-            if (section.isSet("air")) {
-                type._air = Math.max(0, section.getInt("air"));
-            }
-            if (section.isSet("invulnerableticks")) {
-                type._invulnerableTicks = Math.max(0, section.getInt("invulnerableticks"));
+            if (values.isSet(INVULNERABLE_TICKS)) {
+                type._invulnerableTicks = Math.max(0, values.getInteger(INVULNERABLE_TICKS, 0));
             }
 
-            String soundName = section.getString("sound");
+            String soundName = values.getString(SOUND, null);
             try {
                 if (soundName != null && soundName.length() != 0) {
                     type._sound = Sound.valueOf(soundName.toUpperCase());
@@ -99,50 +97,43 @@ public class CreatureType {
                 logger.warning("Creature " + section.getName() + " has invalid sound " + soundName);
             }
 
-            type._minStrikes = Math.max(0, section.getInt("lightning.min", 0));
-            type._maxStrikes = Math.max(type._minStrikes, section.getInt("lightning.max", type._minStrikes));
-            type._minStrikeRange = (float) Math.max(0.0, section.getDouble("lightning.minrange", 2.0));
-            type._maxStrikeRange = (float) Math.max(type._minStrikeRange, section.getDouble("lightning.maxrange", 5.0));
-            type._strikeDuration = Math.max(0, section.getInt("lightning.duration", 30));
+            ConfigSchema.Values lightning = values.getSection(LIGHTNING);
+            if (lightning == null) {
+                lightning = LIGHTNING_SCHEMA.bind(Collections.emptyMap(), "lightning", section.getCurrentPath() + ".lightning", logger);
+            }
+            type._minStrikes = Math.max(0, lightning.getInteger(LIGHTNING_MIN, 0));
+            type._maxStrikes = Math.max(type._minStrikes, lightning.getInteger(LIGHTNING_MAX, type._minStrikes));
+            type._minStrikeRange = (float) Math.max(0.0, lightning.getDouble(LIGHTNING_MIN_RANGE, 2.0));
+            type._maxStrikeRange = (float) Math.max(type._minStrikeRange, lightning.getDouble(LIGHTNING_MAX_RANGE, 5.0));
+            type._strikeDuration = Math.max(0, lightning.getInteger(LIGHTNING_DURATION, 30));
 
             // Load up the potion effects.
-            if (section.isList("potions")) {
-                try {
-                    type.loadPotions(section.getMapList("potions"), logger);
-                } catch (Exception ex) {
-                    logger.warning(ex.getClass().getName() + " loading potions for " + section.getName());
-                }
-            }
+            type.loadPotions(values.getSections(POTIONS), logger);
 
             // Load armour and weapon.
-            type._helmet = loadItem(section.getConfigurationSection("helmet"), logger);
-            type._chestPlate = loadItem(section.getConfigurationSection("chestplate"), logger);
-            type._leggings = loadItem(section.getConfigurationSection("leggings"), logger);
-            type._boots = loadItem(section.getConfigurationSection("boots"), logger);
-            type._weapon = loadItem(section.getConfigurationSection("weapon"), logger);
-            type._shield = loadItem(section.getConfigurationSection("shield"), logger);
-            if (section.isSet("helmet.dropchance")) {
-                type._helmetDropChance = section.getDouble("helmet.dropchance");
-            }
-            if (section.isSet("chestplate.dropchance")) {
-                type._chestPlateDropChance = section.getDouble("chestplate.dropchance");
-            }
-            if (section.isSet("leggings.dropchance")) {
-                type._leggingsDropChance = section.getDouble("leggings.dropchance");
-            }
-            if (section.isSet("boots.dropchance")) {
-                type._bootsDropChance = section.getDouble("boots.dropchance");
-            }
-            if (section.isSet("weapon.dropchance")) {
-                type._weaponDropChance = section.getDouble("weapon.dropchance");
-            }
-            if (section.isSet("shield.dropchance")) {
-                type._shieldDropChance = section.getDouble("shield.dropchance");
-            }
+            ConfigSchema.Values helmet = values.getSection(HELMET);
+            ConfigSchema.Values chestPlate = values.getSection(CHEST_PLATE);
+            ConfigSchema.Values leggings = values.getSection(LEGGINGS);
+            ConfigSchema.Values boots = values.getSection(BOOTS);
+            ConfigSchema.Values weapon = values.getSection(WEAPON);
+            ConfigSchema.Values shield = values.getSection(SHIELD);
+            type._helmet = loadItem(helmet, logger);
+            type._chestPlate = loadItem(chestPlate, logger);
+            type._leggings = loadItem(leggings, logger);
+            type._boots = loadItem(boots, logger);
+            type._weapon = loadItem(weapon, logger);
+            type._shield = loadItem(shield, logger);
+            type._helmetDropChance = getDropChance(helmet);
+            type._chestPlateDropChance = getDropChance(chestPlate);
+            type._leggingsDropChance = getDropChance(leggings);
+            type._bootsDropChance = getDropChance(boots);
+            type._weaponDropChance = getDropChance(weapon);
+            type._shieldDropChance = getDropChance(shield);
 
             // Escorts.
-            if (section.isConfigurationSection("escorts")) {
-                type.loadEscorts(section.getConfigurationSection("escorts"), logger);
+            ConfigSchema.Values escorts = values.getSection(ESCORTS);
+            if (escorts != null) {
+                type.loadEscorts(escorts, logger);
             }
             return type;
         }
@@ -239,10 +230,10 @@ public class CreatureType {
     /**
      * Do sound and damage-free lighting strike effects.
      *
-     * @param plugin the originating Plugin.
+     * @param plugin the Doppelganger plugin.
      * @param loc the Location where the creature will spawn.
      */
-    public void doSpawnEffects(Plugin plugin, Location loc) {
+    public void doSpawnEffects(Doppelganger plugin, Location loc) {
         if (_sound != null) {
             loc.getWorld().playSound(loc, _sound, 1, 1);
         }
@@ -252,7 +243,7 @@ public class CreatureType {
             // First strike is always immediate.
             loc.getWorld().strikeLightningEffect(loc);
             for (int i = 1; i < strikes; ++i) {
-                scheduleRandomStrike(plugin, loc, _minStrikeRange, _maxStrikeRange, _strikeDuration);
+                scheduleRandomStrike(plugin, _name, loc, _minStrikeRange, _maxStrikeRange, _strikeDuration);
             }
         }
     } // doSpawnEffects
@@ -264,8 +255,9 @@ public class CreatureType {
      * @param plugin the Doppelganger plugin.
      * @param centre the Location where the creature will spawn and the centre
      *        of the circle within which escorts can spawn.
+     * @return the number of escorts scheduled to spawn.
      */
-    public void spawnEscorts(final Doppelganger plugin, Location centre) {
+    public int spawnEscorts(final Doppelganger plugin, Location centre) {
         int escorts = _minEscorts + (int) Math.round(Math.random() * (_maxEscorts - _minEscorts));
         for (int i = 0; i < escorts; ++i) {
             long delay = Math.round(Math.random() * _escortDuration);
@@ -273,10 +265,17 @@ public class CreatureType {
             Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
                 @Override
                 public void run() {
-                    plugin.getCreatureFactory().spawnCreature(_escortTypes.choose(), loc, null, plugin);
+                    TickWatchdog watchdog = plugin.getWatchdog();
+                    watchdog.begin();
+                    try {
+                        plugin.spawnDoppelganger(_escortTypes.choose(), null, loc);
+                    } finally {
+                        watchdog.end("escort");
+                    }
                 }
             }, delay);
         }
+        return escorts;
     } // spawnEscorts
 
     // ------------------------------------------------------------------------
@@ -501,35 +500,31 @@ public class CreatureType {
      * Load the potion effects defined in the "potions" section of this
      * CreatureType's configuration
      *
-     * @param potions the "potions" ConfigurationSection.
+     * @param potions the bound entries of the "potions" list.
      * @param logger logs messages.
      */
-    protected void loadPotions(List<Map<?, ?>> potions, Logger logger) {
-        try {
-            for (int i = 0; i < potions.size(); ++i) {
-                try {
-                    ConfigMap map = new ConfigMap(potions.get(i), logger, getName() + " potion " + i);
-                    String typeName = map.getString("type", null);
-                    if (typeName == null) {
-                        logger.warning("Potion " + i + " has no type specified.");
+    protected void loadPotions(List<ConfigSchema.Values> potions, Logger logger) {
+        for (int i = 0; i < potions.size(); ++i) {
+            try {
+                ConfigSchema.Values potion = potions.get(i);
+                String typeName = potion.getString(POTION_TYPE, null);
+                if (typeName == null) {
+                    logger.warning("Potion " + i + " has no type specified.");
+                } else {
+                    PotionEffectType type = PotionEffectType.getByName(typeName);
+                    if (type == null) {
+                        logger.warning(typeName + " is not a valid potion effect type.");
                     } else {
-                        PotionEffectType type = PotionEffectType.getByName(typeName);
-                        if (type == null) {
-                            logger.warning(typeName + " is not a valid potion effect type.");
-                        } else {
-                            Integer duration = map.getInteger("duration", Integer.MAX_VALUE);
-                            Integer amplifier = map.getInteger("amplifier", 1);
-                            Boolean ambient = map.getBoolean("ambient", true);
-                            _potions.add(new PotionEffect(type, duration, amplifier, ambient));
-                        }
+                        int duration = potion.getInteger(POTION_DURATION, Integer.MAX_VALUE);
+                        int amplifier = potion.getInteger(POTION_AMPLIFIER, 1);
+                        boolean ambient = potion.getBoolean(POTION_AMBIENT, true);
+                        _potions.add(new PotionEffect(type, duration, amplifier, ambient));
                     }
-                } catch (Exception ex) {
-                    logger.warning(ex.getClass().getName() + " defining potion effect for " + getName());
                 }
-            } // for
-        } catch (Exception ex) {
-            logger.warning(ex.getClass().getName() + " loading potons in " + getName());
-        }
+            } catch (Exception ex) {
+                logger.warning(ex.getClass().getName() + " defining potion effect for " + getName());
+            }
+        } // for
     } // loadPotions
 
     // ------------------------------------------------------------------------
@@ -537,26 +532,26 @@ public class CreatureType {
      * Load an item (armour or weapon, with optional enchants) and return it as
      * an ItemStack.
      *
-     * @param section the configuration section to load from.
+     * @param section the bound item section, or null if not set.
      * @param logger logs messages.
      */
-    protected static ItemStack loadItem(ConfigurationSection section, Logger logger) {
+    protected static ItemStack loadItem(ConfigSchema.Values section, Logger logger) {
         ItemStack item = null;
         if (section != null) {
-            Material material = Material.getMaterial(section.getString("item", "").toUpperCase());
+            Material material = Material.getMaterial(section.getString(ITEM_TYPE, "").toUpperCase());
             if (material == null) {
-                logger.warning(section.getCurrentPath() + " has invalid item type.");
+                logger.warning(section.getPath() + " has invalid item type.");
                 return null;
             }
 
-            int damage = Math.max(0, section.getInt("damage", 0));
+            int damage = Math.max(0, section.getInteger(ITEM_DAMAGE, 0));
             item = new ItemStack(material, 1, (short) damage);
             ItemMeta meta = item.getItemMeta();
-            String name = translate(section.getString("name"));
+            String name = translate(section.getString(ITEM_NAME, null));
             if (name != null) {
                 meta.setDisplayName(name);
             }
-            List<String> lore = section.getStringList("lore");
+            List<String> lore = section.getList(ITEM_LORE);
             if (lore != null) {
                 ArrayList<String> translatedLore = new ArrayList<String>();
                 for (String line : lore) {
@@ -568,16 +563,16 @@ public class CreatureType {
             // Load additional customisation specific to books.
             if (material == Material.WRITABLE_BOOK || material == Material.WRITTEN_BOOK) {
                 BookMeta bookMeta = (BookMeta) meta;
-                bookMeta.setTitle(translate(section.getString("title", "")));
-                bookMeta.setAuthor(translate(section.getString("author", "")));
-                List<String> pages = section.getStringList("pages");
+                bookMeta.setTitle(translate(section.getString(ITEM_TITLE, "")));
+                bookMeta.setAuthor(translate(section.getString(ITEM_AUTHOR, "")));
+                List<String> pages = section.getList(ITEM_PAGES);
                 if (pages != null) {
                     for (String page : pages) {
                         bookMeta.addPage(translate(page));
                     }
                 }
-            } else if (isLeatherArmour(material)) {
-                List<Integer> rgbValues = section.getIntegerList("rgb");
+            } else if (isLeatherArmour(material) && section.isSet(ITEM_RGB)) {
+                List<Integer> rgbValues = section.getList(ITEM_RGB);
                 if (rgbValues.size() == 3) {
                     int red = rgbValues.get(0);
                     int green = rgbValues.get(1);
@@ -595,37 +590,314 @@ public class CreatureType {
 
             item.setItemMeta(meta);
 
-            if (section.isList("enchantments")) {
+            List<ConfigSchema.Values> enchantments = section.getSections(ITEM_ENCHANTMENTS);
+            for (int i = 0; i < enchantments.size(); ++i) {
                 try {
-                    List<Map<?, ?>> enchantments = section.getMapList("enchantments");
-                    for (int i = 0; i < enchantments.size(); ++i) {
-                        try {
-                            ConfigMap map = new ConfigMap(enchantments.get(i), logger,
-                                section.getCurrentPath() + " enchantment " + i);
-                            String typeName = map.getString("type", null);
-                            if (typeName == null) {
-                                logger.warning("Enchantment " + i + " has no type specified.");
-                            } else {
-                                Enchantment type = Enchantment.getByName(typeName.toUpperCase());
-                                if (type == null) {
-                                    logger.warning(typeName + " is not a valid enchantment type.");
-                                } else {
-                                    item.addEnchantment(type, map.getInteger("level", 1));
-                                }
-                            }
-                        } catch (Exception ex) {
-                            logger.warning(ex.getClass().getName() + " defining enchantment " +
-                                           i + " for " + section.getCurrentPath());
+                    ConfigSchema.Values enchantment = enchantments.get(i);
+                    String typeName = enchantment.getString(ENCHANTMENT_TYPE, null);
+                    if (typeName == null) {
+                        logger.warning("Enchantment " + i + " has no type specified.");
+                    } else {
+                        Enchantment type = Enchantment.getByName(typeName.toUpperCase());
+                        if (type == null) {
+                            logger.warning(typeName + " is not a valid enchantment type.");
+                        } else {
+                            item.addEnchantment(type, enchantment.getInteger(ENCHANTMENT_LEVEL, 1));
                         }
-                    } // for
+                    }
                 } catch (Exception ex) {
-                    logger.warning(ex.getClass().getName() + " loading enchantments for " + section.getCurrentPath());
+                    logger.warning(ex.getClass().getName() + " defining enchantment " +
+                                   i + " for " + section.getPath());
                 }
-            } // if enchanted
+            } // for
         }
         return item;
     } // loadItem
 
+    // ------------------------------------------------------------------------
+    /**
+     * Write this creature type to the {@link ConfigCache}.
+     *
+     * Changes to the encoding must increment {@link ConfigCache#FORMAT}.
+     *
+     * @param out the stream.
+     * @throws IOException if the stream can't be written, or an item can't be
+     *         encoded.
+     */
+    public void encode(DataOutputStream out) throws IOException {
+        ConfigCache.writeString(out, _name);
+        ConfigCache.writeString(out, _creatureType);
+        ConfigCache.writeString(out, _mount);
+        ConfigCache.writeString(out, _mask);
+        ConfigCache.writeString(out, _defaultName);
+        ConfigCache.writeNullable(out, _keepHelmet);
+        ConfigCache.writeNullable(out, _baby);
+        ConfigCache.writeNullable(out, _ageLocked);
+        ConfigCache.writeNullable(out, _health);
+        ConfigCache.writeNullable(out, _air);
+        ConfigCache.writeNullable(out, _invulnerableTicks);
+        ConfigCache.writeNullable(out, _despawns);
+        ConfigCache.writeEnum(out, _sound);
+        out.writeInt(_minStrikes);
+        out.writeInt(_maxStrikes);
+        out.writeFloat(_minStrikeRange);
+        out.writeFloat(_maxStrikeRange);
+        out.writeInt(_strikeDuration);
+
+        out.writeInt(_potions.size());
+        for (PotionEffect potion : _potions) {
+            ConfigCache.writeString(out, potion.getType().getName());
+            out.writeInt(potion.getDuration());
+            out.writeInt(potion.getAmplifier());
+            out.writeBoolean(potion.isAmbient());
+        }
+
+        encodeItem(out, _helmet);
+        encodeItem(out, _chestPlate);
+        encodeItem(out, _leggings);
+        encodeItem(out, _boots);
+        encodeItem(out, _weapon);
+        encodeItem(out, _shield);
+        ConfigCache.writeNullable(out, _helmetDropChance);
+        ConfigCache.writeNullable(out, _chestPlateDropChance);
+        ConfigCache.writeNullable(out, _leggingsDropChance);
+        ConfigCache.writeNullable(out, _bootsDropChance);
+        ConfigCache.writeNullable(out, _weaponDropChance);
+        ConfigCache.writeNullable(out, _shieldDropChance);
+
+        out.writeInt(_minEscorts);
+        out.writeInt(_maxEscorts);
+        out.writeFloat(_minEscortRange);
+        out.writeFloat(_maxEscortRange);
+        out.writeInt(_escortDuration);
+        WeightedSelection.encode(out, _escortTypes);
+    } // encode
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a creature type written by {@link #encode(DataOutputStream)}.
+     *
+     * @param in the buffer.
+     * @return the creature type.
+     * @throws IOException if the encoding is invalid.
+     */
+    public static CreatureType decode(ByteBuffer in) throws IOException {
+        String name = ConfigCache.readString(in);
+        String creatureType = ConfigCache.readString(in);
+        if (name == null || creatureType == null) {
+            throw new IOException("creature type without a name or spawn");
+        }
+        CreatureType type = new CreatureType(name, creatureType);
+        type._mount = ConfigCache.readString(in);
+        type._mask = ConfigCache.readString(in);
+        type._defaultName = ConfigCache.readString(in);
+        type._keepHelmet = ConfigCache.readNullableBoolean(in);
+        type._baby = ConfigCache.readNullableBoolean(in);
+        type._ageLocked = ConfigCache.readNullableBoolean(in);
+        type._health = ConfigCache.readNullableDouble(in);
+        type._air = ConfigCache.readNullableInteger(in);
+        type._invulnerableTicks = ConfigCache.readNullableInteger(in);
+        type._despawns = ConfigCache.readNullableBoolean(in);
+        type._sound = ConfigCache.readEnum(in, Sound.class);
+        type._minStrikes = in.getInt();
+        type._maxStrikes = in.getInt();
+        type._minStrikeRange = in.getFloat();
+        type._maxStrikeRange = in.getFloat();
+        type._strikeDuration = in.getInt();
+
+        int potionCount = ConfigCache.readCount(in);
+        for (int i = 0; i < potionCount; ++i) {
+            String potionName = ConfigCache.readString(in);
+            PotionEffectType potionType = (potionName != null) ? PotionEffectType.getByName(potionName) : null;
+            if (potionType == null) {
+                throw new IOException("unknown potion effect type " + potionName);
+            }
+            int duration = in.getInt();
+            int amplifier = in.getInt();
+            boolean ambient = in.get() != 0;
+            type._potions.add(new PotionEffect(potionType, duration, amplifier, ambient));
+        }
+
+        type._helmet = decodeItem(in);
+        type._chestPlate = decodeItem(in);
+        type._leggings = decodeItem(in);
+        type._boots = decodeItem(in);
+        type._weapon = decodeItem(in);
+        type._shield = decodeItem(in);
+        type._helmetDropChance = ConfigCache.readNullableDouble(in);
+        type._chestPlateDropChance = ConfigCache.readNullableDouble(in);
+        type._leggingsDropChance = ConfigCache.readNullableDouble(in);
+        type._bootsDropChance = ConfigCache.readNullableDouble(in);
+        type._weaponDropChance = ConfigCache.readNullableDouble(in);
+        type._shieldDropChance = ConfigCache.readNullableDouble(in);
+
+        type._minEscorts = in.getInt();
+        type._maxEscorts = in.getInt();
+        type._minEscortRange = in.getFloat();
+        type._maxEscortRange = in.getFloat();
+        type._escortDuration = in.getInt();
+        type._escortTypes = WeightedSelection.decode(in);
+        return type;
+    } // decode
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an item, which can be null, to the {@link ConfigCache}.
+     *
+     * Only the properties that {@link #loadItem(ConfigSchema.Values, Logger)}
+     * can set are written: the material, damage, name, lore, book title,
+     * author and pages, leather colour and enchantments.
+     *
+     * @param out the stream.
+     * @param item the item, or null.
+     * @throws IOException if the stream can't be written, or the item has an
+     *         enchantment that is not part of Minecraft.
+     */
+    protected static void encodeItem(DataOutputStream out, ItemStack item) throws IOException {
+        out.writeBoolean(item != null);
+        if (item == null) {
+            return;
+        }
+
+        ConfigCache.writeEnum(out, item.getType());
+        ItemMeta meta = item.getItemMeta();
+        out.writeInt((meta instanceof Damageable) ? ((Damageable) meta).getDamage() : 0);
+        ConfigCache.writeString(out, (meta != null && meta.hasDisplayName()) ? meta.getDisplayName() : null);
+        encodeStrings(out, (meta != null && meta.hasLore()) ? meta.getLore() : null);
+        if (meta instanceof BookMeta) {
+            BookMeta bookMeta = (BookMeta) meta;
+            out.writeByte(ITEM_KIND_BOOK);
+            ConfigCache.writeString(out, bookMeta.hasTitle() ? bookMeta.getTitle() : null);
+            ConfigCache.writeString(out, bookMeta.hasAuthor() ? bookMeta.getAuthor() : null);
+            encodeStrings(out, bookMeta.getPages());
+        } else if (meta instanceof LeatherArmorMeta) {
+            out.writeByte(ITEM_KIND_LEATHER);
+            out.writeInt(((LeatherArmorMeta) meta).getColor().asRGB());
+        } else {
+            out.writeByte(ITEM_KIND_OTHER);
+        }
+
+        Map<Enchantment, Integer> enchantments = item.getEnchantments();
+        out.writeInt(enchantments.size());
+        for (Entry<Enchantment, Integer> entry : enchantments.entrySet()) {
+            NamespacedKey key = entry.getKey().getKey();
+            if (!NamespacedKey.MINECRAFT.equals(key.getNamespace())) {
+                throw new IOException("can't encode enchantment " + key);
+            }
+            ConfigCache.writeString(out, key.getKey());
+            out.writeInt(entry.getValue());
+        }
+    } // encodeItem
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an item written by {@link #encodeItem(DataOutputStream, ItemStack)}.
+     *
+     * @param in the buffer.
+     * @return the item, or null.
+     * @throws IOException if the encoding is invalid.
+     */
+    protected static ItemStack decodeItem(ByteBuffer in) throws IOException {
+        if (in.get() == 0) {
+            return null;
+        }
+
+        Material material = ConfigCache.readEnum(in, Material.class);
+        if (material == null) {
+            throw new IOException("item without a material");
+        }
+        ItemStack item = new ItemStack(material, 1);
+        ItemMeta meta = item.getItemMeta();
+        int damage = in.getInt();
+        if (damage != 0 && meta instanceof Damageable) {
+            ((Damageable) meta).setDamage(damage);
+        }
+        String name = ConfigCache.readString(in);
+        if (name != null) {
+            meta.setDisplayName(name);
+        }
+        List<String> lore = decodeStrings(in);
+        if (lore != null) {
+            meta.setLore(lore);
+        }
+
+        byte kind = in.get();
+        if (kind == ITEM_KIND_BOOK && meta instanceof BookMeta) {
+            BookMeta bookMeta = (BookMeta) meta;
+            bookMeta.setTitle(ConfigCache.readString(in));
+            bookMeta.setAuthor(ConfigCache.readString(in));
+            bookMeta.setPages(decodeStrings(in));
+        } else if (kind == ITEM_KIND_LEATHER && meta instanceof LeatherArmorMeta) {
+            ((LeatherArmorMeta) meta).setColor(Color.fromRGB(in.getInt()));
+        } else if (kind != ITEM_KIND_OTHER) {
+            throw new IOException("item kind " + kind + " does not match " + material);
+        }
+        item.setItemMeta(meta);
+
+        int enchantmentCount = ConfigCache.readCount(in);
+        for (int i = 0; i < enchantmentCount; ++i) {
+            String key = ConfigCache.readString(in);
+            Enchantment enchantment = (key != null) ? Enchantment.getByKey(NamespacedKey.minecraft(key)) : null;
+            if (enchantment == null) {
+                throw new IOException("unknown enchantment " + key);
+            }
+            // The level was validated when the item was compiled.
+            item.addUnsafeEnchantment(enchantment, in.getInt());
+        }
+        return item;
+    } // decodeItem
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a list of strings, which can be null.
+     *
+     * @param out the stream.
+     * @param strings the list, or null.
+     * @throws IOException if the stream can't be written.
+     */
+    protected static void encodeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt((strings != null) ? strings.size() : -1);
+        if (strings != null) {
+            for (String string : strings) {
+                ConfigCache.writeString(out, string);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a list of strings written by
+     * {@link #encodeStrings(DataOutputStream, List)}.
+     *
+     * @param in the buffer.
+     * @return the list, or null.
+     * @throws IOException if the encoding is invalid.
+     */
+    protected static List<String> decodeStrings(ByteBuffer in) throws IOException {
+        int position = in.position();
+        if (in.getInt() == -1) {
+            return null;
+        }
+        in.position(position);
+        int count = ConfigCache.readCount(in);
+        ArrayList<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; ++i) {
+            strings.add(ConfigCache.readString(in));
+        }
+        return strings;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the drop chance of an item.
+     *
+     * @param section the bound item section, or null if not set.
+     * @return the drop chance, or null if not set.
+     */
+    protected static Double getDropChance(ConfigSchema.Values section) {
+        return (section != null) ? section.getDouble(ITEM_DROP_CHANCE, null) : null;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return true if the specified Material is one of the four leather armour
@@ -665,34 +937,27 @@ public class CreatureType {
     /**
      * Load the description of the escort mobs from the configuration.
      *
-     * @param escorts the "escorts" section of the current creature, if such a
-     *        section exists.
+     * @param escorts the bound "escorts" section of the current creature.
      * @param logger used to log messages.
      */
-    protected void loadEscorts(ConfigurationSection escorts, Logger logger) {
-        _minEscorts = Math.max(0, escorts.getInt("min", 0));
-        _maxEscorts = Math.max(_minEscorts, escorts.getInt("max", _minEscorts));
-        _minEscortRange = (float) Math.max(0.0, escorts.getDouble("minrange", 1.0));
-        _maxEscortRange = (float) Math.max(_minEscortRange, escorts.getDouble("maxrange", _minEscortRange));
-        _escortDuration = Math.max(0, escorts.getInt("duration", 30));
-        if (escorts.isList("summon")) {
-            try {
-                List<Map<?, ?>> summons = escorts.getMapList("summon");
-                for (int i = 0; i < summons.size(); ++i) {
-                    ConfigMap map = new ConfigMap(summons.get(i), logger, escorts.getName() + " summon " + i);
-                    double weight = map.getDouble("weight", 1.0);
-                    String spawn = map.getString("spawn", null);
-                    if (spawn == null || spawn.length() == 0 || weight <= 0.0) {
-                        logger.warning(String.format("In %s, entry %d of %d has an invalid weight or spawn value.",
-                                                     escorts.getCurrentPath(), (i + 1), summons.size()));
-                    } else {
-                        _escortTypes.addChoice(spawn, weight);
-                    }
-                }
-            } catch (Exception ex) {
-                logger.warning(ex.getClass().getName() + " loading summon in " + escorts.getCurrentPath());
+    protected void loadEscorts(ConfigSchema.Values escorts, Logger logger) {
+        _minEscorts = Math.max(0, escorts.getInteger(ESCORTS_MIN, 0));
+        _maxEscorts = Math.max(_minEscorts, escorts.getInteger(ESCORTS_MAX, _minEscorts));
+        _minEscortRange = (float) Math.max(0.0, escorts.getDouble(ESCORTS_MIN_RANGE, 1.0));
+        _maxEscortRange = (float) Math.max(_minEscortRange, escorts.getDouble(ESCORTS_MAX_RANGE, (double) _minEscortRange));
+        _escortDuration = Math.max(0, escorts.getInteger(ESCORTS_DURATION, 30));
+        List<ConfigSchema.Values> summons = escorts.getSections(ESCORTS_SUMMON);
+        for (int i = 0; i < summons.size(); ++i) {
+            ConfigSchema.Values summon = summons.get(i);
+            double weight = summon.getDouble(CreatureShape.SUMMON_WEIGHT, 1.0);
+            String spawn = summon.getString(CreatureShape.SUMMON_SPAWN, null);
+            if (spawn == null || spawn.length() == 0 || weight <= 0.0) {
+                logger.warning(String.format("In %s, entry %d of %d has an invalid weight or spawn value.",
+                                             escorts.getPath(), (i + 1), summons.size()));
+            } else {
+                _escortTypes.addChoice(spawn, weight);
             }
-        } // summon
+        }
     } // loadEscorts
 
     // ------------------------------------------------------------------------
@@ -700,7 +965,9 @@ public class CreatureType {
      * Schedule a random, damage-free lighting strike effect around the
      * specified Location.
      *
-     * @param plugin the originating Plugin.
+     * @param plugin the Doppelganger plugin.
+     * @param creatureType the name of the creature type, reported by the
+     *        {@link TickWatchdog}.
      * @param centre the centre of the random coordinate range.
      * @param minRange the minimum distance of the strike from centre on the X-Z
      *        plane.
@@ -709,13 +976,21 @@ public class CreatureType {
      * @param maxDelay the maximum number of ticks to wait before the strike
      *        occurs.
      */
-    protected static void scheduleRandomStrike(Plugin plugin, Location centre, float minRange, float maxRange, long maxDelay) {
+    protected static void scheduleRandomStrike(final Doppelganger plugin, final String creatureType, Location centre,
+                                               float minRange, float maxRange, long maxDelay) {
         long delay = Math.round(Math.random() * maxDelay);
         final Location loc = randomLocation(centre, minRange, maxRange);
         Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
             @Override
             public void run() {
-                loc.getWorld().strikeLightningEffect(loc);
+                TickWatchdog watchdog = plugin.getWatchdog();
+                watchdog.begin();
+                try {
+                    watchdog.describe(null, creatureType);
+                    loc.getWorld().strikeLightningEffect(loc);
+                } finally {
+                    watchdog.end("lightning");
+                }
             }
         }, delay);
     }
@@ -756,6 +1031,294 @@ public class CreatureType {
     }
 
     // --------------------------------------------------------------------------
+    /**
+     * In the {@link ConfigCache}, marks an item with no kind-specific
+     * properties.
+     */
+    protected static final byte ITEM_KIND_OTHER = 0;
+
+    /**
+     * In the {@link ConfigCache}, marks a book, followed by its title, author
+     * and pages.
+     */
+    protected static final byte ITEM_KIND_BOOK = 1;
+
+    /**
+     * In the {@link ConfigCache}, marks leather armour, followed by its colour.
+     */
+    protected static final byte ITEM_KIND_LEATHER = 2;
+
+    // --------------------------------------------------------------------------
+    /**
+     * The settings of the lightning effects when a creature spawns.
+     */
+    protected static final ConfigSchema LIGHTNING_SCHEMA = new ConfigSchema("a lightning section");
+
+    /**
+     * The minimum number of lightning strikes.
+     */
+    protected static final ConfigSchema.Key LIGHTNING_MIN = LIGHTNING_SCHEMA.add("min", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The maximum number of lightning strikes.
+     */
+    protected static final ConfigSchema.Key LIGHTNING_MAX = LIGHTNING_SCHEMA.add("max", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The minimum distance of lightning strikes from the creature.
+     */
+    protected static final ConfigSchema.Key LIGHTNING_MIN_RANGE = LIGHTNING_SCHEMA.add("minrange", ConfigSchema.Type.DOUBLE);
+
+    /**
+     * The maximum distance of lightning strikes from the creature.
+     */
+    protected static final ConfigSchema.Key LIGHTNING_MAX_RANGE = LIGHTNING_SCHEMA.add("maxrange", ConfigSchema.Type.DOUBLE);
+
+    /**
+     * The period in ticks over which lightning strikes.
+     */
+    protected static final ConfigSchema.Key LIGHTNING_DURATION = LIGHTNING_SCHEMA.add("duration", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The settings of one potion effect.
+     */
+    protected static final ConfigSchema POTION_SCHEMA = new ConfigSchema("a potion");
+
+    /**
+     * The potion effect type.
+     */
+    protected static final ConfigSchema.Key POTION_TYPE = POTION_SCHEMA.add("type", ConfigSchema.Type.STRING);
+
+    /**
+     * The duration of the effect in ticks.
+     */
+    protected static final ConfigSchema.Key POTION_DURATION = POTION_SCHEMA.add("duration", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The amplifier of the effect.
+     */
+    protected static final ConfigSchema.Key POTION_AMPLIFIER = POTION_SCHEMA.add("amplifier", ConfigSchema.Type.INTEGER);
+
+    /**
+     * Whether the effect is ambient.
+     */
+    protected static final ConfigSchema.Key POTION_AMBIENT = POTION_SCHEMA.add("ambient", ConfigSchema.Type.BOOLEAN);
+
+    /**
+     * The settings of one enchantment of an item.
+     */
+    protected static final ConfigSchema ENCHANTMENT_SCHEMA = new ConfigSchema("an enchantment");
+
+    /**
+     * The enchantment type.
+     */
+    protected static final ConfigSchema.Key ENCHANTMENT_TYPE = ENCHANTMENT_SCHEMA.add("type", ConfigSchema.Type.STRING);
+
+    /**
+     * The enchantment level.
+     */
+    protected static final ConfigSchema.Key ENCHANTMENT_LEVEL = ENCHANTMENT_SCHEMA.add("level", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The settings of an item of armour or a weapon.
+     */
+    protected static final ConfigSchema ITEM_SCHEMA = new ConfigSchema("an item");
+
+    /**
+     * The item Material.
+     */
+    protected static final ConfigSchema.Key ITEM_TYPE = ITEM_SCHEMA.add("item", ConfigSchema.Type.STRING);
+
+    /**
+     * The damage value of the item.
+     */
+    protected static final ConfigSchema.Key ITEM_DAMAGE = ITEM_SCHEMA.add("damage", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The display name of the item.
+     */
+    protected static final ConfigSchema.Key ITEM_NAME = ITEM_SCHEMA.add("name", ConfigSchema.Type.STRING);
+
+    /**
+     * The lines of lore of the item.
+     */
+    protected static final ConfigSchema.Key ITEM_LORE = ITEM_SCHEMA.add("lore", ConfigSchema.Type.STRING_LIST);
+
+    /**
+     * The title of a book.
+     */
+    protected static final ConfigSchema.Key ITEM_TITLE = ITEM_SCHEMA.add("title", ConfigSchema.Type.STRING);
+
+    /**
+     * The author of a book.
+     */
+    protected static final ConfigSchema.Key ITEM_AUTHOR = ITEM_SCHEMA.add("author", ConfigSchema.Type.STRING);
+
+    /**
+     * The pages of a book.
+     */
+    protected static final ConfigSchema.Key ITEM_PAGES = ITEM_SCHEMA.add("pages", ConfigSchema.Type.STRING_LIST);
+
+    /**
+     * The colour of leather armour as [red, green, blue].
+     */
+    protected static final ConfigSchema.Key ITEM_RGB = ITEM_SCHEMA.add("rgb", ConfigSchema.Type.INTEGER_LIST);
+
+    /**
+     * The enchantments of the item.
+     */
+    protected static final ConfigSchema.Key ITEM_ENCHANTMENTS = ITEM_SCHEMA.add("enchantments", ConfigSchema.Type.SECTION_LIST, ENCHANTMENT_SCHEMA);
+
+    /**
+     * The probability that the item drops when the creature dies.
+     */
+    protected static final ConfigSchema.Key ITEM_DROP_CHANCE = ITEM_SCHEMA.add("dropchance", ConfigSchema.Type.DOUBLE);
+
+    /**
+     * The settings of the escorts of a creature.
+     */
+    protected static final ConfigSchema ESCORTS_SCHEMA = new ConfigSchema("an escorts section");
+
+    /**
+     * The minimum number of escorts.
+     */
+    protected static final ConfigSchema.Key ESCORTS_MIN = ESCORTS_SCHEMA.add("min", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The maximum number of escorts.
+     */
+    protected static final ConfigSchema.Key ESCORTS_MAX = ESCORTS_SCHEMA.add("max", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The minimum distance of escorts from the creature.
+     */
+    protected static final ConfigSchema.Key ESCORTS_MIN_RANGE = ESCORTS_SCHEMA.add("minrange", ConfigSchema.Type.DOUBLE);
+
+    /**
+     * The maximum distance of escorts from the creature.
+     */
+    protected static final ConfigSchema.Key ESCORTS_MAX_RANGE = ESCORTS_SCHEMA.add("maxrange", ConfigSchema.Type.DOUBLE);
+
+    /**
+     * The period in ticks over which escorts spawn.
+     */
+    protected static final ConfigSchema.Key ESCORTS_DURATION = ESCORTS_SCHEMA.add("duration", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The weighted creature types of escorts.
+     */
+    protected static final ConfigSchema.Key ESCORTS_SUMMON = ESCORTS_SCHEMA.add("summon", ConfigSchema.Type.SECTION_LIST, CreatureShape.SUMMON_SCHEMA);
+
+    /**
+     * The settings of a creature type.
+     */
+    protected static final ConfigSchema SCHEMA = new ConfigSchema("a creature");
+
+    /**
+     * The creature type that this type customises.
+     */
+    protected static final ConfigSchema.Key SPAWN = SCHEMA.add("spawn", ConfigSchema.Type.STRING);
+
+    /**
+     * The creature type of the mount.
+     */
+    protected static final ConfigSchema.Key MOUNT = SCHEMA.add("mount", ConfigSchema.Type.STRING);
+
+    /**
+     * The name of the player whose head the creature wears.
+     */
+    protected static final ConfigSchema.Key MASK = SCHEMA.add("mask", ConfigSchema.Type.STRING);
+
+    /**
+     * The name of the creature when none is given.
+     */
+    protected static final ConfigSchema.Key DEFAULT_NAME = SCHEMA.add("defaultname", ConfigSchema.Type.STRING);
+
+    /**
+     * Whether a mask leaves the helmet in place.
+     */
+    protected static final ConfigSchema.Key KEEP_HELMET = SCHEMA.add("keephelmet", ConfigSchema.Type.BOOLEAN);
+
+    /**
+     * Whether the creature is a baby.
+     */
+    protected static final ConfigSchema.Key BABY = SCHEMA.add("baby", ConfigSchema.Type.BOOLEAN);
+
+    /**
+     * Whether the age of the creature is locked.
+     */
+    protected static final ConfigSchema.Key AGE_LOCKED = SCHEMA.add("agelocked", ConfigSchema.Type.BOOLEAN);
+
+    /**
+     * Whether the creature despawns when far away.
+     */
+    protected static final ConfigSchema.Key DESPAWNS = SCHEMA.add("despawns", ConfigSchema.Type.BOOLEAN);
+
+    /**
+     * The maximum health of the creature.
+     */
+    protected static final ConfigSchema.Key HEALTH = SCHEMA.add("health", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The remaining air of the creature in ticks.
+     */
+    protected static final ConfigSchema.Key AIR = SCHEMA.add("air", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The number of ticks after spawning that the creature is invulnerable.
+     */
+    protected static final ConfigSchema.Key INVULNERABLE_TICKS = SCHEMA.add("invulnerableticks", ConfigSchema.Type.INTEGER);
+
+    /**
+     * The sound played when the creature spawns.
+     */
+    protected static final ConfigSchema.Key SOUND = SCHEMA.add("sound", ConfigSchema.Type.STRING);
+
+    /**
+     * The lightning effects when the creature spawns.
+     */
+    protected static final ConfigSchema.Key LIGHTNING = SCHEMA.add("lightning", ConfigSchema.Type.SECTION, LIGHTNING_SCHEMA);
+
+    /**
+     * The potion effects of the creature.
+     */
+    protected static final ConfigSchema.Key POTIONS = SCHEMA.add("potions", ConfigSchema.Type.SECTION_LIST, POTION_SCHEMA);
+
+    /**
+     * The helmet.
+     */
+    protected static final ConfigSchema.Key HELMET = SCHEMA.add("helmet", ConfigSchema.Type.SECTION, ITEM_SCHEMA);
+
+    /**
+     * The chest plate.
+     */
+    protected static final ConfigSchema.Key CHEST_PLATE = SCHEMA.add("chestplate", ConfigSchema.Type.SECTION, ITEM_SCHEMA);
+
+    /**
+     * The leggings.
+     */
+    protected static final ConfigSchema.Key LEGGINGS = SCHEMA.add("leggings", ConfigSchema.Type.SECTION, ITEM_SCHEMA);
+
+    /**
+     * The boots.
+     */
+    protected static final ConfigSchema.Key BOOTS = SCHEMA.add("boots", ConfigSchema.Type.SECTION, ITEM_SCHEMA);
+
+    /**
+     * The weapon, held in the main hand.
+     */
+    protected static final ConfigSchema.Key WEAPON = SCHEMA.add("weapon", ConfigSchema.Type.SECTION, ITEM_SCHEMA);
+
+    /**
+     * The item held in the off hand.
+     */
+    protected static final ConfigSchema.Key SHIELD = SCHEMA.add("shield", ConfigSchema.Type.SECTION, ITEM_SCHEMA);
+
+    /**
+     * The escorts of the creature.
+     */
+    protected static final ConfigSchema.Key ESCORTS = SCHEMA.add("escorts", ConfigSchema.Type.SECTION, ESCORTS_SCHEMA);
+
     /**
      * A unique identifier for this type of creature.
      */
@@ -1,13 +1,18 @@
 package io.github.totemo.doppelganger;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
+import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.entity.Creature;
 import org.bukkit.entity.LivingEntity;
@@ -18,7 +23,9 @@ import org.bukkit.event.entity.EntityDeathEvent;
 import org.bukkit.inventory.EntityEquipment;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
 import com.amoebaman.kitmaster.utilities.CommandController;
 
@@ -27,6 +34,27 @@ import com.amoebaman.kitmaster.utilities.CommandController;
  * Plugin class.
  */
 public class Doppelganger extends JavaPlugin implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor used when the server loads the plugin.
+     */
+    public Doppelganger() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor used to run the plugin outside of a server's plugin class
+     * loader, such as in a headless stand-in for the server.
+     *
+     * @param loader the plugin loader.
+     * @param description the plugin description.
+     * @param dataFolder the data folder.
+     * @param file the plugin jar file.
+     */
+    protected Doppelganger(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the configuration.
@@ -47,15 +75,107 @@ public class Doppelganger extends JavaPlugin implements Listener {
         return _creatureFactory;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link PopulationReconciler}.
+     *
+     * @return the {@link PopulationReconciler}.
+     */
+    public PopulationReconciler getPopulationReconciler() {
+        return _populationReconciler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link DoppelgangerIndex} of loaded doppelgangers, which also
+     * enforces population caps.
+     *
+     * @return the {@link DoppelgangerIndex}.
+     */
+    public DoppelgangerIndex getDoppelgangerIndex() {
+        return _doppelgangerIndex;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the per-tick cache of {@link #findDoppelgangers(String, Volume)}
+     * results.
+     *
+     * @return the {@link QueryCache}.
+     */
+    public QueryCache getQueryCache() {
+        return _queryCache;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link AsyncSpawner}.
+     *
+     * @return the {@link AsyncSpawner}.
+     */
+    public AsyncSpawner getAsyncSpawner() {
+        return _asyncSpawner;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the latency {@link Statistics} of hot paths and commands.
+     *
+     * @return the {@link Statistics}.
+     */
+    public Statistics getStatistics() {
+        return _statistics;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetricsExporter}, which publishes statistics through
+     * JMX and a metrics file.
+     *
+     * @return the {@link MetricsExporter}.
+     */
+    public MetricsExporter getMetricsExporter() {
+        return _metricsExporter;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link TickWatchdog}, which logs operations that use too much
+     * main thread time.
+     *
+     * @return the {@link TickWatchdog}.
+     */
+    public TickWatchdog getWatchdog() {
+        return _watchdog;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link TraceRecorder}, which records events for replay.
+     *
+     * @return the {@link TraceRecorder}.
+     */
+    public TraceRecorder getTraceRecorder() {
+        return _traceRecorder;
+    }
+
     // ------------------------------------------------------------------------
 
     @Override
     public void onEnable() {
         // Saves only if config.yml doesn't exist.
         saveDefaultConfig();
+        _watchdog.start();
         _configuration.load();
 
         getServer().getPluginManager().registerEvents(this, this);
+        getServer().getPluginManager().registerEvents(_populationReconciler, this);
+        getServer().getPluginManager().registerEvents(_doppelgangerIndex, this);
+        getServer().getPluginManager().registerEvents(_traceRecorder, this);
+        _doppelgangerIndex.indexLoadedWorlds(getServer().getWorlds());
+        getServer().getScheduler().runTaskTimer(this, _queryCache, 1, 1);
+        getServer().getScheduler().runTaskTimer(this, _populationReconciler, 1, 1);
+        _metricsExporter.start();
 
         // The Plugin.getLogger() (used by help) is null at Doppelganger
         // construction time.
@@ -65,6 +185,21 @@ public class Doppelganger extends JavaPlugin implements Listener {
         CommandController.registerCommands(this, _commands);
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Stop watching the configuration file, exporting metrics, recording a
+     * trace and timing ticks, and shut down the configuration compiler's
+     * threads.
+     */
+    @Override
+    public void onDisable() {
+        _configuration.stopWatcher();
+        _traceRecorder.shutdown();
+        _metricsExporter.stop();
+        _watchdog.stop();
+        _creatureFactory.shutdown();
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Event handler for placing blocks.
@@ -76,17 +211,38 @@ public class Doppelganger extends JavaPlugin implements Listener {
      */
     @EventHandler(ignoreCancelled = true)
     public void onBlockPlace(BlockPlaceEvent event) {
+        long start = System.nanoTime();
+        _watchdog.begin();
+        try {
+            handleBlockPlace(event);
+        } finally {
+            _statistics.get(Statistics.Path.BLOCK_PLACE).recordSince(start);
+            _watchdog.end("onBlockPlace");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement {@link #onBlockPlace(BlockPlaceEvent)}.
+     *
+     * @param event the event.
+     */
+    protected void handleBlockPlace(BlockPlaceEvent event) {
         ItemStack placedItem = event.getItemInHand();
         // Ignore named hoes tilling soil by checking if the item is a block.
-        if (!placedItem.hasItemMeta() || !placedItem.getType().isBlock()) {
+        // Nearly all placements are of items without meta, which are rejected
+        // before anything that allocates, such as getting the item meta. Named
+        // blocks that are not triggers still get the messages below.
+        Material placedType = placedItem.getType();
+        if (!placedType.isBlock() || !placedItem.hasItemMeta()) {
             return;
         }
 
         ItemMeta meta = placedItem.getItemMeta();
         if (meta.hasDisplayName()) {
             String doppelgangerName = meta.getDisplayName();
-            Matcher nameMatcher = _namePattern.matcher(doppelgangerName);
-            if (_configuration.warnOnInvalidName() && !_configuration.isArbitraryNameAllowed() && !nameMatcher.matches()) {
+            if (_configuration.warnOnInvalidName() && !_configuration.isArbitraryNameAllowed() &&
+                !_namePattern.matcher(doppelgangerName).matches()) {
                 event.getPlayer().sendMessage(ChatColor.DARK_RED + "\"" + doppelgangerName + "\" is not a valid player name.");
             } else {
                 World world = event.getPlayer().getWorld();
@@ -98,20 +254,24 @@ public class Doppelganger extends JavaPlugin implements Listener {
                 if (shapes != null) {
                     // Search the shapes associated with the specific player
                     // name.
+                    long matchStart = System.nanoTime();
+                    Object flightEvent = FlightEvents.get().beginShapeMatch();
                     CreatureShape shape = null;
+                    boolean hasBorder = true;
                     for (CreatureShape tryShape : shapes) {
-                        if (tryShape.isComplete(loc, placedItem.getType())) {
-                            if (tryShape.hasBorder(loc)) {
-                                shape = tryShape;
-                                break;
-                            } else {
-                                event.getPlayer().sendMessage(ChatColor.YELLOW + "You need a one block gap horizontally around the shape.");
-                                return;
-                            }
+                        if (tryShape.isComplete(loc, placedType)) {
+                            shape = tryShape;
+                            hasBorder = tryShape.hasBorder(loc);
+                            break;
                         }
                     } // for
+                    _statistics.get(Statistics.Path.SHAPE_MATCH).recordSince(matchStart);
+                    FlightEvents.get().commitShapeMatch(flightEvent, doppelgangerName, placedType.name(),
+                                                        (shape != null) ? shape.getName() : null, hasBorder);
 
-                    if (shape == null) {
+                    if (!hasBorder) {
+                        event.getPlayer().sendMessage(ChatColor.YELLOW + "You need a one block gap horizontally around the shape.");
+                    } else if (shape == null) {
                         event.getPlayer().sendMessage(ChatColor.YELLOW + "That's not how you summon " + doppelgangerName + ".");
                     } else {
                         // Use the canonical player name from the configuration.
@@ -127,9 +287,15 @@ public class Doppelganger extends JavaPlugin implements Listener {
                     // Generic case where the doppelganger name doesn't matter.
                     // Check whether there is a complete creature under the
                     // trigger block.
-                    CreatureShape shape = _creatureFactory.getCreatureShape(loc, event.getPlayer().getEquipment().getItemInMainHand());
+                    long matchStart = System.nanoTime();
+                    Object flightEvent = FlightEvents.get().beginShapeMatch();
+                    CreatureShape shape = _creatureFactory.getCreatureShape(loc, placedItem);
+                    boolean hasBorder = (shape != null) && shape.hasBorder(loc);
+                    _statistics.get(Statistics.Path.SHAPE_MATCH).recordSince(matchStart);
+                    FlightEvents.get().commitShapeMatch(flightEvent, doppelgangerName, placedType.name(),
+                                                        (shape != null) ? shape.getName() : null, hasBorder);
                     if (shape != null) {
-                        if (shape.hasBorder(loc)) {
+                        if (hasBorder) {
                             String creatureType = shape.chooseCreatureType();
                             if (_creatureFactory.isValidCreatureType(creatureType)) {
                                 doDoppelganger(doppelgangerName, creatureType, shape, event);
@@ -146,7 +312,7 @@ public class Doppelganger extends JavaPlugin implements Listener {
                 }
             } // if name is allowed
         }
-    } // onBlockPlace
+    } // handleBlockPlace
 
     // ------------------------------------------------------------------------
     /**
@@ -163,9 +329,34 @@ public class Doppelganger extends JavaPlugin implements Listener {
      * monsters probably won't have a (near) 1.0 drop chance for the their
      * equipment, and in any case the relocation of the equipment to drops
      * should be benign.
+     *
+     * @param event the event.
      */
     @EventHandler(ignoreCancelled = true)
     public void onEntityDeath(EntityDeathEvent event) {
+        long start = System.nanoTime();
+        Object flightEvent = FlightEvents.get().beginEntityDeath();
+        _watchdog.begin();
+        try {
+            handleEntityDeath(event);
+        } finally {
+            _statistics.get(Statistics.Path.ENTITY_DEATH).recordSince(start);
+            _watchdog.end("onEntityDeath");
+            // Getting the custom name allocates, so only do it if recording.
+            if (flightEvent != null) {
+                FlightEvents.get().commitEntityDeath(flightEvent, event.getEntityType().name(),
+                                                     event.getEntity().getCustomName(), event.getDrops().size());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement {@link #onEntityDeath(EntityDeathEvent)}.
+     *
+     * @param event the event.
+     */
+    protected void handleEntityDeath(EntityDeathEvent event) {
         final float NEAR_UNITY = 0.999f;
         boolean forcedDrops = false;
         boolean fixDropChanceBug = getConfiguration().fixDropChanceBug();
@@ -214,10 +405,17 @@ public class Doppelganger extends JavaPlugin implements Listener {
             }
         }
 
+        // Don't answer volume queries with dead creatures for the rest of the
+        // tick.
+        String customName = event.getEntity().getCustomName();
+        if (customName != null) {
+            _queryCache.invalidate(event.getEntity().getWorld());
+        }
+
         // If a unity drop chance was specified, it's probably a Doppelganger.
         // Also require a custom name, since 'special' mobs that pick up items
         // will always drop them too. Log the drops for verification purposes.
-        if (forcedDrops && event.getEntity().getCustomName() != null) {
+        if (forcedDrops && customName != null) {
             Location loc = event.getEntity().getLocation();
             StringBuilder drops = new StringBuilder();
             drops.append("At (").append(loc.getBlockX()).append(',');
@@ -229,7 +427,7 @@ public class Doppelganger extends JavaPlugin implements Listener {
             }
             getLogger().info(drops.toString());
         }
-    } // onEntityDeath
+    } // handleEntityDeath
 
     // ------------------------------------------------------------------------
     /**
@@ -247,7 +445,114 @@ public class Doppelganger extends JavaPlugin implements Listener {
      * @return the spawned LivingEntity, or null if it could not be spawned.
      */
     public LivingEntity spawnDoppelganger(String creatureType, String name, Location loc) {
-        return _creatureFactory.spawnCreature(creatureType, loc, name, this);
+        LivingEntity doppelganger = _creatureFactory.spawnCreature(creatureType, loc, name, this);
+        if (doppelganger != null) {
+            _queryCache.invalidate(loc.getWorld());
+        }
+        return doppelganger;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn a doppelganger of the specified type and name without blocking the
+     * current tick.
+     *
+     * The target chunk is loaded or generated, and the player whose head will
+     * be worn is looked up, before the doppelganger is spawned on the main
+     * thread. Prefer this to
+     * {@link #spawnDoppelganger(String, String, Location)} when the target
+     * chunk may not be loaded.
+     *
+     * Only servers that provide World.getChunkAtAsync(int, int, boolean),
+     * such as Paper, load the chunk off the main thread. Elsewhere, such as
+     * on Spigot, the chunk is still loaded synchronously, by a task on the
+     * next tick; that only spares the tick that requested the spawn, and the
+     * later tick blocks for the whole load or generation.
+     *
+     * @param creatureType the type of creature to spawn.
+     * @param name the name to show on the name tag, as for
+     *        {@link #spawnDoppelganger(String, String, Location)}.
+     * @param loc the Location on the ground where the creature will spawn.
+     * @return a future completed on the main thread with the spawned
+     *         LivingEntity, or null if it could not be spawned.
+     */
+    public CompletableFuture<LivingEntity> spawnDoppelgangerAsync(String creatureType, String name, Location loc) {
+        return _asyncSpawner.spawn(creatureType, name, loc);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn a batch of doppelgangers, spread over as many ticks as necessary
+     * to stay within the configured number of spawns per tick.
+     *
+     * Each distinct creature type in the batch is validated only once. The
+     * requests are spawned in order, starting on the next tick.
+     *
+     * @param requests the doppelgangers to spawn.
+     * @param onComplete called once, on the main thread, when every request
+     *        has been spawned or has failed; can be null.
+     * @return the task doing the spawning, which reports progress.
+     */
+    public BulkSpawnTask spawnDoppelgangers(Collection<SpawnRequest> requests, Consumer<BulkSpawnTask> onComplete) {
+        return new BulkSpawnTask(this, requests, onComplete).start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the specified doppelganger from the world.
+     *
+     * Use this rather than calling Entity.remove() directly, so that cached
+     * query results remain consistent.
+     *
+     * @param doppelganger the creature to remove.
+     */
+    public void removeDoppelganger(LivingEntity doppelganger) {
+        doppelganger.remove();
+        _doppelgangerIndex.remove(doppelganger);
+        _queryCache.invalidate(doppelganger.getWorld());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a list of all LivingEntity instances with the specified visible
+     * custom name within the specified volume.
+     *
+     * I tried setting the name "<anonymous>" when spawning escorts, but not
+     * showing the name. The client still shows it when at very short range and
+     * for certain view angles only. The name "." is less noticeable, but still
+     * noticeable enough that using a hidden custom name is not a viable way of
+     * marking Doppelganger-spawned mobs.
+     *
+     * Creatures that have died but not yet been removed from the world are
+     * excluded, so that a population is not considered complete while its
+     * last member plays its death animation.
+     *
+     * Results are cached until the end of the tick, so that identical queries
+     * issued by many command blocks share a single scan of the world.
+     *
+     * @param name the custom name, which must be visible; if this is null, any
+     *        name will do.
+     * @param volume the volume to be searched for doppelgangers.
+     * @return an unmodifiable list of the matching LivingEntity instances.
+     */
+    public List<LivingEntity> findDoppelgangers(String name, Volume volume) {
+        List<LivingEntity> cached = _queryCache.get(name, volume);
+        if (cached != null) {
+            return cached;
+        }
+
+        ArrayList<LivingEntity> doppelgangers = new ArrayList<LivingEntity>();
+        for (LivingEntity living : volume.getWorld().getLivingEntities()) {
+            if (living.isCustomNameVisible() &&
+                !living.isDead() &&
+                (name == null || name.equals(living.getCustomName())) &&
+                volume.contains(living.getLocation())) {
+                doppelgangers.add(living);
+            }
+        }
+        List<LivingEntity> result = Collections.unmodifiableList(doppelgangers);
+        _queryCache.put(name, volume, result);
+        return result;
     }
 
     // ------------------------------------------------------------------------
@@ -264,6 +569,12 @@ public class Doppelganger extends JavaPlugin implements Listener {
         Location loc = event.getBlock().getLocation();
         ItemStack placedItem = event.getItemInHand();
 
+        // Check the population caps before the player loses any items.
+        if (!_doppelgangerIndex.canSpawn(creatureType, loc)) {
+            event.getPlayer().sendMessage(ChatColor.YELLOW + "There are too many doppelgangers here to summon another.");
+            return;
+        }
+
         getLogger().info(String.format(Locale.US,
                                        "Player %s spawned a %s named %s at (%g,%g,%g) in %s by building a %s.",
                                        event.getPlayer().getName(), creatureType, doppelgangerName,
@@ -280,6 +591,8 @@ public class Doppelganger extends JavaPlugin implements Listener {
             event.getPlayer().getEquipment().setItemInMainHand(null);
         }
 
+        _watchdog.describe(shape.getName(), creatureType);
+
         // Vaporise the shape blocks.
         shape.vaporise(loc);
 
@@ -296,9 +609,12 @@ public class Doppelganger extends JavaPlugin implements Listener {
             // Configuration.isValidCreatureType() was called prior to entering
             // doDoppelganger(), this shouldn't happen.
             getLogger().severe("Could not spawn " + creatureType);
-        } else if (doppelganger instanceof Creature) {
-            // If we can, make the doppelganger the players *problem*.
-            ((Creature) doppelganger).setTarget(event.getPlayer());
+        } else {
+            _statistics.recordSummon(shape.getName());
+            if (doppelganger instanceof Creature) {
+                // If we can, make the doppelganger the players *problem*.
+                ((Creature) doppelganger).setTarget(event.getPlayer());
+            }
         }
     } // doDoppelganger
 
@@ -318,6 +634,47 @@ public class Doppelganger extends JavaPlugin implements Listener {
      */
     protected Configuration _configuration = new Configuration(this, _creatureFactory);
 
+    /**
+     * Indexes loaded doppelgangers and enforces population caps.
+     */
+    protected DoppelgangerIndex _doppelgangerIndex = new DoppelgangerIndex(this);
+
+    /**
+     * Caches the results of findDoppelgangers() for the current tick.
+     */
+    protected QueryCache _queryCache = new QueryCache();
+
+    /**
+     * Latency histograms of hot paths and commands.
+     */
+    protected Statistics _statistics = new Statistics();
+
+    /**
+     * Publishes statistics through JMX and a metrics file.
+     */
+    protected MetricsExporter _metricsExporter = new MetricsExporter(this);
+
+    /**
+     * Logs operations that use too much main thread time.
+     */
+    protected TickWatchdog _watchdog = new TickWatchdog(this);
+
+    /**
+     * Maintains the populations listed in the "maintained" section of the
+     * configuration.
+     */
+    protected PopulationReconciler _populationReconciler = new PopulationReconciler(this);
+
+    /**
+     * Spawns doppelgangers once their chunks are loaded.
+     */
+    protected AsyncSpawner _asyncSpawner = new AsyncSpawner(this);
+
+    /**
+     * Records events to trace files for replay.
+     */
+    protected TraceRecorder _traceRecorder = new TraceRecorder(this);
+
     /**
      * Handles the command line.
      */
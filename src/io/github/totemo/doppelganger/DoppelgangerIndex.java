@@ -0,0 +1,521 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.persistence.PersistentDataType;
+
+// ----------------------------------------------------------------------------
+/**
+ * Keeps track of the loaded creatures spawned by Doppelganger and enforces the
+ * population caps in the "caps" section of the configuration.
+ *
+ * Spawned creatures are tagged with their creature type name in their
+ * persistent data, so that they can be indexed again when their chunk is
+ * reloaded, including after a server restart. Counts per creature type, per
+ * world and per chunk are updated as creatures are spawned, die, are removed
+ * by command or are loaded and unloaded with their chunks, so that a cap can
+ * be checked without scanning entities.
+ *
+ * A creature is counted against the chunk it was in when it was spawned or
+ * loaded; creatures that wander into a neighbouring chunk are not recounted
+ * until their chunk is next loaded.
+ */
+public class DoppelgangerIndex implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     */
+    public DoppelgangerIndex(Doppelganger plugin) {
+        _typeKey = new NamespacedKey(plugin, "type");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the population caps from the configuration.
+     *
+     * The expected format is shown below. A cap of 0, or an omitted cap, means
+     * unlimited.
+     *
+     * <pre>
+     * caps:
+     *   chunk: 8
+     *   world: 200
+     *   worlds:
+     *     world_nether: 50
+     *   creatures:
+     *     ToughWitherSkeleton: 10
+     * </pre>
+     *
+     * @param root the root of the configuration hierarchy.
+     * @param logger the Logger.
+     */
+    public void loadCaps(ConfigurationSection root, Logger logger) {
+        _chunkCap = 0;
+        _worldCap = 0;
+        _worldCaps.clear();
+        _typeCaps.clear();
+
+        ConfigurationSection caps = root.getConfigurationSection("caps");
+        if (caps != null) {
+            _chunkCap = Math.max(0, caps.getInt("chunk", 0));
+            _worldCap = Math.max(0, caps.getInt("world", 0));
+            ConfigurationSection worlds = caps.getConfigurationSection("worlds");
+            if (worlds != null) {
+                for (String worldName : worlds.getKeys(false)) {
+                    if (!worlds.isInt(worldName) || worlds.getInt(worldName) < 0) {
+                        logger.warning("The cap for world " + worldName + " should be a non-negative integer.");
+                    } else {
+                        _worldCaps.put(worldName, worlds.getInt(worldName));
+                    }
+                }
+            }
+            ConfigurationSection creatures = caps.getConfigurationSection("creatures");
+            if (creatures != null) {
+                for (String typeName : creatures.getKeys(false)) {
+                    if (!creatures.isInt(typeName) || creatures.getInt(typeName) < 0) {
+                        logger.warning("The cap for creature " + typeName + " should be a non-negative integer.");
+                    } else {
+                        _typeCaps.put(typeName.toLowerCase(), creatures.getInt(typeName));
+                    }
+                }
+            }
+        }
+    } // loadCaps
+
+    // ------------------------------------------------------------------------
+    /**
+     * Index all tagged creatures in the currently loaded chunks.
+     *
+     * This is called once when the plugin is enabled; thereafter, chunk load
+     * and unload events keep the index current.
+     *
+     * @param worlds the loaded worlds.
+     */
+    public void indexLoadedWorlds(List<World> worlds) {
+        for (World world : worlds) {
+            for (LivingEntity living : world.getLivingEntities()) {
+                String type = getTaggedType(living);
+                if (type != null) {
+                    index(living, type);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if spawning a creature of the specified type at the specified
+     * location would not exceed any population cap.
+     *
+     * @param creatureType the creature type name.
+     * @param loc the spawn location.
+     * @return true if the creature can be spawned.
+     */
+    public boolean canSpawn(String creatureType, Location loc) {
+        if (isWithinCaps(creatureType, loc)) {
+            return true;
+        }
+
+        // Creatures that despawn don't fire an event. Before refusing, drop
+        // any creatures that no longer exist, but not so often that repeated
+        // attempts at a cap turn into repeated scans.
+        long now = System.currentTimeMillis();
+        if (now - _lastPurgeTime >= PURGE_INTERVAL_MILLIS) {
+            _lastPurgeTime = now;
+            purge();
+            return isWithinCaps(creatureType, loc);
+        }
+        return false;
+    } // canSpawn
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tag a newly spawned creature with its type and add it to the index.
+     *
+     * @param living the creature.
+     * @param creatureType the creature type name it was spawned as.
+     */
+    public void add(LivingEntity living, String creatureType) {
+        living.getPersistentDataContainer().set(_typeKey, PersistentDataType.STRING, creatureType);
+        index(living, creatureType);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a creature from the index, if present.
+     *
+     * @param living the creature.
+     */
+    public void remove(Entity living) {
+        Entry entry = _entries.remove(living.getUniqueId());
+        if (entry != null) {
+            uncount(entry);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of indexed creatures.
+     *
+     * @return the number of indexed creatures.
+     */
+    public int size() {
+        return _entries.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of indexed creatures of the specified type.
+     *
+     * @param creatureType the case-insensitive creature type name.
+     * @return the number of indexed creatures of the specified type.
+     */
+    public int getTypeCount(String creatureType) {
+        Counter counter = _typeCounts.get(creatureType.toLowerCase());
+        return (counter != null) ? counter.value : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of indexed creatures in the specified world.
+     *
+     * @param world the World.
+     * @return the number of indexed creatures in the specified world.
+     */
+    public int getWorldCount(World world) {
+        WorldCounts counts = _worldCounts.get(world.getUID());
+        return (counts != null) ? counts.total : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove doppelgangers that die from the index.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityDeath(EntityDeathEvent event) {
+        remove(event.getEntity());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Index tagged creatures as their chunk loads.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        for (Entity entity : event.getChunk().getEntities()) {
+            if (entity instanceof LivingEntity) {
+                String type = getTaggedType((LivingEntity) entity);
+                if (type != null) {
+                    index((LivingEntity) entity, type);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop counting creatures when their chunk unloads.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        if (!_entries.isEmpty()) {
+            for (Entity entity : event.getChunk().getEntities()) {
+                remove(entity);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the creature type name that a creature was tagged with when
+     * spawned, or null if it was not spawned by Doppelganger.
+     *
+     * @param living the creature.
+     * @return the tagged creature type name, or null.
+     */
+    public String getTaggedType(LivingEntity living) {
+        return living.getPersistentDataContainer().get(_typeKey, PersistentDataType.STRING);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if all of the caps that apply to a new creature of the
+     * specified type at the specified location have room for it.
+     *
+     * @param creatureType the creature type name.
+     * @param loc the spawn location.
+     * @return true if the caps have room for the creature.
+     */
+    protected boolean isWithinCaps(String creatureType, Location loc) {
+        if (!_typeCaps.isEmpty()) {
+            Integer typeCap = _typeCaps.get(creatureType.toLowerCase());
+            if (typeCap != null && typeCap > 0 && getTypeCount(creatureType) >= typeCap) {
+                return false;
+            }
+        }
+
+        World world = loc.getWorld();
+        Integer worldCap = _worldCaps.get(world.getName());
+        int cap = (worldCap != null) ? worldCap : _worldCap;
+        if (cap > 0 || _chunkCap > 0) {
+            WorldCounts counts = _worldCounts.get(world.getUID());
+            if (counts != null) {
+                if (cap > 0 && counts.total >= cap) {
+                    return false;
+                }
+                if (_chunkCap > 0) {
+                    Counter chunkCounter = counts.chunks.get(chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4));
+                    if (chunkCounter != null && chunkCounter.value >= _chunkCap) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    } // isWithinCaps
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a creature to the index and count it, unless already present.
+     *
+     * @param living the creature.
+     * @param creatureType the creature type name it was spawned as.
+     */
+    protected void index(LivingEntity living, String creatureType) {
+        if (_entries.containsKey(living.getUniqueId())) {
+            return;
+        }
+
+        Location loc = living.getLocation();
+        Entry entry = new Entry(living, creatureType.toLowerCase(), living.getWorld().getUID(),
+            chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4));
+        _entries.put(living.getUniqueId(), entry);
+
+        Counter typeCounter = _typeCounts.get(entry.type);
+        if (typeCounter == null) {
+            typeCounter = new Counter();
+            _typeCounts.put(entry.type, typeCounter);
+        }
+        ++typeCounter.value;
+
+        WorldCounts counts = _worldCounts.get(entry.world);
+        if (counts == null) {
+            counts = new WorldCounts();
+            _worldCounts.put(entry.world, counts);
+        }
+        ++counts.total;
+        Counter chunkCounter = counts.chunks.get(entry.chunk);
+        if (chunkCounter == null) {
+            chunkCounter = new Counter();
+            counts.chunks.put(entry.chunk, chunkCounter);
+        }
+        ++chunkCounter.value;
+    } // index
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decrement the counts that include the specified entry, discarding
+     * counters that reach zero.
+     *
+     * @param entry the entry that has been removed from _entries.
+     */
+    protected void uncount(Entry entry) {
+        Counter typeCounter = _typeCounts.get(entry.type);
+        if (typeCounter != null && --typeCounter.value <= 0) {
+            _typeCounts.remove(entry.type);
+        }
+
+        WorldCounts counts = _worldCounts.get(entry.world);
+        if (counts != null) {
+            if (--counts.total <= 0) {
+                _worldCounts.remove(entry.world);
+            } else {
+                Counter chunkCounter = counts.chunks.get(entry.chunk);
+                if (chunkCounter != null && --chunkCounter.value <= 0) {
+                    counts.chunks.remove(entry.chunk);
+                }
+            }
+        }
+    } // uncount
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove entries for creatures that no longer exist, e.g. because they
+     * despawned.
+     */
+    protected void purge() {
+        for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (!entry.entity.isValid()) {
+                it.remove();
+                uncount(entry);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a snapshot of the entries in the index.
+     *
+     * @return a snapshot of the entries in the index.
+     */
+    protected List<Entry> getEntries() {
+        return new ArrayList<Entry>(_entries.values());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a single long value identifying a chunk in a world.
+     *
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @return the key.
+     */
+    protected static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An indexed creature.
+     */
+    protected static final class Entry {
+        /**
+         * Constructor.
+         *
+         * @param entity the creature.
+         * @param type the lower case creature type name.
+         * @param world the UUID of the world where it was counted.
+         * @param chunk the key of the chunk where it was counted.
+         */
+        Entry(LivingEntity entity, String type, UUID world, long chunk) {
+            this.entity = entity;
+            this.type = type;
+            this.world = world;
+            this.chunk = chunk;
+        }
+
+        /**
+         * The creature.
+         */
+        final LivingEntity entity;
+
+        /**
+         * The lower case creature type name.
+         */
+        final String type;
+
+        /**
+         * The UUID of the world where the creature was counted.
+         */
+        final UUID world;
+
+        /**
+         * The key of the chunk where the creature was counted.
+         */
+        final long chunk;
+    } // inner class Entry
+
+    // ------------------------------------------------------------------------
+    /**
+     * A mutable int, to avoid reboxing when incrementing map values.
+     */
+    protected static final class Counter {
+        int value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Counts of creatures in one world.
+     */
+    protected static final class WorldCounts {
+        /**
+         * Total number of creatures in the world.
+         */
+        int total;
+
+        /**
+         * Map from chunk key to number of creatures in that chunk.
+         */
+        final HashMap<Long, Counter> chunks = new HashMap<Long, Counter>();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Minimum time between purges of creatures that no longer exist.
+     */
+    protected static final long PURGE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The key of the creature type name in a creature's persistent data.
+     */
+    protected final NamespacedKey _typeKey;
+
+    /**
+     * Map from entity UUID to index entry.
+     */
+    protected HashMap<UUID, Entry> _entries = new HashMap<UUID, Entry>();
+
+    /**
+     * Map from lower case creature type name to number of creatures.
+     */
+    protected HashMap<String, Counter> _typeCounts = new HashMap<String, Counter>();
+
+    /**
+     * Map from world UUID to counts in that world.
+     */
+    protected HashMap<UUID, WorldCounts> _worldCounts = new HashMap<UUID, WorldCounts>();
+
+    /**
+     * Maximum number of creatures per chunk; 0 means unlimited.
+     */
+    protected int _chunkCap;
+
+    /**
+     * Default maximum number of creatures per world; 0 means unlimited.
+     */
+    protected int _worldCap;
+
+    /**
+     * Map from world name to maximum number of creatures in that world,
+     * overriding _worldCap.
+     */
+    protected Map<String, Integer> _worldCaps = new HashMap<String, Integer>();
+
+    /**
+     * Map from lower case creature type name to maximum number of creatures of
+     * that type.
+     */
+    protected Map<String, Integer> _typeCaps = new HashMap<String, Integer>();
+
+    /**
+     * Time of the last purge in milliseconds since the epoch.
+     */
+    protected long _lastPurgeTime;
+} // class DoppelgangerIndex
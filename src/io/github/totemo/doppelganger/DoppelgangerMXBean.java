@@ -0,0 +1,120 @@
+package io.github.totemo.doppelganger;
+
+import java.util.Map;
+
+// ----------------------------------------------------------------------------
+/**
+ * Management interface of the plugin's counters and gauges, registered with
+ * the platform MBean server as
+ * "io.github.totemo.doppelganger:type=Doppelganger".
+ *
+ * Latencies are published by a separate {@link LatencyMXBean} for each timed
+ * path and subcommand.
+ */
+public interface DoppelgangerMXBean {
+    /**
+     * Return the number of loaded doppelgangers.
+     *
+     * @return the number of loaded doppelgangers.
+     */
+    int getLoadedDoppelgangers();
+
+    /**
+     * Return the number of configured shapes.
+     *
+     * @return the number of configured shapes.
+     */
+    int getShapes();
+
+    /**
+     * Return the number of configured creature types.
+     *
+     * @return the number of configured creature types.
+     */
+    int getCreatureTypes();
+
+    /**
+     * Return the number of players defined in the configuration files.
+     *
+     * @return the number of configured players.
+     */
+    int getPlayers();
+
+    /**
+     * Return the number of players in the player index.
+     *
+     * @return the number of indexed players.
+     */
+    int getIndexedPlayers();
+
+    /**
+     * Return the number of maintained populations.
+     *
+     * @return the number of maintained populations.
+     */
+    int getMaintainedPopulations();
+
+    /**
+     * Return the number of cached player head owners.
+     *
+     * @return the number of cached player head owners.
+     */
+    int getHeadOwners();
+
+    /**
+     * Return the number of spawns waiting for a chunk or head owner.
+     *
+     * @return the number of pending spawns.
+     */
+    int getPendingSpawns();
+
+    /**
+     * Return the number of maintained populations waiting for an early check.
+     *
+     * @return the number of dirty populations.
+     */
+    int getDirtyPopulations();
+
+    /**
+     * Return the number of volume queries answered from the per-tick cache.
+     *
+     * @return the number of query cache hits.
+     */
+    long getQueryCacheHits();
+
+    /**
+     * Return the number of volume queries not answered from the per-tick
+     * cache.
+     *
+     * @return the number of query cache misses.
+     */
+    long getQueryCacheMisses();
+
+    /**
+     * Return the fraction of volume queries answered from the per-tick cache.
+     *
+     * @return the query cache hit rate, from 0 to 1.
+     */
+    double getQueryCacheHitRate();
+
+    /**
+     * Return the time taken by the last configuration load.
+     *
+     * @return the configuration load time in milliseconds.
+     */
+    double getConfigLoadMillis();
+
+    /**
+     * Return the number of doppelgangers summoned by each shape.
+     *
+     * @return a map from shape name to count.
+     */
+    Map<String, Long> getSummonsByShape();
+
+    /**
+     * Return the number of creatures spawned of each type.
+     *
+     * @return a map from creature type name to count.
+     */
+    Map<String, Long> getSpawnsByType();
+} // interface DoppelgangerMXBean
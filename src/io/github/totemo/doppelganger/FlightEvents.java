@@ -0,0 +1,162 @@
+package io.github.totemo.doppelganger;
+
+// ----------------------------------------------------------------------------
+/**
+ * Emits Java Flight Recorder events for shape matching, spawning, entity
+ * deaths and configuration loads, so that they can be correlated with GC
+ * pauses and tick stalls in a recording.
+ *
+ * The events themselves are defined in the separate src-jfr source directory,
+ * which is only compiled by the "jfr" Maven profile (active on JDK 11 and
+ * later), since jdk.jfr is not available on older JVMs. This class finds them
+ * reflectively; if they are missing from the jar, or the running JVM has no
+ * jdk.jfr, the methods of this class do nothing.
+ *
+ * Each event is started by a begin method, which returns null if the event is
+ * not being recorded, and finished by the corresponding commit method, which
+ * ignores a null event. When nothing is recording, the cost is a check of
+ * whether the event type is enabled.
+ */
+public class FlightEvents {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the instance that emits events, which does nothing if Flight
+     * Recorder events are not available.
+     *
+     * @return the FlightEvents instance.
+     */
+    public static FlightEvents get() {
+        return INSTANCE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if events are emitted to Flight Recorder when it is
+     * recording.
+     *
+     * @return true if the JVM and plugin jar support Flight Recorder events.
+     */
+    public boolean isAvailable() {
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start timing the evaluation of the shapes that could be completed by a
+     * placed block.
+     *
+     * @return the event, or null if it is not recorded.
+     */
+    public Object beginShapeMatch() {
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish and record a shape match event.
+     *
+     * @param event the result of {@link #beginShapeMatch()}.
+     * @param name the name of the placed item.
+     * @param trigger the material of the placed item.
+     * @param shape the name of the complete shape, or null if none.
+     * @param borderClear true if the border around a complete shape was
+     *        clear.
+     */
+    public void commitShapeMatch(Object event, String name, String trigger, String shape, boolean borderClear) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start timing a call to CreatureFactory.spawnCreature().
+     *
+     * @return the event, or null if it is not recorded.
+     */
+    public Object beginSpawn() {
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish and record a spawn event.
+     *
+     * @param event the result of {@link #beginSpawn()}.
+     * @param creatureType the creature type.
+     * @param escorts the number of escorts scheduled.
+     * @param spawned true if a creature was spawned.
+     */
+    public void commitSpawn(Object event, String creatureType, int escorts, boolean spawned) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start timing the handling of an entity death.
+     *
+     * @return the event, or null if it is not recorded.
+     */
+    public Object beginEntityDeath() {
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish and record an entity death event.
+     *
+     * @param event the result of {@link #beginEntityDeath()}.
+     * @param entityType the type of the entity.
+     * @param name the custom name of the entity, or null.
+     * @param drops the number of dropped items.
+     */
+    public void commitEntityDeath(Object event, String entityType, String name, int drops) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start timing the reading, parsing and compiling of the configuration.
+     *
+     * @return the event, or null if it is not recorded.
+     */
+    public Object beginConfigLoad() {
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish and record a configuration load event.
+     *
+     * @param event the result of {@link #beginConfigLoad()}.
+     * @param reload true for a reload, false for the initial load.
+     * @param shapes the number of shapes compiled.
+     * @param creatureTypes the number of creature types compiled or deferred.
+     */
+    public void commitConfigLoad(Object event, boolean reload, int shapes, int creatureTypes) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an instance of the Flight Recorder implementation if the JVM
+     * supports it and it was compiled into the jar, or an instance that does
+     * nothing otherwise.
+     *
+     * @return the FlightEvents instance.
+     */
+    protected static FlightEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            Class<?> implementation = Class.forName(IMPLEMENTATION);
+            return (FlightEvents) implementation.getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError ex) {
+            return new FlightEvents();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The class name of the Flight Recorder implementation in src-jfr.
+     */
+    protected static final String IMPLEMENTATION = "io.github.totemo.doppelganger.jfr.JfrFlightEvents";
+
+    /**
+     * The single instance.
+     */
+    protected static final FlightEvents INSTANCE = load();
+} // class FlightEvents
@@ -0,0 +1,217 @@
+package io.github.totemo.doppelganger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// ----------------------------------------------------------------------------
+/**
+ * A histogram of durations in nanoseconds that can be updated concurrently
+ * without locking or allocating.
+ *
+ * Durations are counted in logarithmic buckets: each power of two is divided
+ * into {@link #SUB_BUCKETS} equal buckets, so a reported percentile is at
+ * most 1/{@link #SUB_BUCKETS} greater than the true value. Durations longer
+ * than about 18 minutes are counted in the last bucket.
+ *
+ * Reading the histogram while it is being updated gives approximate, but
+ * never inconsistent, results.
+ */
+public class LatencyHistogram {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public LatencyHistogram() {
+        _buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            _buckets[i] = new LongAdder();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the time elapsed since the specified start time.
+     *
+     * @param startNanos the start time, from System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record one duration.
+     *
+     * @param nanos the duration in nanoseconds; negative values are counted as
+     *        zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        _buckets[getBucket(nanos)].increment();
+        _totalNanos.add(nanos);
+
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+            max = _maxNanos.get();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of recorded durations.
+     *
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : _buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of all recorded durations.
+     *
+     * @return the sum of all recorded durations in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return _totalNanos.sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the longest recorded duration.
+     *
+     * @return the longest recorded duration in nanoseconds, or 0 if none.
+     */
+    public long getMaxNanos() {
+        return _maxNanos.get();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an upper bound on the specified percentile of the recorded
+     * durations.
+     *
+     * @param percentile the percentile, from 0 to 100.
+     * @return the upper bound of the bucket containing the percentile, in
+     *         nanoseconds, but no more than the maximum; 0 if nothing was
+     *         recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = _buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketLimit(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all recorded durations.
+     *
+     * Durations recorded concurrently with the reset may be partially
+     * counted.
+     */
+    public void reset() {
+        for (LongAdder bucket : _buckets) {
+            bucket.reset();
+        }
+        _totalNanos.reset();
+        _maxNanos.set(0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the bucket counting the specified duration.
+     *
+     * Durations below 2 * SUB_BUCKETS have a bucket each. Above that, the
+     * bucket is selected by the position of the highest set bit and the
+     * SUB_BUCKET_BITS bits after it.
+     *
+     * @param nanos the non-negative duration.
+     * @return the bucket index.
+     */
+    protected static int getBucket(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the largest duration counted by the specified bucket.
+     *
+     * @param bucket the bucket index.
+     * @return the largest duration in nanoseconds.
+     */
+    protected static long getBucketLimit(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log base 2 of the number of buckets per power of two.
+     */
+    protected static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest power of two with its own buckets: 2^40 ns is about 18 minutes.
+     */
+    protected static final int MAX_EXPONENT = 40;
+
+    /**
+     * Total number of buckets.
+     */
+    protected static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * Number of durations in each bucket.
+     */
+    protected final LongAdder[] _buckets;
+
+    /**
+     * Sum of all recorded durations in nanoseconds.
+     */
+    protected final LongAdder _totalNanos = new LongAdder();
+
+    /**
+     * Longest recorded duration in nanoseconds.
+     */
+    protected final AtomicLong _maxNanos = new AtomicLong();
+} // class LatencyHistogram
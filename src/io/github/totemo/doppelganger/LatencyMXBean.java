@@ -0,0 +1,44 @@
+package io.github.totemo.doppelganger;
+
+// ----------------------------------------------------------------------------
+/**
+ * Management interface of one {@link LatencyHistogram}, registered with the
+ * platform MBean server as
+ * "io.github.totemo.doppelganger:type=Latency,name=<i>label</i>".
+ */
+public interface LatencyMXBean {
+    /**
+     * Return the number of recorded durations.
+     *
+     * @return the number of calls.
+     */
+    long getCount();
+
+    /**
+     * Return the mean duration.
+     *
+     * @return the mean duration in microseconds.
+     */
+    double getMeanMicros();
+
+    /**
+     * Return the median duration.
+     *
+     * @return the median duration in microseconds.
+     */
+    double getP50Micros();
+
+    /**
+     * Return the 99th percentile duration.
+     *
+     * @return the 99th percentile duration in microseconds.
+     */
+    double getP99Micros();
+
+    /**
+     * Return the longest duration.
+     *
+     * @return the longest duration in microseconds.
+     */
+    double getMaxMicros();
+} // interface LatencyMXBean
@@ -0,0 +1,287 @@
+package io.github.totemo.doppelganger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+
+// ----------------------------------------------------------------------------
+/**
+ * Describes a named population of doppelgangers that the
+ * {@link PopulationReconciler} keeps at a fixed size.
+ *
+ * This is the declarative equivalent of a clock-driven command block running
+ * /doppel maintain.
+ */
+public class MaintainedPopulation {
+    // ------------------------------------------------------------------------
+    /**
+     * Load a MaintainedPopulation from the specified section.
+     *
+     * The expected format is:
+     *
+     * <pre>
+     *    type: ToughWitherSkeleton
+     *    name: Notch
+     *    count: 1
+     *    world: world
+     *    at: [100.5, 64, 200.5]
+     *    box: [90, 60, 190, 110, 80, 210]
+     * </pre>
+     *
+     * Instead of a box, a sphere can be specified as the centre coordinates
+     * followed by the radius, e.g. <code>sphere: [100, 64, 200, 16]</code>.
+     * The count defaults to 1 if omitted.
+     *
+     * @param section the configuration section to load.
+     * @param server the Server, used to look up the world.
+     * @param creatureFactory validates the creature type.
+     * @param logger logs messages.
+     * @return a new MaintainedPopulation instance, or null on error.
+     */
+    public static MaintainedPopulation loadFromSection(ConfigurationSection section, Server server,
+                                                       CreatureFactory creatureFactory, Logger logger) {
+        String id = section.getName();
+        String type = section.getString("type");
+        String name = section.getString("name");
+        if (type == null || type.length() == 0 || name == null || name.length() == 0) {
+            logger.warning("Maintained population " + id + " must specify both a type and a name.");
+            return null;
+        }
+        if (!creatureFactory.isValidCreatureType(type)) {
+            logger.warning("Maintained population " + id + " has an invalid creature type: " + type);
+            return null;
+        }
+
+        int count = section.getInt("count", 1);
+        if (count < 0) {
+            logger.warning("Maintained population " + id + " has a negative count.");
+            return null;
+        }
+
+        String worldName = section.getString("world", "");
+        World world = server.getWorld(worldName);
+        if (world == null) {
+            logger.warning("Maintained population " + id + " is in an unknown world: " + worldName);
+            return null;
+        }
+
+        List<Double> at = section.getDoubleList("at");
+        if (at.size() != 3) {
+            logger.warning("Maintained population " + id + " needs a spawn location of the form: at: [x, y, z]");
+            return null;
+        }
+        Location loc = new Location(world, at.get(0), at.get(1), at.get(2));
+
+        Volume volume = null;
+        if (section.isList("box")) {
+            List<Double> box = section.getDoubleList("box");
+            if (box.size() == 6) {
+                volume = new Volume.Box(new Location(world, box.get(0), box.get(1), box.get(2)),
+                    new Location(world, box.get(3), box.get(4), box.get(5)));
+            }
+        } else if (section.isList("sphere")) {
+            List<Double> sphere = section.getDoubleList("sphere");
+            if (sphere.size() == 4 && sphere.get(3) >= 0) {
+                volume = new Volume.Sphere(new Location(world, sphere.get(0), sphere.get(1), sphere.get(2)), sphere.get(3));
+            }
+        }
+        if (volume == null) {
+            logger.warning("Maintained population " + id +
+                           " needs a volume of the form box: [x1, y1, z1, x2, y2, z2] or sphere: [x, y, z, radius]");
+            return null;
+        }
+        if (!volume.contains(loc)) {
+            logger.warning("The volume of maintained population " + id + " must contain its spawn location.");
+            return null;
+        }
+        return new MaintainedPopulation(id, type, name, loc, volume, count);
+    } // loadFromSection
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param id the unique identifier of this population in the configuration.
+     * @param creatureType the type of creature to spawn.
+     * @param doppelgangerName the name of the doppelgangers; this is how they
+     *        are found in the volume.
+     * @param spawnLocation the Location where missing doppelgangers spawn.
+     * @param volume the Volume searched for doppelgangers.
+     * @param count the number of doppelgangers to maintain in the volume.
+     */
+    public MaintainedPopulation(String id, String creatureType, String doppelgangerName,
+                                Location spawnLocation, Volume volume, int count) {
+        _id = id;
+        _creatureType = creatureType;
+        _doppelgangerName = doppelgangerName;
+        _spawnLocation = spawnLocation.clone();
+        _volume = volume;
+        _count = count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the unique identifier of this population.
+     *
+     * @return the unique identifier of this population.
+     */
+    public String getId() {
+        return _id;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the type of creature to spawn.
+     *
+     * @return the name of the type of creature to spawn.
+     */
+    public String getCreatureType() {
+        return _creatureType;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the maintained doppelgangers.
+     *
+     * @return the name of the maintained doppelgangers.
+     */
+    public String getDoppelgangerName() {
+        return _doppelgangerName;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Location where missing doppelgangers spawn.
+     *
+     * @return the Location where missing doppelgangers spawn.
+     */
+    public Location getSpawnLocation() {
+        return _spawnLocation;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Volume that is searched for doppelgangers.
+     *
+     * @return the Volume that is searched for doppelgangers.
+     */
+    public Volume getVolume() {
+        return _volume;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of doppelgangers to maintain in the volume.
+     *
+     * @return the number of doppelgangers to maintain in the volume.
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the chunk containing the spawn location is loaded.
+     *
+     * The reconciler skips populations in unloaded chunks, rather than loading
+     * the chunk, in the same way that command blocks only run in loaded chunks.
+     *
+     * @return true if the chunk containing the spawn location is loaded.
+     */
+    public boolean isSpawnChunkLoaded() {
+        return _spawnLocation.getWorld().isChunkLoaded(_spawnLocation.getBlockX() >> 4, _spawnLocation.getBlockZ() >> 4);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the spawn location of this population is in the specified
+     * chunk.
+     *
+     * @param world the World of the chunk.
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @return true if the spawn location of this population is in the
+     *         specified chunk.
+     */
+    public boolean isSpawnChunk(World world, int chunkX, int chunkZ) {
+        return _spawnLocation.getWorld() == world &&
+               (_spawnLocation.getBlockX() >> 4) == chunkX &&
+               (_spawnLocation.getBlockZ() >> 4) == chunkZ;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Save this population to the specified configuration section, in the
+     * format read by {@link #loadFromSection(ConfigurationSection, Server, CreatureFactory, Logger)}.
+     *
+     * @param section the section, whose name should be the ID.
+     */
+    public void save(ConfigurationSection section) {
+        section.set("type", _creatureType);
+        section.set("name", _doppelgangerName);
+        section.set("count", _count);
+        section.set("world", _spawnLocation.getWorld().getName());
+        section.set("at", Arrays.asList(_spawnLocation.getX(), _spawnLocation.getY(), _spawnLocation.getZ()));
+        if (_volume instanceof Volume.Sphere) {
+            Volume.Sphere sphere = (Volume.Sphere) _volume;
+            Location centre = sphere.getCentre();
+            section.set("sphere", Arrays.asList(centre.getX(), centre.getY(), centre.getZ(), sphere.getRadius()));
+        } else {
+            Volume.Box box = (Volume.Box) _volume;
+            Location min = box.getMin();
+            Location max = box.getMax();
+            section.set("box", Arrays.asList(min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ()));
+        }
+    } // save
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print a one line description of this population to the command sender.
+     *
+     * @param sender the entity requesting the description.
+     */
+    public void describe(CommandSender sender) {
+        sender.sendMessage(String.format("%s%s: %s%d %s named %s at (%d, %d, %d) in %s",
+                                         ChatColor.GOLD, _id, ChatColor.YELLOW, _count, _creatureType, _doppelgangerName,
+                                         _spawnLocation.getBlockX(), _spawnLocation.getBlockY(), _spawnLocation.getBlockZ(),
+                                         _spawnLocation.getWorld().getName()));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The unique identifier of this population in the configuration.
+     */
+    protected String _id;
+
+    /**
+     * The type of creature to spawn.
+     */
+    protected String _creatureType;
+
+    /**
+     * The name of the maintained doppelgangers.
+     */
+    protected String _doppelgangerName;
+
+    /**
+     * The Location where missing doppelgangers spawn.
+     */
+    protected Location _spawnLocation;
+
+    /**
+     * The Volume that is searched for doppelgangers.
+     */
+    protected Volume _volume;
+
+    /**
+     * The number of doppelgangers to maintain in the volume.
+     */
+    protected int _count;
+} // class MaintainedPopulation
@@ -0,0 +1,613 @@
+package io.github.totemo.doppelganger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Publishes the plugin's counters, gauges and latencies as JMX MXBeans and
+ * periodically writes them to a Prometheus text format file in the data
+ * folder, for collection by a node exporter's textfile collector.
+ *
+ * Gauges that may only be read on the main thread, such as the size of the
+ * {@link DoppelgangerIndex}, are sampled once per second by a main thread
+ * task. Everything else is read directly from thread-safe counters, so JMX
+ * clients and the file writer, which runs in an asynchronous task, never
+ * touch main thread state.
+ */
+public class MetricsExporter implements DoppelgangerMXBean {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     */
+    public MetricsExporter(Doppelganger plugin) {
+        _plugin = plugin;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start sampling main thread gauges.
+     */
+    public void start() {
+        _sampleTask = _plugin.getServer().getScheduler().runTaskTimer(_plugin, new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, 1, SAMPLE_PERIOD_TICKS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the metrics settings of the configuration.
+     *
+     * This must be called on the main thread.
+     *
+     * @param jmx if true, register the MXBeans.
+     * @param fileIntervalSeconds the period between writes of the metrics
+     *        file, in seconds; 0 or less disables the file.
+     */
+    public void configure(boolean jmx, int fileIntervalSeconds) {
+        if (jmx) {
+            registerBeans();
+        } else {
+            unregisterBeans();
+        }
+
+        if (fileIntervalSeconds != _fileIntervalSeconds) {
+            _fileIntervalSeconds = fileIntervalSeconds;
+            if (_fileTask != null) {
+                _fileTask.cancel();
+                _fileTask = null;
+            }
+            if (fileIntervalSeconds > 0) {
+                long period = 20L * fileIntervalSeconds;
+                _fileTask = _plugin.getServer().getScheduler().runTaskTimerAsynchronously(_plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        writeFile();
+                    }
+                }, period, period);
+            }
+        }
+    } // configure
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop sampling and writing metrics and unregister the MXBeans.
+     */
+    public void stop() {
+        if (_sampleTask != null) {
+            _sampleTask.cancel();
+            _sampleTask = null;
+        }
+        if (_fileTask != null) {
+            _fileTask.cancel();
+            _fileTask = null;
+        }
+        _fileIntervalSeconds = 0;
+        unregisterBeans();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getLoadedDoppelgangers()
+     */
+    @Override
+    public int getLoadedDoppelgangers() {
+        return _loadedDoppelgangers;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getShapes()
+     */
+    @Override
+    public int getShapes() {
+        return _plugin.getCreatureFactory().getShapeCount();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getCreatureTypes()
+     */
+    @Override
+    public int getCreatureTypes() {
+        return _plugin.getCreatureFactory().getCreatureTypeCount();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getPlayers()
+     */
+    @Override
+    public int getPlayers() {
+        return _plugin.getCreatureFactory().getPlayerCount();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getIndexedPlayers()
+     */
+    @Override
+    public int getIndexedPlayers() {
+        return _plugin.getCreatureFactory().getIndexedPlayerCount();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getMaintainedPopulations()
+     */
+    @Override
+    public int getMaintainedPopulations() {
+        return _maintainedPopulations;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getHeadOwners()
+     */
+    @Override
+    public int getHeadOwners() {
+        return _plugin.getCreatureFactory().getHeadOwnerCount();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getPendingSpawns()
+     */
+    @Override
+    public int getPendingSpawns() {
+        return _plugin.getAsyncSpawner().getPendingCount();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getDirtyPopulations()
+     */
+    @Override
+    public int getDirtyPopulations() {
+        return _dirtyPopulations;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getQueryCacheHits()
+     */
+    @Override
+    public long getQueryCacheHits() {
+        return _queryCacheHits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getQueryCacheMisses()
+     */
+    @Override
+    public long getQueryCacheMisses() {
+        return _queryCacheMisses;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getQueryCacheHitRate()
+     */
+    @Override
+    public double getQueryCacheHitRate() {
+        long hits = _queryCacheHits;
+        long queries = hits + _queryCacheMisses;
+        return (queries == 0) ? 0.0 : (double) hits / queries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getConfigLoadMillis()
+     */
+    @Override
+    public double getConfigLoadMillis() {
+        return _plugin.getConfiguration().getLoadNanos() / 1e6;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getSummonsByShape()
+     */
+    @Override
+    public Map<String, Long> getSummonsByShape() {
+        return _plugin.getStatistics().getSummonsByShape();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see io.github.totemo.doppelganger.DoppelgangerMXBean#getSpawnsByType()
+     */
+    @Override
+    public Map<String, Long> getSpawnsByType() {
+        return _plugin.getStatistics().getSpawnsByType();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all metrics in the Prometheus text exposition format.
+     *
+     * @return the metrics.
+     */
+    public String formatPrometheus() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "loaded_doppelgangers", "Loaded doppelgangers.", getLoadedDoppelgangers());
+        gauge(out, "shapes", "Configured shapes.", getShapes());
+        gauge(out, "creature_types", "Configured creature types.", getCreatureTypes());
+        gauge(out, "players", "Players defined in the configuration files.", getPlayers());
+        gauge(out, "indexed_players", "Players in the player index.", getIndexedPlayers());
+        gauge(out, "maintained_populations", "Maintained populations.", getMaintainedPopulations());
+        gauge(out, "head_owners", "Cached player head owners.", getHeadOwners());
+        gauge(out, "pending_spawns", "Spawns waiting for a chunk or head owner.", getPendingSpawns());
+        gauge(out, "dirty_populations", "Maintained populations waiting for an early check.", getDirtyPopulations());
+        gauge(out, "config_load_seconds", "Time taken by the last configuration load.", getConfigLoadMillis() / 1e3);
+
+        header(out, "query_cache_hits_total", "counter", "Volume queries answered from the per-tick cache.");
+        out.append(PREFIX).append("query_cache_hits_total ").append(getQueryCacheHits()).append('\n');
+        header(out, "query_cache_misses_total", "counter", "Volume queries not answered from the per-tick cache.");
+        out.append(PREFIX).append("query_cache_misses_total ").append(getQueryCacheMisses()).append('\n');
+
+        header(out, "summons_total", "counter", "Doppelgangers summoned by building each shape.");
+        for (Map.Entry<String, Long> entry : getSummonsByShape().entrySet()) {
+            out.append(PREFIX).append("summons_total{shape=\"").append(escape(entry.getKey())).append("\"} ");
+            out.append(entry.getValue()).append('\n');
+        }
+        header(out, "spawns_total", "counter", "Creatures spawned of each type.");
+        for (Map.Entry<String, Long> entry : getSpawnsByType().entrySet()) {
+            out.append(PREFIX).append("spawns_total{type=\"").append(escape(entry.getKey())).append("\"} ");
+            out.append(entry.getValue()).append('\n');
+        }
+
+        List<Map.Entry<String, LatencyHistogram>> histograms = _plugin.getStatistics().getHistograms();
+        header(out, "latency_seconds", "summary", "Time taken by hot paths and /doppel subcommands.");
+        for (Map.Entry<String, LatencyHistogram> entry : histograms) {
+            String path = escape(entry.getKey());
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                out.append(PREFIX).append("latency_seconds{path=\"").append(path).append("\",quantile=\"");
+                out.append(quantile).append("\"} ");
+                out.append(seconds(histogram.getPercentileNanos(100 * quantile))).append('\n');
+            }
+            out.append(PREFIX).append("latency_seconds_sum{path=\"").append(path).append("\"} ");
+            out.append(seconds(histogram.getTotalNanos())).append('\n');
+            out.append(PREFIX).append("latency_seconds_count{path=\"").append(path).append("\"} ");
+            out.append(histogram.getCount()).append('\n');
+        }
+        header(out, "latency_max_seconds", "gauge", "Longest time taken by hot paths and /doppel subcommands.");
+        for (Map.Entry<String, LatencyHistogram> entry : histograms) {
+            out.append(PREFIX).append("latency_max_seconds{path=\"").append(escape(entry.getKey())).append("\"} ");
+            out.append(seconds(entry.getValue().getMaxNanos())).append('\n');
+        }
+        return out.toString();
+    } // formatPrometheus
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sample the gauges that may only be read on the main thread, and
+     * register MXBeans for subcommands that have been run since the last
+     * sample.
+     */
+    protected void sample() {
+        _loadedDoppelgangers = _plugin.getDoppelgangerIndex().size();
+        _maintainedPopulations = _plugin.getPopulationReconciler().getPopulations().size();
+        _dirtyPopulations = _plugin.getPopulationReconciler().getDirtyCount();
+        _queryCacheHits = _plugin.getQueryCache().getHits();
+        _queryCacheMisses = _plugin.getQueryCache().getMisses();
+        if (!_registered.isEmpty()) {
+            registerLatencyBeans();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the metrics file, replacing it in a single step so that a reader
+     * never sees a partially written file.
+     *
+     * This is called from an asynchronous task.
+     */
+    protected void writeFile() {
+        Path temp = null;
+        try {
+            Path folder = _plugin.getDataFolder().toPath();
+            temp = Files.createTempFile(folder, "metrics", ".tmp");
+            Files.write(temp, formatPrometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, new File(_plugin.getDataFolder(), METRICS_FILE).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            _plugin.getLogger().warning("Could not write " + METRICS_FILE + ": " + ex);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex2) {
+                    // Ignored.
+                }
+            }
+        }
+    } // writeFile
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register this MXBean and those of all latency histograms, if not
+     * already registered.
+     */
+    protected void registerBeans() {
+        if (_registered.isEmpty()) {
+            register(DOMAIN + ":type=Doppelganger", this);
+        }
+        registerLatencyBeans();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register the MXBeans of latency histograms that are not registered yet.
+     */
+    protected void registerLatencyBeans() {
+        for (Map.Entry<String, LatencyHistogram> entry : _plugin.getStatistics().getHistograms()) {
+            String name = DOMAIN + ":type=Latency,name=" + ObjectName.quote(entry.getKey());
+            if (!_registered.contains(name)) {
+                register(name, new Latency(entry.getValue()));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register an MXBean with the platform MBean server, logging any failure.
+     *
+     * @param name the object name.
+     * @param bean the MXBean.
+     */
+    protected void register(String name, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                // Left over from a previous instance of the plugin.
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+            _registered.add(name);
+        } catch (JMException ex) {
+            _plugin.getLogger().warning("Could not register MXBean " + name + ": " + ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Unregister all MXBeans registered by this exporter.
+     */
+    protected void unregisterBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String name : new ArrayList<String>(_registered)) {
+            try {
+                server.unregisterMBean(new ObjectName(name));
+            } catch (JMException ex) {
+                // Already gone.
+            }
+        }
+        _registered.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the HELP and TYPE lines of a metric.
+     *
+     * @param out the output.
+     * @param name the metric name, without the prefix.
+     * @param type the metric type.
+     * @param help the description.
+     */
+    protected static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a gauge without labels.
+     *
+     * @param out the output.
+     * @param name the metric name, without the prefix.
+     * @param help the description.
+     * @param value the value.
+     */
+    protected static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        out.append(PREFIX).append(name).append(' ');
+        if (value == Math.rint(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a duration in seconds.
+     *
+     * @param nanos the duration in nanoseconds.
+     * @return the duration in seconds.
+     */
+    protected static String seconds(long nanos) {
+        return String.format(Locale.US, "%.9f", nanos / 1e9);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Escape a Prometheus label value.
+     *
+     * @param value the value.
+     * @return the value with backslashes, double quotes and line feeds
+     *         escaped.
+     */
+    protected static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Publishes one {@link LatencyHistogram}.
+     */
+    protected static final class Latency implements LatencyMXBean {
+        /**
+         * Constructor.
+         *
+         * @param histogram the histogram.
+         */
+        Latency(LatencyHistogram histogram) {
+            _histogram = histogram;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see io.github.totemo.doppelganger.LatencyMXBean#getCount()
+         */
+        @Override
+        public long getCount() {
+            return _histogram.getCount();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see io.github.totemo.doppelganger.LatencyMXBean#getMeanMicros()
+         */
+        @Override
+        public double getMeanMicros() {
+            long count = _histogram.getCount();
+            return (count == 0) ? 0.0 : _histogram.getTotalNanos() / 1e3 / count;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see io.github.totemo.doppelganger.LatencyMXBean#getP50Micros()
+         */
+        @Override
+        public double getP50Micros() {
+            return _histogram.getPercentileNanos(50) / 1e3;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see io.github.totemo.doppelganger.LatencyMXBean#getP99Micros()
+         */
+        @Override
+        public double getP99Micros() {
+            return _histogram.getPercentileNanos(99) / 1e3;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see io.github.totemo.doppelganger.LatencyMXBean#getMaxMicros()
+         */
+        @Override
+        public double getMaxMicros() {
+            return _histogram.getMaxNanos() / 1e3;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The histogram.
+         */
+        final LatencyHistogram _histogram;
+    } // inner class Latency
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the metrics file in the data folder.
+     */
+    protected static final String METRICS_FILE = "metrics.prom";
+
+    /**
+     * The JMX domain of the MXBeans.
+     */
+    protected static final String DOMAIN = "io.github.totemo.doppelganger";
+
+    /**
+     * The prefix of all Prometheus metric names.
+     */
+    protected static final String PREFIX = "doppelganger_";
+
+    /**
+     * The quantiles of latency summaries.
+     */
+    protected static final double[] QUANTILES = { 0.5, 0.99 };
+
+    /**
+     * Number of ticks between samples of main thread gauges.
+     */
+    protected static final long SAMPLE_PERIOD_TICKS = 20;
+
+    /**
+     * Reference to the plugin.
+     */
+    protected Doppelganger _plugin;
+
+    /**
+     * Samples main thread gauges.
+     */
+    protected BukkitTask _sampleTask;
+
+    /**
+     * Writes the metrics file, or null if disabled.
+     */
+    protected BukkitTask _fileTask;
+
+    /**
+     * The period between writes of the metrics file in seconds, or 0 if
+     * disabled.
+     */
+    protected int _fileIntervalSeconds;
+
+    /**
+     * The object names of the registered MXBeans; accessed only on the main
+     * thread.
+     */
+    protected HashSet<String> _registered = new HashSet<String>();
+
+    /**
+     * Sampled number of loaded doppelgangers.
+     */
+    protected volatile int _loadedDoppelgangers;
+
+    /**
+     * Sampled number of maintained populations.
+     */
+    protected volatile int _maintainedPopulations;
+
+    /**
+     * Sampled number of populations waiting for an early check.
+     */
+    protected volatile int _dirtyPopulations;
+
+    /**
+     * Sampled number of query cache hits.
+     */
+    protected volatile long _queryCacheHits;
+
+    /**
+     * Sampled number of query cache misses.
+     */
+    protected volatile long _queryCacheMisses;
+} // class MetricsExporter
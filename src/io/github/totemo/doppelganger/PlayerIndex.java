@@ -0,0 +1,680 @@
+package io.github.totemo.doppelganger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+// ----------------------------------------------------------------------------
+/**
+ * A read-only mapping from player name to creature type and summoning shapes,
+ * for rosters too large to define in the players section of the
+ * configuration.
+ *
+ * The mappings are written as lines of a text file, players.csv, of the form:
+ *
+ * <pre>
+ *    # name,spawn,shapes
+ *    Notch,ToughWitherSkeleton,skull-on-gold skull-on-diamond
+ *    jeb_,,skull-on-gold
+ * </pre>
+ *
+ * As with the players section, an empty spawn value means the creature type
+ * with the same name as the player. The shapes are separated by spaces.
+ *
+ * The text file is compiled into a binary index file that is memory mapped
+ * rather than loaded into the heap. Records are sorted by the UTF-8 encoding
+ * of the lower case player name, so that a lookup is a binary search directly
+ * on the mapped buffer. Creature type and shape names are stored once in a
+ * string table and each distinct list of shapes is stored once, so records
+ * refer to them by ID. The index is only rebuilt when the modification time
+ * or size of the text file changes.
+ *
+ * Instances are immutable and safe to use from any thread.
+ */
+public class PlayerIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Open the index compiled from the specified text file, first rebuilding
+     * it if it is missing or out of date.
+     *
+     * @param source the path of the text file.
+     * @param index the path of the index file.
+     * @param logger logs messages.
+     * @return the index.
+     * @throws IOException if the files can't be read or written.
+     */
+    public static PlayerIndex open(Path source, Path index, Logger logger) throws IOException {
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        long size = Files.size(source);
+        if (Files.exists(index) && isCurrent(index, modified, size)) {
+            PlayerIndex playerIndex = map(index);
+            if (playerIndex != null) {
+                return playerIndex;
+            }
+        }
+
+        long start = System.nanoTime();
+        build(source, index, modified, size, logger);
+        PlayerIndex playerIndex = map(index);
+        if (playerIndex == null) {
+            throw new IOException("the rebuilt index " + index.getFileName() + " is invalid");
+        }
+        logger.info(String.format("Indexed %d players from %s in %.1f ms.",
+                                  playerIndex.size(), source.getFileName(), (System.nanoTime() - start) / 1e6));
+        return playerIndex;
+    } // open
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players in the index.
+     *
+     * @return the number of players in the index.
+     */
+    public int size() {
+        return _recordCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the modification time of the text file the index was built from.
+     *
+     * @return the modification time in milliseconds.
+     */
+    public long getSourceModified() {
+        return _sourceModified;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the size of the text file the index was built from.
+     *
+     * @return the size in bytes.
+     */
+    public long getSourceSize() {
+        return _sourceSize;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the record number of the specified player, or -1 if not found.
+     *
+     * @param lowerName the lower case player name.
+     * @return the record number, or -1 if not found.
+     */
+    public int find(String lowerName) {
+        byte[] key = lowerName.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = _recordCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, key, false);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the creature type of the specified record.
+     *
+     * @param record the record number.
+     * @return the creature type, or null if it is the player's own name.
+     */
+    public String getCreature(int record) {
+        int id = _buffer.getInt(_recordsOffset + record * RECORD_SIZE + 4);
+        return (id < 0) ? null : _strings[id];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ID of the shape list of the specified record.
+     *
+     * @param record the record number.
+     * @return the shape list ID, in [0, getShapeListCount()).
+     */
+    public int getShapeListId(int record) {
+        return _buffer.getInt(_recordsOffset + record * RECORD_SIZE + 8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of distinct shape lists.
+     *
+     * @return the number of distinct shape lists.
+     */
+    public int getShapeListCount() {
+        return _shapeLists.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the shape names in the specified shape list.
+     *
+     * @param id the shape list ID.
+     * @return the shape names, in the order they were listed.
+     */
+    public List<String> getShapeList(int id) {
+        int[] list = _shapeLists[id];
+        ArrayList<String> names = new ArrayList<String>(list.length);
+        for (int stringId : list) {
+            names.add(_strings[stringId]);
+        }
+        return names;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the distinct creature type names referenced by the index,
+     * excluding the implicit use of the player's own name.
+     *
+     * @return the creature type names.
+     */
+    public List<String> getCreatures() {
+        return Collections.unmodifiableList(Arrays.asList(_creatures));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit lower case player names starting with the specified
+     * case-insensitive prefix, in index order.
+     *
+     * @param prefix the prefix.
+     * @param limit the maximum number of names to return.
+     * @return the matching lower case player names.
+     */
+    public List<String> complete(String prefix, int limit) {
+        byte[] key = prefix.toLowerCase().getBytes(StandardCharsets.UTF_8);
+
+        // Find the first record not less than the prefix.
+        int low = 0;
+        int high = _recordCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, key, false) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        ArrayList<String> results = new ArrayList<String>();
+        for (int record = low; record < _recordCount && results.size() < limit; ++record) {
+            if (compareKey(record, key, true) != 0) {
+                break;
+            }
+            results.add(getName(record));
+        }
+        return results;
+    } // complete
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the lower case player name of the specified record.
+     *
+     * @param record the record number.
+     * @return the lower case player name.
+     */
+    public String getName(int record) {
+        int offset = _keysOffset + _buffer.getInt(_recordsOffset + record * RECORD_SIZE);
+        int length = _buffer.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = _buffer.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare the key of a record with the specified UTF-8 bytes, as unsigned
+     * bytes.
+     *
+     * Only absolute reads of the buffer are used, so that concurrent lookups
+     * don't interfere.
+     *
+     * @param record the record number.
+     * @param key the UTF-8 encoded lower case key.
+     * @param prefixOnly if true, a record key that starts with the specified
+     *        key compares equal.
+     * @return negative, zero or positive as the record key is less than, equal
+     *         to or greater than the specified key.
+     */
+    protected int compareKey(int record, byte[] key, boolean prefixOnly) {
+        int offset = _keysOffset + _buffer.getInt(_recordsOffset + record * RECORD_SIZE);
+        int length = _buffer.getShort(offset) & 0xFFFF;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; ++i) {
+            int cmp = (_buffer.get(offset + 2 + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return (prefixOnly && length >= key.length) ? 0 : length - key.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the index file is of the current format and was built
+     * from the text file with the specified modification time and size.
+     *
+     * Only the header is read, without mapping the file, so that a stale
+     * index can be replaced on platforms that don't allow a mapped file to be
+     * replaced.
+     *
+     * @param index the path of the index file.
+     * @param modified the modification time of the text file.
+     * @param size the size of the text file.
+     * @return true if the index is up to date.
+     * @throws IOException if the file can't be read.
+     */
+    protected static boolean isCurrent(Path index, long modified, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return false;
+                }
+            }
+        }
+        return header.getInt(0) == MAGIC && header.getInt(4) == FORMAT &&
+               header.getLong(8) == modified && header.getLong(16) == size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map an index file.
+     *
+     * The string table and shape lists, which are small, are decoded into the
+     * heap; the records and keys remain in the mapped buffer. Every offset,
+     * length and ID in the file is checked against the file size and table
+     * sizes before it is used, so that a truncated or corrupt file is
+     * rejected rather than failing on a later lookup.
+     *
+     * @param index the path of the index file.
+     * @return the index, or null if the file is not a valid index of the
+     *         current format.
+     * @throws IOException if the file can't be read.
+     */
+    protected static PlayerIndex map(Path index) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            return null;
+        }
+
+        PlayerIndex playerIndex = new PlayerIndex();
+        playerIndex._buffer = buffer;
+        playerIndex._sourceModified = buffer.getLong(8);
+        playerIndex._sourceSize = buffer.getLong(16);
+        playerIndex._recordCount = buffer.getInt(24);
+        int stringCount = buffer.getInt(28);
+        int creatureCount = buffer.getInt(32);
+        int shapeListCount = buffer.getInt(36);
+        playerIndex._recordsOffset = buffer.getInt(40);
+        playerIndex._keysOffset = buffer.getInt(44);
+        int limit = buffer.limit();
+        if (playerIndex._recordCount < 0 || stringCount < 0 || creatureCount < 0 || shapeListCount < 0 ||
+            playerIndex._recordsOffset < HEADER_SIZE || playerIndex._keysOffset > limit ||
+            playerIndex._keysOffset != playerIndex._recordsOffset + (long) RECORD_SIZE * playerIndex._recordCount) {
+            return null;
+        }
+
+        // The tables lie between the header and the records.
+        buffer.position(HEADER_SIZE);
+        buffer.limit(playerIndex._recordsOffset);
+        try {
+            playerIndex._strings = new String[stringCount];
+            for (int i = 0; i < stringCount; ++i) {
+                byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(bytes);
+                playerIndex._strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            playerIndex._creatures = new String[creatureCount];
+            for (int i = 0; i < creatureCount; ++i) {
+                int id = buffer.getInt();
+                if (id < 0 || id >= stringCount) {
+                    return null;
+                }
+                playerIndex._creatures[i] = playerIndex._strings[id];
+            }
+            playerIndex._shapeLists = new int[shapeListCount][];
+            for (int i = 0; i < shapeListCount; ++i) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() / 4) {
+                    return null;
+                }
+                int[] list = new int[length];
+                for (int j = 0; j < length; ++j) {
+                    list[j] = buffer.getInt();
+                    if (list[j] < 0 || list[j] >= stringCount) {
+                        return null;
+                    }
+                }
+                playerIndex._shapeLists[i] = list;
+            }
+        } catch (BufferUnderflowException ex) {
+            return null;
+        }
+        if (buffer.hasRemaining()) {
+            return null;
+        }
+        buffer.limit(limit);
+
+        // Keys follow one another in record order.
+        long keyOffset = 0;
+        for (int record = 0; record < playerIndex._recordCount; ++record) {
+            int offset = playerIndex._recordsOffset + record * RECORD_SIZE;
+            int creatureId = buffer.getInt(offset + 4);
+            int shapeListId = buffer.getInt(offset + 8);
+            if (buffer.getInt(offset) != keyOffset || playerIndex._keysOffset + keyOffset + 2L > limit ||
+                creatureId < -1 || creatureId >= stringCount || shapeListId < 0 || shapeListId >= shapeListCount) {
+                return null;
+            }
+            keyOffset += 2 + (buffer.getShort((int) (playerIndex._keysOffset + keyOffset)) & 0xFFFF);
+            if (playerIndex._keysOffset + keyOffset > limit) {
+                return null;
+            }
+        }
+        return playerIndex;
+    } // map
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile the text file into an index file.
+     *
+     * Malformed lines and repeated player names are skipped with a warning.
+     * As with the players section, the first definition of a name wins.
+     *
+     * @param source the path of the text file.
+     * @param index the path of the index file.
+     * @param modified the modification time of the text file.
+     * @param size the size of the text file.
+     * @param logger logs messages.
+     * @throws IOException if the files can't be read or written.
+     */
+    protected static void build(Path source, Path index, long modified, long size, Logger logger) throws IOException {
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        ArrayList<int[]> records = new ArrayList<int[]>();
+        ArrayList<String> strings = new ArrayList<String>();
+        HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+        LinkedHashSet<Integer> creatureIds = new LinkedHashSet<Integer>();
+        ArrayList<int[]> shapeLists = new ArrayList<int[]>();
+        HashMap<List<Integer>, Integer> shapeListIds = new HashMap<List<Integer>, Integer>();
+        int errors = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                String[] fields = line.split(",", -1);
+                String name = fields[0].trim();
+                byte[] key = name.toLowerCase().getBytes(StandardCharsets.UTF_8);
+                if (fields.length > 3 || name.length() == 0 || key.length > 0xFFFF) {
+                    if (++errors <= MAX_WARNINGS) {
+                        logger.warning(source.getFileName() + " line " + lineNumber + " is not of the form: name,spawn,shapes");
+                    }
+                    continue;
+                }
+
+                String spawn = (fields.length > 1) ? fields[1].trim() : "";
+                int creatureId = -1;
+                if (spawn.length() != 0 && !spawn.equalsIgnoreCase(name)) {
+                    creatureId = intern(spawn, strings, stringIds);
+                }
+
+                ArrayList<Integer> shapeIds = new ArrayList<Integer>();
+                if (fields.length > 2) {
+                    for (String shape : fields[2].trim().split("\\s+")) {
+                        if (shape.length() != 0) {
+                            shapeIds.add(intern(shape, strings, stringIds));
+                        }
+                    }
+                }
+                Integer shapeListId = shapeListIds.get(shapeIds);
+                if (shapeListId == null) {
+                    shapeListId = shapeLists.size();
+                    int[] list = new int[shapeIds.size()];
+                    for (int i = 0; i < list.length; ++i) {
+                        list[i] = shapeIds.get(i);
+                    }
+                    shapeLists.add(list);
+                    shapeListIds.put(shapeIds, shapeListId);
+                }
+
+                records.add(new int[] { keys.size(), creatureId, shapeListId });
+                keys.add(key);
+            } // while
+        }
+
+        // Sort by key; the sort is stable, so the first definition of a name
+        // comes first and later ones are dropped.
+        Collections.sort(records, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return compareBytes(keys.get(a[0]), keys.get(b[0]));
+            }
+        });
+        int kept = 0;
+        for (int[] record : records) {
+            if (kept > 0 && compareBytes(keys.get(records.get(kept - 1)[0]), keys.get(record[0])) == 0) {
+                if (++errors <= MAX_WARNINGS) {
+                    logger.warning(source.getFileName() + " defines player " +
+                                   new String(keys.get(record[0]), StandardCharsets.UTF_8) + " more than once.");
+                }
+            } else {
+                records.set(kept++, record);
+                if (record[1] >= 0) {
+                    creatureIds.add(record[1]);
+                }
+            }
+        }
+        records.subList(kept, records.size()).clear();
+        if (errors > MAX_WARNINGS) {
+            logger.warning(source.getFileName() + " has " + (errors - MAX_WARNINGS) + " more errors.");
+        }
+
+        Path temp = Files.createTempFile(index.toAbsolutePath().getParent(), "players", ".tmp");
+        try {
+            try (OutputStream file = Files.newOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                int tablesSize = 0;
+                for (String string : strings) {
+                    tablesSize += 2 + string.getBytes(StandardCharsets.UTF_8).length;
+                }
+                tablesSize += 4 * creatureIds.size();
+                for (int[] list : shapeLists) {
+                    tablesSize += 4 + 4 * list.length;
+                }
+                int recordsOffset = HEADER_SIZE + tablesSize;
+                int keysOffset = recordsOffset + RECORD_SIZE * records.size();
+
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(modified);
+                out.writeLong(size);
+                out.writeInt(records.size());
+                out.writeInt(strings.size());
+                out.writeInt(creatureIds.size());
+                out.writeInt(shapeLists.size());
+                out.writeInt(recordsOffset);
+                out.writeInt(keysOffset);
+                for (String string : strings) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+                for (int creatureId : creatureIds) {
+                    out.writeInt(creatureId);
+                }
+                for (int[] list : shapeLists) {
+                    out.writeInt(list.length);
+                    for (int id : list) {
+                        out.writeInt(id);
+                    }
+                }
+
+                int keyOffset = 0;
+                for (int[] record : records) {
+                    out.writeInt(keyOffset);
+                    out.writeInt(record[1]);
+                    out.writeInt(record[2]);
+                    keyOffset += 2 + keys.get(record[0]).length;
+                }
+                for (int[] record : records) {
+                    byte[] key = keys.get(record[0]);
+                    out.writeShort(key.length);
+                    out.write(key);
+                }
+                out.flush();
+            }
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    } // build
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ID of a string in the string table, adding it if necessary.
+     *
+     * @param string the string.
+     * @param strings the string table.
+     * @param stringIds map from string to ID.
+     * @return the ID.
+     */
+    protected static int intern(String string, ArrayList<String> strings, HashMap<String, Integer> stringIds) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.add(string);
+            stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare two byte arrays lexicographically as unsigned bytes.
+     *
+     * @param a the first array.
+     * @param b the second array.
+     * @return negative, zero or positive as a is less than, equal to or
+     *         greater than b.
+     */
+    protected static int compareBytes(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; ++i) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies a Doppelganger player index file: "DPGP".
+     */
+    protected static final int MAGIC = 0x44504750;
+
+    /**
+     * Version of the file format.
+     */
+    protected static final int FORMAT = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 48;
+
+    /**
+     * Size of a record in bytes: key offset, creature ID and shape list ID.
+     */
+    protected static final int RECORD_SIZE = 12;
+
+    /**
+     * Maximum number of warnings logged when building an index.
+     */
+    protected static final int MAX_WARNINGS = 10;
+
+    /**
+     * The mapped file.
+     */
+    protected ByteBuffer _buffer;
+
+    /**
+     * The modification time of the text file the index was built from.
+     */
+    protected long _sourceModified;
+
+    /**
+     * The size of the text file the index was built from.
+     */
+    protected long _sourceSize;
+
+    /**
+     * The number of records.
+     */
+    protected int _recordCount;
+
+    /**
+     * The offset of the first record in the buffer.
+     */
+    protected int _recordsOffset;
+
+    /**
+     * The offset of the first key in the buffer.
+     */
+    protected int _keysOffset;
+
+    /**
+     * The string table of creature type and shape names.
+     */
+    protected String[] _strings;
+
+    /**
+     * The distinct creature types referenced by records.
+     */
+    protected String[] _creatures;
+
+    /**
+     * The shape lists, as arrays of string IDs, indexed by shape list ID.
+     */
+    protected int[][] _shapeLists;
+} // class PlayerIndex
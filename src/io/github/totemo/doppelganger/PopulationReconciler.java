@@ -0,0 +1,447 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Keeps each {@link MaintainedPopulation} at its configured size.
+ *
+ * Every tick, a small batch of populations is checked. Populations affected by
+ * the death of a doppelganger or the loading of their spawn chunk are checked
+ * first; the remainder of the batch is filled by cycling through all
+ * populations, so that each one is eventually checked even if no event
+ * concerns it. No population is checked twice in one tick.
+ *
+ * At most bulk_spawn_per_tick doppelgangers are spawned per tick, over all
+ * populations. A population that is still short when that budget runs out is
+ * checked again first on the next tick.
+ */
+public class PopulationReconciler implements Runnable, Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     */
+    public PopulationReconciler(Doppelganger plugin) {
+        _plugin = plugin;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the maintained populations from the configuration, replacing any
+     * that were previously loaded.
+     *
+     * Populations that can't be loaded, such as those in a world that a
+     * multiworld plugin has not loaded yet, are kept in their original form so
+     * that {@link #save(ConfigurationSection)} writes them back unchanged.
+     * Those in worlds that are not loaded are loaded when their world loads.
+     *
+     * @param root the root of the configuration hierarchy.
+     * @param logger the Logger.
+     */
+    public void load(ConfigurationSection root, Logger logger) {
+        _populations.clear();
+        _unloaded.clear();
+        _rotation.clear();
+        _dirty.clear();
+        _nextIndex = 0;
+        _batchSize = Math.max(1, root.getInt("maintained_batch_size", 4));
+
+        ConfigurationSection maintainedSection = root.getConfigurationSection("maintained");
+        if (maintainedSection != null) {
+            for (String id : maintainedSection.getKeys(false)) {
+                ConfigurationSection section = maintainedSection.getConfigurationSection(id);
+                if (getPopulation(id) != null || _unloaded.containsKey(id.toLowerCase())) {
+                    logger.warning("A maintained population called " + id + " already exists and can't be redefined.");
+                } else if (section == null) {
+                    logger.warning("Maintained population " + id + " must be a section.");
+                } else if (_plugin.getServer().getWorld(section.getString("world", "")) == null) {
+                    logger.warning("Maintained population " + id + " is in world " + section.getString("world", "") +
+                                   ", which is not loaded; it will be maintained when that world loads.");
+                    _unloaded.put(id.toLowerCase(), section);
+                } else {
+                    loadPopulation(section, logger);
+                }
+            }
+        }
+    } // load
+
+    // ------------------------------------------------------------------------
+    /**
+     * Save all maintained populations to the "maintained" section of the
+     * configuration, replacing its previous contents.
+     *
+     * @param root the root of the configuration hierarchy.
+     */
+    public void save(ConfigurationSection root) {
+        ConfigurationSection maintainedSection = root.createSection("maintained");
+        for (MaintainedPopulation population : _populations.values()) {
+            population.save(maintainedSection.createSection(population.getId()));
+        }
+        for (ConfigurationSection section : _unloaded.values()) {
+            copySection(section, maintainedSection.createSection(section.getName()));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a new population, or replace an existing one with the same ID.
+     *
+     * The population will be checked on the next tick.
+     *
+     * @param population the population.
+     */
+    public void add(MaintainedPopulation population) {
+        _unloaded.remove(population.getId().toLowerCase());
+        MaintainedPopulation old = _populations.put(population.getId().toLowerCase(), population);
+        if (old != null) {
+            _rotation.remove(old);
+            _dirty.remove(old);
+        }
+        _rotation.add(population);
+        _dirty.add(population);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop maintaining the population with the specified ID.
+     *
+     * Existing doppelgangers are left alone.
+     *
+     * @param id the case-insensitive ID of the population.
+     * @return the removed population, or null if not found.
+     */
+    public MaintainedPopulation remove(String id) {
+        MaintainedPopulation population = _populations.remove(id.toLowerCase());
+        if (population != null) {
+            _rotation.remove(population);
+            _dirty.remove(population);
+        }
+        return population;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forget a population that could not be loaded, so that it is no longer
+     * saved.
+     *
+     * @param id the case-insensitive ID of the population.
+     * @return true if there was such a population.
+     */
+    public boolean removeUnloaded(String id) {
+        return _unloaded.remove(id.toLowerCase()) != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the IDs of populations in the configuration that could not be
+     * loaded, in the order they were defined.
+     *
+     * @return the IDs.
+     */
+    public List<String> getUnloadedIds() {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (ConfigurationSection section : _unloaded.values()) {
+            ids.add(section.getName());
+        }
+        return ids;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the population with the specified ID, or null if not found.
+     *
+     * @param id the case-insensitive ID of the population.
+     * @return the population with the specified ID, or null if not found.
+     */
+    public MaintainedPopulation getPopulation(String id) {
+        return _populations.get(id.toLowerCase());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all populations in the order they were defined.
+     *
+     * @return all populations in the order they were defined.
+     */
+    public Collection<MaintainedPopulation> getPopulations() {
+        return Collections.unmodifiableCollection(_populations.values());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of populations affected by events and waiting for an
+     * early check.
+     *
+     * @return the number of populations waiting for an early check.
+     */
+    public int getDirtyCount() {
+        return _dirty.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check the next batch of populations.
+     *
+     * This is scheduled to run every tick.
+     */
+    @Override
+    public void run() {
+        _plugin.getWatchdog().begin();
+        try {
+            int remaining = Math.min(_batchSize, _rotation.size());
+            _spawnBudget = _plugin.getConfiguration().getBulkSpawnPerTick();
+            ArrayList<MaintainedPopulation> unfinished = new ArrayList<MaintainedPopulation>();
+            HashSet<MaintainedPopulation> checked = new HashSet<MaintainedPopulation>();
+
+            // Populations that have been affected by an event take priority.
+            Iterator<MaintainedPopulation> it = _dirty.iterator();
+            while (remaining > 0 && it.hasNext()) {
+                MaintainedPopulation population = it.next();
+                it.remove();
+                checked.add(population);
+                if (!reconcile(population)) {
+                    unfinished.add(population);
+                }
+                --remaining;
+            }
+
+            // The rotation skips populations already checked this tick, and stops
+            // after one full cycle.
+            for (int steps = 0; remaining > 0 && steps < _rotation.size(); ++steps) {
+                if (_nextIndex >= _rotation.size()) {
+                    _nextIndex = 0;
+                }
+                MaintainedPopulation population = _rotation.get(_nextIndex++);
+                if (checked.add(population)) {
+                    if (!reconcile(population)) {
+                        unfinished.add(population);
+                    }
+                    --remaining;
+                }
+            }
+
+            // Finish spawning the populations that ran out of budget next tick.
+            _dirty.addAll(unfinished);
+        } finally {
+            _plugin.getWatchdog().end("reconcile");
+        }
+    } // run
+
+    // ------------------------------------------------------------------------
+    /**
+     * When a named creature dies, schedule an early check of all populations
+     * with that name whose volume contains it.
+     *
+     * @param event the event.
+     */
+    @EventHandler(ignoreCancelled = true)
+    public void onEntityDeath(EntityDeathEvent event) {
+        String name = event.getEntity().getCustomName();
+        if (name != null && !_populations.isEmpty()) {
+            Location loc = event.getEntity().getLocation();
+            for (MaintainedPopulation population : _rotation) {
+                if (name.equals(population.getDoppelgangerName()) && population.getVolume().contains(loc)) {
+                    _dirty.add(population);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * When a chunk loads, schedule an early check of all populations that
+     * spawn in it.
+     *
+     * @param event the event.
+     */
+    @EventHandler
+    public void onChunkLoad(ChunkLoadEvent event) {
+        if (!_populations.isEmpty()) {
+            Chunk chunk = event.getChunk();
+            for (MaintainedPopulation population : _rotation) {
+                if (population.isSpawnChunk(chunk.getWorld(), chunk.getX(), chunk.getZ())) {
+                    _dirty.add(population);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * When a world loads, load the populations that were waiting for it.
+     *
+     * @param event the event.
+     */
+    @EventHandler
+    public void onWorldLoad(WorldLoadEvent event) {
+        String worldName = event.getWorld().getName();
+        Iterator<ConfigurationSection> it = _unloaded.values().iterator();
+        while (it.hasNext()) {
+            ConfigurationSection section = it.next();
+            if (worldName.equals(section.getString("world", ""))) {
+                it.remove();
+                loadPopulation(section, _plugin.getLogger());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load a population from its configuration section and start maintaining
+     * it, or keep the section to be saved unchanged if it has errors.
+     *
+     * @param section the section.
+     * @param logger logs messages.
+     */
+    protected void loadPopulation(ConfigurationSection section, Logger logger) {
+        MaintainedPopulation population = MaintainedPopulation.loadFromSection(section, _plugin.getServer(),
+                                                                               _plugin.getCreatureFactory(), logger);
+        if (population == null) {
+            logger.warning("Maintained population " + section.getName() + " was not defined, due to errors in the configuration.");
+            _unloaded.put(section.getName().toLowerCase(), section);
+        } else {
+            add(population);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy all values of a configuration section into another.
+     *
+     * @param from the source section.
+     * @param to the destination section.
+     */
+    protected static void copySection(ConfigurationSection from, ConfigurationSection to) {
+        for (String key : from.getKeys(false)) {
+            if (from.isConfigurationSection(key)) {
+                copySection(from.getConfigurationSection(key), to.createSection(key));
+            } else {
+                to.set(key, from.get(key));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Spawn or kill doppelgangers so that the specified population has the
+     * configured number of members.
+     *
+     * When there are too many doppelgangers, the oldest ones are kept, as with
+     * /doppel maintain. When there are too few, at most _spawnBudget are
+     * spawned, and the attempts are deducted from it.
+     *
+     * @param population the population.
+     * @return false if the population is still short because the spawn budget
+     *         of this tick ran out.
+     */
+    protected boolean reconcile(MaintainedPopulation population) {
+        if (!population.isSpawnChunkLoaded()) {
+            return true;
+        }
+
+        List<LivingEntity> doppelgangers = _plugin.findDoppelgangers(population.getDoppelgangerName(), population.getVolume());
+        int count = population.getCount();
+        if (doppelgangers.size() < count) {
+            Location loc = population.getSpawnLocation();
+            int missing = count - doppelgangers.size();
+            int attempts = Math.min(missing, _spawnBudget);
+            _spawnBudget -= attempts;
+            int spawned = 0;
+            for (int i = 0; i < attempts; ++i) {
+                if (_plugin.spawnDoppelganger(population.getCreatureType(), population.getDoppelgangerName(), loc) != null) {
+                    ++spawned;
+                }
+            }
+            // Only successful spawns are logged; a population held down by a cap
+            // would otherwise log every time it is checked.
+            if (spawned > 0) {
+                _plugin.getLogger().info(String.format("Maintained population %s: spawned %d of %d %s named %s at (%d,%d,%d) in %s.",
+                                                       population.getId(), spawned, missing,
+                                                       population.getCreatureType(), population.getDoppelgangerName(),
+                                                       loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), loc.getWorld().getName()));
+            }
+            return attempts == missing;
+        } else if (doppelgangers.size() > count) {
+            ArrayList<LivingEntity> oldestFirst = new ArrayList<LivingEntity>(doppelgangers);
+            Collections.sort(oldestFirst, OLDEST_FIRST);
+            for (int i = count; i < oldestFirst.size(); ++i) {
+                _plugin.removeDoppelganger(oldestFirst.get(i));
+            }
+        }
+        return true;
+    } // reconcile
+
+    // ------------------------------------------------------------------------
+    /**
+     * Orders LivingEntity instances by decreasing age.
+     */
+    protected static final Comparator<LivingEntity> OLDEST_FIRST = new Comparator<LivingEntity>() {
+        @Override
+        public int compare(LivingEntity a, LivingEntity b) {
+            return Integer.compare(b.getTicksLived(), a.getTicksLived());
+        }
+    };
+
+    /**
+     * Reference to the plugin.
+     */
+    protected Doppelganger _plugin;
+
+    /**
+     * Map from lower case population ID to instance, in definition order.
+     */
+    protected LinkedHashMap<String, MaintainedPopulation> _populations = new LinkedHashMap<String, MaintainedPopulation>();
+
+    /**
+     * Map from lower case population ID to the configuration of populations
+     * that could not be loaded, in definition order.
+     */
+    protected LinkedHashMap<String, ConfigurationSection> _unloaded = new LinkedHashMap<String, ConfigurationSection>();
+
+    /**
+     * All populations, in the order they are checked by the rotating batch.
+     */
+    protected ArrayList<MaintainedPopulation> _rotation = new ArrayList<MaintainedPopulation>();
+
+    /**
+     * Populations that should be checked before the rotating batch resumes.
+     */
+    protected LinkedHashSet<MaintainedPopulation> _dirty = new LinkedHashSet<MaintainedPopulation>();
+
+    /**
+     * Index into _rotation of the next population to check.
+     */
+    protected int _nextIndex;
+
+    /**
+     * Maximum number of populations checked per tick.
+     */
+    protected int _batchSize = 4;
+
+    /**
+     * The number of doppelgangers that may still be spawned in the current
+     * tick; reset from bulk_spawn_per_tick by {@link #run()}.
+     */
+    protected int _spawnBudget;
+} // class PopulationReconciler
@@ -0,0 +1,127 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// ----------------------------------------------------------------------------
+/**
+ * A case-insensitive prefix tree of names, used for tab completion.
+ *
+ * Names are stored in the case they were added, but looked up by their lower
+ * case form. Completion costs time proportional to the length of the prefix
+ * plus the number of results returned, and results are returned in
+ * alphabetical order of their lower case forms.
+ */
+public class PrefixTrie {
+    // ------------------------------------------------------------------------
+    /**
+     * Add a name.
+     *
+     * If a name differing only in case was previously added, the new name
+     * replaces it.
+     *
+     * @param name the name.
+     */
+    public void add(String name) {
+        String lowerName = name.toLowerCase();
+        Node node = _root;
+        for (int i = 0; i < lowerName.length(); ++i) {
+            char c = lowerName.charAt(i);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (node.name == null) {
+            ++_size;
+        }
+        node.name = name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit names starting with the specified case-insensitive
+     * prefix.
+     *
+     * @param prefix the prefix; the empty string matches all names.
+     * @param limit the maximum number of names to return.
+     * @return the matching names, in alphabetical order.
+     */
+    public List<String> complete(String prefix, int limit) {
+        ArrayList<String> results = new ArrayList<String>();
+        String lowerPrefix = prefix.toLowerCase();
+        Node node = _root;
+        for (int i = 0; node != null && i < lowerPrefix.length(); ++i) {
+            node = node.children.get(lowerPrefix.charAt(i));
+        }
+        if (node != null) {
+            collect(node, results, limit);
+        }
+        return results;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of distinct names in the trie.
+     *
+     * @return the number of distinct names in the trie.
+     */
+    public int size() {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the names at and below the specified node to results, in order,
+     * until there are limit results.
+     *
+     * @param node the node.
+     * @param results the list of names.
+     * @param limit the maximum size of results.
+     */
+    protected static void collect(Node node, List<String> results, int limit) {
+        if (results.size() >= limit) {
+            return;
+        }
+        if (node.name != null) {
+            results.add(node.name);
+        }
+        for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+            if (results.size() >= limit) {
+                return;
+            }
+            collect(entry.getValue(), results, limit);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A node of the trie.
+     */
+    protected static final class Node {
+        /**
+         * Map from lower case character to child node, in character order.
+         */
+        final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+
+        /**
+         * The name ending at this node, or null if no name ends here.
+         */
+        String name;
+    } // inner class Node
+
+    // ------------------------------------------------------------------------
+    /**
+     * The root node, corresponding to the empty prefix.
+     */
+    protected Node _root = new Node();
+
+    /**
+     * The number of distinct names.
+     */
+    protected int _size;
+} // class PrefixTrie
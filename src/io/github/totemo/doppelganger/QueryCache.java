@@ -0,0 +1,166 @@
+package io.github.totemo.doppelganger;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bukkit.World;
+import org.bukkit.entity.LivingEntity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Caches the results of {@link Doppelganger#findDoppelgangers(String, Volume)}
+ * for the duration of one tick.
+ *
+ * Many command blocks running the same /doppel coords or /doppel maintain
+ * query in the same tick then share a single scan of the world's entities.
+ * The cache is cleared at the start of each tick, and results for a world are
+ * discarded as soon as doppelgangers are spawned, killed or die in it.
+ */
+public class QueryCache implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the cached result of a query, or null if not cached.
+     *
+     * @param name the custom name searched for; null signifies any name.
+     * @param volume the searched Volume.
+     * @return the cached result, or null if not cached.
+     */
+    public List<LivingEntity> get(String name, Volume volume) {
+        List<LivingEntity> result = _results.get(new Key(name, volume));
+        if (result == null) {
+            ++_misses;
+        } else {
+            ++_hits;
+        }
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cache the result of a query until the end of the current tick.
+     *
+     * @param name the custom name searched for; null signifies any name.
+     * @param volume the searched Volume.
+     * @param result the unmodifiable query result.
+     */
+    public void put(String name, Volume volume, List<LivingEntity> result) {
+        _results.put(new Key(name, volume), result);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all cached results for the specified world.
+     *
+     * @param world the World.
+     */
+    public void invalidate(World world) {
+        if (!_results.isEmpty()) {
+            for (Iterator<Key> it = _results.keySet().iterator(); it.hasNext();) {
+                if (it.next()._volume.getWorld() == world) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all cached results.
+     *
+     * This is scheduled to run at the start of every tick.
+     */
+    @Override
+    public void run() {
+        if (!_results.isEmpty()) {
+            _results.clear();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of queries answered from the cache.
+     *
+     * @return the number of queries answered from the cache.
+     */
+    public long getHits() {
+        return _hits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of queries that required a scan of the world.
+     *
+     * @return the number of queries that required a scan of the world.
+     */
+    public long getMisses() {
+        return _misses;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies a query by name and volume.
+     */
+    protected static final class Key {
+        /**
+         * Constructor.
+         *
+         * @param name the custom name; can be null.
+         * @param volume the Volume.
+         */
+        Key(String name, Volume volume) {
+            _name = name;
+            _volume = volume;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return (_name == null ? other._name == null : _name.equals(other._name)) &&
+                   _volume.equals(other._volume);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return 31 * (_name == null ? 0 : _name.hashCode()) + _volume.hashCode();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The custom name; null signifies any name.
+         */
+        final String _name;
+
+        /**
+         * The Volume.
+         */
+        final Volume _volume;
+    } // inner class Key
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from query to result for the current tick.
+     */
+    protected HashMap<Key, List<LivingEntity>> _results = new HashMap<Key, List<LivingEntity>>();
+
+    /**
+     * Number of queries answered from the cache.
+     */
+    protected long _hits;
+
+    /**
+     * Number of queries that required a scan of the world.
+     */
+    protected long _misses;
+} // class QueryCache
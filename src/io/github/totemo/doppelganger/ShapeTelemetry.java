@@ -0,0 +1,221 @@
+package io.github.totemo.doppelganger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+
+// ----------------------------------------------------------------------------
+/**
+ * Counts the attempts to match one {@link CreatureShape} and the reasons they
+ * failed.
+ *
+ * Counters are updated without locking or allocating. They are not part of
+ * the compiled configuration, so they are kept when an unchanged shape is
+ * reused by a reload, and start again from zero when a shape is changed or
+ * loaded from the cache.
+ */
+public class ShapeTelemetry {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param bodySize the number of blocks in the body of the shape.
+     */
+    public ShapeTelemetry(int bodySize) {
+        _probes = new LongAdder[bodySize];
+        _mismatches = new LongAdder[bodySize];
+        for (int i = 0; i < bodySize; ++i) {
+            _probes[i] = new LongAdder();
+            _mismatches[i] = new LongAdder();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of times that the shape was tested.
+     *
+     * @return the number of attempts.
+     */
+    public long getAttempts() {
+        return _attempts.sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of times that the shape was complete.
+     *
+     * @return the number of matches, including those rejected because the
+     *         border was blocked.
+     */
+    public long getMatches() {
+        return _matches.sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of attempts rejected because the placed block was not
+     * the trigger material.
+     *
+     * @return the number of attempts with the wrong trigger.
+     */
+    public long getWrongTrigger() {
+        return _wrongTrigger.sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of complete shapes that could not summon because the
+     * border around them was not clear.
+     *
+     * @return the number of blocked borders.
+     */
+    public long getBorderBlocked() {
+        return _borderBlocked.sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of times that the body block with the specified index
+     * was checked.
+     *
+     * @param index the index of the body block.
+     * @return the number of checks.
+     */
+    public long getProbes(int index) {
+        return _probes[index].sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of attempts rejected because the body block with the
+     * specified index was the wrong material.
+     *
+     * @param index the index of the body block.
+     * @return the number of mismatches.
+     */
+    public long getMismatches(int index) {
+        return _mismatches[index].sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the fraction of attempts that matched.
+     *
+     * @return the match rate, or 0 if there were no attempts.
+     */
+    public double getMatchRate() {
+        long attempts = getAttempts();
+        return (attempts == 0) ? 0.0 : (double) getMatches() / attempts;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the indices of the body blocks, ordered from the most selective
+     * to the least.
+     *
+     * A block's selectivity is the fraction of the checks of that block that
+     * found the wrong material. Blocks that have never been checked are
+     * placed after those that have, and ties keep the declaration order.
+     *
+     * @return the body block indices in the order they should be checked.
+     */
+    public int[] getProbeOrder() {
+        final double[] selectivity = new double[_probes.length];
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < _probes.length; ++i) {
+            long probes = getProbes(i);
+            selectivity[i] = (probes == 0) ? -1.0 : (double) getMismatches(i) / probes;
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(selectivity[b], selectivity[a]);
+            }
+        });
+
+        int[] result = new int[order.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = order.get(i);
+        }
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an attempt to match the shape.
+     */
+    void recordAttempt() {
+        _attempts.increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an attempt rejected because of the trigger material.
+     */
+    void recordWrongTrigger() {
+        _wrongTrigger.increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a check of a body block and whether it was the wrong material.
+     *
+     * @param index the index of the body block.
+     * @param mismatch true if the block was the wrong material.
+     */
+    void recordProbe(int index, boolean mismatch) {
+        _probes[index].increment();
+        if (mismatch) {
+            _mismatches[index].increment();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a complete shape.
+     */
+    void recordMatch() {
+        _matches.increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a complete shape with a blocked border.
+     */
+    void recordBorderBlocked() {
+        _borderBlocked.increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of times the shape was tested.
+     */
+    protected final LongAdder _attempts = new LongAdder();
+
+    /**
+     * Number of attempts with the wrong trigger material.
+     */
+    protected final LongAdder _wrongTrigger = new LongAdder();
+
+    /**
+     * Number of attempts where the shape was complete.
+     */
+    protected final LongAdder _matches = new LongAdder();
+
+    /**
+     * Number of complete shapes with a blocked border.
+     */
+    protected final LongAdder _borderBlocked = new LongAdder();
+
+    /**
+     * Number of checks of each body block, by index.
+     */
+    protected final LongAdder[] _probes;
+
+    /**
+     * Number of checks of each body block that found the wrong material.
+     */
+    protected final LongAdder[] _mismatches;
+} // class ShapeTelemetry
@@ -0,0 +1,71 @@
+package io.github.totemo.doppelganger;
+
+import org.bukkit.Location;
+
+// ----------------------------------------------------------------------------
+/**
+ * Describes one doppelganger to be spawned by
+ * {@link Doppelganger#spawnDoppelgangers(java.util.Collection, java.util.function.Consumer)}.
+ */
+public class SpawnRequest {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param creatureType the type of creature to spawn.
+     * @param name the name of the creature; if null or empty, the default name
+     *        of the creature type is used, if any.
+     * @param location the Location on the ground where the creature will spawn.
+     */
+    public SpawnRequest(String creatureType, String name, Location location) {
+        _creatureType = creatureType;
+        _name = name;
+        _location = location.clone();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of creature to spawn.
+     *
+     * @return the type of creature to spawn.
+     */
+    public String getCreatureType() {
+        return _creatureType;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the creature, or null if not specified.
+     *
+     * @return the name of the creature, or null if not specified.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Location where the creature will spawn.
+     *
+     * @return the Location where the creature will spawn.
+     */
+    public Location getLocation() {
+        return _location;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The type of creature to spawn.
+     */
+    protected final String _creatureType;
+
+    /**
+     * The name of the creature, or null if not specified.
+     */
+    protected final String _name;
+
+    /**
+     * The Location where the creature will spawn.
+     */
+    protected final Location _location;
+} // class SpawnRequest
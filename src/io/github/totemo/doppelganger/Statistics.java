@@ -0,0 +1,257 @@
+package io.github.totemo.doppelganger;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// ----------------------------------------------------------------------------
+/**
+ * The {@link LatencyHistogram}s of the plugin's hot paths and commands, and
+ * counts of summoned and spawned doppelgangers.
+ *
+ * The fixed paths are identified by {@link Path}; each /doppel subcommand has
+ * a histogram created when it is first run. Recording a duration never locks
+ * or allocates.
+ */
+public class Statistics {
+    // ------------------------------------------------------------------------
+    /**
+     * The timed code paths.
+     */
+    public enum Path {
+        /**
+         * Doppelganger.onBlockPlace(), including everything it spawns.
+         */
+        BLOCK_PLACE("onBlockPlace"),
+
+        /**
+         * Testing the shapes that could be completed by a placed block.
+         */
+        SHAPE_MATCH("shape matching"),
+
+        /**
+         * CreatureFactory.spawnCreature(), including mounts; escorts are
+         * spawned later and timed separately.
+         */
+        SPAWN_CREATURE("spawnCreature"),
+
+        /**
+         * CreatureType.customise().
+         */
+        CUSTOMISE("customise"),
+
+        /**
+         * CreatureFactory.setPlayerHead().
+         */
+        SET_PLAYER_HEAD("setPlayerHead"),
+
+        /**
+         * Doppelganger.onEntityDeath().
+         */
+        ENTITY_DEATH("onEntityDeath");
+
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param label the label shown by /doppel stats.
+         */
+        private Path(String label) {
+            _label = label;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the label shown by /doppel stats.
+         *
+         * @return the label shown by /doppel stats.
+         */
+        public String getLabel() {
+            return _label;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The label shown by /doppel stats.
+         */
+        private final String _label;
+    } // enum Path
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public Statistics() {
+        _paths = new LatencyHistogram[Path.values().length];
+        for (int i = 0; i < _paths.length; ++i) {
+            _paths[i] = new LatencyHistogram();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the histogram of the specified path.
+     *
+     * @param path the path.
+     * @return the histogram.
+     */
+    public LatencyHistogram get(Path path) {
+        return _paths[path.ordinal()];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the histogram of the specified /doppel subcommand, creating it
+     * if necessary.
+     *
+     * @param lowerName the lower case subcommand name.
+     * @return the histogram.
+     */
+    public LatencyHistogram getCommand(String lowerName) {
+        LatencyHistogram histogram = _commands.get(lowerName);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = _commands.putIfAbsent(lowerName, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count a doppelganger summoned by building a shape.
+     *
+     * @param shapeName the name of the shape.
+     */
+    public void recordSummon(String shapeName) {
+        getCounter(_summonsByShape, shapeName).increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count a spawned creature of the specified type, including those spawned
+     * by commands, maintained populations, escorts and mounts.
+     *
+     * @param creatureType the creature type name.
+     */
+    public void recordSpawn(String creatureType) {
+        getCounter(_spawnsByType, creatureType).increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of doppelgangers summoned by each shape.
+     *
+     * @return a map from shape name to count, sorted by name.
+     */
+    public TreeMap<String, Long> getSummonsByShape() {
+        return sum(_summonsByShape);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of creatures spawned of each type.
+     *
+     * @return a map from creature type name to count, sorted by name.
+     */
+    public TreeMap<String, Long> getSpawnsByType() {
+        return sum(_spawnsByType);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the labels and histograms of all paths, followed by all
+     * subcommands that have been run, in alphabetical order.
+     *
+     * @return (label, histogram) pairs in display order.
+     */
+    public List<Map.Entry<String, LatencyHistogram>> getHistograms() {
+        ArrayList<Map.Entry<String, LatencyHistogram>> histograms = new ArrayList<Map.Entry<String, LatencyHistogram>>();
+        for (Path path : Path.values()) {
+            histograms.add(new AbstractMap.SimpleImmutableEntry<String, LatencyHistogram>(path.getLabel(), get(path)));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(_commands).entrySet()) {
+            String label = "/doppel " + entry.getKey();
+            histograms.add(new AbstractMap.SimpleImmutableEntry<String, LatencyHistogram>(label, entry.getValue()));
+        }
+        return histograms;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all recorded durations.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : _paths) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : _commands.values()) {
+            histogram.reset();
+        }
+        _summonsByShape.clear();
+        _spawnsByType.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counter with the specified name in a map of counters,
+     * creating it if necessary.
+     *
+     * @param counters the counters.
+     * @param name the name.
+     * @return the counter.
+     */
+    protected static LongAdder getCounter(ConcurrentHashMap<String, LongAdder> counters, String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the current values of a map of counters.
+     *
+     * @param counters the counters.
+     * @return a map from name to value, sorted by name.
+     */
+    protected static TreeMap<String, Long> sum(ConcurrentHashMap<String, LongAdder> counters) {
+        TreeMap<String, Long> sums = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sums.put(entry.getKey(), entry.getValue().sum());
+        }
+        return sums;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Histograms of the paths, indexed by Path.ordinal().
+     */
+    protected final LatencyHistogram[] _paths;
+
+    /**
+     * Map from lower case subcommand name to histogram.
+     */
+    protected final ConcurrentHashMap<String, LatencyHistogram> _commands = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Map from shape name to number of doppelgangers summoned.
+     */
+    protected final ConcurrentHashMap<String, LongAdder> _summonsByShape = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * Map from creature type name to number spawned.
+     */
+    protected final ConcurrentHashMap<String, LongAdder> _spawnsByType = new ConcurrentHashMap<String, LongAdder>();
+} // class Statistics
@@ -0,0 +1,445 @@
+package io.github.totemo.doppelganger;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the main thread time used by the plugin in each tick and logs the
+ * operations that exceed a configurable budget.
+ *
+ * An operation is an event handler, a /doppel subcommand, a scheduled escort
+ * or lightning task, a tick of a bulk kill or spawn, a check of maintained
+ * populations or the completion of an asynchronous spawn, bracketed by
+ * {@link #begin()} and {@link #end(String)}.
+ * Operations started while another is in progress, such as the spawning of a
+ * mount, are counted as part of the outer one. While an operation runs, the
+ * shape and creature type it involves and the number of entities it spawns
+ * are noted, so that a slow operation can be traced back to the configuration
+ * entries responsible.
+ *
+ * When an operation takes longer than the budget, or the operations of one
+ * tick do so between them, a single line record is logged. Records with the
+ * same operation, shape and type are rate-limited; the number suppressed is
+ * included in the next record that is logged.
+ *
+ * Optionally, a daemon thread samples the stack of the main thread when an
+ * operation has been running for longer than the budget, and the sample is
+ * appended to the record. Operations that finish between samples are logged
+ * without a stack.
+ *
+ * Apart from the sampler, all methods must be called on the main thread.
+ */
+public class TickWatchdog {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     */
+    public TickWatchdog(Doppelganger plugin) {
+        _plugin = plugin;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start totalling main thread time per tick.
+     *
+     * This must be called on the main thread.
+     */
+    public void start() {
+        _mainThread = Thread.currentThread();
+        _tickTask = _plugin.getServer().getScheduler().runTaskTimer(_plugin, new Runnable() {
+            @Override
+            public void run() {
+                endTick();
+            }
+        }, 1, 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the watchdog settings of the configuration.
+     *
+     * @param budgetMillis the main thread time in milliseconds that an
+     *        operation, or a tick, may use before it is logged; 0 or less
+     *        disables logging.
+     * @param stackSamples if true, sample the stack of the main thread during
+     *        slow operations.
+     * @param rateLimitSeconds the minimum time in seconds between records of
+     *        the same operation, shape and creature type.
+     */
+    public void configure(int budgetMillis, boolean stackSamples, int rateLimitSeconds) {
+        _budgetNanos = Math.max(0, budgetMillis) * 1000000L;
+        _rateLimitMillis = Math.max(0, rateLimitSeconds) * 1000L;
+        _offenders.clear();
+        if (stackSamples && _budgetNanos > 0) {
+            startSampler();
+        } else {
+            stopSampler();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop totalling main thread time and sampling stacks.
+     */
+    public void stop() {
+        if (_tickTask != null) {
+            _tickTask.cancel();
+            _tickTask = null;
+        }
+        stopSampler();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Signal the start of an operation on the main thread.
+     *
+     * Every call must be matched by a call to {@link #end(String)}, typically
+     * in a finally block.
+     */
+    public void begin() {
+        if (_depth++ == 0) {
+            _shape = null;
+            _creatureType = null;
+            _spawnedBefore = _spawned;
+            _start = System.nanoTime();
+            if (_sampler != null) {
+                _sample = null;
+                _sampleStart = _start;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Signal the end of an operation on the main thread, and log it if it
+     * exceeded the budget.
+     *
+     * @param operation the name of the operation, e.g. "onBlockPlace".
+     */
+    public void end(String operation) {
+        if (_depth == 0 || --_depth != 0) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - _start;
+        StackTraceElement[] sample = null;
+        if (_sampler != null) {
+            _sampleStart = 0;
+            sample = _sample;
+            _sample = null;
+        }
+
+        _tickNanos += nanos;
+        ++_tickOperations;
+        if (nanos > _tickSlowestNanos) {
+            _tickSlowestNanos = nanos;
+            _tickSlowest = operation;
+        }
+
+        if (_budgetNanos > 0 && nanos > _budgetNanos) {
+            String key = operation + '|' + _shape + '|' + _creatureType;
+            int suppressed = admit(key);
+            if (suppressed >= 0) {
+                StringBuilder record = new StringBuilder();
+                record.append(String.format(Locale.US, "Slow %s took %.1f ms (budget %d ms)",
+                                            operation, nanos / 1e6, _budgetNanos / 1000000));
+                if (_shape != null) {
+                    record.append(", shape ").append(_shape);
+                }
+                if (_creatureType != null) {
+                    record.append(", type ").append(_creatureType);
+                }
+                record.append(", spawned ").append(_spawned - _spawnedBefore);
+                log(record, suppressed, sample);
+            }
+        }
+    } // end
+
+    // ------------------------------------------------------------------------
+    /**
+     * Note the shape and creature type involved in the current operation.
+     *
+     * The first non-null value of each during an operation is kept.
+     *
+     * @param shape the shape name, or null.
+     * @param creatureType the creature type name, or null.
+     */
+    public void describe(String shape, String creatureType) {
+        if (_depth > 0) {
+            if (_shape == null) {
+                _shape = shape;
+            }
+            if (_creatureType == null) {
+                _creatureType = creatureType;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count an entity spawned on the main thread.
+     *
+     * If the current operation has no creature type yet, the type of the
+     * spawned entity is noted.
+     *
+     * @param creatureType the creature type name.
+     */
+    public void countSpawn(String creatureType) {
+        ++_spawned;
+        describe(null, creatureType);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log the total time of the operations in the tick that just ended if it
+     * exceeded the budget, then start totalling the next tick.
+     *
+     * A tick with a single operation is not logged, since the operation was
+     * already checked against the same budget.
+     */
+    protected void endTick() {
+        if (_budgetNanos > 0 && _tickNanos > _budgetNanos && _tickOperations > 1) {
+            int suppressed = admit("tick");
+            if (suppressed >= 0) {
+                StringBuilder record = new StringBuilder();
+                record.append(String.format(Locale.US, "Slow tick: %d operations took %.1f ms (budget %d ms), slowest %s %.1f ms",
+                                            _tickOperations, _tickNanos / 1e6, _budgetNanos / 1000000,
+                                            _tickSlowest, _tickSlowestNanos / 1e6));
+                log(record, suppressed, null);
+            }
+        }
+        _tickNanos = 0;
+        _tickOperations = 0;
+        _tickSlowestNanos = 0;
+        _tickSlowest = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decide whether a record with the specified key may be logged now.
+     *
+     * @param key identifies similar records.
+     * @return the number of similar records suppressed since the last one
+     *         was logged, or -1 if this record must be suppressed.
+     */
+    protected int admit(String key) {
+        long now = System.currentTimeMillis();
+        Offender offender = _offenders.get(key);
+        if (offender == null) {
+            offender = new Offender();
+            _offenders.put(key, offender);
+        }
+        if (now < offender.nextLogMillis) {
+            ++offender.suppressed;
+            return -1;
+        }
+
+        int suppressed = offender.suppressed;
+        offender.suppressed = 0;
+        offender.nextLogMillis = now + _rateLimitMillis;
+        return suppressed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log a record, with the number of similar records suppressed and a
+     * stack sample, if any.
+     *
+     * @param record the record text.
+     * @param suppressed the number of similar records suppressed.
+     * @param sample the stack sample, or null.
+     */
+    protected void log(StringBuilder record, int suppressed, StackTraceElement[] sample) {
+        if (suppressed > 0) {
+            record.append(" (").append(suppressed).append(" similar suppressed)");
+        }
+        if (sample != null) {
+            for (int i = 0; i < sample.length && i < MAX_STACK_FRAMES; ++i) {
+                record.append("\n    at ").append(sample[i]);
+            }
+        }
+        _plugin.getLogger().warning(record.toString());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start the stack sampling thread, if not already running.
+     */
+    protected void startSampler() {
+        if (_sampler != null || _mainThread == null) {
+            return;
+        }
+        _sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(Math.max(1, _budgetNanos / 2000000));
+                        sample();
+                    }
+                } catch (InterruptedException ex) {
+                    // Stopped.
+                }
+            }
+        }, "Doppelganger watchdog");
+        _sampler.setDaemon(true);
+        _sampler.start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the stack sampling thread, if running.
+     */
+    protected void stopSampler() {
+        if (_sampler != null) {
+            _sampler.interrupt();
+            _sampler = null;
+        }
+        _sampleStart = 0;
+        _sample = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Capture the stack of the main thread if the current operation has
+     * exceeded the budget and has not been sampled yet.
+     *
+     * This runs on the sampling thread.
+     */
+    protected void sample() {
+        long start = _sampleStart;
+        if (start != 0 && _sample == null && System.nanoTime() - start > _budgetNanos) {
+            StackTraceElement[] stack = _mainThread.getStackTrace();
+            // Discard the sample if the operation ended while it was taken.
+            if (_sampleStart == start) {
+                _sample = stack;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Rate limiting state of similar records.
+     */
+    protected static final class Offender {
+        /**
+         * The earliest time, in milliseconds since the epoch, that a similar
+         * record may be logged.
+         */
+        long nextLogMillis;
+
+        /**
+         * The number of similar records suppressed since the last was logged.
+         */
+        int suppressed;
+    } // inner class Offender
+
+    // ------------------------------------------------------------------------
+    /**
+     * The maximum number of stack frames logged.
+     */
+    protected static final int MAX_STACK_FRAMES = 24;
+
+    /**
+     * The Doppelganger plugin.
+     */
+    protected final Doppelganger _plugin;
+
+    /**
+     * The server's main thread.
+     */
+    protected volatile Thread _mainThread;
+
+    /**
+     * Task that logs and resets the per tick totals.
+     */
+    protected BukkitTask _tickTask;
+
+    /**
+     * The stack sampling thread, or null if stacks are not sampled.
+     */
+    protected Thread _sampler;
+
+    /**
+     * Main thread time in nanoseconds that an operation or tick may use; 0
+     * disables logging. Read by the sampling thread.
+     */
+    protected volatile long _budgetNanos;
+
+    /**
+     * Minimum time in milliseconds between similar records.
+     */
+    protected long _rateLimitMillis;
+
+    /**
+     * Map from the key of similar records to their rate limiting state.
+     */
+    protected HashMap<String, Offender> _offenders = new HashMap<String, Offender>();
+
+    /**
+     * Nesting depth of operations; only the outermost is measured.
+     */
+    protected int _depth;
+
+    /**
+     * System.nanoTime() at the start of the current operation.
+     */
+    protected long _start;
+
+    /**
+     * The shape involved in the current operation, or null.
+     */
+    protected String _shape;
+
+    /**
+     * The creature type involved in the current operation, or null.
+     */
+    protected String _creatureType;
+
+    /**
+     * Total number of entities spawned on the main thread.
+     */
+    protected long _spawned;
+
+    /**
+     * The value of _spawned at the start of the current operation.
+     */
+    protected long _spawnedBefore;
+
+    /**
+     * Total time in nanoseconds of the operations in the current tick.
+     */
+    protected long _tickNanos;
+
+    /**
+     * Number of operations in the current tick.
+     */
+    protected int _tickOperations;
+
+    /**
+     * Time in nanoseconds of the slowest operation in the current tick.
+     */
+    protected long _tickSlowestNanos;
+
+    /**
+     * Name of the slowest operation in the current tick, or null.
+     */
+    protected String _tickSlowest;
+
+    /**
+     * System.nanoTime() at the start of the operation to sample, or 0 if
+     * there is none. Shared with the sampling thread.
+     */
+    protected volatile long _sampleStart;
+
+    /**
+     * The stack sample of the current operation, or null. Shared with the
+     * sampling thread.
+     */
+    protected volatile StackTraceElement[] _sample;
+} // class TickWatchdog
@@ -0,0 +1,460 @@
+package io.github.totemo.doppelganger;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.bukkit.Material;
+
+// ----------------------------------------------------------------------------
+/**
+ * Reads and writes the compact binary format of trace files.
+ *
+ * A trace begins with {@link #MAGIC}, {@link #VERSION} and the time it was
+ * started in milliseconds since the epoch. Each record follows as a type byte,
+ * the number of ticks since the previous record and the record's fields.
+ * Integers are variable length, so that small values take one byte, and
+ * coordinates are zig-zag encoded. Each distinct string, such as a world,
+ * player or material name, is written in full once and referred to by number
+ * after that. Neighbourhoods are run-length encoded, since they are mostly
+ * air.
+ */
+public class TraceFile {
+    // ------------------------------------------------------------------------
+    /**
+     * Writes records to a stream.
+     *
+     * Instances are not thread-safe; they are used by the trace writer thread.
+     */
+    public static class Writer implements Closeable {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * Writes the header.
+         *
+         * @param out the stream, which should be buffered.
+         * @param startMillis the time the trace started, in milliseconds since
+         *        the epoch.
+         * @throws IOException if the header can't be written.
+         */
+        public Writer(OutputStream out, long startMillis) throws IOException {
+            _out = new DataOutputStream(out);
+            _out.writeInt(MAGIC);
+            _out.writeShort(VERSION);
+            _out.writeLong(startMillis);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write a record.
+         *
+         * @param record the record; records must be written in tick order.
+         * @throws IOException if the record can't be written.
+         */
+        public void write(TraceRecord record) throws IOException {
+            _out.writeByte(record.getType().ordinal() + 1);
+            writeVarLong(record.getTick() - _tick);
+            _tick = record.getTick();
+
+            switch (record.getType()) {
+            case PLACE:
+                writeString(record.getWorld());
+                writeCoordinates(record);
+                writeString(record.getName());
+                writeString(record.getMaterial().name());
+                writeString(record.getText());
+                writeVarLong(record.getReach());
+                writeNeighbourhood(record.getNeighbourhood());
+                break;
+            case DEATH:
+                writeString(record.getWorld());
+                writeCoordinates(record);
+                writeString(record.getText());
+                writeString(record.getName());
+                break;
+            case COMMAND:
+                _out.writeByte(record.getSource().ordinal());
+                writeString(record.getName());
+                writeString(record.getWorld());
+                writeCoordinates(record);
+                writeString(record.getText());
+                break;
+            }
+        } // write
+
+        // --------------------------------------------------------------------
+        /**
+         * Flush buffered records to the underlying stream.
+         *
+         * @throws IOException if the records can't be written.
+         */
+        public void flush() throws IOException {
+            _out.flush();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            _out.close();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write the coordinates of a record.
+         *
+         * @param record the record.
+         * @throws IOException if the coordinates can't be written.
+         */
+        protected void writeCoordinates(TraceRecord record) throws IOException {
+            writeVarLong(zigZag(record.getX()));
+            writeVarLong(zigZag(record.getY()));
+            writeVarLong(zigZag(record.getZ()));
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write the block types of a neighbourhood as runs of the same type.
+         *
+         * Each run is written as its length and the material name, or null
+         * for an unknown material.
+         *
+         * @param neighbourhood the block types.
+         * @throws IOException if the neighbourhood can't be written.
+         */
+        protected void writeNeighbourhood(Material[] neighbourhood) throws IOException {
+            int start = 0;
+            while (start < neighbourhood.length) {
+                Material material = neighbourhood[start];
+                int end = start + 1;
+                while (end < neighbourhood.length && neighbourhood[end] == material) {
+                    ++end;
+                }
+                writeVarLong(end - start);
+                writeString((material != null) ? material.name() : null);
+                start = end;
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write a string, or a reference to it if it has been written before.
+         *
+         * @param value the string, or null.
+         * @throws IOException if the string can't be written.
+         */
+        protected void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer id = _stringIds.get(value);
+            if (id != null) {
+                writeVarLong(id);
+            } else {
+                id = _stringIds.size() + 1;
+                _stringIds.put(value, id);
+                writeVarLong(id);
+                _out.writeUTF(value);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write a non-negative integer in 7 bit groups, least significant
+         * first, with the top bit of each byte set if more follow.
+         *
+         * @param value the value.
+         * @throws IOException if the value can't be written.
+         */
+        protected void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                _out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _out.writeByte((int) value);
+        }
+
+        /**
+         * The stream.
+         */
+        protected final DataOutputStream _out;
+
+        /**
+         * Map from each string written to its number.
+         */
+        protected final HashMap<String, Integer> _stringIds = new HashMap<String, Integer>();
+
+        /**
+         * The tick of the previous record.
+         */
+        protected long _tick;
+    } // inner class Writer
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reads records from a stream.
+     */
+    public static class Reader implements Closeable {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * Reads the header.
+         *
+         * @param in the stream, which should be buffered.
+         * @throws IOException if the header can't be read or is not that of a
+         *         trace file of a supported version.
+         */
+        public Reader(InputStream in) throws IOException {
+            _in = new DataInputStream(in);
+            if (_in.readInt() != MAGIC) {
+                throw new IOException("not a trace file");
+            }
+            int version = _in.readUnsignedShort();
+            if (version != VERSION) {
+                throw new IOException("unsupported trace file version " + version);
+            }
+            _startMillis = _in.readLong();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the time the trace started.
+         *
+         * @return the time the trace started, in milliseconds since the epoch.
+         */
+        public long getStartMillis() {
+            return _startMillis;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read the next record.
+         *
+         * @return the record, or null at the end of the trace.
+         * @throws IOException if the record can't be read or is corrupt.
+         */
+        public TraceRecord read() throws IOException {
+            int typeByte = _in.read();
+            if (typeByte < 0) {
+                return null;
+            }
+            if (typeByte < 1 || typeByte > TraceRecord.Type.values().length) {
+                throw new IOException("corrupt trace: unknown record type " + typeByte);
+            }
+            TraceRecord.Type type = TraceRecord.Type.values()[typeByte - 1];
+            _tick += readVarLong();
+
+            switch (type) {
+            case PLACE: {
+                String world = readString();
+                int x = readCoordinate();
+                int y = readCoordinate();
+                int z = readCoordinate();
+                String player = readString();
+                Material material = readMaterial();
+                String itemName = readString();
+                int reach = (int) readVarLong();
+                Material[] neighbourhood = readNeighbourhood(reach);
+                return TraceRecord.place(_tick, player, world, x, y, z, material, itemName, reach, neighbourhood);
+            }
+            case DEATH: {
+                String world = readString();
+                int x = readCoordinate();
+                int y = readCoordinate();
+                int z = readCoordinate();
+                String entityType = readString();
+                String customName = readString();
+                return TraceRecord.death(_tick, world, x, y, z, entityType, customName);
+            }
+            case COMMAND:
+            default: {
+                int sourceByte = _in.readUnsignedByte();
+                if (sourceByte >= TraceRecord.Source.values().length) {
+                    throw new IOException("corrupt trace: unknown command source " + sourceByte);
+                }
+                String sender = readString();
+                String world = readString();
+                int x = readCoordinate();
+                int y = readCoordinate();
+                int z = readCoordinate();
+                String commandLine = readString();
+                return TraceRecord.command(_tick, TraceRecord.Source.values()[sourceByte], sender, world, x, y, z,
+                                           commandLine);
+            }
+            }
+        } // read
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            _in.close();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read a zig-zag encoded coordinate.
+         *
+         * @return the coordinate.
+         * @throws IOException if the coordinate can't be read.
+         */
+        protected int readCoordinate() throws IOException {
+            return (int) unZigZag(readVarLong());
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read a material name.
+         *
+         * @return the material, or null if it is unknown to this server
+         *         version.
+         * @throws IOException if the name can't be read.
+         */
+        protected Material readMaterial() throws IOException {
+            String name = readString();
+            return (name != null) ? Material.getMaterial(name) : null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read the runs of block types of a neighbourhood.
+         *
+         * @param reach the reach of the neighbourhood.
+         * @return the block types.
+         * @throws IOException if the neighbourhood can't be read or the runs
+         *         don't fill it exactly.
+         */
+        protected Material[] readNeighbourhood(int reach) throws IOException {
+            Material[] neighbourhood = new Material[TraceRecord.getNeighbourhoodSize(reach)];
+            int start = 0;
+            while (start < neighbourhood.length) {
+                long length = readVarLong();
+                if (length < 1 || start + length > neighbourhood.length) {
+                    throw new IOException("corrupt trace: bad neighbourhood run length " + length);
+                }
+                Material material = readMaterial();
+                for (int end = start + (int) length; start < end; ++start) {
+                    neighbourhood[start] = material;
+                }
+            }
+            return neighbourhood;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read a string, or a reference to one read before.
+         *
+         * @return the string, or null.
+         * @throws IOException if the string can't be read or the reference is
+         *         invalid.
+         */
+        protected String readString() throws IOException {
+            long id = readVarLong();
+            if (id == 0) {
+                return null;
+            } else if (id <= _strings.size()) {
+                return _strings.get((int) id - 1);
+            } else if (id == _strings.size() + 1) {
+                String value = _in.readUTF();
+                _strings.add(value);
+                return value;
+            } else {
+                throw new IOException("corrupt trace: bad string reference " + id);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read an integer written by {@link Writer#writeVarLong(long)}.
+         *
+         * @return the value.
+         * @throws IOException if the value can't be read or is too long.
+         */
+        protected long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = _in.read();
+                if (b < 0) {
+                    throw new EOFException("truncated trace");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("corrupt trace: integer too long");
+        }
+
+        /**
+         * The stream.
+         */
+        protected final DataInputStream _in;
+
+        /**
+         * The time the trace started, in milliseconds since the epoch.
+         */
+        protected final long _startMillis;
+
+        /**
+         * The strings read so far, in the order they were first written.
+         */
+        protected final ArrayList<String> _strings = new ArrayList<String>();
+
+        /**
+         * The tick of the previous record.
+         */
+        protected long _tick;
+    } // inner class Reader
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map a signed integer to a non-negative one, so that values of small
+     * magnitude are small: 0, -1, 1, -2, 2... map to 0, 1, 2, 3, 4...
+     *
+     * @param value the value.
+     * @return the encoded value.
+     */
+    protected static long zigZag(int value) {
+        return ((long) value << 1) ^ ((long) value >> 63);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reverse {@link #zigZag(int)}.
+     *
+     * @param value the encoded value.
+     * @return the original value.
+     */
+    protected static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The first four bytes of a trace file: "DPTR".
+     */
+    public static final int MAGIC = 0x44505452;
+
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The file name extension of trace files.
+     */
+    public static final String EXTENSION = ".dtr";
+} // class TraceFile
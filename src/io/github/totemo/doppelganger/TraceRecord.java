@@ -0,0 +1,388 @@
+package io.github.totemo.doppelganger;
+
+import org.bukkit.Material;
+
+// ----------------------------------------------------------------------------
+/**
+ * One event recorded by the {@link TraceRecorder}: a named trigger block
+ * placement, the death of a doppelganger or a /doppel command.
+ *
+ * Records are immutable once created, so they can be handed from the main
+ * thread to the trace writer thread without synchronisation. Fields that
+ * don't apply to a record's type are null or zero.
+ */
+public class TraceRecord {
+    // ------------------------------------------------------------------------
+    /**
+     * The type of a record.
+     */
+    public enum Type {
+        /**
+         * A player placed a named block of a trigger material.
+         */
+        PLACE,
+
+        /**
+         * A doppelganger died.
+         */
+        DEATH,
+
+        /**
+         * A /doppel command was issued.
+         */
+        COMMAND
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The issuer of a command.
+     */
+    public enum Source {
+        /**
+         * A player.
+         */
+        PLAYER,
+
+        /**
+         * The server console, or any other sender without a location.
+         */
+        CONSOLE,
+
+        /**
+         * A command block.
+         */
+        BLOCK
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a record of a block placement.
+     *
+     * The neighbourhood is the cube of blocks within the reach of the placed
+     * block, as they were before the placement, in the order of
+     * {@link #getNeighbourIndex(int, int, int, int)}.
+     *
+     * @param tick the tick, counted from the start of the trace.
+     * @param player the player name.
+     * @param world the world name.
+     * @param x the X coordinate of the placed block.
+     * @param y the Y coordinate of the placed block.
+     * @param z the Z coordinate of the placed block.
+     * @param material the type of the placed block.
+     * @param itemName the display name of the placed item.
+     * @param reach the distance along each axis that the neighbourhood
+     *        extends from the placed block.
+     * @param neighbourhood the neighbourhood block types; null elements are
+     *        materials that are unknown to this server version.
+     * @return the record.
+     */
+    public static TraceRecord place(long tick, String player, String world, int x, int y, int z,
+                                    Material material, String itemName, int reach, Material[] neighbourhood) {
+        TraceRecord record = new TraceRecord(Type.PLACE, tick, world, x, y, z);
+        record._name = player;
+        record._material = material;
+        record._text = itemName;
+        record._reach = reach;
+        record._neighbourhood = neighbourhood;
+        return record;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a record of the death of a doppelganger.
+     *
+     * @param tick the tick, counted from the start of the trace.
+     * @param world the world name.
+     * @param x the X coordinate of the block where it died.
+     * @param y the Y coordinate of the block where it died.
+     * @param z the Z coordinate of the block where it died.
+     * @param entityType the name of its EntityType.
+     * @param customName its custom name, or null.
+     * @return the record.
+     */
+    public static TraceRecord death(long tick, String world, int x, int y, int z, String entityType, String customName) {
+        TraceRecord record = new TraceRecord(Type.DEATH, tick, world, x, y, z);
+        record._text = entityType;
+        record._name = customName;
+        return record;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a record of a /doppel command.
+     *
+     * @param tick the tick, counted from the start of the trace.
+     * @param source the kind of sender.
+     * @param sender the sender name.
+     * @param world the world name of the sender's location, or null if it
+     *        has none.
+     * @param x the X coordinate of the sender's block.
+     * @param y the Y coordinate of the sender's block.
+     * @param z the Z coordinate of the sender's block.
+     * @param commandLine the command, without a leading '/'.
+     * @return the record.
+     */
+    public static TraceRecord command(long tick, Source source, String sender, String world, int x, int y, int z,
+                                      String commandLine) {
+        TraceRecord record = new TraceRecord(Type.COMMAND, tick, world, x, y, z);
+        record._source = source;
+        record._name = sender;
+        record._text = commandLine;
+        return record;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of this record.
+     *
+     * @return the type.
+     */
+    public Type getType() {
+        return _type;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the tick of this record, counted from the start of the trace.
+     *
+     * @return the tick.
+     */
+    public long getTick() {
+        return _tick;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the world name.
+     *
+     * @return the world name, or null if a command sender has no location.
+     */
+    public String getWorld() {
+        return _world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the X coordinate of the placed block, dead creature or command
+     * sender.
+     *
+     * @return the X coordinate.
+     */
+    public int getX() {
+        return _x;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Y coordinate of the placed block, dead creature or command
+     * sender.
+     *
+     * @return the Y coordinate.
+     */
+    public int getY() {
+        return _y;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Z coordinate of the placed block, dead creature or command
+     * sender.
+     *
+     * @return the Z coordinate.
+     */
+    public int getZ() {
+        return _z;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the player who placed a block, the custom name of a
+     * dead creature or the name of a command sender.
+     *
+     * @return the name; null for a creature without a custom name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the display name of a placed item, the entity type of a dead
+     * creature or the command line of a command.
+     *
+     * @return the text.
+     */
+    public String getText() {
+        return _text;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of a placed block.
+     *
+     * @return the material, or null if not a placement, or if the material is
+     *         unknown to this server version.
+     */
+    public Material getMaterial() {
+        return _material;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the issuer of a command.
+     *
+     * @return the source, or null if not a command.
+     */
+    public Source getSource() {
+        return _source;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the distance along each axis that the neighbourhood of a placed
+     * block extends from it.
+     *
+     * @return the reach, or 0 if not a placement.
+     */
+    public int getReach() {
+        return _reach;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of a block in the neighbourhood of a placed block,
+     * before it was placed.
+     *
+     * @param dx the X offset from the placed block, within the reach.
+     * @param dy the Y offset from the placed block, within the reach.
+     * @param dz the Z offset from the placed block, within the reach.
+     * @return the material, or null if it is unknown to this server version.
+     */
+    public Material getNeighbour(int dx, int dy, int dz) {
+        return _neighbourhood[getNeighbourIndex(_reach, dx, dy, dz)];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the neighbourhood of a placed block.
+     *
+     * @return the block types, indexed by
+     *         {@link #getNeighbourIndex(int, int, int, int)}; null if not a
+     *         placement.
+     */
+    public Material[] getNeighbourhood() {
+        return _neighbourhood;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of blocks in a neighbourhood.
+     *
+     * @param reach the distance along each axis that it extends from the
+     *        centre.
+     * @return the number of blocks.
+     */
+    public static int getNeighbourhoodSize(int reach) {
+        int side = 2 * reach + 1;
+        return side * side * side;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of a block in a neighbourhood.
+     *
+     * Blocks are ordered from the bottom layer up, then by X and then by Z.
+     *
+     * @param reach the distance along each axis that it extends from the
+     *        centre.
+     * @param dx the X offset from the centre.
+     * @param dy the Y offset from the centre.
+     * @param dz the Z offset from the centre.
+     * @return the index.
+     */
+    public static int getNeighbourIndex(int reach, int dx, int dy, int dz) {
+        int side = 2 * reach + 1;
+        return ((dy + reach) * side + (dx + reach)) * side + (dz + reach);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param type the type.
+     * @param tick the tick, counted from the start of the trace.
+     * @param world the world name, or null.
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @param z the Z coordinate.
+     */
+    protected TraceRecord(Type type, long tick, String world, int x, int y, int z) {
+        _type = type;
+        _tick = tick;
+        _world = world;
+        _x = x;
+        _y = y;
+        _z = z;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The type.
+     */
+    protected final Type _type;
+
+    /**
+     * The tick, counted from the start of the trace.
+     */
+    protected final long _tick;
+
+    /**
+     * The world name, or null.
+     */
+    protected final String _world;
+
+    /**
+     * The X coordinate.
+     */
+    protected final int _x;
+
+    /**
+     * The Y coordinate.
+     */
+    protected final int _y;
+
+    /**
+     * The Z coordinate.
+     */
+    protected final int _z;
+
+    /**
+     * The player name, custom name or sender name.
+     */
+    protected String _name;
+
+    /**
+     * The item display name, entity type or command line.
+     */
+    protected String _text;
+
+    /**
+     * The type of a placed block.
+     */
+    protected Material _material;
+
+    /**
+     * The issuer of a command.
+     */
+    protected Source _source;
+
+    /**
+     * The reach of the neighbourhood of a placed block.
+     */
+    protected int _reach;
+
+    /**
+     * The neighbourhood of a placed block.
+     */
+    protected Material[] _neighbourhood;
+} // class TraceRecord
@@ -0,0 +1,645 @@
+package io.github.totemo.doppelganger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.command.BlockCommandSender;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.server.ServerCommandEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Records the events that drive the plugin to a {@link TraceFile}, so that a
+ * lag incident or a server's workload can be replayed against another version
+ * of the plugin without the server.
+ *
+ * While recording, the placement of every named block of a trigger material is
+ * recorded with the neighbourhood it was placed in, along with the deaths of
+ * doppelgangers and named creatures, and /doppel commands other than /doppel
+ * trace. The main thread only copies the details of each event into a
+ * {@link TraceRecord} and queues it; records are encoded and written by a
+ * writer thread. If the writer falls behind and the queue fills, records are
+ * dropped rather than delaying the main thread, and the number dropped is
+ * reported.
+ */
+public class TraceRecorder implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the Doppelganger plugin.
+     */
+    public TraceRecorder(Doppelganger plugin) {
+        _plugin = plugin;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the trace file with the specified name in the traces
+     * subdirectory of the data folder.
+     *
+     * @param name the file name, with or without the extension, or null to
+     *        name the file after the current time.
+     * @return the file, or null if the name contains characters other than
+     *         letters, digits, '.', '_' and '-'.
+     */
+    public File getTraceFile(String name) {
+        if (name == null) {
+            name = "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        } else if (!FILE_NAME_PATTERN.matcher(name).matches()) {
+            return null;
+        }
+        if (!name.endsWith(TraceFile.EXTENSION)) {
+            name += TraceFile.EXTENSION;
+        }
+        return new File(new File(_plugin.getDataFolder(), TRACES_DIRECTORY), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start recording to the specified file.
+     *
+     * This must be called on the main thread.
+     *
+     * @param file the file.
+     * @param replace if true, replace the file if it exists.
+     * @throws FileAlreadyExistsException if the file exists and replace is
+     *         false.
+     * @throws IOException if the file can't be created.
+     * @throws IllegalStateException if already recording.
+     */
+    public void start(File file, boolean replace) throws IOException {
+        if (isRecording()) {
+            throw new IllegalStateException("already recording to " + _writer.getFile());
+        }
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create " + directory);
+        }
+        OutputStream out = new BufferedOutputStream(replace ? Files.newOutputStream(file.toPath())
+                                                            : Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE_NEW,
+                                                                                    StandardOpenOption.WRITE),
+                                                    BUFFER_SIZE);
+        TraceFile.Writer traceWriter;
+        try {
+            traceWriter = new TraceFile.Writer(out, System.currentTimeMillis());
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        }
+
+        _tick = 0;
+        _dropped = 0;
+        _writer = new WriterThread(file, traceWriter);
+        _writer.start();
+        _tickTask = _plugin.getServer().getScheduler().runTaskTimer(_plugin, new Runnable() {
+            @Override
+            public void run() {
+                ++_tick;
+            }
+        }, 1, 1);
+    } // start
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop recording.
+     *
+     * Records that are still queued are written and the file is closed by the
+     * writer thread; this does not wait for them. See {@link #isWriting()}.
+     *
+     * This must be called on the main thread. It does nothing if not
+     * recording.
+     */
+    public void stop() {
+        if (!isRecording()) {
+            return;
+        }
+        _tickTask.cancel();
+        _tickTask = null;
+        _writer.finish();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop recording and wait, for a short time, for queued records to be
+     * written.
+     *
+     * This is called when the plugin is disabled.
+     */
+    public void shutdown() {
+        stop();
+        if (_writer != null) {
+            try {
+                _writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (_writer.isAlive()) {
+                _plugin.getLogger().warning("Trace " + _writer.getFile() + " was not completely written before shutdown.");
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if recording.
+     *
+     * @return true if recording.
+     */
+    public boolean isRecording() {
+        return _tickTask != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the current or most recent trace is still being written.
+     *
+     * @return true if the writer thread has not yet closed the file.
+     */
+    public boolean isWriting() {
+        return _writer != null && _writer.isAlive();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the file of the current or most recent trace.
+     *
+     * @return the file, or null if nothing has been recorded.
+     */
+    public File getFile() {
+        return (_writer != null) ? _writer.getFile() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of ticks since the current or most recent trace
+     * started.
+     *
+     * @return the number of ticks.
+     */
+    public long getTicks() {
+        return _tick;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records written to the current or most recent
+     * trace.
+     *
+     * @return the number of records written.
+     */
+    public long getWrittenCount() {
+        return (_writer != null) ? _writer.getWrittenCount() : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records of the current or most recent trace that
+     * were dropped because the writer thread fell behind.
+     *
+     * @return the number of records dropped.
+     */
+    public long getDroppedCount() {
+        return _dropped;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the error that stopped the current or most recent trace from
+     * being written.
+     *
+     * @return the error message, or null if there was none.
+     */
+    public String getFailure() {
+        return (_writer != null) ? _writer.getFailure() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Capture the placement of a named block of a trigger material, before the
+     * plugin handles it and possibly removes the shape.
+     *
+     * The record is only queued by {@link #onBlockPlaceMonitor(BlockPlaceEvent)}
+     * if no later handler, such as a protection plugin, cancels the event.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        if (!isRecording()) {
+            return;
+        }
+        ItemStack placedItem = event.getItemInHand();
+        Material placedType = placedItem.getType();
+        CreatureFactory factory = _plugin.getCreatureFactory();
+        if (!placedType.isBlock() || !factory.isTrigger(placedType) || !placedItem.hasItemMeta()) {
+            return;
+        }
+        ItemMeta meta = placedItem.getItemMeta();
+        if (!meta.hasDisplayName()) {
+            return;
+        }
+
+        Block block = event.getBlock();
+        World world = block.getWorld();
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+        int reach = factory.getShapeReach();
+        Material[] neighbourhood = new Material[TraceRecord.getNeighbourhoodSize(reach)];
+        int index = 0;
+        for (int dy = -reach; dy <= reach; ++dy) {
+            for (int dx = -reach; dx <= reach; ++dx) {
+                for (int dz = -reach; dz <= reach; ++dz) {
+                    neighbourhood[index++] = world.getBlockAt(x + dx, y + dy, z + dz).getType();
+                }
+            }
+        }
+        // The placed block is already in the world; record what it replaced.
+        neighbourhood[TraceRecord.getNeighbourIndex(reach, 0, 0, 0)] = event.getBlockReplacedState().getType();
+
+        _pendingPlaces.put(event, TraceRecord.place(_tick, event.getPlayer().getName(), world.getName(), x, y, z,
+                                                    placedType, meta.getDisplayName(), reach, neighbourhood));
+    } // onBlockPlace
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue the record captured by {@link #onBlockPlace(BlockPlaceEvent)} if
+     * the placement was not cancelled.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onBlockPlaceMonitor(BlockPlaceEvent event) {
+        TraceRecord record = _pendingPlaces.remove(event);
+        if (record != null && !event.isCancelled() && isRecording()) {
+            queue(record);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the death of a creature spawned by the plugin or with a custom
+     * name.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityDeath(EntityDeathEvent event) {
+        if (!isRecording()) {
+            return;
+        }
+        LivingEntity entity = event.getEntity();
+        if (entity instanceof Player) {
+            return;
+        }
+        String customName = entity.getCustomName();
+        if (customName == null && _plugin.getDoppelgangerIndex().getTaggedType(entity) == null) {
+            return;
+        }
+        Location loc = entity.getLocation();
+        queue(TraceRecord.death(_tick, loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(),
+                                entity.getType().name(), customName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a /doppel command issued by a player.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerCommand(PlayerCommandPreprocessEvent event) {
+        if (!isRecording()) {
+            return;
+        }
+        String commandLine = getTracedCommand(event.getMessage());
+        if (commandLine != null) {
+            Player player = event.getPlayer();
+            Location loc = player.getLocation();
+            queue(TraceRecord.command(_tick, TraceRecord.Source.PLAYER, player.getName(), loc.getWorld().getName(),
+                                      loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), commandLine));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a /doppel command issued by the console or a command block.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onServerCommand(ServerCommandEvent event) {
+        if (!isRecording()) {
+            return;
+        }
+        String commandLine = getTracedCommand(event.getCommand());
+        if (commandLine != null) {
+            if (event.getSender() instanceof BlockCommandSender) {
+                Block block = ((BlockCommandSender) event.getSender()).getBlock();
+                queue(TraceRecord.command(_tick, TraceRecord.Source.BLOCK, event.getSender().getName(),
+                                          block.getWorld().getName(), block.getX(), block.getY(), block.getZ(),
+                                          commandLine));
+            } else {
+                queue(TraceRecord.command(_tick, TraceRecord.Source.CONSOLE, event.getSender().getName(),
+                                          null, 0, 0, 0, commandLine));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the command line to record for a command, or null if it is not
+     * a /doppel command that should be recorded.
+     *
+     * The /doppel trace command is not recorded, and the namespaced form of
+     * /doppel is recorded as /doppel.
+     *
+     * @param message the command, with or without a leading '/'.
+     * @return the command line without a leading '/', or null.
+     */
+    protected static String getTracedCommand(String message) {
+        String[] words = message.trim().split(" +", 3);
+        String label = words[0].toLowerCase();
+        if (label.startsWith("/")) {
+            label = label.substring(1);
+        }
+        if (!label.equals("doppel") && !label.equals("doppelganger:doppel")) {
+            return null;
+        }
+        if (words.length == 1) {
+            return "doppel";
+        }
+        if (words[1].equalsIgnoreCase("trace")) {
+            return null;
+        }
+        return "doppel " + words[1] + ((words.length > 2) ? " " + words[2] : "");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a record for the writer thread, or count it as dropped if the
+     * queue is full.
+     *
+     * @param record the record.
+     */
+    protected void queue(TraceRecord record) {
+        if (!_writer.offer(record)) {
+            ++_dropped;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encodes and writes the records of one trace.
+     */
+    protected class WriterThread extends Thread {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param file the trace file.
+         * @param traceWriter writes records to the file.
+         */
+        WriterThread(File file, TraceFile.Writer traceWriter) {
+            super("Doppelganger trace writer");
+            setDaemon(true);
+            _file = file;
+            _traceWriter = traceWriter;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the trace file.
+         *
+         * @return the trace file.
+         */
+        File getFile() {
+            return _file;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the number of records written.
+         *
+         * @return the number of records written.
+         */
+        long getWrittenCount() {
+            return _written.get();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the error that stopped the trace from being written.
+         *
+         * @return the error message, or null if there was none.
+         */
+        String getFailure() {
+            return _failure;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Queue a record to be written, without blocking.
+         *
+         * @param record the record.
+         * @return false if the queue is full.
+         */
+        boolean offer(TraceRecord record) {
+            return _queue.offer(record);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write the queued records and close the file, without waiting.
+         *
+         * If the queue is full, the thread finishes when it finds the queue
+         * empty, rather than on receiving {@link TraceRecorder#END}.
+         */
+        void finish() {
+            _finishing = true;
+            _queue.offer(END);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write records as they are queued, flushing the file when there is
+         * nothing to write, until {@link #finish()} is called and the queue is
+         * empty.
+         *
+         * After an error, records are discarded.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    TraceRecord record = _queue.poll(FLUSH_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                    if (record == END || (record == null && _finishing)) {
+                        break;
+                    }
+                    if (_failure == null) {
+                        try {
+                            if (record == null) {
+                                _traceWriter.flush();
+                            } else {
+                                _traceWriter.write(record);
+                                _written.incrementAndGet();
+                            }
+                        } catch (IOException ex) {
+                            fail(ex);
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Stopped.
+            } finally {
+                try {
+                    _traceWriter.close();
+                } catch (IOException ex) {
+                    if (_failure == null) {
+                        fail(ex);
+                    }
+                }
+            }
+        } // run
+
+        // --------------------------------------------------------------------
+        /**
+         * Note and log an error writing the trace.
+         *
+         * @param ex the error.
+         */
+        protected void fail(IOException ex) {
+            _failure = ex.getMessage();
+            _plugin.getLogger().severe("Error writing trace " + _file + ": " + _failure);
+        }
+
+        /**
+         * The trace file.
+         */
+        protected final File _file;
+
+        /**
+         * Writes records to the file.
+         */
+        protected final TraceFile.Writer _traceWriter;
+
+        /**
+         * Records waiting to be written.
+         */
+        protected final ArrayBlockingQueue<TraceRecord> _queue = new ArrayBlockingQueue<TraceRecord>(QUEUE_CAPACITY);
+
+        /**
+         * The number of records written.
+         */
+        protected final AtomicLong _written = new AtomicLong();
+
+        /**
+         * The error that stopped the trace from being written, or null.
+         */
+        protected volatile String _failure;
+
+        /**
+         * True once no more records will be queued.
+         */
+        protected volatile boolean _finishing;
+    } // inner class WriterThread
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the subdirectory of the data folder containing traces.
+     */
+    protected static final String TRACES_DIRECTORY = "traces";
+
+    /**
+     * The characters allowed in trace file names given by commands, which
+     * keep traces in {@link #TRACES_DIRECTORY}.
+     */
+    protected static final Pattern FILE_NAME_PATTERN = Pattern.compile("[A-Za-z0-9._-]+");
+
+    /**
+     * The maximum number of records waiting to be written.
+     */
+    protected static final int QUEUE_CAPACITY = 65536;
+
+    /**
+     * The size of the file output buffer, in bytes.
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The time without records after which the file is flushed.
+     */
+    protected static final long FLUSH_PERIOD_MILLIS = 1000;
+
+    /**
+     * The maximum time to wait for queued records to be written when the
+     * plugin is disabled.
+     */
+    protected static final long SHUTDOWN_TIMEOUT_MILLIS = 500;
+
+    /**
+     * Queued after the last record of a trace.
+     */
+    protected static final TraceRecord END = new TraceRecord(TraceRecord.Type.COMMAND, -1, null, 0, 0, 0);
+
+    /**
+     * The Doppelganger plugin.
+     */
+    protected final Doppelganger _plugin;
+
+    /**
+     * The writer thread of the current or most recent trace, or null.
+     */
+    protected WriterThread _writer;
+
+    /**
+     * Counts ticks while recording, or null if not recording.
+     */
+    protected BukkitTask _tickTask;
+
+    /**
+     * The number of ticks since recording started.
+     */
+    protected long _tick;
+
+    /**
+     * The number of records dropped because the queue was full.
+     */
+    protected long _dropped;
+
+    /**
+     * Map from a block placement being handled to its record, captured before
+     * the plugin handled the event; the record is queued after every handler
+     * has run, unless the event was cancelled.
+     */
+    protected final IdentityHashMap<BlockPlaceEvent, TraceRecord> _pendingPlaces = new IdentityHashMap<BlockPlaceEvent, TraceRecord>();
+} // class TraceRecorder
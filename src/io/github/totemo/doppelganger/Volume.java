@@ -26,6 +26,34 @@ public abstract class Volume {
      */
     public abstract World getWorld();
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the two Locations have the same world and coordinates,
+     * irrespective of their direction.
+     *
+     * @param a a Location.
+     * @param b another Location.
+     * @return true if the two Locations are at the same position.
+     */
+    protected static boolean samePosition(Location a, Location b) {
+        return a.getWorld() == b.getWorld() &&
+               a.getX() == b.getX() && a.getY() == b.getY() && a.getZ() == b.getZ();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a hash code consistent with {@link #samePosition(Location, Location)}.
+     *
+     * @param loc the Location.
+     * @return the hash code.
+     */
+    protected static int positionHash(Location loc) {
+        int hash = (loc.getWorld() == null) ? 0 : loc.getWorld().hashCode();
+        hash = 31 * hash + Double.hashCode(loc.getX());
+        hash = 31 * hash + Double.hashCode(loc.getY());
+        return 31 * hash + Double.hashCode(loc.getZ());
+    }
+
     // ------------------------------------------------------------------------
     /**
      * A spherical Volume.
@@ -61,6 +89,31 @@ public abstract class Volume {
             return _centre.getWorld();
         }
 
+        // --------------------------------------------------------------------
+        /**
+         * Spheres are equal if they have the same centre coordinates, world and
+         * radius. The direction component of the centre Location is ignored.
+         *
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sphere)) {
+                return false;
+            }
+            Sphere other = (Sphere) o;
+            return _radius == other._radius && samePosition(_centre, other._centre);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return 31 * positionHash(_centre) + Double.hashCode(_radius);
+        }
+
         // --------------------------------------------------------------------
         /**
          * Return the centre of the sphere.
@@ -140,6 +193,50 @@ public abstract class Volume {
             return _c1.getWorld();
         }
 
+        // --------------------------------------------------------------------
+        /**
+         * Boxes are equal if they have the same world and corner coordinates.
+         *
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Box)) {
+                return false;
+            }
+            Box other = (Box) o;
+            return samePosition(_c1, other._c1) && samePosition(_c2, other._c2);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return 31 * positionHash(_c1) + positionHash(_c2);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the corner with the minimum X, Y and Z coordinates.
+         * 
+         * @return the corner with the minimum X, Y and Z coordinates.
+         */
+        public Location getMin() {
+            return _c1;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the corner with the maximum X, Y and Z coordinates.
+         * 
+         * @return the corner with the maximum X, Y and Z coordinates.
+         */
+        public Location getMax() {
+            return _c2;
+        }
+
         // --------------------------------------------------------------------
         /**
          * Corner 1.
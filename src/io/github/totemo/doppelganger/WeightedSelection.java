@@ -1,5 +1,8 @@
 package io.github.totemo.doppelganger;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Random;
@@ -90,6 +93,49 @@ public class WeightedSelection<E> {
         return _total;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Write a selection of strings to the {@link ConfigCache}.
+     *
+     * Each choice is written with its cumulative weight, so that decoding
+     * reproduces the thresholds exactly. Changes to the encoding must
+     * increment {@link ConfigCache#FORMAT}.
+     *
+     * @param out the stream.
+     * @param selection the selection.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void encode(DataOutputStream out, WeightedSelection<String> selection) throws IOException {
+        out.writeInt(selection._choices.size());
+        for (Entry<Double, String> entry : selection._choices.entrySet()) {
+            out.writeDouble(entry.getKey());
+            ConfigCache.writeString(out, entry.getValue());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a selection of strings written by
+     * {@link #encode(DataOutputStream, WeightedSelection)}.
+     *
+     * @param in the buffer.
+     * @return the selection.
+     * @throws IOException if the encoding is invalid.
+     */
+    public static WeightedSelection<String> decode(ByteBuffer in) throws IOException {
+        WeightedSelection<String> selection = new WeightedSelection<String>();
+        int count = ConfigCache.readCount(in);
+        for (int i = 0; i < count; ++i) {
+            double threshold = in.getDouble();
+            if (!(threshold > selection._total)) {
+                throw new IOException("invalid weight threshold " + threshold);
+            }
+            selection._choices.put(threshold, ConfigCache.readString(in));
+            selection._total = threshold;
+        }
+        return selection;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * The random number generator.